@@ -20,12 +20,14 @@ package solutions.siren.join;
 
 import org.elasticsearch.common.inject.AbstractModule;
 import solutions.siren.join.action.admin.cache.FilterJoinCacheService;
+import solutions.siren.join.action.terms.TermsCollectorService;
 
 public class SirenJoinNodeModule extends AbstractModule {
 
   @Override
   protected void configure() {
     bind(FilterJoinCacheService.class).asEagerSingleton();
+    bind(TermsCollectorService.class).asEagerSingleton();
   }
 
 }
@@ -20,6 +20,7 @@ package solutions.siren.join;
 
 import org.elasticsearch.action.ActionModule;
 import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.index.cache.IndexCacheModule;
 import org.elasticsearch.indices.IndicesModule;
@@ -36,10 +37,16 @@ import solutions.siren.join.action.coordinate.CoordinateMultiSearchAction;
 import solutions.siren.join.action.coordinate.CoordinateSearchAction;
 import solutions.siren.join.action.coordinate.TransportCoordinateMultiSearchAction;
 import solutions.siren.join.action.coordinate.TransportCoordinateSearchAction;
+import solutions.siren.join.action.coordinate.terms.GetEncodedTermsAction;
+import solutions.siren.join.action.coordinate.terms.PutEncodedTermsAction;
+import solutions.siren.join.action.coordinate.terms.TransportGetEncodedTermsAction;
+import solutions.siren.join.action.coordinate.terms.TransportPutEncodedTermsAction;
 import solutions.siren.join.action.terms.TermsByQueryAction;
+import solutions.siren.join.action.terms.TermsCollectorService;
 import solutions.siren.join.action.terms.TransportTermsByQueryAction;
 import solutions.siren.join.index.query.FieldDataTermsQueryParser;
 import solutions.siren.join.index.query.TermsEnumTermsQueryParser;
+import solutions.siren.join.index.query.TermsQueryShardStats;
 import solutions.siren.join.rest.RestClearFilterJoinCacheAction;
 import solutions.siren.join.rest.RestCoordinateMultiSearchAction;
 import solutions.siren.join.rest.RestCoordinateSearchAction;
@@ -55,10 +62,13 @@ import java.util.Collections;
  */
 public class SirenJoinPlugin extends Plugin {
 
+  private final Settings settings;
+
   private final boolean isEnabled;
 
   @Inject
   public SirenJoinPlugin(Settings settings) {
+    this.settings = settings;
     if (DiscoveryNode.clientNode(settings)) {
       this.isEnabled = "node".equals(settings.get("client.type"));
     }
@@ -74,6 +84,8 @@ public class SirenJoinPlugin extends Plugin {
     module.registerAction(ClearFilterJoinCacheAction.INSTANCE, TransportClearFilterJoinCacheAction.class);
     module.registerAction(StatsFilterJoinCacheAction.INSTANCE, TransportStatsFilterJoinCacheAction.class);
     module.registerAction(GetIndicesVersionAction.INSTANCE, TransportGetIndicesVersionAction.class);
+    module.registerAction(PutEncodedTermsAction.INSTANCE, TransportPutEncodedTermsAction.class);
+    module.registerAction(GetEncodedTermsAction.INSTANCE, TransportGetEncodedTermsAction.class);
   }
 
   public void onModule(IndicesModule module) {
@@ -98,6 +110,16 @@ public class SirenJoinPlugin extends Plugin {
     }
   }
 
+  @Override
+  public Collection<Class<? extends LifecycleComponent>> nodeServices() {
+    if (isEnabled) {
+      return Collections.<Class<? extends LifecycleComponent>>singletonList(TermsCollectorService.class);
+    }
+    else {
+      return Collections.emptyList();
+    }
+  }
+
   @Override
   public Collection<Module> shardModules(Settings indexSettings) {
     return Collections.singletonList((Module) new SirenJoinShardModule());
@@ -107,6 +129,7 @@ public class SirenJoinPlugin extends Plugin {
   public Collection<Class<? extends Closeable>> shardServices() {
     Collection<Class<? extends Closeable>> services = new ArrayList<>();
     services.add(IndexVersionShardService.class);
+    services.add(TermsQueryShardStats.class);
     return services;
   }
 
@@ -122,7 +145,11 @@ public class SirenJoinPlugin extends Plugin {
 
   @Override
   public Settings additionalSettings() {
-    return Settings.builder().put(IndexCacheModule.QUERY_CACHE_EVERYTHING, true).build();
+    Settings.Builder builder = Settings.builder().put(IndexCacheModule.QUERY_CACHE_EVERYTHING, true);
+    if (isEnabled) {
+      builder.put(TermsCollectorService.threadPoolSettings(settings));
+    }
+    return builder.build();
   }
 
 }
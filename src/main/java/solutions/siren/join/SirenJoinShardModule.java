@@ -20,12 +20,14 @@ package solutions.siren.join;
 
 import org.elasticsearch.common.inject.AbstractModule;
 import solutions.siren.join.action.admin.version.IndexVersionShardService;
+import solutions.siren.join.index.query.TermsQueryShardStats;
 
 public class SirenJoinShardModule extends AbstractModule {
 
   @Override
   protected void configure() {
     bind(IndexVersionShardService.class).asEagerSingleton();
+    bind(TermsQueryShardStats.class).asEagerSingleton();
   }
 
 }
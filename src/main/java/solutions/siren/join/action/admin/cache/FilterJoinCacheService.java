@@ -18,31 +18,72 @@
  */
 package solutions.siren.join.action.admin.cache;
 
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.common.breaker.CircuitBreaker;
 import org.elasticsearch.common.component.AbstractComponent;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
 import solutions.siren.join.action.coordinate.execution.FilterJoinCache;
+import solutions.siren.join.action.coordinate.terms.EncodedTermsStore;
+import solutions.siren.join.action.terms.TermsByQueryShardCache;
 
 public class FilterJoinCacheService extends AbstractComponent {
 
   private final FilterJoinCache cache;
+  private final TermsByQueryShardCache shardCache;
+  private final EncodedTermsStore termsStore;
 
   @Inject
-  public FilterJoinCacheService(Settings settings) {
+  public FilterJoinCacheService(Settings settings, CircuitBreakerService breakerService, ClusterService clusterService) {
     super(settings);
     this.cache = new FilterJoinCache(settings);
+    this.shardCache = new TermsByQueryShardCache(settings);
+    this.termsStore = new EncodedTermsStore(settings, breakerService.getBreaker(CircuitBreaker.REQUEST));
+    clusterService.add(new ClusterStateListener() {
+
+      @Override
+      public void clusterChanged(ClusterChangedEvent event) {
+        // a new mapping, index or alias may change the family of the lookup fields
+        if (event.metaDataChanged()) {
+          cache.invalidateFieldFamilies();
+        }
+      }
+
+    });
   }
 
   public FilterJoinCache getCacheInstance() {
     return this.cache;
   }
 
+  public TermsByQueryShardCache getShardCacheInstance() {
+    return this.shardCache;
+  }
+
+  /**
+   * Returns the store of the encoded terms referenced by the field data terms queries. Its entries are accounted
+   * on the request circuit breaker. It is cleared by {@link #clear()}: the queries in flight which miss their
+   * entries fetch them again from their coordinator.
+   */
+  public EncodedTermsStore getTermsStoreInstance() {
+    return this.termsStore;
+  }
+
   public void clear() {
     cache.invalidateAll();
+    shardCache.invalidateAll();
+    termsStore.invalidateAll();
   }
 
   public FilterJoinCache.FilterJoinCacheStats getStats() {
     return cache.getStats();
   }
 
+  public FilterJoinCache.FilterJoinCacheStats getShardStats() {
+    return shardCache.getStats();
+  }
+
 }
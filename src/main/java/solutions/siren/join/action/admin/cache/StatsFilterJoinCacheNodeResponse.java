@@ -23,6 +23,7 @@ import org.elasticsearch.cluster.node.DiscoveryNode;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import solutions.siren.join.action.coordinate.execution.FilterJoinCache;
+import solutions.siren.join.index.query.TermsQueryShardStats;
 
 import java.io.IOException;
 
@@ -30,13 +31,19 @@ public class StatsFilterJoinCacheNodeResponse extends BaseNodeResponse {
 
   private long timestamp;
   private FilterJoinCache.FilterJoinCacheStats cacheStats;
+  private FilterJoinCache.FilterJoinCacheStats shardCacheStats;
+  private TermsQueryShardStats.Stats termsQueryStats;
 
   StatsFilterJoinCacheNodeResponse() {}
 
-  StatsFilterJoinCacheNodeResponse(DiscoveryNode node, long timestamp, FilterJoinCache.FilterJoinCacheStats cacheStats) {
+  StatsFilterJoinCacheNodeResponse(DiscoveryNode node, long timestamp, FilterJoinCache.FilterJoinCacheStats cacheStats,
+                                   FilterJoinCache.FilterJoinCacheStats shardCacheStats,
+                                   TermsQueryShardStats.Stats termsQueryStats) {
     super(node);
     this.timestamp = timestamp;
     this.cacheStats = cacheStats;
+    this.shardCacheStats = shardCacheStats;
+    this.termsQueryStats = termsQueryStats;
   }
 
   public long getTimestamp() {
@@ -47,6 +54,20 @@ public class StatsFilterJoinCacheNodeResponse extends BaseNodeResponse {
     return this.cacheStats;
   }
 
+  /**
+   * Returns the stats of the shard-level terms by query cache of the node.
+   */
+  public FilterJoinCache.FilterJoinCacheStats getShardCacheStats() {
+    return this.shardCacheStats;
+  }
+
+  /**
+   * Returns the stats of the terms queries executed on the shards of the node, see {@link TermsQueryShardStats}.
+   */
+  public TermsQueryShardStats.Stats getTermsQueryStats() {
+    return this.termsQueryStats;
+  }
+
   public static StatsFilterJoinCacheNodeResponse readNodeStats(StreamInput in) throws IOException {
     StatsFilterJoinCacheNodeResponse nodeStats = new StatsFilterJoinCacheNodeResponse();
     nodeStats.readFrom(in);
@@ -59,6 +80,10 @@ public class StatsFilterJoinCacheNodeResponse extends BaseNodeResponse {
     timestamp = in.readVLong();
     cacheStats = new FilterJoinCache.FilterJoinCacheStats();
     cacheStats.readFrom(in);
+    shardCacheStats = new FilterJoinCache.FilterJoinCacheStats();
+    shardCacheStats.readFrom(in);
+    termsQueryStats = new TermsQueryShardStats.Stats();
+    termsQueryStats.readFrom(in);
   }
 
   @Override
@@ -66,6 +91,8 @@ public class StatsFilterJoinCacheNodeResponse extends BaseNodeResponse {
     super.writeTo(out);
     out.writeVLong(timestamp);
     cacheStats.writeTo(out);
+    shardCacheStats.writeTo(out);
+    termsQueryStats.writeTo(out);
   }
 
 }
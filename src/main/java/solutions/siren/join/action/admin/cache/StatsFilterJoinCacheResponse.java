@@ -24,6 +24,8 @@ import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.xcontent.ToXContent;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import solutions.siren.join.action.coordinate.execution.FilterJoinCache;
+import solutions.siren.join.index.query.TermsQueryShardStats;
 
 import java.io.IOException;
 
@@ -66,18 +68,13 @@ public class StatsFilterJoinCacheResponse extends BaseNodesResponse<StatsFilterJ
       builder.startObject(node.getNode().getName(), XContentBuilder.FieldCaseConversion.NONE);
       builder.field("timestamp", node.getTimestamp());
       builder.startObject("stats");
-      builder.field("size", node.getCacheStats().getSize());
-      builder.field("requestCount", node.getCacheStats().getCacheStats().requestCount());
-      builder.field("hitCount", node.getCacheStats().getCacheStats().hitCount());
-      builder.field("hitRate", node.getCacheStats().getCacheStats().hitRate());
-      builder.field("missCount", node.getCacheStats().getCacheStats().missCount());
-      builder.field("missRate", node.getCacheStats().getCacheStats().missRate());
-      builder.field("loadCount", node.getCacheStats().getCacheStats().loadCount());
-      builder.field("loadSuccessCount", node.getCacheStats().getCacheStats().loadSuccessCount());
-      builder.field("loadExceptionCount", node.getCacheStats().getCacheStats().loadExceptionCount());
-      builder.field("loadExceptionRate", node.getCacheStats().getCacheStats().loadExceptionRate());
-      builder.field("totalLoadTime", node.getCacheStats().getCacheStats().totalLoadTime());
-      builder.field("evictionCount", node.getCacheStats().getCacheStats().evictionCount());
+      this.toXContent(builder, node.getCacheStats());
+      builder.endObject();
+      builder.startObject("shardStats");
+      this.toXContent(builder, node.getShardCacheStats());
+      builder.endObject();
+      builder.startObject("termsQueryStats");
+      this.toXContent(builder, node.getTermsQueryStats());
       builder.endObject();
       builder.endObject();
     }
@@ -86,4 +83,26 @@ public class StatsFilterJoinCacheResponse extends BaseNodesResponse<StatsFilterJ
     return builder;
   }
 
+  private void toXContent(XContentBuilder builder, TermsQueryShardStats.Stats stats) throws IOException {
+    builder.field("docValuesSegments", stats.getDocValuesSegments());
+    builder.field("fieldDataSegments", stats.getFieldDataSegments());
+    builder.field("postingsSegments", stats.getPostingsSegments());
+    builder.field("prunedSegments", stats.getPrunedSegments());
+  }
+
+  private void toXContent(XContentBuilder builder, FilterJoinCache.FilterJoinCacheStats stats) throws IOException {
+    builder.field("size", stats.getSize());
+    builder.field("requestCount", stats.getCacheStats().requestCount());
+    builder.field("hitCount", stats.getCacheStats().hitCount());
+    builder.field("hitRate", stats.getCacheStats().hitRate());
+    builder.field("missCount", stats.getCacheStats().missCount());
+    builder.field("missRate", stats.getCacheStats().missRate());
+    builder.field("loadCount", stats.getCacheStats().loadCount());
+    builder.field("loadSuccessCount", stats.getCacheStats().loadSuccessCount());
+    builder.field("loadExceptionCount", stats.getCacheStats().loadExceptionCount());
+    builder.field("loadExceptionRate", stats.getCacheStats().loadExceptionRate());
+    builder.field("totalLoadTime", stats.getCacheStats().totalLoadTime());
+    builder.field("evictionCount", stats.getCacheStats().evictionCount());
+  }
+
 }
@@ -25,8 +25,10 @@ import org.elasticsearch.cluster.ClusterService;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.indices.IndicesService;
 import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.TransportService;
+import solutions.siren.join.index.query.TermsQueryShardStats;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -37,16 +39,19 @@ public class TransportStatsFilterJoinCacheAction extends TransportNodesAction<St
 
   private final ClusterService clusterService;
   private final FilterJoinCacheService cacheService;
+  private final IndicesService indicesService;
 
   @Inject
   public TransportStatsFilterJoinCacheAction(Settings settings, ClusterName clusterName, ThreadPool threadPool,
                                                 ClusterService clusterService, FilterJoinCacheService cacheService,
+                                                IndicesService indicesService,
                                                 TransportService transportService, ActionFilters actionFilters,
                                                 IndexNameExpressionResolver indexNameExpressionResolver) {
     super(settings, StatsFilterJoinCacheAction.NAME, clusterName, threadPool, clusterService, transportService,
             actionFilters, indexNameExpressionResolver, StatsFilterJoinCacheRequest.class,
             StatsFilterJoinCacheNodeRequest.class, ThreadPool.Names.MANAGEMENT);
     this.cacheService = cacheService;
+    this.indicesService = indicesService;
     this.clusterService = clusterService;
   }
 
@@ -75,7 +80,8 @@ public class TransportStatsFilterJoinCacheAction extends TransportNodesAction<St
   @Override
   protected StatsFilterJoinCacheNodeResponse nodeOperation(StatsFilterJoinCacheNodeRequest request) {
     logger.debug("Clearing filter join cache on node {}", clusterService.localNode());
-    return new StatsFilterJoinCacheNodeResponse(clusterService.localNode(), System.currentTimeMillis(), cacheService.getStats());
+    return new StatsFilterJoinCacheNodeResponse(clusterService.localNode(), System.currentTimeMillis(), cacheService.getStats(),
+            cacheService.getShardStats(), TermsQueryShardStats.nodeStats(indicesService));
   }
 
   @Override
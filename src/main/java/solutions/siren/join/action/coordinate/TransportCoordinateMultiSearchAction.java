@@ -28,10 +28,12 @@ import org.elasticsearch.cluster.ClusterState;
 import org.elasticsearch.cluster.block.ClusterBlockLevel;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
 import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.breaker.CircuitBreaker;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.util.concurrent.AtomicArray;
 import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
 import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.TransportService;
 import solutions.siren.join.action.admin.cache.FilterJoinCacheService;
@@ -60,10 +62,13 @@ public class TransportCoordinateMultiSearchAction extends BaseTransportCoordinat
 
   private final FilterJoinCacheService cacheService;
 
+  private final CircuitBreakerService breakerService;
+
   @Inject
   public TransportCoordinateMultiSearchAction(Settings settings, ThreadPool threadPool,
                                               TransportService transportService, ClusterService clusterService,
                                               FilterJoinCacheService cacheService,
+                                              CircuitBreakerService breakerService,
                                               TransportSearchAction search, ActionFilters actionFilters,
                                               IndexNameExpressionResolver indexNameExpressionResolver, Client client) {
     super(settings, CoordinateMultiSearchAction.NAME, threadPool, transportService, actionFilters,
@@ -71,6 +76,7 @@ public class TransportCoordinateMultiSearchAction extends BaseTransportCoordinat
     this.searchAction = search;
     this.clusterService = clusterService;
     this.cacheService = cacheService;
+    this.breakerService = breakerService;
   }
 
   @Override
@@ -78,14 +84,22 @@ public class TransportCoordinateMultiSearchAction extends BaseTransportCoordinat
     logger.debug("{}: Execute coordinated multi-search action", Thread.currentThread().getName());
 
     List<CoordinateSearchMetadata> metadatas = new ArrayList<>(request.requests().size());
-    this.doExecuteFilterJoins(request, metadatas);
-    this.doExecuteRequest(request, listener, metadatas);
+    List<FilterJoinVisitor> visitors = new ArrayList<>(request.requests().size());
+    try {
+      this.doExecuteFilterJoins(request, metadatas, visitors);
+    }
+    catch (RuntimeException e) {
+      this.release(visitors);
+      throw e;
+    }
+    this.doExecuteRequest(request, listener, metadatas, visitors);
 
     logger.debug("{}: Coordinated multi-search action completed", Thread.currentThread().getName());
   }
 
   private void doExecuteFilterJoins(final MultiSearchRequest request,
-                                    final List<CoordinateSearchMetadata> metadatas) {
+                                    final List<CoordinateSearchMetadata> metadatas,
+                                    final List<FilterJoinVisitor> visitors) {
     FilterJoinCache cache = cacheService.getCacheInstance();
 
     for (int i = 0; i < request.requests().size(); i++) {
@@ -96,7 +110,9 @@ public class TransportCoordinateMultiSearchAction extends BaseTransportCoordinat
       // Query planning and execution of filter joins
       SourceMapVisitor mapVisitor = new SourceMapVisitor(map);
       mapVisitor.traverse();
-      FilterJoinVisitor joinVisitor = new FilterJoinVisitor(client, mapVisitor.getFilterJoinTree(), cache, request);
+      FilterJoinVisitor joinVisitor = new FilterJoinVisitor(client, mapVisitor.getFilterJoinTree(), cache, request,
+              request.requests().get(i).indices(), settings, breakerService.getBreaker(CircuitBreaker.REQUEST), cacheService.getTermsStoreInstance());
+      visitors.add(joinVisitor);
       joinVisitor.traverse();
       metadatas.add(joinVisitor.getMetadata());
 
@@ -106,10 +122,26 @@ public class TransportCoordinateMultiSearchAction extends BaseTransportCoordinat
     }
   }
 
+  /**
+   * Unpins the encoded terms shipped to the data nodes by the visitors.
+   */
+  private void release(final List<FilterJoinVisitor> visitors) {
+    for (FilterJoinVisitor visitor : visitors) {
+      visitor.release();
+    }
+  }
+
   private void doExecuteRequest(final MultiSearchRequest request, final ActionListener<MultiSearchResponse> listener,
-                                final List<CoordinateSearchMetadata> metadatas) {
+                                final List<CoordinateSearchMetadata> metadatas,
+                                final List<FilterJoinVisitor> visitors) {
     ClusterState clusterState = clusterService.state();
-    clusterState.blocks().globalBlockedRaiseException(ClusterBlockLevel.READ);
+    try {
+      clusterState.blocks().globalBlockedRaiseException(ClusterBlockLevel.READ);
+    }
+    catch (RuntimeException e) {
+      this.release(visitors);
+      throw e;
+    }
 
     final AtomicArray<CoordinateMultiSearchResponse.Item> responses = new AtomicArray<>(request.requests().size());
     final AtomicInteger counter = new AtomicInteger(responses.length());
@@ -135,6 +167,7 @@ public class TransportCoordinateMultiSearchAction extends BaseTransportCoordinat
         }
 
         private void finishHim() {
+          TransportCoordinateMultiSearchAction.this.release(visitors);
           listener.onResponse(new CoordinateMultiSearchResponse(responses.toArray(new CoordinateMultiSearchResponse.Item[responses.length()])));
         }
 
@@ -26,9 +26,11 @@ import org.elasticsearch.action.support.ActionFilters;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
 import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.breaker.CircuitBreaker;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
 import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.TransportService;
 import solutions.siren.join.action.admin.cache.FilterJoinCacheService;
@@ -45,15 +47,19 @@ public class TransportCoordinateSearchAction extends BaseTransportCoordinateSear
 
   private final FilterJoinCacheService cacheService;
 
+  private final CircuitBreakerService breakerService;
+
   @Inject
   public TransportCoordinateSearchAction(Settings settings, ThreadPool threadPool,
                                          TransportService transportService, FilterJoinCacheService cacheService,
+                                         CircuitBreakerService breakerService,
                                          ActionFilters actionFilters, TransportSearchAction searchAction,
                                          IndexNameExpressionResolver indexNameExpressionResolver, Client client) {
     super(settings, CoordinateSearchAction.NAME, threadPool, transportService, actionFilters,
             indexNameExpressionResolver, client, SearchRequest.class);
     this.searchAction = searchAction;
     this.cacheService = cacheService;
+    this.breakerService = breakerService;
   }
 
   @Override
@@ -74,12 +80,20 @@ public class TransportCoordinateSearchAction extends BaseTransportCoordinateSear
       // Query planning and execution of filter joins
       SourceMapVisitor mapVisitor = new SourceMapVisitor(map);
       mapVisitor.traverse();
-      FilterJoinVisitor joinVisitor = new FilterJoinVisitor(client, mapVisitor.getFilterJoinTree(), cache, request);
-      joinVisitor.traverse();
+      FilterJoinVisitor joinVisitor = new FilterJoinVisitor(client, mapVisitor.getFilterJoinTree(), cache, request,
+              request.indices(), settings, breakerService.getBreaker(CircuitBreaker.REQUEST), cacheService.getTermsStoreInstance());
+      try {
+        joinVisitor.traverse();
+      }
+      catch (RuntimeException e) {
+        joinVisitor.release();
+        throw e;
+      }
 
       // Wraps the listener with our own to inject metadata information in the response
       CoordinateSearchListener coordinateSearchListener = new CoordinateSearchListener(listener);
       coordinateSearchListener.setMetadata(joinVisitor.getMetadata());
+      coordinateSearchListener.setVisitor(joinVisitor);
       actionListener = coordinateSearchListener;
 
       // Filter joins have been replaced by a binary terms filter
@@ -95,7 +109,7 @@ public class TransportCoordinateSearchAction extends BaseTransportCoordinateSear
 
   /**
    * Wrapper around a listener that is responsible for injecting the coordinate search metadata
-   * into the search response.
+   * into the search response, and for releasing the encoded terms pinned by the filter join visitor.
    */
   public static class CoordinateSearchListener implements ActionListener<SearchResponse> {
 
@@ -103,6 +117,8 @@ public class TransportCoordinateSearchAction extends BaseTransportCoordinateSear
 
     private CoordinateSearchMetadata metadata;
 
+    private FilterJoinVisitor visitor;
+
     public CoordinateSearchListener(final ActionListener<SearchResponse> listener) {
       this.actionListener = listener;
     }
@@ -111,17 +127,29 @@ public class TransportCoordinateSearchAction extends BaseTransportCoordinateSear
       this.metadata = metadata;
     }
 
+    public void setVisitor(FilterJoinVisitor visitor) {
+      this.visitor = visitor;
+    }
+
     @Override
     public final void onResponse(SearchResponse response) {
+      this.release();
       CoordinateSearchResponse r = new CoordinateSearchResponse(response, metadata);
       this.actionListener.onResponse(r);
     }
 
     @Override
     public final void onFailure(Throwable e) {
+      this.release();
       this.actionListener.onFailure(e);
     }
 
+    private void release() {
+      if (visitor != null) {
+        visitor.release();
+      }
+    }
+
   }
 
 }
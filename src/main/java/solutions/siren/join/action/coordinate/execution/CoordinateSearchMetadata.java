@@ -23,6 +23,7 @@ import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentBuilderString;
 import solutions.siren.join.action.terms.TermsByQueryRequest;
+import solutions.siren.join.action.terms.TermsByQueryResponse;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -93,12 +94,17 @@ public class CoordinateSearchMetadata {
     Relation[] relations;
     int size;
     long sizeInBytes;
+    long compressedSizeInBytes;
+    long shardsCompressedSizeInBytes;
+    long coordinatorCompressedSizeInBytes;
     boolean isPruned;
     boolean cacheHit;
     long tookInMillis;
     TermsByQueryRequest.TermsEncoding termsEncoding;
+    boolean isAutoTermsEncoding;
     TermsByQueryRequest.Ordering ordering;
     int maxTermsPerShard;
+    TermsByQueryResponse.TermsSource termsSource;
 
     static final class Fields {
       static final XContentBuilderString RELATIONS = new XContentBuilderString("relations");
@@ -106,12 +112,17 @@ public class CoordinateSearchMetadata {
       static final XContentBuilderString TO = new XContentBuilderString("to");
       static final XContentBuilderString SIZE = new XContentBuilderString("size");
       static final XContentBuilderString SIZE_IN_BYTES = new XContentBuilderString("size_in_bytes");
+      static final XContentBuilderString COMPRESSED_SIZE_IN_BYTES = new XContentBuilderString("compressed_size_in_bytes");
+      static final XContentBuilderString SHARDS_COMPRESSED_SIZE_IN_BYTES = new XContentBuilderString("shards_compressed_size_in_bytes");
+      static final XContentBuilderString COORDINATOR_COMPRESSED_SIZE_IN_BYTES = new XContentBuilderString("coordinator_compressed_size_in_bytes");
       static final XContentBuilderString IS_PRUNED = new XContentBuilderString("is_pruned");
       static final XContentBuilderString CACHE_HIT = new XContentBuilderString("cache_hit");
       static final XContentBuilderString TOOK = new XContentBuilderString("took");
       static final XContentBuilderString TERMS_ENCODING = new XContentBuilderString("terms_encoding");
+      static final XContentBuilderString IS_AUTO_TERMS_ENCODING = new XContentBuilderString("is_auto_terms_encoding");
       static final XContentBuilderString ORDERING = new XContentBuilderString("order_by");
       static final XContentBuilderString MAX_TERMS_PER_SHARD = new XContentBuilderString("max_terms_per_shard");
+      static final XContentBuilderString TERMS_SOURCE = new XContentBuilderString("terms_source");
     }
 
     Action() {}
@@ -132,6 +143,18 @@ public class CoordinateSearchMetadata {
       this.sizeInBytes = size;
     }
 
+    void setCompressedSizeInBytes(long size) {
+      this.compressedSizeInBytes = size;
+    }
+
+    void setShardsCompressedSizeInBytes(long size) {
+      this.shardsCompressedSizeInBytes = size;
+    }
+
+    void setCoordinatorCompressedSizeInBytes(long size) {
+      this.coordinatorCompressedSizeInBytes = size;
+    }
+
     void setCacheHit(boolean cacheHit) {
       this.cacheHit = cacheHit;
     }
@@ -144,6 +167,10 @@ public class CoordinateSearchMetadata {
       this.termsEncoding = termsEncoding;
     }
 
+    void setAutoTermsEncoding(boolean isAutoTermsEncoding) {
+      this.isAutoTermsEncoding = isAutoTermsEncoding;
+    }
+
     public void setMaxTermsPerShard(Integer maxTermsPerShard) {
       this.maxTermsPerShard = maxTermsPerShard == null ? -1 : maxTermsPerShard;
     }
@@ -152,6 +179,10 @@ public class CoordinateSearchMetadata {
       this.ordering = ordering;
     }
 
+    void setTermsSource(TermsByQueryResponse.TermsSource termsSource) {
+      this.termsSource = termsSource;
+    }
+
     public XContentBuilder toXContent(XContentBuilder builder) throws IOException {
       builder.startObject();
 
@@ -169,9 +200,14 @@ public class CoordinateSearchMetadata {
 
       builder.field(Fields.SIZE, size);
       builder.field(Fields.SIZE_IN_BYTES, sizeInBytes);
+      builder.field(Fields.COMPRESSED_SIZE_IN_BYTES, compressedSizeInBytes);
+      builder.field(Fields.SHARDS_COMPRESSED_SIZE_IN_BYTES, shardsCompressedSizeInBytes);
+      builder.field(Fields.COORDINATOR_COMPRESSED_SIZE_IN_BYTES, coordinatorCompressedSizeInBytes);
       builder.field(Fields.IS_PRUNED, isPruned);
       builder.field(Fields.CACHE_HIT, cacheHit);
       builder.field(Fields.TERMS_ENCODING, termsEncoding.name().toLowerCase(Locale.ROOT));
+      builder.field(Fields.IS_AUTO_TERMS_ENCODING, isAutoTermsEncoding);
+      builder.field(Fields.TERMS_SOURCE, termsSource.name().toLowerCase(Locale.ROOT));
       if (ordering != null) {
         builder.field(Fields.ORDERING, ordering.name().toLowerCase(Locale.ROOT));
       }
@@ -192,10 +228,15 @@ public class CoordinateSearchMetadata {
       this.relations = new Relation[] { left, right };
       this.size = in.readVInt();
       this.sizeInBytes = in.readVLong();
+      this.compressedSizeInBytes = in.readVLong();
+      this.shardsCompressedSizeInBytes = in.readVLong();
+      this.coordinatorCompressedSizeInBytes = in.readVLong();
       this.isPruned = in.readBoolean();
       this.cacheHit = in.readBoolean();
       this.tookInMillis = in.readLong();
       this.termsEncoding = TermsByQueryRequest.TermsEncoding.values()[in.readVInt()];
+      this.isAutoTermsEncoding = in.readBoolean();
+      this.termsSource = TermsByQueryResponse.TermsSource.values()[in.readVInt()];
       if (in.readBoolean()) {
         this.ordering = TermsByQueryRequest.Ordering.values()[in.readVInt()];
       }
@@ -209,10 +250,15 @@ public class CoordinateSearchMetadata {
       this.relations[1].writeTo(out);
       out.writeVInt(size);
       out.writeVLong(sizeInBytes);
+      out.writeVLong(compressedSizeInBytes);
+      out.writeVLong(shardsCompressedSizeInBytes);
+      out.writeVLong(coordinatorCompressedSizeInBytes);
       out.writeBoolean(isPruned);
       out.writeBoolean(cacheHit);
       out.writeLong(tookInMillis);
       out.writeVInt(termsEncoding.ordinal());
+      out.writeBoolean(isAutoTermsEncoding);
+      out.writeVInt(termsSource.ordinal());
       if (ordering == null) {
         out.writeBoolean(false);
       } else {
@@ -31,8 +31,12 @@ import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.settings.Settings;
 import solutions.siren.join.action.coordinate.model.FilterJoinNode;
 import solutions.siren.join.action.coordinate.model.FilterJoinTerms;
+import solutions.siren.join.action.coordinate.tasks.TermsEncodingSelectionTask;
+import solutions.siren.join.action.terms.TermsByQueryRequest;
+import solutions.siren.join.action.terms.TermsByQueryResponse;
 
 import java.io.IOException;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -44,6 +48,25 @@ public class FilterJoinCache {
 
   private final Cache<Long, CacheEntry> cache;
 
+  /**
+   * The number of unique terms observed by previous executions of a filter join, independently of the version
+   * of the lookup indices. It is used to skip the cardinality estimation of a filter join.
+   */
+  private final Cache<Long, Long> cardinalities;
+
+  /**
+   * The family of the lookup fields, used by {@link TermsEncodingSelectionTask} to skip the retrieval of their
+   * mappings. It is invalidated by {@link #invalidateFieldFamilies()} when the metadata of the cluster changes,
+   * as a new mapping, index or alias may change the family of a lookup field.
+   */
+  private final Cache<String, TermsEncodingSelectionTask.FieldFamily> fieldFamilies;
+
+  /**
+   * Incremented on each invalidation of the field families, so that a family retrieved before an invalidation
+   * is not cached. Guarded by this.
+   */
+  private long fieldFamiliesGeneration = 0;
+
   /**
    * The maximum size (in bytes) of the cache. Default to 256MB.
    */
@@ -51,12 +74,26 @@ public class FilterJoinCache {
 
   public final static String SIREN_FILTERJOIN_CACHE_ENABLED = "siren.filterjoin.cache.enabled";
   public final static String SIREN_FILTERJOIN_CACHE_SIZE = "siren.filterjoin.cache.size";
+  public final static String SIREN_FILTERJOIN_CACHE_CARDINALITY_SIZE = "siren.filterjoin.cache.cardinality.size";
+  public final static String SIREN_FILTERJOIN_CACHE_FIELD_FAMILY_SIZE = "siren.filterjoin.cache.field_family.size";
+
+  /**
+   * The maximum number of cardinalities kept in the cache. Default to 10000.
+   */
+  private static final int DEFAULT_CARDINALITY_CACHE_SIZE = 10000;
+
+  /**
+   * The maximum number of field families kept in the cache. Default to 10000.
+   */
+  private static final int DEFAULT_FIELD_FAMILY_CACHE_SIZE = 10000;
 
   private static final ESLogger logger = Loggers.getLogger(FilterJoinCache.class);
 
   public FilterJoinCache(Settings settings) {
     boolean isEnabled = settings.getAsBoolean(SIREN_FILTERJOIN_CACHE_ENABLED, true);
     long size = settings.getAsInt(SIREN_FILTERJOIN_CACHE_SIZE, DEFAULT_CACHE_SIZE);
+    long cardinalitySize = settings.getAsInt(SIREN_FILTERJOIN_CACHE_CARDINALITY_SIZE, DEFAULT_CARDINALITY_CACHE_SIZE);
+    long fieldFamilySize = settings.getAsInt(SIREN_FILTERJOIN_CACHE_FIELD_FAMILY_SIZE, DEFAULT_FIELD_FAMILY_CACHE_SIZE);
 
     if (isEnabled) {
       this.cache = CacheBuilder.newBuilder()
@@ -64,9 +101,13 @@ public class FilterJoinCache {
               .maximumWeight(size)
               .weigher(new CacheEntryWeigher())
               .build();
+      this.cardinalities = CacheBuilder.newBuilder().maximumSize(cardinalitySize).build();
+      this.fieldFamilies = CacheBuilder.newBuilder().maximumSize(fieldFamilySize).build();
     }
     else {
       this.cache = CacheBuilder.newBuilder().maximumSize(0).build();
+      this.cardinalities = CacheBuilder.newBuilder().maximumSize(0).build();
+      this.fieldFamilies = CacheBuilder.newBuilder().maximumSize(0).build();
     }
   }
 
@@ -75,7 +116,8 @@ public class FilterJoinCache {
    */
   public void put(final long cacheKey, final FilterJoinTerms terms) {
     logger.debug("{}: New cache entry {}", Thread.currentThread().getName(), cacheKey);
-    this.cache.put(cacheKey, new CacheEntry(terms.getEncodedTerms(), terms.getSize(), terms.isPruned()));
+    this.cache.put(cacheKey, new CacheEntry(terms.getEncodedTerms(), terms.getSize(), terms.isPruned(),
+            terms.getTermsSource(), terms.getTermsEncoding(), terms.getStoredNodeIds()));
   }
 
   /**
@@ -86,12 +128,63 @@ public class FilterJoinCache {
     return entry;
   }
 
+  /**
+   * Records the number of unique terms returned by the execution of the given filter join node.
+   */
+  public void putCardinality(final long cardinalityKey, final long cardinality) {
+    this.cardinalities.put(cardinalityKey, cardinality);
+  }
+
+  /**
+   * Retrieves the number of unique terms returned by a previous execution of the given filter join node,
+   * or null if unknown.
+   */
+  public Long getCardinality(final long cardinalityKey) {
+    return this.cardinalities.getIfPresent(cardinalityKey);
+  }
+
+  /**
+   * Returns the generation of the field families, to be passed to {@link #putFieldFamily} once the family of a
+   * field is retrieved.
+   */
+  public synchronized long getFieldFamiliesGeneration() {
+    return this.fieldFamiliesGeneration;
+  }
+
+  /**
+   * Records the family of the lookup field of a filter join node, unless the field families were invalidated
+   * since the given generation.
+   */
+  public synchronized void putFieldFamily(final String fieldFamilyKey, final long generation,
+                                          final TermsEncodingSelectionTask.FieldFamily family) {
+    if (generation == this.fieldFamiliesGeneration) {
+      this.fieldFamilies.put(fieldFamilyKey, family);
+    }
+  }
+
+  /**
+   * Retrieves the family of the lookup field of a filter join node, or null if unknown.
+   */
+  public TermsEncodingSelectionTask.FieldFamily getFieldFamily(final String fieldFamilyKey) {
+    return this.fieldFamilies.getIfPresent(fieldFamilyKey);
+  }
+
+  /**
+   * Invalidate all the field families
+   */
+  public synchronized void invalidateFieldFamilies() {
+    this.fieldFamiliesGeneration++;
+    this.fieldFamilies.invalidateAll();
+  }
+
   /**
    * Invalidate all cache entries
    */
   public void invalidateAll() {
     logger.debug("{}: Invalidate all cache entries", Thread.currentThread().getName());
     this.cache.invalidateAll();
+    this.cardinalities.invalidateAll();
+    this.invalidateFieldFamilies();
   }
 
   /**
@@ -109,20 +202,36 @@ public class FilterJoinCache {
     return cache.size();
   }
 
+  /**
+   * Returns the approximate number of cardinalities in this cache.
+   */
+  public long getCardinalitySize() {
+    return cardinalities.size();
+  }
+
   /**
    * A cache entry is composed of the set of terms (encoded), a flag to indicate
-   * if the set of terms has been pruned, the size in number of terms.
+   * if the set of terms has been pruned, the size in number of terms, the source
+   * from which the terms have been read, the encoding of the terms, and the nodes
+   * known to hold the terms in their store.
    */
   public static class CacheEntry {
 
     public final BytesRef encodedTerms;
     public final int size;
     public final boolean isPruned;
+    public final TermsByQueryResponse.TermsSource termsSource;
+    public final TermsByQueryRequest.TermsEncoding termsEncoding;
+    public final Set<String> storedNodeIds;
 
-    private CacheEntry(BytesRef encodedTerms, int size, boolean isPruned) {
+    private CacheEntry(BytesRef encodedTerms, int size, boolean isPruned, TermsByQueryResponse.TermsSource termsSource,
+                       TermsByQueryRequest.TermsEncoding termsEncoding, Set<String> storedNodeIds) {
       this.encodedTerms = encodedTerms;
       this.size = size;
       this.isPruned = isPruned;
+      this.termsSource = termsSource;
+      this.termsEncoding = termsEncoding;
+      this.storedNodeIds = storedNodeIds;
     }
 
   }
@@ -19,7 +19,10 @@
 package solutions.siren.join.action.coordinate.execution;
 
 import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.index.query.ConstantScoreQueryParser;
 import solutions.siren.join.action.coordinate.model.AbstractNode;
 import solutions.siren.join.action.coordinate.model.FilterJoinNode;
@@ -32,7 +35,14 @@ import solutions.siren.join.action.coordinate.tasks.CacheLookupTask;
 import solutions.siren.join.action.coordinate.tasks.CardinalityEstimationTask;
 import solutions.siren.join.action.coordinate.tasks.IndicesVersionTask;
 import solutions.siren.join.action.coordinate.tasks.TermsByQueryTask;
+import solutions.siren.join.action.coordinate.tasks.TermsEncodingSelectionTask;
+import solutions.siren.join.action.coordinate.terms.EncodedTermsStore;
+import solutions.siren.join.action.coordinate.terms.PutEncodedTermsAction;
+import solutions.siren.join.action.coordinate.terms.PutEncodedTermsNodeResponse;
+import solutions.siren.join.action.coordinate.terms.PutEncodedTermsRequest;
+import solutions.siren.join.action.coordinate.terms.PutEncodedTermsResponse;
 import solutions.siren.join.action.terms.TermsByQueryRequest;
+import solutions.siren.join.action.terms.TermsCompression;
 import solutions.siren.join.index.query.FieldDataTermsQueryParser;
 import solutions.siren.join.index.query.FilterJoinBuilder;
 import org.elasticsearch.ElasticsearchException;
@@ -41,9 +51,12 @@ import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
 import solutions.siren.join.index.query.TermsEnumTermsQueryParser;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -55,6 +68,7 @@ import java.util.concurrent.LinkedBlockingQueue;
 public class FilterJoinVisitor {
 
   protected final ActionRequest parentRequest;
+  private final String[] indices;
   private final RootNode root;
   protected final Client client;
   protected final BlockingQueue<Integer> blockingQueue = new LinkedBlockingQueue<>();
@@ -65,13 +79,43 @@ public class FilterJoinVisitor {
    */
   private final FilterJoinCache cache;
 
+  /**
+   * The settings and the request circuit breaker used for the selection of the terms encoding
+   */
+  private final Settings settings;
+  private final CircuitBreaker breaker;
+
+  /**
+   * The store of the encoded terms of this node, in which the terms shipped to the data nodes are pinned until
+   * the end of the search. Null if the encoded terms are embedded in the query source.
+   */
+  private final EncodedTermsStore termsStore;
+
+  /**
+   * The cache keys of the encoded terms pinned by this visitor
+   */
+  private final List<Long> pinnedCacheKeys = new ArrayList<>();
+
   private static final ESLogger logger = Loggers.getLogger(FilterJoinVisitor.class);
 
   public FilterJoinVisitor(Client client, RootNode root, FilterJoinCache cache, ActionRequest parentRequest) {
+    this(client, root, cache, parentRequest, null, Settings.EMPTY, null, null);
+  }
+
+  /**
+   * The indices are the ones targeted by the search request, null if unknown. They are used to ship the
+   * encoded terms of the root filter joins only to the nodes which hold a shard of these indices.
+   */
+  public FilterJoinVisitor(Client client, RootNode root, FilterJoinCache cache, ActionRequest parentRequest,
+                           String[] indices, Settings settings, CircuitBreaker breaker, EncodedTermsStore termsStore) {
     this.parentRequest = parentRequest;
+    this.indices = indices;
     this.client = client;
     this.root = root;
     this.cache = cache;
+    this.settings = settings;
+    this.breaker = breaker;
+    this.termsStore = EncodedTermsStore.isEnabled(settings) ? termsStore : null;
     this.metadata = new CoordinateSearchMetadata();
   }
 
@@ -103,6 +147,22 @@ public class FilterJoinVisitor {
     return this.metadata;
   }
 
+  /**
+   * Unpins the encoded terms shipped to the data nodes. This must be called once the search that references them
+   * is completed.
+   */
+  public void release() {
+    if (termsStore == null) {
+      return;
+    }
+    synchronized (pinnedCacheKeys) {
+      for (Long cacheKey : pinnedCacheKeys) {
+        termsStore.unpin(cacheKey);
+      }
+      pinnedCacheKeys.clear();
+    }
+  }
+
   /**
    * Traverse the tree until all the filter join nodes have been converted to field data terms queries.
    */
@@ -176,7 +236,7 @@ public class FilterJoinVisitor {
   private void visitLeafNode(FilterJoinNode node, FilterJoinNode parent) {
     switch (node.getState()) {
       case WAITING:
-        this.executeAsyncOperation(node);
+        this.executeAsyncOperation(node, parent);
         return;
 
       case COMPLETED:
@@ -190,12 +250,11 @@ public class FilterJoinVisitor {
   /**
    * Executes the pipeline of async actions to compute the terms for this node.
    */
-  protected void executeAsyncOperation(final FilterJoinNode node) {
+  protected void executeAsyncOperation(final FilterJoinNode node, final FilterJoinNode parent) {
     logger.debug("Executing async actions");
     node.setState(FilterJoinNode.State.RUNNING); // set state before execution to avoid race conditions with listener
 
-    NodePipelineManager pipeline = new NodePipelineManager();
-    pipeline.addListener(new NodePipelineListener() {
+    final NodePipelineListener completionListener = new NodePipelineListener() {
 
       @Override
       public void onSuccess() {
@@ -210,18 +269,94 @@ public class FilterJoinVisitor {
         FilterJoinVisitor.this.unblock();
       }
 
+    };
+
+    NodePipelineManager pipeline = new NodePipelineManager();
+    pipeline.addListener(new NodePipelineListener() {
+
+      @Override
+      public void onSuccess() {
+        // The terms are shipped once the pipeline is completed, as it is terminated early on a cache hit
+        FilterJoinVisitor.this.storeEncodedTerms(node, parent, completionListener);
+      }
+
+      @Override
+      public void onFailure(Throwable e) {
+        completionListener.onFailure(e);
+      }
+
     });
 
     // Adds the list of tasks to be executed
     pipeline.addTask(new IndicesVersionTask());
     pipeline.addTask(new CacheLookupTask());
     pipeline.addTask(new CardinalityEstimationTask());
-    pipeline.addTask(new TermsByQueryTask());
+    pipeline.addTask(new TermsEncodingSelectionTask(settings, breaker));
+    pipeline.addTask(new TermsByQueryTask(settings));
 
     // Starts the execution of the pipeline
     pipeline.execute(new NodeTaskContext(client, node, this));
   }
 
+  /**
+   * Ships the encoded terms of the node to the store of the data nodes, so that the field data terms query can
+   * reference them by their cache key. If the terms could not be stored on every data node, they will be embedded
+   * in the query source. The terms are compressed once, and the compressed payload is sent to every node.
+   * <br>
+   * The terms are pinned in the store of this node until {@link #release()}, so that a data node which misses
+   * them, e.g., after an eviction or a shard relocation, can fetch them.
+   * <br>
+   * The terms are only shipped to the nodes which hold a shard of the indices targeted by the filter join, and
+   * which are not known to hold them already, e.g., after a cache hit. As the cache key includes the version of
+   * the indices, the terms held by these nodes are up to date.
+   */
+  private void storeEncodedTerms(final FilterJoinNode node, final FilterJoinNode parent,
+                                 final NodePipelineListener listener) {
+    if (termsStore == null) {
+      listener.onSuccess();
+      return;
+    }
+
+    BytesRef encodedTerms = node.getTerms().getEncodedTerms();
+    termsStore.pin(node.getCacheId(), encodedTerms);
+    synchronized (pinnedCacheKeys) {
+      pinnedCacheKeys.add(node.getCacheId());
+    }
+
+    BytesRef compressedTerms = TermsCompression.compress(encodedTerms,
+            TermsCompression.getThreshold(settings, node.getTermsEncoding()));
+    if (compressedTerms != null) {
+      node.getTerms().setCompressedSizeInBytes(compressedTerms.length);
+    }
+
+    final Set<String> storedNodeIds = node.getTerms().getStoredNodeIds();
+    PutEncodedTermsRequest request = new PutEncodedTermsRequest(parentRequest, PutEncodedTermsRequest.DATA_NODES);
+    request.indices(parent == null ? indices : parent.getLookupIndices())
+           .excludedNodesIds(storedNodeIds.toArray(new String[storedNodeIds.size()]))
+           .cacheKey(node.getCacheId()).encodedTerms(encodedTerms, compressedTerms);
+    client.execute(PutEncodedTermsAction.INSTANCE, request, new ActionListener<PutEncodedTermsResponse>() {
+
+      @Override
+      public void onResponse(PutEncodedTermsResponse response) {
+        for (PutEncodedTermsNodeResponse nodeResponse : response.getNodes()) {
+          if (nodeResponse.isStored()) {
+            storedNodeIds.add(nodeResponse.getNode().id());
+          }
+        }
+        node.getTerms().setStored(response.isStored());
+        node.getTerms().setStoreNodeId(response.getStoreNodeId());
+        listener.onSuccess();
+      }
+
+      @Override
+      public void onFailure(Throwable e) {
+        logger.warn("Failed to store the encoded terms {}, embedding them in the query source", e, node.getCacheId());
+        listener.onSuccess();
+      }
+
+    });
+  }
+
   /**
    * Records metadata of each terms by query actions. This must be called before
    * converting the filter join into a field data terms query.
@@ -243,9 +378,14 @@ public class FilterJoinVisitor {
     action.setPruned(terms.isPruned());
     action.setSize(terms.getSize());
     action.setSizeInBytes(terms.getEncodedTerms().length);
+    action.setCompressedSizeInBytes(terms.getCompressedSizeInBytes());
+    action.setShardsCompressedSizeInBytes(terms.getShardsCompressedSizeInBytes());
+    action.setCoordinatorCompressedSizeInBytes(terms.getCoordinatorCompressedSizeInBytes());
     action.setCacheHit(terms.cacheHit());
     action.setTookInMillis(terms.getTookInMillis());
+    action.setTermsSource(terms.getTermsSource());
     action.setTermsEncoding(node.getTermsEncoding());
+    action.setAutoTermsEncoding(node.isAutoTermsEncoding());
     action.setOrdering(node.getOrderBy());
     action.setMaxTermsPerShard(node.getMaxTermsPerShard());
 
@@ -275,7 +415,12 @@ public class FilterJoinVisitor {
 
     // Create the nested object for the parameters of the field data terms query
     Map<String, Object> queryParams = new HashMap<>();
-    queryParams.put("value", bytes.bytes);
+    if (!terms.isStored()) { // otherwise the shards read the encoded terms from the store of their node
+      queryParams.put("value", bytes.bytes);
+    }
+    else { // or fetch them from this node if their node misses them
+      queryParams.put("_store_node", terms.getStoreNodeId());
+    }
     // use the hash of the filter join source map as cache key - see #170
     queryParams.put("_cache_key", node.getCacheId());
 
@@ -26,6 +26,7 @@ import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentType;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -64,6 +65,12 @@ public class FilterJoinNode extends AbstractNode {
   private long cardinality = 0;
   private boolean hasCardinality = false;
 
+  /**
+   * The terms encoding selected for this node when the requested encoding is
+   * {@link TermsByQueryRequest.TermsEncoding#AUTO}.
+   */
+  private TermsByQueryRequest.TermsEncoding resolvedTermsEncoding;
+
   /**
    * Flag to indicate if there was a failure while processing the node
    */
@@ -135,6 +142,23 @@ public class FilterJoinNode extends AbstractNode {
     return cacheId;
   }
 
+  /**
+   * The cardinality id for this filter join node. Unlike {@link #getCacheId()}, it does not depend on the version
+   * of the lookup indices, so that the cardinality observed by previous executions can be reused by
+   * {@link FilterJoinCache} after the lookup indices were updated.
+   */
+  public long getCardinalityId() {
+    return queryHash;
+  }
+
+  /**
+   * The key of the lookup field of this filter join node, used by {@link FilterJoinCache} to cache the family of
+   * the field.
+   */
+  public String getFieldFamilyId() {
+    return Arrays.toString(this.getLookupIndices()) + Arrays.toString(this.getLookupTypes()) + this.getLookupPath();
+  }
+
   public void setCardinality(long cardinality) {
     this.cardinality = cardinality;
     this.hasCardinality = true;
@@ -206,7 +230,36 @@ public class FilterJoinNode extends AbstractNode {
     return (Integer) conf.get("maxTermsPerShard");
   }
 
+  /**
+   * Sets the terms encoding that will be used in place of {@link TermsByQueryRequest.TermsEncoding#AUTO}.
+   */
+  public void setTermsEncoding(TermsByQueryRequest.TermsEncoding termsEncoding) {
+    this.resolvedTermsEncoding = termsEncoding;
+  }
+
+  /**
+   * Returns true if the terms encoding of this node has to be selected automatically.
+   */
+  public boolean isAutoTermsEncoding() {
+    return this.getRequestedTermsEncoding().equals(TermsByQueryRequest.TermsEncoding.AUTO);
+  }
+
+  /**
+   * Returns the terms encoding of this node. If the requested encoding is
+   * {@link TermsByQueryRequest.TermsEncoding#AUTO}, returns the selected encoding, or
+   * {@link TermsByQueryRequest.TermsEncoding#AUTO} if none has been selected yet.
+   */
   public TermsByQueryRequest.TermsEncoding getTermsEncoding() {
+    if (resolvedTermsEncoding != null) {
+      return resolvedTermsEncoding;
+    }
+    return this.getRequestedTermsEncoding();
+  }
+
+  /**
+   * Returns the terms encoding as specified in the filter join.
+   */
+  public TermsByQueryRequest.TermsEncoding getRequestedTermsEncoding() {
     Map<String, Object> conf = (Map<String, Object>) this.self.get(this.getField());
     String termsEncoding = (String) conf.get("termsEncoding");
     if (termsEncoding == null) {
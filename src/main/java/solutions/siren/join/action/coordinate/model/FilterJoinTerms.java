@@ -19,6 +19,12 @@
 package solutions.siren.join.action.coordinate.model;
 
 import org.apache.lucene.util.BytesRef;
+import solutions.siren.join.action.terms.TermsByQueryRequest;
+import solutions.siren.join.action.terms.TermsByQueryResponse;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Holder for the terms computed during the processing of a {@link FilterJoinNode}.
@@ -52,6 +58,50 @@ public class FilterJoinTerms {
    */
   private boolean cacheHit = false;
 
+  /**
+   * The size of the encoded terms once compressed for their shipping to the data nodes, or their size if they
+   * are not compressed
+   */
+  private long compressedSizeInBytes = -1;
+
+  /**
+   * The size of the terms received by the coordinator of the terms by query action from the shards, once
+   * compressed if they were compressed. Zero if the terms were cached.
+   */
+  private long shardsCompressedSizeInBytes = 0;
+
+  /**
+   * The size of the encoded terms received from the coordinator of the terms by query action, once compressed if
+   * they were compressed. Zero if the terms were cached.
+   */
+  private long coordinatorCompressedSizeInBytes = 0;
+
+  /**
+   * The flag to indicate if the encoded terms have been shipped to the store of the data nodes
+   */
+  private boolean isStored = false;
+
+  /**
+   * The node which pinned the encoded terms, and from which the data nodes that miss them can fetch them
+   */
+  private String storeNodeId;
+
+  /**
+   * The nodes known to hold the encoded terms in their store. It is shared with the cache entry of the terms,
+   * so that the next executions do not ship the terms again to these nodes.
+   */
+  private Set<String> storedNodeIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  /**
+   * The source, doc values or field data, from which the terms have been read
+   */
+  private TermsByQueryResponse.TermsSource termsSource = TermsByQueryResponse.TermsSource.NONE;
+
+  /**
+   * The encoding of the set of terms
+   */
+  private TermsByQueryRequest.TermsEncoding termsEncoding;
+
   /**
    * To be used by subclasses to set the encoded terms, for example if the encoded terms were
    * cached.
@@ -84,6 +134,38 @@ public class FilterJoinTerms {
     this.cacheHit = cacheHit;
   }
 
+  public void setCompressedSizeInBytes(long compressedSizeInBytes) {
+    this.compressedSizeInBytes = compressedSizeInBytes;
+  }
+
+  public void setShardsCompressedSizeInBytes(long shardsCompressedSizeInBytes) {
+    this.shardsCompressedSizeInBytes = shardsCompressedSizeInBytes;
+  }
+
+  public void setCoordinatorCompressedSizeInBytes(long coordinatorCompressedSizeInBytes) {
+    this.coordinatorCompressedSizeInBytes = coordinatorCompressedSizeInBytes;
+  }
+
+  public void setStored(boolean isStored) {
+    this.isStored = isStored;
+  }
+
+  public void setStoreNodeId(String storeNodeId) {
+    this.storeNodeId = storeNodeId;
+  }
+
+  public void setStoredNodeIds(Set<String> storedNodeIds) {
+    this.storedNodeIds = storedNodeIds;
+  }
+
+  public void setTermsSource(TermsByQueryResponse.TermsSource termsSource) {
+    this.termsSource = termsSource;
+  }
+
+  public void setTermsEncoding(TermsByQueryRequest.TermsEncoding termsEncoding) {
+    this.termsEncoding = termsEncoding;
+  }
+
   public BytesRef getEncodedTerms() {
     return encodedTerms;
   }
@@ -104,4 +186,36 @@ public class FilterJoinTerms {
     return cacheHit;
   }
 
-}
\ No newline at end of file
+  public long getCompressedSizeInBytes() {
+    return compressedSizeInBytes == -1 ? encodedTerms.length : compressedSizeInBytes;
+  }
+
+  public long getShardsCompressedSizeInBytes() {
+    return shardsCompressedSizeInBytes;
+  }
+
+  public long getCoordinatorCompressedSizeInBytes() {
+    return coordinatorCompressedSizeInBytes;
+  }
+
+  public boolean isStored() {
+    return isStored;
+  }
+
+  public String getStoreNodeId() {
+    return storeNodeId;
+  }
+
+  public Set<String> getStoredNodeIds() {
+    return storedNodeIds;
+  }
+
+  public TermsByQueryResponse.TermsSource getTermsSource() {
+    return termsSource;
+  }
+
+  public TermsByQueryRequest.TermsEncoding getTermsEncoding() {
+    return termsEncoding;
+  }
+
+}
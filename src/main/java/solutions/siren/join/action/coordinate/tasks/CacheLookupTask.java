@@ -55,9 +55,17 @@ public class CacheLookupTask implements NodeTask {
       terms.setEncodedTerms(cacheEntry.encodedTerms);
       terms.setSize(cacheEntry.size);
       terms.setPruned(cacheEntry.isPruned);
+      terms.setTermsSource(cacheEntry.termsSource);
+      terms.setTermsEncoding(cacheEntry.termsEncoding);
+      terms.setStoredNodeIds(cacheEntry.storedNodeIds);
       terms.setCacheHit(true);
       context.getNode().setTerms(terms);
 
+      // Restore the terms encoding that was selected when the entry was cached
+      if (node.isAutoTermsEncoding()) {
+        node.setTermsEncoding(cacheEntry.termsEncoding);
+      }
+
       // force termination of the pipeline
       reporter.terminate();
     }
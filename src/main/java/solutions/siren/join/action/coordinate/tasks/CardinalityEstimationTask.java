@@ -28,6 +28,7 @@ import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
 import org.elasticsearch.search.aggregations.metrics.cardinality.Cardinality;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
+import solutions.siren.join.action.coordinate.execution.FilterJoinCache;
 import solutions.siren.join.action.coordinate.model.FilterJoinNode;
 import solutions.siren.join.action.coordinate.pipeline.NodeTask;
 import solutions.siren.join.action.coordinate.pipeline.NodeTaskContext;
@@ -35,8 +36,9 @@ import solutions.siren.join.action.coordinate.pipeline.NodeTaskReporter;
 import solutions.siren.join.action.terms.TermsByQueryRequest;
 
 /**
- * Task to estimate the cardinality of a {@link FilterJoinNode}. The cardinality is based on the number of unique
- * terms in the path of the lookup index.
+ * Task to estimate the cardinality of a {@link FilterJoinNode}. The cardinality is the number of unique terms
+ * returned by a previous execution of the filter join if it is known by the {@link FilterJoinCache}. Otherwise,
+ * it is based on the number of unique terms in the path of the lookup index.
  */
 public class CardinalityEstimationTask implements NodeTask {
 
@@ -44,9 +46,19 @@ public class CardinalityEstimationTask implements NodeTask {
 
   @Override
   public void execute(NodeTaskContext context, NodeTaskReporter reporter) {
-    // Executes the cardinality estimation only for bloom encoding
-    if (context.getNode().getTermsEncoding().equals(TermsByQueryRequest.TermsEncoding.BLOOM)) {
-      this.executeCardinalityRequest(context, reporter);
+    // Executes the cardinality estimation only for bloom encoding, or to select the terms encoding
+    TermsByQueryRequest.TermsEncoding termsEncoding = context.getNode().getTermsEncoding();
+    if (termsEncoding.equals(TermsByQueryRequest.TermsEncoding.BLOOM) ||
+        termsEncoding.equals(TermsByQueryRequest.TermsEncoding.AUTO)) {
+      Long cardinality = context.getVisitor().getCache().getCardinality(context.getNode().getCardinalityId());
+      if (cardinality != null) {
+        logger.debug("Reusing cardinality {} from previous executions", cardinality);
+        context.getNode().setCardinality(cardinality);
+        reporter.success(context);
+      }
+      else {
+        this.executeCardinalityRequest(context, reporter);
+      }
     }
     else {
       reporter.success(context);
@@ -22,6 +22,7 @@ import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import solutions.siren.join.action.coordinate.model.FilterJoinNode;
 import solutions.siren.join.action.coordinate.model.FilterJoinTerms;
@@ -31,6 +32,7 @@ import solutions.siren.join.action.coordinate.pipeline.NodeTaskReporter;
 import solutions.siren.join.action.terms.TermsByQueryAction;
 import solutions.siren.join.action.terms.TermsByQueryRequest;
 import solutions.siren.join.action.terms.TermsByQueryResponse;
+import solutions.siren.join.action.terms.TermsCompression;
 
 /**
  * Task to execute a {@link TermsByQueryRequest} to retrieve the set of terms associated to a {@link FilterJoinNode}.
@@ -40,6 +42,15 @@ public class TermsByQueryTask implements NodeTask {
 
   protected static final ESLogger logger = Loggers.getLogger(TermsByQueryTask.class);
 
+  /**
+   * The settings holding the compression of the terms, see {@link TermsCompression}
+   */
+  private final Settings settings;
+
+  public TermsByQueryTask(Settings settings) {
+    this.settings = settings;
+  }
+
   @Override
   public void execute(final NodeTaskContext context, final NodeTaskReporter reporter) {
     logger.debug("Executing async terms by query action");
@@ -53,11 +64,18 @@ public class TermsByQueryTask implements NodeTask {
         terms.setPruned(termsByQueryResponse.isPruned());
         terms.setSize(termsByQueryResponse.getSize());
         terms.setTookInMillis(termsByQueryResponse.getTookInMillis());
+        terms.setTermsSource(termsByQueryResponse.getTermsSource());
+        terms.setTermsEncoding(termsByQueryResponse.getTermsEncoding());
+        terms.setShardsCompressedSizeInBytes(termsByQueryResponse.getShardsCompressedSizeInBytes());
+        terms.setCoordinatorCompressedSizeInBytes(termsByQueryResponse.getCompressedSizeInBytes());
 
         // We cache the list of encoded terms instead of the {@link TermsByQueryResponse} to save the
         // byte serialization computation
         context.getVisitor().getCache().put(context.getNode().getCacheId(), terms);
 
+        // Records the number of terms so that the next executions can skip the cardinality estimation
+        context.getVisitor().getCache().putCardinality(context.getNode().getCardinalityId(), terms.getSize());
+
         // Update the node with the terms
         context.getNode().setTerms(terms);
 
@@ -88,7 +106,8 @@ public class TermsByQueryTask implements NodeTask {
             .query(lookupQuery)
             .orderBy(ordering)
             .maxTermsPerShard(maxTermsPerShard)
-            .termsEncoding(termsEncoding);
+            .termsEncoding(termsEncoding)
+            .compressionThreshold(TermsCompression.getThreshold(settings, termsEncoding));
 
     if (node.hasCardinality()) {
       request.expectedTerms(node.getCardinality());
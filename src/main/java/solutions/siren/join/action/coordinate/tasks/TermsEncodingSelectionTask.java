@@ -0,0 +1,275 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.coordinate.tasks;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.mapping.get.GetFieldMappingsRequest;
+import org.elasticsearch.action.admin.indices.mapping.get.GetFieldMappingsResponse;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import solutions.siren.join.action.coordinate.execution.FilterJoinCache;
+import solutions.siren.join.action.coordinate.model.FilterJoinNode;
+import solutions.siren.join.action.coordinate.pipeline.NodeTask;
+import solutions.siren.join.action.coordinate.pipeline.NodeTaskContext;
+import solutions.siren.join.action.coordinate.pipeline.NodeTaskReporter;
+import solutions.siren.join.action.terms.TermsByQueryRequest;
+
+import java.util.Map;
+
+/**
+ * Task to select the terms encoding of a {@link FilterJoinNode} when
+ * {@link TermsByQueryRequest.TermsEncoding#AUTO} is requested. The selection is based on the type of the lookup
+ * field, on the cardinality computed by the {@link CardinalityEstimationTask}, and on the headroom left in the
+ * request circuit breaker of the coordinating node:
+ * <ul>
+ *   <li>BINARY_FUSE if the estimated cardinality is above the bloom threshold and the estimated size of the set
+ *   of long terms, from which the filter is built on the coordinating node, fits in the allowed fraction of the
+ *   circuit breaker headroom</li>
+ *   <li>BLOOM if the estimated cardinality is above the bloom threshold, or if the estimated size of the
+ *   set of terms does not fit in the allowed fraction of the circuit breaker headroom</li>
+ *   <li>ROARING if the lookup field is an integer, short or byte field and the estimated cardinality is above the
+ *   roaring threshold</li>
+ *   <li>INTEGER if the lookup field is an integer, short or byte field</li>
+ *   <li>BYTES if the lookup field is a string field, the estimated cardinality is below the bytes threshold and
+ *   the maximum number of terms per shard is specified</li>
+ *   <li>LONG otherwise</li>
+ * </ul>
+ * The family of the lookup field is retrieved from its mappings, and is kept in the {@link FilterJoinCache} until
+ * the metadata of the cluster changes.
+ */
+public class TermsEncodingSelectionTask implements NodeTask {
+
+  /**
+   * The estimated cardinality above which the bloom encoding is selected. Default to 10M terms.
+   */
+  public static final String SIREN_FILTERJOIN_AUTO_ENCODING_BLOOM_THRESHOLD = "siren.filterjoin.auto_encoding.bloom_threshold";
+  public static final long DEFAULT_BLOOM_THRESHOLD = 10000000;
+
+  /**
+   * The estimated cardinality under which the bytes encoding is selected for string fields. Default to 100K terms.
+   */
+  public static final String SIREN_FILTERJOIN_AUTO_ENCODING_BYTES_THRESHOLD = "siren.filterjoin.auto_encoding.bytes_threshold";
+  public static final long DEFAULT_BYTES_THRESHOLD = 100000;
+
+  /**
+   * The estimated cardinality above which the roaring encoding is selected for integer fields. The default of 1M
+   * terms is the cardinality at which the containers of the 2^16 chunks of the 32-bit space hold on average
+   * 16 terms, enough to make a roaring bitmap more compact than a hash set, even if the terms are not clustered.
+   */
+  public static final String SIREN_FILTERJOIN_AUTO_ENCODING_ROARING_THRESHOLD = "siren.filterjoin.auto_encoding.roaring_threshold";
+  public static final long DEFAULT_ROARING_THRESHOLD = 1000000;
+
+  /**
+   * The fraction of the request circuit breaker headroom that an exact set of terms can use before the bloom
+   * encoding is selected. Default to 0.5.
+   */
+  public static final String SIREN_FILTERJOIN_AUTO_ENCODING_BREAKER_RATIO = "siren.filterjoin.auto_encoding.breaker_ratio";
+  public static final double DEFAULT_BREAKER_RATIO = 0.5;
+
+  /**
+   * Rough estimations of the memory used per term by the hash sets of each encoding, including the
+   * free slots of the hash tables.
+   */
+  private static final int INTEGER_BYTES_PER_TERM = 8;
+  private static final int ROARING_BYTES_PER_TERM = 4;
+  private static final int LONG_BYTES_PER_TERM = 16;
+  private static final int BYTES_BYTES_PER_TERM = 64;
+
+  private final long bloomThreshold;
+  private final long bytesThreshold;
+  private final long roaringThreshold;
+  private final double breakerRatio;
+  private final CircuitBreaker breaker;
+
+  protected static final ESLogger logger = Loggers.getLogger(TermsEncodingSelectionTask.class);
+
+  /**
+   * The family of a lookup field, as far as the selection of a terms encoding is concerned.
+   */
+  public enum FieldFamily {
+    INTEGER, NUMERIC, STRING
+  }
+
+  /**
+   * @param settings The settings holding the thresholds of the selection
+   * @param breaker  The request circuit breaker of the coordinating node, can be null
+   */
+  public TermsEncodingSelectionTask(Settings settings, CircuitBreaker breaker) {
+    this.bloomThreshold = settings.getAsLong(SIREN_FILTERJOIN_AUTO_ENCODING_BLOOM_THRESHOLD, DEFAULT_BLOOM_THRESHOLD);
+    this.bytesThreshold = settings.getAsLong(SIREN_FILTERJOIN_AUTO_ENCODING_BYTES_THRESHOLD, DEFAULT_BYTES_THRESHOLD);
+    this.roaringThreshold = settings.getAsLong(SIREN_FILTERJOIN_AUTO_ENCODING_ROARING_THRESHOLD, DEFAULT_ROARING_THRESHOLD);
+    this.breakerRatio = settings.getAsDouble(SIREN_FILTERJOIN_AUTO_ENCODING_BREAKER_RATIO, DEFAULT_BREAKER_RATIO);
+    this.breaker = breaker;
+  }
+
+  @Override
+  public void execute(final NodeTaskContext context, final NodeTaskReporter reporter) {
+    if (!context.getNode().getTermsEncoding().equals(TermsByQueryRequest.TermsEncoding.AUTO)) {
+      reporter.success(context);
+      return;
+    }
+
+    final FilterJoinNode node = context.getNode();
+    final FilterJoinCache cache = context.getVisitor().getCache();
+    FieldFamily family = cache.getFieldFamily(node.getFieldFamilyId());
+    if (family != null) {
+      this.setTermsEncoding(family, node);
+      reporter.success(context);
+      return;
+    }
+
+    logger.debug("Executing async get field mappings action");
+    final long generation = cache.getFieldFamiliesGeneration();
+    GetFieldMappingsRequest request = new GetFieldMappingsRequest()
+            .indices(node.getLookupIndices())
+            .types(node.getLookupTypes())
+            .fields(node.getLookupPath());
+    request.copyContextAndHeadersFrom(context.getVisitor().getParentRequest());
+
+    context.getClient().admin().indices().getFieldMappings(request, new ActionListener<GetFieldMappingsResponse>() {
+
+      @Override
+      public void onResponse(GetFieldMappingsResponse response) {
+        FieldFamily family = getFieldFamily(response, node.getLookupPath());
+        cache.putFieldFamily(node.getFieldFamilyId(), generation, family);
+        setTermsEncoding(family, node);
+        reporter.success(context);
+      }
+
+      @Override
+      public void onFailure(Throwable e) {
+        reporter.failure(e);
+      }
+
+    });
+  }
+
+  private void setTermsEncoding(FieldFamily family, FilterJoinNode node) {
+    TermsByQueryRequest.TermsEncoding termsEncoding = this.selectTermsEncoding(family, node);
+    logger.debug("Selected terms encoding [{}] for field family [{}] and cardinality [{}]",
+            termsEncoding, family, node.getCardinality());
+    node.setTermsEncoding(termsEncoding);
+  }
+
+  /**
+   * Returns the family of the lookup field. If the field has different types across the lookup indices,
+   * the most general family is returned.
+   */
+  protected FieldFamily getFieldFamily(GetFieldMappingsResponse response, String field) {
+    FieldFamily family = null;
+    for (Map<String, ? extends Map<String, GetFieldMappingsResponse.FieldMappingMetaData>> types : response.mappings().values()) {
+      for (Map<String, GetFieldMappingsResponse.FieldMappingMetaData> fields : types.values()) {
+        GetFieldMappingsResponse.FieldMappingMetaData mapping = fields.get(field);
+        if (mapping == null || mapping.isNull()) {
+          continue;
+        }
+        FieldFamily current = getFieldFamily(mapping);
+        if (family == null || current.ordinal() > family.ordinal()) {
+          family = current;
+        }
+      }
+    }
+    // unmapped field, default to the long encoding
+    return family == null ? FieldFamily.NUMERIC : family;
+  }
+
+  private FieldFamily getFieldFamily(GetFieldMappingsResponse.FieldMappingMetaData mapping) {
+    // the source of the mapping is keyed by the leaf name of the field
+    for (Object value : mapping.sourceAsMap().values()) {
+      if (value instanceof Map) {
+        Object type = ((Map) value).get("type");
+        if ("integer".equals(type) || "short".equals(type) || "byte".equals(type)) {
+          return FieldFamily.INTEGER;
+        }
+        if ("long".equals(type) || "double".equals(type) || "float".equals(type) ||
+            "date".equals(type) || "ip".equals(type)) {
+          return FieldFamily.NUMERIC;
+        }
+      }
+    }
+    return FieldFamily.STRING;
+  }
+
+  /**
+   * Selects the terms encoding based on the family of the lookup field, the estimated cardinality of the node and
+   * the headroom of the circuit breaker.
+   */
+  protected TermsByQueryRequest.TermsEncoding selectTermsEncoding(FieldFamily family, FilterJoinNode node) {
+    long cardinality = node.hasCardinality() ? node.getCardinality() : 0;
+    Integer maxTermsPerShard = node.getMaxTermsPerShard();
+
+    TermsByQueryRequest.TermsEncoding termsEncoding;
+    int bytesPerTerm;
+    switch (family) {
+      case INTEGER:
+        if (cardinality > roaringThreshold) {
+          termsEncoding = TermsByQueryRequest.TermsEncoding.ROARING;
+          bytesPerTerm = ROARING_BYTES_PER_TERM;
+        }
+        else {
+          termsEncoding = TermsByQueryRequest.TermsEncoding.INTEGER;
+          bytesPerTerm = INTEGER_BYTES_PER_TERM;
+        }
+        break;
+
+      case STRING:
+        if (maxTermsPerShard != null && cardinality <= bytesThreshold) {
+          termsEncoding = TermsByQueryRequest.TermsEncoding.BYTES;
+          bytesPerTerm = BYTES_BYTES_PER_TERM;
+        }
+        else {
+          // strings are hashed into longs
+          termsEncoding = TermsByQueryRequest.TermsEncoding.LONG;
+          bytesPerTerm = LONG_BYTES_PER_TERM;
+        }
+        break;
+
+      default:
+        termsEncoding = TermsByQueryRequest.TermsEncoding.LONG;
+        bytesPerTerm = LONG_BYTES_PER_TERM;
+    }
+
+    if (cardinality > bloomThreshold) {
+      // the binary fuse filter is more compact than a bloom filter, but is built from the exact set of long terms
+      return this.fitsInBreaker(cardinality, LONG_BYTES_PER_TERM) ?
+              TermsByQueryRequest.TermsEncoding.BINARY_FUSE : TermsByQueryRequest.TermsEncoding.BLOOM;
+    }
+
+    if (!this.fitsInBreaker(cardinality, bytesPerTerm)) {
+      return TermsByQueryRequest.TermsEncoding.BLOOM;
+    }
+
+    return termsEncoding;
+  }
+
+  /**
+   * Returns true if the estimated size of the set of terms fits in the allowed fraction of the circuit breaker
+   * headroom.
+   */
+  private boolean fitsInBreaker(long cardinality, int bytesPerTerm) {
+    if (breaker != null && breaker.getLimit() > 0) {
+      long headroom = breaker.getLimit() - breaker.getUsed();
+      return cardinality * bytesPerTerm <= headroom * breakerRatio;
+    }
+    return true;
+  }
+
+}
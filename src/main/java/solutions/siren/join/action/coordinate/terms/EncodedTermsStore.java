@@ -0,0 +1,246 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.coordinate.terms;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The node-level store of the encoded terms of the filter joins. It is thread-safe (use a {@link Cache} underneath).
+ * <br>
+ * The coordinator ships the encoded terms of a filter join once to the data nodes with a
+ * {@link PutEncodedTermsAction}, and the field data terms queries then only reference them by their cache key.
+ * This avoids to embed the encoded terms in the query source, which would be serialized with the search request
+ * and parsed again by every target shard. Entries expire after a period of inactivity, and their size is
+ * accounted on the request circuit breaker.
+ * <br>
+ * As an entry might be evicted before a shard parses its query, e.g., under the pressure of concurrent joins or
+ * if the shard relocated on a node which did not receive the terms, the coordinator pins the encoded terms in its
+ * own store until the end of the search. A node which misses an entry fetches it from the coordinator with a
+ * {@link GetEncodedTermsAction}.
+ */
+public class EncodedTermsStore {
+
+  private final Cache<Long, byte[]> cache;
+
+  /**
+   * The encoded terms pinned by the searches coordinated by this node, with their number of references.
+   */
+  private final Map<Long, PinnedTerms> pinned = new HashMap<>();
+
+  /**
+   * The circuit breaker on which the entries of the store are accounted, can be null.
+   */
+  private final CircuitBreaker breaker;
+
+  /**
+   * The maximum size (in bytes) of the store. Default to 256MB.
+   */
+  private static final int DEFAULT_STORE_SIZE = 268435456;
+
+  /**
+   * The time after which an entry that has not been accessed expires. Default to 5 minutes.
+   */
+  private static final TimeValue DEFAULT_STORE_EXPIRE = TimeValue.timeValueMinutes(5);
+
+  public final static String SIREN_FILTERJOIN_TERMS_STORE_ENABLED = "siren.filterjoin.terms_store.enabled";
+  public final static String SIREN_FILTERJOIN_TERMS_STORE_SIZE = "siren.filterjoin.terms_store.size";
+  public final static String SIREN_FILTERJOIN_TERMS_STORE_EXPIRE = "siren.filterjoin.terms_store.expire";
+
+  private static final ESLogger logger = Loggers.getLogger(EncodedTermsStore.class);
+
+  public EncodedTermsStore(Settings settings) {
+    this(settings, null);
+  }
+
+  public EncodedTermsStore(Settings settings, final CircuitBreaker breaker) {
+    long size = settings.getAsInt(SIREN_FILTERJOIN_TERMS_STORE_SIZE, DEFAULT_STORE_SIZE);
+    TimeValue expire = settings.getAsTime(SIREN_FILTERJOIN_TERMS_STORE_EXPIRE, DEFAULT_STORE_EXPIRE);
+
+    this.breaker = breaker;
+    this.cache = CacheBuilder.newBuilder()
+            .maximumWeight(size)
+            .weigher(new EncodedTermsWeigher())
+            .removalListener(new EncodedTermsRemovalListener())
+            .expireAfterAccess(expire.millis(), TimeUnit.MILLISECONDS)
+            .build();
+  }
+
+  /**
+   * Returns true if the coordinator must ship the encoded terms to the data nodes instead of embedding them
+   * in the query source. Disabled by default.
+   */
+  public static boolean isEnabled(Settings settings) {
+    return settings.getAsBoolean(SIREN_FILTERJOIN_TERMS_STORE_ENABLED, false);
+  }
+
+  /**
+   * Stores the encoded terms under the given cache key. Returns false if the entry could not be kept,
+   * e.g., if it is larger than the store or if it would trip the circuit breaker.
+   */
+  public boolean put(long cacheKey, BytesRef encodedTerms) {
+    if (this.cache.getIfPresent(cacheKey) != null) { // the cache key includes the version of the indices
+      return true;
+    }
+    if (breaker != null) {
+      try {
+        breaker.addEstimateBytesAndMaybeBreak(encodedTerms.length, "<encoded_terms_store>");
+      }
+      catch (CircuitBreakingException e) {
+        logger.debug("Encoded terms for cache key {} not stored: {}", cacheKey, e.getMessage());
+        return false;
+      }
+    }
+    byte[] bytes = encodedTerms.bytes;
+    if (encodedTerms.offset != 0 || encodedTerms.length != bytes.length) {
+      bytes = Arrays.copyOfRange(bytes, encodedTerms.offset, encodedTerms.offset + encodedTerms.length);
+    }
+    logger.debug("{}: New encoded terms for cache key {}", Thread.currentThread().getName(), cacheKey);
+    // the bytes are released from the breaker by the removal listener, even if the entry is evicted right away
+    this.cache.put(cacheKey, bytes);
+    return this.cache.getIfPresent(cacheKey) != null;
+  }
+
+  /**
+   * Retrieves the encoded terms for the given cache key, or null if there is none.
+   */
+  public byte[] get(long cacheKey) {
+    byte[] bytes = this.cache.getIfPresent(cacheKey);
+    if (bytes == null) {
+      synchronized (pinned) {
+        PinnedTerms terms = pinned.get(cacheKey);
+        if (terms != null) {
+          bytes = terms.bytes;
+        }
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Retrieves the encoded terms for the given cache key. If they are not in the store, fetches them from the node
+   * which pinned them, and keeps them in the store for the next shards of this node. Returns null if the node does
+   * not hold them anymore.
+   */
+  public byte[] get(long cacheKey, String nodeId, Client client) {
+    byte[] bytes = this.get(cacheKey);
+    if (bytes != null || nodeId == null || client == null) {
+      return bytes;
+    }
+
+    logger.debug("Encoded terms for cache key {} are missing, fetching them from node {}", cacheKey, nodeId);
+    GetEncodedTermsRequest request = new GetEncodedTermsRequest(nodeId).cacheKey(cacheKey);
+    BytesRef encodedTerms = client.execute(GetEncodedTermsAction.INSTANCE, request).actionGet().getEncodedTerms();
+    if (encodedTerms == null) {
+      return null;
+    }
+    this.put(cacheKey, encodedTerms);
+    if (encodedTerms.offset != 0 || encodedTerms.length != encodedTerms.bytes.length) {
+      return Arrays.copyOfRange(encodedTerms.bytes, encodedTerms.offset, encodedTerms.offset + encodedTerms.length);
+    }
+    return encodedTerms.bytes;
+  }
+
+  /**
+   * Pins the encoded terms until they are unpinned by {@link #unpin(long)}, so that the nodes which miss them can
+   * fetch them from this node. The bytes are referenced, not copied, and are therefore not accounted on the breaker:
+   * they are already held by the coordinator for the duration of the search.
+   */
+  public void pin(long cacheKey, BytesRef encodedTerms) {
+    synchronized (pinned) {
+      PinnedTerms terms = pinned.get(cacheKey);
+      if (terms == null) {
+        byte[] bytes = encodedTerms.bytes;
+        if (encodedTerms.offset != 0 || encodedTerms.length != bytes.length) {
+          bytes = Arrays.copyOfRange(bytes, encodedTerms.offset, encodedTerms.offset + encodedTerms.length);
+        }
+        terms = new PinnedTerms(bytes);
+        pinned.put(cacheKey, terms);
+      }
+      terms.refCount++;
+    }
+  }
+
+  /**
+   * Releases a reference acquired by {@link #pin(long, BytesRef)}.
+   */
+  public void unpin(long cacheKey) {
+    synchronized (pinned) {
+      PinnedTerms terms = pinned.get(cacheKey);
+      if (terms != null && --terms.refCount == 0) {
+        pinned.remove(cacheKey);
+      }
+    }
+  }
+
+  /**
+   * Invalidate all the entries. The pinned entries are kept, as they are referenced by searches in flight.
+   */
+  public void invalidateAll() {
+    this.cache.invalidateAll();
+  }
+
+  private static class PinnedTerms {
+
+    private final byte[] bytes;
+    private int refCount = 0;
+
+    private PinnedTerms(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+  }
+
+  private static class EncodedTermsWeigher implements Weigher<Long, byte[]> {
+
+    @Override
+    public int weigh(Long key, byte[] value) {
+      return value.length;
+    }
+
+  }
+
+  private class EncodedTermsRemovalListener implements RemovalListener<Long, byte[]> {
+
+    @Override
+    public void onRemoval(RemovalNotification<Long, byte[]> notification) {
+      if (breaker != null && notification.getValue() != null) {
+        breaker.addWithoutBreaking(-notification.getValue().length);
+      }
+    }
+
+  }
+
+}
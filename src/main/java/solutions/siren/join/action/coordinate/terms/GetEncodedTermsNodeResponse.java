@@ -0,0 +1,70 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.coordinate.terms;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+
+public class GetEncodedTermsNodeResponse extends BaseNodeResponse {
+
+  private BytesRef encodedTerms;
+
+  GetEncodedTermsNodeResponse() {}
+
+  GetEncodedTermsNodeResponse(DiscoveryNode node, BytesRef encodedTerms) {
+    super(node);
+    this.encodedTerms = encodedTerms;
+  }
+
+  /**
+   * Returns the encoded terms, or null if the node does not hold them.
+   */
+  public BytesRef getEncodedTerms() {
+    return this.encodedTerms;
+  }
+
+  public static GetEncodedTermsNodeResponse readNodeInfo(StreamInput in) throws IOException {
+    GetEncodedTermsNodeResponse nodeInfo = new GetEncodedTermsNodeResponse();
+    nodeInfo.readFrom(in);
+    return nodeInfo;
+  }
+
+  @Override
+  public void readFrom(StreamInput in) throws IOException {
+    super.readFrom(in);
+    if (in.readBoolean()) {
+      encodedTerms = in.readBytesRef();
+    }
+  }
+
+  @Override
+  public void writeTo(StreamOutput out) throws IOException {
+    super.writeTo(out);
+    out.writeBoolean(encodedTerms != null);
+    if (encodedTerms != null) {
+      out.writeBytesRef(encodedTerms);
+    }
+  }
+
+}
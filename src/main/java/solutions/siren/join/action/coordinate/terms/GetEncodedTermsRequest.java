@@ -0,0 +1,61 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.coordinate.terms;
+
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+
+/**
+ * Request to fetch the encoded terms of a filter join from the node which pinned them.
+ */
+public class GetEncodedTermsRequest extends BaseNodesRequest<GetEncodedTermsRequest> {
+
+  private long cacheKey;
+
+  public GetEncodedTermsRequest() {}
+
+  public GetEncodedTermsRequest(String... nodesIds) {
+    super(nodesIds);
+  }
+
+  public GetEncodedTermsRequest cacheKey(long cacheKey) {
+    this.cacheKey = cacheKey;
+    return this;
+  }
+
+  public long cacheKey() {
+    return cacheKey;
+  }
+
+  @Override
+  public void readFrom(StreamInput in) throws IOException {
+    super.readFrom(in);
+    cacheKey = in.readLong();
+  }
+
+  @Override
+  public void writeTo(StreamOutput out) throws IOException {
+    super.writeTo(out);
+    out.writeLong(cacheKey);
+  }
+
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.coordinate.terms;
+
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.client.ElasticsearchClient;
+
+public class GetEncodedTermsRequestBuilder extends ActionRequestBuilder<GetEncodedTermsRequest, GetEncodedTermsResponse, GetEncodedTermsRequestBuilder> {
+
+  public GetEncodedTermsRequestBuilder(ElasticsearchClient client, GetEncodedTermsAction action) {
+    super(client, action, new GetEncodedTermsRequest());
+  }
+
+  public GetEncodedTermsRequestBuilder setNodesIds(String... nodesIds) {
+    request.nodesIds(nodesIds);
+    return this;
+  }
+
+  public GetEncodedTermsRequestBuilder setCacheKey(long cacheKey) {
+    request.cacheKey(cacheKey);
+    return this;
+  }
+
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.coordinate.terms;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+
+public class GetEncodedTermsResponse extends BaseNodesResponse<GetEncodedTermsNodeResponse> {
+
+  GetEncodedTermsResponse() {}
+
+  GetEncodedTermsResponse(ClusterName clusterName, GetEncodedTermsNodeResponse[] nodes) {
+    super(clusterName, nodes);
+  }
+
+  /**
+   * Returns the encoded terms held by the first node that returned them, or null if none of the nodes holds them.
+   */
+  public BytesRef getEncodedTerms() {
+    for (GetEncodedTermsNodeResponse node : nodes) {
+      if (node.getEncodedTerms() != null) {
+        return node.getEncodedTerms();
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public void readFrom(StreamInput in) throws IOException {
+    super.readFrom(in);
+    nodes = new GetEncodedTermsNodeResponse[in.readVInt()];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = GetEncodedTermsNodeResponse.readNodeInfo(in);
+    }
+  }
+
+  @Override
+  public void writeTo(StreamOutput out) throws IOException {
+    super.writeTo(out);
+    out.writeVInt(nodes.length);
+    for (GetEncodedTermsNodeResponse node : nodes) {
+      node.writeTo(out);
+    }
+  }
+
+}
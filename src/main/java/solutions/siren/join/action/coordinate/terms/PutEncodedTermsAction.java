@@ -0,0 +1,43 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.coordinate.terms;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.client.ElasticsearchClient;
+
+public class PutEncodedTermsAction extends Action<PutEncodedTermsRequest, PutEncodedTermsResponse, PutEncodedTermsRequestBuilder> {
+
+  public static final PutEncodedTermsAction INSTANCE = new PutEncodedTermsAction();
+  public static final String NAME = "indices:data/read/coordinate-terms/put";
+
+  protected PutEncodedTermsAction() {
+    super(NAME);
+  }
+
+  @Override
+  public PutEncodedTermsRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+    return new PutEncodedTermsRequestBuilder(client, this);
+  }
+
+  @Override
+  public PutEncodedTermsResponse newResponse() {
+    return new PutEncodedTermsResponse();
+  }
+
+}
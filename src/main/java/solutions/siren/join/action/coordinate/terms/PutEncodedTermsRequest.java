@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.coordinate.terms;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import solutions.siren.join.action.terms.TermsCompression;
+
+import java.io.IOException;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+/**
+ * Request to store the encoded terms of a filter join on a set of nodes.
+ */
+public class PutEncodedTermsRequest extends BaseNodesRequest<PutEncodedTermsRequest> {
+
+  /**
+   * The nodes that hold data, and therefore that might parse a field data terms query.
+   */
+  public static final String DATA_NODES = "data:true";
+
+  private String[] indices;
+  private String[] excludedNodesIds = Strings.EMPTY_ARRAY;
+  private long cacheKey;
+  private BytesRef encodedTerms;
+  private BytesRef compressedTerms;
+
+  public PutEncodedTermsRequest() {}
+
+  public PutEncodedTermsRequest(String... nodesIds) {
+    super(nodesIds);
+  }
+
+  /**
+   * Constructor used internally to execute a request that originates from a parent request.
+   * This is required for Shield compatibility. This will copy the context and headers (which contain the Shield tokens)
+   * of the original request to the new request.
+   */
+  public PutEncodedTermsRequest(ActionRequest originalRequest, String... nodesIds) {
+    super(originalRequest, nodesIds);
+  }
+
+  /**
+   * Sets the indices targeted by the field data terms query. If set, the terms are only shipped to the nodes
+   * which hold a shard of these indices, instead of the nodes of the request.
+   */
+  public PutEncodedTermsRequest indices(String... indices) {
+    this.indices = indices;
+    return this;
+  }
+
+  public String[] indices() {
+    return indices;
+  }
+
+  /**
+   * Sets the nodes which already hold the encoded terms, and to which they are not shipped again.
+   */
+  public PutEncodedTermsRequest excludedNodesIds(String... excludedNodesIds) {
+    this.excludedNodesIds = excludedNodesIds;
+    return this;
+  }
+
+  public String[] excludedNodesIds() {
+    return excludedNodesIds;
+  }
+
+  public PutEncodedTermsRequest cacheKey(long cacheKey) {
+    this.cacheKey = cacheKey;
+    return this;
+  }
+
+  public long cacheKey() {
+    return cacheKey;
+  }
+
+  public PutEncodedTermsRequest encodedTerms(BytesRef encodedTerms) {
+    return this.encodedTerms(encodedTerms, null);
+  }
+
+  /**
+   * Sets the encoded terms with their compressed version, see {@link TermsCompression}. The compressed terms are
+   * serialized instead of the encoded terms if they are not null.
+   */
+  public PutEncodedTermsRequest encodedTerms(BytesRef encodedTerms, BytesRef compressedTerms) {
+    this.encodedTerms = encodedTerms;
+    this.compressedTerms = compressedTerms;
+    return this;
+  }
+
+  public BytesRef encodedTerms() {
+    return encodedTerms;
+  }
+
+  @Override
+  public ActionRequestValidationException validate() {
+    ActionRequestValidationException validationException = super.validate();
+    if (encodedTerms == null) {
+      validationException = addValidationError("encoded terms are missing", validationException);
+    }
+    return validationException;
+  }
+
+  @Override
+  public void readFrom(StreamInput in) throws IOException {
+    super.readFrom(in);
+    indices = in.readStringArray();
+    if (indices.length == 0) {
+      indices = null;
+    }
+    excludedNodesIds = in.readStringArray();
+    cacheKey = in.readLong();
+    encodedTerms = TermsCompression.readBytesRef(in);
+  }
+
+  @Override
+  public void writeTo(StreamOutput out) throws IOException {
+    super.writeTo(out);
+    out.writeStringArrayNullable(indices);
+    out.writeStringArray(excludedNodesIds);
+    out.writeLong(cacheKey);
+    TermsCompression.writeBytesRef(encodedTerms, compressedTerms, out);
+  }
+
+}
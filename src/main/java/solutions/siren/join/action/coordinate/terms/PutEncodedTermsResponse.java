@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.coordinate.terms;
+
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+
+public class PutEncodedTermsResponse extends BaseNodesResponse<PutEncodedTermsNodeResponse> {
+
+  private int failedNodes;
+
+  private String storeNodeId;
+
+  PutEncodedTermsResponse() {}
+
+  PutEncodedTermsResponse(ClusterName clusterName, PutEncodedTermsNodeResponse[] nodes, int failedNodes,
+                          String storeNodeId) {
+    super(clusterName, nodes);
+    this.failedNodes = failedNodes;
+    this.storeNodeId = storeNodeId;
+  }
+
+  /**
+   * Returns the id of the node which coordinated the request, and from which the nodes that miss the encoded
+   * terms can fetch them while they are pinned.
+   */
+  public String getStoreNodeId() {
+    return storeNodeId;
+  }
+
+  /**
+   * Returns true if every targeted node kept the encoded terms in its store.
+   */
+  public boolean isStored() {
+    if (failedNodes > 0) {
+      return false;
+    }
+    for (PutEncodedTermsNodeResponse node : nodes) {
+      if (!node.isStored()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void readFrom(StreamInput in) throws IOException {
+    super.readFrom(in);
+    failedNodes = in.readVInt();
+    storeNodeId = in.readString();
+    nodes = new PutEncodedTermsNodeResponse[in.readVInt()];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = PutEncodedTermsNodeResponse.readNodeInfo(in);
+    }
+  }
+
+  @Override
+  public void writeTo(StreamOutput out) throws IOException {
+    super.writeTo(out);
+    out.writeVInt(failedNodes);
+    out.writeString(storeNodeId);
+    out.writeVInt(nodes.length);
+    for (PutEncodedTermsNodeResponse node : nodes) {
+      node.writeTo(out);
+    }
+  }
+
+}
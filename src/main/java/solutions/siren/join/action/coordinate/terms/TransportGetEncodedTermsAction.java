@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.coordinate.terms;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+import solutions.siren.join.action.admin.cache.FilterJoinCacheService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fetches the encoded terms of a filter join from the node which pinned them in its {@link EncodedTermsStore}.
+ * This is used by a node which misses the encoded terms referenced by a field data terms query.
+ */
+public class TransportGetEncodedTermsAction extends TransportNodesAction<GetEncodedTermsRequest,
+        GetEncodedTermsResponse, GetEncodedTermsNodeRequest, GetEncodedTermsNodeResponse> {
+
+  private final FilterJoinCacheService cacheService;
+
+  @Inject
+  public TransportGetEncodedTermsAction(Settings settings, ClusterName clusterName, ThreadPool threadPool,
+                                        ClusterService clusterService, FilterJoinCacheService cacheService,
+                                        TransportService transportService, ActionFilters actionFilters,
+                                        IndexNameExpressionResolver indexNameExpressionResolver) {
+    // Looking up the terms is cheap, there is no need to fork the node operation
+    super(settings, GetEncodedTermsAction.NAME, clusterName, threadPool, clusterService, transportService,
+            actionFilters, indexNameExpressionResolver, GetEncodedTermsRequest.class,
+            GetEncodedTermsNodeRequest.class, ThreadPool.Names.SAME);
+    this.cacheService = cacheService;
+  }
+
+  @Override
+  protected GetEncodedTermsResponse newResponse(GetEncodedTermsRequest request, AtomicReferenceArray nodesResponses) {
+    final List<GetEncodedTermsNodeResponse> nodes = new ArrayList<>();
+    for (int i = 0; i < nodesResponses.length(); i++) {
+      Object resp = nodesResponses.get(i);
+      if (resp instanceof GetEncodedTermsNodeResponse) {
+        nodes.add((GetEncodedTermsNodeResponse) resp);
+      }
+    }
+    return new GetEncodedTermsResponse(clusterName, nodes.toArray(new GetEncodedTermsNodeResponse[nodes.size()]));
+  }
+
+  @Override
+  protected GetEncodedTermsNodeRequest newNodeRequest(String nodeId, GetEncodedTermsRequest request) {
+    return new GetEncodedTermsNodeRequest(nodeId, request);
+  }
+
+  @Override
+  protected GetEncodedTermsNodeResponse newNodeResponse() {
+    return new GetEncodedTermsNodeResponse();
+  }
+
+  @Override
+  protected GetEncodedTermsNodeResponse nodeOperation(GetEncodedTermsNodeRequest nodeRequest) {
+    GetEncodedTermsRequest request = nodeRequest.getRequest();
+    logger.debug("Fetching encoded terms {} from node {}", request.cacheKey(), clusterService.localNode());
+    byte[] bytes = cacheService.getTermsStoreInstance().get(request.cacheKey());
+    return new GetEncodedTermsNodeResponse(clusterService.localNode(), bytes == null ? null : new BytesRef(bytes));
+  }
+
+  @Override
+  protected boolean accumulateExceptions() {
+    return false;
+  }
+
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.coordinate.terms;
+
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+import solutions.siren.join.action.admin.cache.FilterJoinCacheService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Ships the encoded terms of a filter join once to each node, where they are kept in the {@link EncodedTermsStore}.
+ * If the request specifies indices, the terms are only shipped to the nodes which hold a shard of these indices,
+ * and which are not excluded by the request.
+ */
+public class TransportPutEncodedTermsAction extends TransportNodesAction<PutEncodedTermsRequest,
+        PutEncodedTermsResponse, PutEncodedTermsNodeRequest, PutEncodedTermsNodeResponse> {
+
+  private final ClusterService clusterService;
+  private final FilterJoinCacheService cacheService;
+
+  @Inject
+  public TransportPutEncodedTermsAction(Settings settings, ClusterName clusterName, ThreadPool threadPool,
+                                        ClusterService clusterService, FilterJoinCacheService cacheService,
+                                        TransportService transportService, ActionFilters actionFilters,
+                                        IndexNameExpressionResolver indexNameExpressionResolver) {
+    // Storing the terms is cheap, there is no need to fork the node operation
+    super(settings, PutEncodedTermsAction.NAME, clusterName, threadPool, clusterService, transportService,
+            actionFilters, indexNameExpressionResolver, PutEncodedTermsRequest.class,
+            PutEncodedTermsNodeRequest.class, ThreadPool.Names.SAME);
+    this.cacheService = cacheService;
+    this.clusterService = clusterService;
+  }
+
+  @Override
+  protected String[] resolveNodes(PutEncodedTermsRequest request, ClusterState clusterState) {
+    if (request.indices() == null) {
+      return super.resolveNodes(request, clusterState);
+    }
+
+    String[] concreteIndices = indexNameExpressionResolver.concreteIndices(clusterState,
+            IndicesOptions.lenientExpandOpen(), request.indices());
+    Set<String> nodesIds = new HashSet<>();
+    // include the targets of the relocations, which will parse the queries once the relocations are completed
+    for (ShardRouting shard : clusterState.routingTable().allShardsIncludingRelocationTargets(concreteIndices).asUnordered()) {
+      if (shard.assignedToNode()) {
+        nodesIds.add(shard.currentNodeId());
+      }
+    }
+    nodesIds.removeAll(Arrays.asList(request.excludedNodesIds()));
+    return nodesIds.toArray(new String[nodesIds.size()]);
+  }
+
+  @Override
+  protected PutEncodedTermsResponse newResponse(PutEncodedTermsRequest request, AtomicReferenceArray nodesResponses) {
+    final List<PutEncodedTermsNodeResponse> nodes = new ArrayList<>();
+    int failedNodes = 0;
+    for (int i = 0; i < nodesResponses.length(); i++) {
+      Object resp = nodesResponses.get(i);
+      if (resp instanceof PutEncodedTermsNodeResponse) {
+        nodes.add((PutEncodedTermsNodeResponse) resp);
+      }
+      else {
+        failedNodes++;
+      }
+    }
+    return new PutEncodedTermsResponse(clusterName, nodes.toArray(new PutEncodedTermsNodeResponse[nodes.size()]),
+            failedNodes, clusterService.localNode().id());
+  }
+
+  @Override
+  protected PutEncodedTermsNodeRequest newNodeRequest(String nodeId, PutEncodedTermsRequest request) {
+    return new PutEncodedTermsNodeRequest(nodeId, request);
+  }
+
+  @Override
+  protected PutEncodedTermsNodeResponse newNodeResponse() {
+    return new PutEncodedTermsNodeResponse();
+  }
+
+  @Override
+  protected PutEncodedTermsNodeResponse nodeOperation(PutEncodedTermsNodeRequest nodeRequest) {
+    PutEncodedTermsRequest request = nodeRequest.getRequest();
+    logger.debug("Storing encoded terms {} on node {}", request.cacheKey(), clusterService.localNode());
+    boolean isStored = cacheService.getTermsStoreInstance().put(request.cacheKey(), request.encodedTerms());
+    return new PutEncodedTermsNodeResponse(clusterService.localNode(), isStored);
+  }
+
+  @Override
+  protected boolean accumulateExceptions() {
+    return false;
+  }
+
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.transport.TransportRequest;
+
+import java.io.IOException;
+
+/**
+ * Internal request fetching the next chunk of a terms set kept by a node, or freeing its remaining chunks, see
+ * {@link TermsCollectorService}.
+ */
+public class TermsByQueryChunkRequest extends TransportRequest {
+
+  private long chunksContextId;
+  private int compressionThreshold;
+
+  /**
+   * Default constructor
+   */
+  public TermsByQueryChunkRequest() {}
+
+  /**
+   * Main Constructor
+   *
+   * @param request         the original {@link TermsByQueryRequest}
+   * @param chunksContextId the id of the chunks context on the node
+   */
+  public TermsByQueryChunkRequest(TermsByQueryRequest request, long chunksContextId) {
+    super(request);
+    this.chunksContextId = chunksContextId;
+    this.compressionThreshold = request.compressionThreshold();
+  }
+
+  /**
+   * Gets the id of the chunks context on the node
+   */
+  public long chunksContextId() {
+    return chunksContextId;
+  }
+
+  /**
+   * Gets the compression threshold of the original {@link TermsByQueryRequest}
+   */
+  public int compressionThreshold() {
+    return compressionThreshold;
+  }
+
+  @Override
+  public void readFrom(StreamInput in) throws IOException {
+    super.readFrom(in);
+    chunksContextId = in.readLong();
+    compressionThreshold = in.readInt();
+  }
+
+  @Override
+  public void writeTo(StreamOutput out) throws IOException {
+    super.writeTo(out);
+    out.writeLong(chunksContextId);
+    out.writeInt(compressionThreshold);
+  }
+
+}
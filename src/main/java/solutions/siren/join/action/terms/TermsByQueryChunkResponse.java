@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms;
+
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.transport.TransportResponse;
+import solutions.siren.join.action.terms.collector.TermsSet;
+
+import java.io.IOException;
+
+/**
+ * Internal response holding a chunk of a terms set kept by a node.
+ */
+class TermsByQueryChunkResponse extends TransportResponse {
+
+  private TermsSet termsSet;
+  private boolean hasMoreChunks;
+  private int compressionThreshold = TermsCompression.DISABLED;
+  private long termsSizeInBytes = 0;
+  private final CircuitBreaker breaker;
+  private final BigArrays bigArrays;
+
+  /**
+   * Default constructor
+   */
+  TermsByQueryChunkResponse(final BigArrays bigArrays, final CircuitBreaker breaker) {
+    this.breaker = breaker;
+    this.bigArrays = bigArrays;
+  }
+
+  /**
+   * Main constructor
+   *
+   * @param termsSet the chunk of terms
+   * @param hasMoreChunks true if the terms set has remaining chunks
+   * @param compressionThreshold the minimum size of the chunk to compress
+   */
+  TermsByQueryChunkResponse(TermsSet termsSet, boolean hasMoreChunks, int compressionThreshold) {
+    this.termsSet = termsSet;
+    this.hasMoreChunks = hasMoreChunks;
+    this.compressionThreshold = compressionThreshold;
+    this.breaker = null;
+    this.bigArrays = null;
+  }
+
+  /**
+   * Gets the chunk of terms.
+   */
+  public TermsSet getTerms() {
+    return termsSet;
+  }
+
+  /**
+   * Returns true if the terms set has remaining chunks.
+   */
+  public boolean hasMoreChunks() {
+    return hasMoreChunks;
+  }
+
+  /**
+   * Gets the number of bytes of the terms as received, i.e., once compressed if they were compressed, or 0 if the
+   * response was not serialized.
+   */
+  long getTermsSizeInBytes() {
+    return termsSizeInBytes;
+  }
+
+  @Override
+  public void readFrom(StreamInput in) throws IOException {
+    super.readFrom(in);
+    hasMoreChunks = in.readBoolean();
+    TermsCompression.CountingStreamInput counter = new TermsCompression.CountingStreamInput(in);
+    termsSet = TermsByQueryShardResponse.readTermsSet(counter, bigArrays, breaker);
+    termsSizeInBytes = counter.count();
+  }
+
+  /**
+   * Serialize and release the chunk of terms.
+   */
+  @Override
+  public void writeTo(StreamOutput out) throws IOException {
+    try {
+      super.writeTo(out);
+      out.writeBoolean(hasMoreChunks);
+      TermsByQueryShardResponse.writeTermsSet(termsSet, compressionThreshold, out);
+    }
+    finally {
+      // Releases the resources and adjust the circuit breaker
+      termsSet.release();
+    }
+  }
+
+}
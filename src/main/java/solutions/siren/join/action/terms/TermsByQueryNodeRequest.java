@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms;
+
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.transport.TransportRequest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Internal terms by query request executed against all the shards of a node that are targeted by the
+ * original {@link TermsByQueryRequest}.
+ */
+public class TermsByQueryNodeRequest extends TransportRequest {
+
+  private TermsByQueryRequest request;
+  private List<ShardId> shardIds;
+  private List<String[]> filteringAliases;
+
+  /**
+   * Default constructor
+   */
+  public TermsByQueryNodeRequest() {}
+
+  /**
+   * Main Constructor
+   *
+   * @param request the original {@link TermsByQueryRequest}
+   */
+  public TermsByQueryNodeRequest(TermsByQueryRequest request) {
+    super(request);
+    this.request = request;
+    this.shardIds = new ArrayList<>();
+    this.filteringAliases = new ArrayList<>();
+  }
+
+  /**
+   * Adds a shard to the request
+   *
+   * @param shardId          the id of the shard
+   * @param filteringAliases optional aliases
+   */
+  public void addShard(ShardId shardId, @Nullable String[] filteringAliases) {
+    this.shardIds.add(shardId);
+    this.filteringAliases.add(filteringAliases);
+  }
+
+  /**
+   * Gets the number of shards targeted by the request
+   */
+  public int numShards() {
+    return shardIds.size();
+  }
+
+  /**
+   * Gets the {@link TermsByQueryShardRequest}s, one for each shard targeted by the request
+   */
+  public List<TermsByQueryShardRequest> shardRequests() {
+    List<TermsByQueryShardRequest> shardRequests = new ArrayList<>(shardIds.size());
+    for (int i = 0; i < shardIds.size(); i++) {
+      shardRequests.add(new TermsByQueryShardRequest(shardIds.get(i), filteringAliases.get(i), request));
+    }
+    return shardRequests;
+  }
+
+  /**
+   * Gets the original {@link TermsByQueryRequest}
+   *
+   * @return the request
+   */
+  public TermsByQueryRequest request() {
+    return request;
+  }
+
+  /**
+   * Deserialize
+   *
+   * @param in the input
+   * @throws IOException
+   */
+  @Override
+  public void readFrom(StreamInput in) throws IOException {
+    super.readFrom(in);
+    request = new TermsByQueryRequest();
+    request.readFrom(in);
+
+    int size = in.readVInt();
+    shardIds = new ArrayList<>(size);
+    filteringAliases = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      shardIds.add(ShardId.readShardId(in));
+      filteringAliases.add(in.readBoolean() ? in.readStringArray() : null);
+    }
+  }
+
+  /**
+   * Serialize
+   *
+   * @param out the output
+   * @throws IOException
+   */
+  @Override
+  public void writeTo(StreamOutput out) throws IOException {
+    super.writeTo(out);
+    request.writeTo(out);
+
+    out.writeVInt(shardIds.size());
+    for (int i = 0; i < shardIds.size(); i++) {
+      shardIds.get(i).writeTo(out);
+      String[] aliases = filteringAliases.get(i);
+      if (aliases == null) {
+        out.writeBoolean(false);
+      } else {
+        out.writeBoolean(true);
+        out.writeStringArray(aliases);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms;
+
+import org.elasticsearch.action.ShardOperationFailedException;
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.transport.TransportResponse;
+import solutions.siren.join.action.terms.collector.TermsSet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Internal terms by query response of a node, holding the terms of all the shards of the node merged into a
+ * single {@link TermsSet}.
+ */
+class TermsByQueryNodeResponse extends TransportResponse {
+
+  private TermsSet termsSet;
+  private TermsByQueryResponse.TermsSource termsSource;
+  private int successfulShards;
+  private List<ShardOperationFailedException> shardFailures;
+  private long chunksContextId = -1;
+  private int compressionThreshold = TermsCompression.DISABLED;
+  private long termsSizeInBytes = 0;
+  private final CircuitBreaker breaker;
+  private final BigArrays bigArrays;
+
+  /**
+   * Default constructor
+   */
+  TermsByQueryNodeResponse(final BigArrays bigArrays, final CircuitBreaker breaker) {
+    this.breaker = breaker;
+    this.bigArrays = bigArrays;
+  }
+
+  /**
+   * Main constructor
+   *
+   * @param termsSet the terms gathered from the shards of the node, or null if all the shards failed
+   * @param termsSource the source from which the terms have been read
+   * @param successfulShards the number of shards that succeeded
+   * @param shardFailures the failures of the shards that failed
+   * @param compressionThreshold the minimum size of the terms set to compress
+   */
+  TermsByQueryNodeResponse(TermsSet termsSet, TermsByQueryResponse.TermsSource termsSource, int successfulShards,
+                           List<ShardOperationFailedException> shardFailures, int compressionThreshold) {
+    this.compressionThreshold = compressionThreshold;
+    this.termsSet = termsSet;
+    this.termsSource = termsSource;
+    this.successfulShards = successfulShards;
+    this.shardFailures = shardFailures == null ? Collections.<ShardOperationFailedException>emptyList() : shardFailures;
+    this.breaker = null;
+    this.bigArrays = null;
+  }
+
+  /**
+   * Gets the gathered terms, or null if all the shards of the node failed.
+   */
+  public TermsSet getTerms() {
+    return termsSet;
+  }
+
+  /**
+   * Gets the source from which the terms have been read.
+   */
+  public TermsByQueryResponse.TermsSource getTermsSource() {
+    return termsSource;
+  }
+
+  /**
+   * Gets the number of shards that succeeded.
+   */
+  public int getSuccessfulShards() {
+    return successfulShards;
+  }
+
+  /**
+   * Gets the failures of the shards that failed.
+   */
+  public List<ShardOperationFailedException> getShardFailures() {
+    return shardFailures;
+  }
+
+  /**
+   * Sets the id of the chunks context on the node, if the terms set of the node is transferred in chunks.
+   * The response then holds the first chunk of the terms set.
+   */
+  public void setChunksContextId(long chunksContextId) {
+    this.chunksContextId = chunksContextId;
+  }
+
+  /**
+   * Gets the id of the chunks context on the node, or -1 if the terms set is not transferred in chunks.
+   */
+  public long getChunksContextId() {
+    return chunksContextId;
+  }
+
+  /**
+   * Gets the number of bytes of the terms as received, i.e., once compressed if they were compressed, or 0 if the
+   * response was not serialized.
+   */
+  long getTermsSizeInBytes() {
+    return termsSizeInBytes;
+  }
+
+  /**
+   * Deserialize
+   */
+  @Override
+  public void readFrom(StreamInput in) throws IOException {
+    super.readFrom(in);
+    termsSource = TermsByQueryResponse.TermsSource.values()[in.readVInt()];
+    successfulShards = in.readVInt();
+    chunksContextId = in.readLong();
+
+    int size = in.readVInt();
+    shardFailures = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      shardFailures.add(DefaultShardOperationFailedException.readShardOperationFailed(in));
+    }
+
+    if (in.readBoolean()) {
+      TermsCompression.CountingStreamInput counter = new TermsCompression.CountingStreamInput(in);
+      termsSet = TermsByQueryShardResponse.readTermsSet(counter, bigArrays, breaker);
+      termsSizeInBytes = counter.count();
+    }
+  }
+
+  /**
+   * Serialize and release the terms set.
+   * <p>
+   * If the response is sent through a {@link org.elasticsearch.transport.TransportService.DirectResponseChannel},
+   * this method will not be called and the {@link #termsSet} will be released by the receiver, i.e., the
+   * coordinator merging the node responses in {@link TransportTermsByQueryAction}.
+   */
+  @Override
+  public void writeTo(StreamOutput out) throws IOException {
+    try {
+      super.writeTo(out);
+      out.writeVInt(termsSource.ordinal());
+      out.writeVInt(successfulShards);
+      out.writeLong(chunksContextId);
+
+      out.writeVInt(shardFailures.size());
+      for (ShardOperationFailedException failure : shardFailures) {
+        failure.writeTo(out);
+      }
+
+      out.writeBoolean(termsSet != null);
+      if (termsSet != null) {
+        TermsByQueryShardResponse.writeTermsSet(termsSet, compressionThreshold, out);
+      }
+    }
+    finally {
+      // Releases the resources and adjust the circuit breaker
+      if (termsSet != null) {
+        termsSet.release();
+      }
+    }
+  }
+
+}
@@ -60,6 +60,7 @@ public class TermsByQueryRequest extends BroadcastRequest<TermsByQueryRequest> {
   private TermsEncoding termsEncoding;
   @Nullable
   private Long expectedTerms;
+  private int compressionThreshold = TermsCompression.DISABLED;
 
   /**
    * Default terms encoding
@@ -98,6 +99,9 @@ public class TermsByQueryRequest extends BroadcastRequest<TermsByQueryRequest> {
         validationException = ValidateActions.addValidationError("maxTermsPerShard not specified for terms encoding [bytes]", validationException);
       }
     }
+    if (termsEncoding != null && termsEncoding.equals(TermsEncoding.AUTO)) {
+      validationException = ValidateActions.addValidationError("terms encoding [auto] must be resolved by the coordinate search action", validationException);
+    }
     return validationException;
   }
 
@@ -251,7 +255,7 @@ public class TermsByQueryRequest extends BroadcastRequest<TermsByQueryRequest> {
    * The types of terms encoding
    */
   public enum TermsEncoding {
-    LONG, INTEGER, BLOOM, BYTES
+    LONG, INTEGER, BLOOM, BYTES, ROARING, BINARY_FUSE, AUTO
   }
 
   /**
@@ -284,6 +288,22 @@ public class TermsByQueryRequest extends BroadcastRequest<TermsByQueryRequest> {
     return expectedTerms;
   }
 
+  /**
+   * The minimum size (in bytes) of the encoded terms to compress when they are shipped back, or
+   * {@link TermsCompression#DISABLED}, see {@link TermsCompression#getThreshold}.
+   */
+  public TermsByQueryRequest compressionThreshold(int compressionThreshold) {
+    this.compressionThreshold = compressionThreshold;
+    return this;
+  }
+
+  /**
+   * The minimum size (in bytes) of the encoded terms to compress when they are shipped back.
+   */
+  public int compressionThreshold() {
+    return compressionThreshold;
+  }
+
 
   /**
    * Deserialize
@@ -326,6 +346,8 @@ public class TermsByQueryRequest extends BroadcastRequest<TermsByQueryRequest> {
     if (in.readBoolean()) {
       expectedTerms = in.readVLong();
     }
+
+    compressionThreshold = in.readInt();
   }
 
   /**
@@ -386,6 +408,8 @@ public class TermsByQueryRequest extends BroadcastRequest<TermsByQueryRequest> {
       out.writeBoolean(true);
       out.writeVLong(expectedTerms);
     }
+
+    out.writeInt(compressionThreshold);
   }
 
   /**
@@ -116,6 +116,14 @@ public class TermsByQueryRequestBuilder extends BroadcastOperationRequestBuilder
     return this;
   }
 
+  /**
+   * The minimum size (in bytes) of the encoded terms to compress when they are shipped back.
+   */
+  public TermsByQueryRequestBuilder setCompressionThreshold(int compressionThreshold) {
+    request.compressionThreshold(compressionThreshold);
+    return this;
+  }
+
   @Override
   public void execute(ActionListener<TermsByQueryResponse> listener) {
     client.execute(TermsByQueryAction.INSTANCE, request, listener);
@@ -33,6 +33,21 @@ import java.util.List;
  */
 public class TermsByQueryResponse extends BroadcastResponse {
 
+  /**
+   * The source from which the terms have been read on the shards. The ordinal of each source is a bit set,
+   * so that sources can be merged with a bitwise or.
+   */
+  public enum TermsSource {
+    NONE, DOC_VALUES, FIELD_DATA, MIXED;
+
+    /**
+     * Merges two sources, e.g., {@link #DOC_VALUES} and {@link #FIELD_DATA} returns {@link #MIXED}.
+     */
+    public TermsSource merge(TermsSource other) {
+      return TermsSource.values()[this.ordinal() | other.ordinal()];
+    }
+  }
+
   /**
    * The set of terms that has been retrieved
    */
@@ -58,6 +73,38 @@ public class TermsByQueryResponse extends BroadcastResponse {
    */
   private long tookInMillis;
 
+  /**
+   * The source from which the terms have been read.
+   */
+  private TermsSource termsSource;
+
+  /**
+   * The number of bytes spilled to disk while collecting and merging the terms.
+   */
+  private long spilledBytes;
+
+  /**
+   * The time in millis spent spilling to disk while collecting and merging the terms.
+   */
+  private long spillTimeInMillis;
+
+  /**
+   * The number of bytes of the terms received by the coordinator from the shards, once compressed if they were
+   * compressed. The terms of the shards local to the coordinator are not serialized, and are not counted.
+   */
+  private long shardsCompressedSizeInBytes;
+
+  /**
+   * The number of bytes of the encoded terms as received from the coordinator, once compressed if they were
+   * compressed, or -1 if the response was not serialized.
+   */
+  private long compressedSizeInBytes = -1;
+
+  /**
+   * The minimum size of the encoded terms to compress when the response is serialized.
+   */
+  private int compressionThreshold = TermsCompression.DISABLED;
+
   /**
    * Default constructor
    */
@@ -67,20 +114,29 @@ public class TermsByQueryResponse extends BroadcastResponse {
    * Main constructor
    *
    * @param termsSet    the merged terms
+   * @param termsSource the source from which the terms have been read on the shards
    * @param tookInMillis     the time in millis it took to retrieve the terms.
    * @param totalShards      the number of shards the request executed on
    * @param successfulShards the number of shards the request executed on successfully
    * @param failedShards     the number of failed shards
    * @param shardFailures    the failures
+   * @param shardsCompressedSizeInBytes the number of bytes of the terms received from the shards
+   * @param compressionThreshold the minimum size of the encoded terms to compress
    */
-  TermsByQueryResponse(TermsSet termsSet, long tookInMillis, int totalShards, int successfulShards, int failedShards,
-                       List<ShardOperationFailedException> shardFailures) {
+  TermsByQueryResponse(TermsSet termsSet, TermsSource termsSource, long tookInMillis, int totalShards, int successfulShards, int failedShards,
+                       List<ShardOperationFailedException> shardFailures, long shardsCompressedSizeInBytes,
+                       int compressionThreshold) {
     super(totalShards, successfulShards, failedShards, shardFailures);
     this.encodedTerms = termsSet.writeToBytes();
     this.termsEncoding = termsSet.getEncoding();
     this.size = termsSet.size();
     this.isPruned = termsSet.isPruned();
+    this.spilledBytes = termsSet.getSpilledBytes();
+    this.spillTimeInMillis = termsSet.getSpillTimeInMillis();
+    this.termsSource = termsSource;
     this.tookInMillis = tookInMillis;
+    this.shardsCompressedSizeInBytes = shardsCompressedSizeInBytes;
+    this.compressionThreshold = compressionThreshold;
   }
 
   /**
@@ -113,6 +169,50 @@ public class TermsByQueryResponse extends BroadcastResponse {
     return isPruned;
   }
 
+  /**
+   * Returns the encoding of the set of terms.
+   */
+  public TermsByQueryRequest.TermsEncoding getTermsEncoding() {
+    return termsEncoding;
+  }
+
+  /**
+   * Returns the source, doc values or field data, from which the terms have been read on the shards.
+   */
+  public TermsSource getTermsSource() {
+    return termsSource;
+  }
+
+  /**
+   * Returns the number of bytes spilled to disk while collecting and merging the terms.
+   */
+  public long getSpilledBytes() {
+    return spilledBytes;
+  }
+
+  /**
+   * Returns the time in millis spent spilling to disk while collecting and merging the terms.
+   */
+  public long getSpillTimeInMillis() {
+    return spillTimeInMillis;
+  }
+
+  /**
+   * Returns the number of bytes of the terms received by the coordinator from the shards, once compressed if they
+   * were compressed. The terms of the shards local to the coordinator are not counted.
+   */
+  public long getShardsCompressedSizeInBytes() {
+    return shardsCompressedSizeInBytes;
+  }
+
+  /**
+   * Returns the number of bytes of the encoded terms as received from the coordinator, once compressed if they
+   * were compressed, or the number of bytes of the encoded terms if the response was not serialized.
+   */
+  public long getCompressedSizeInBytes() {
+    return compressedSizeInBytes == -1 ? encodedTerms.length : compressedSizeInBytes;
+  }
+
   /**
    * Deserialize
    *
@@ -126,7 +226,13 @@ public class TermsByQueryResponse extends BroadcastResponse {
     isPruned = in.readBoolean();
     size = in.readVInt();
     termsEncoding = TermsByQueryRequest.TermsEncoding.values()[in.readVInt()];
-    encodedTerms = in.readBytesRef();
+    termsSource = TermsSource.values()[in.readVInt()];
+    spilledBytes = in.readVLong();
+    spillTimeInMillis = in.readVLong();
+    shardsCompressedSizeInBytes = in.readVLong();
+    TermsCompression.CountingStreamInput counter = new TermsCompression.CountingStreamInput(in);
+    encodedTerms = TermsCompression.readBytesRef(counter);
+    compressedSizeInBytes = counter.count();
   }
 
   /**
@@ -145,8 +251,14 @@ public class TermsByQueryResponse extends BroadcastResponse {
     out.writeVInt(size);
     // Encode type of encoding
     out.writeVInt(termsEncoding.ordinal());
-    // Encode terms
-    out.writeBytesRef(encodedTerms);
+    // Encode source of the terms
+    out.writeVInt(termsSource.ordinal());
+    // Encode spill stats
+    out.writeVLong(spilledBytes);
+    out.writeVLong(spillTimeInMillis);
+    out.writeVLong(shardsCompressedSizeInBytes);
+    // Encode terms, compressed if they are large enough
+    TermsCompression.writeBytesRef(encodedTerms, TermsCompression.compress(encodedTerms, compressionThreshold), out);
     // Release terms
     encodedTerms = null;
   }
@@ -0,0 +1,278 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.index.shard.ShardId;
+import solutions.siren.join.action.coordinate.execution.FilterJoinCache;
+import solutions.siren.join.action.terms.collector.TermsSet;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The shard-level cache of the terms by query action, kept on the data nodes. It is thread-safe (use a
+ * {@link Cache} underneath).
+ * <br>
+ * The cache stores the encoded {@link TermsSet} collected on a shard. An entry is keyed by the shard, the index reader
+ * the terms were collected from, the parsed lookup query and the parameters of the request that affect the
+ * collected terms. The entries of an index reader are invalidated when the reader is closed, i.e., after a refresh
+ * of the shard.
+ */
+public class TermsByQueryShardCache {
+
+  private final Cache<Key, CacheEntry> cache;
+  private final boolean isEnabled;
+  private final long maxWeight;
+
+  /**
+   * The readers on which a closed listener has been registered.
+   */
+  private final Set<Object> registeredReaders = ConcurrentCollections.newConcurrentSet();
+
+  /**
+   * The maximum size (in bytes) of the cache. Default to 64MB.
+   */
+  private static final int DEFAULT_CACHE_SIZE = 67108864;
+
+  public final static String SIREN_TERMSBYQUERY_SHARD_CACHE_ENABLED = "siren.termsbyquery.shard_cache.enabled";
+  public final static String SIREN_TERMSBYQUERY_SHARD_CACHE_SIZE = "siren.termsbyquery.shard_cache.size";
+
+  private static final ESLogger logger = Loggers.getLogger(TermsByQueryShardCache.class);
+
+  public TermsByQueryShardCache(Settings settings) {
+    this.isEnabled = settings.getAsBoolean(SIREN_TERMSBYQUERY_SHARD_CACHE_ENABLED, true);
+    long size = settings.getAsInt(SIREN_TERMSBYQUERY_SHARD_CACHE_SIZE, DEFAULT_CACHE_SIZE);
+    this.maxWeight = size;
+
+    if (isEnabled) {
+      this.cache = CacheBuilder.newBuilder()
+              .recordStats()
+              .maximumWeight(size)
+              .weigher(new CacheEntryWeigher())
+              .build();
+    }
+    else {
+      this.cache = CacheBuilder.newBuilder().maximumSize(0).build();
+    }
+  }
+
+  /**
+   * Returns true if the cache is enabled.
+   */
+  public boolean isEnabled() {
+    return isEnabled;
+  }
+
+  /**
+   * Caches the set of terms collected from the given index reader. The entries of the index reader will be
+   * invalidated once the reader is closed.
+   * <br>
+   * The set is cached in the serialization format of a {@link TermsByQueryShardResponse}. It is not cached if its
+   * serialization would exceed the size of the cache, or if the serialization cannot be accounted on the given
+   * circuit breaker.
+   */
+  public void put(final Key key, final IndexReader reader, final TermsSet terms,
+                  final TermsByQueryResponse.TermsSource termsSource, final CircuitBreaker breaker) {
+    if (!isEnabled) {
+      return;
+    }
+    long estimatedSize = terms.serializedSizeInBytes();
+    if (estimatedSize > maxWeight) {
+      logger.debug("{}: Skip shard cache entry for {}, its estimated size {} exceeds the cache size",
+        Thread.currentThread().getName(), key.shardId, estimatedSize);
+      return;
+    }
+
+    TermsCompression.ByteArrayStreamOutput encodedTerms = new TermsCompression.ByteArrayStreamOutput();
+    try {
+      breaker.addEstimateBytesAndMaybeBreak(estimatedSize, "<terms_by_query_shard_cache>");
+    }
+    catch (CircuitBreakingException e) {
+      logger.debug("{}: Skip shard cache entry for {}, its encoding would trip the circuit breaker",
+        Thread.currentThread().getName(), key.shardId);
+      return;
+    }
+    try {
+      TermsByQueryShardResponse.writeTermsSet(terms, TermsCompression.DISABLED, encodedTerms);
+    }
+    catch (IOException e) {
+      logger.debug("{}: Skip shard cache entry for {}, its serialization failed", e,
+        Thread.currentThread().getName(), key.shardId);
+      return;
+    }
+    finally {
+      breaker.addWithoutBreaking(-estimatedSize);
+    }
+    if (encodedTerms.bytes().length > maxWeight) {
+      return;
+    }
+
+    if (registeredReaders.add(key.readerKey)) {
+      reader.addReaderClosedListener(new IndexReader.ReaderClosedListener() {
+
+        @Override
+        public void onClose(IndexReader reader) {
+          invalidateReader(reader.getCombinedCoreAndDeletesKey());
+        }
+
+      });
+    }
+    logger.debug("{}: New shard cache entry for {}", Thread.currentThread().getName(), key.shardId);
+    this.cache.put(key, new CacheEntry(encodedTerms.bytes(), termsSource));
+  }
+
+  /**
+   * Retrieves the cached set of terms for the given key, or null if there is none.
+   */
+  public CacheEntry get(final Key key) {
+    if (!isEnabled) {
+      return null;
+    }
+    return this.cache.getIfPresent(key);
+  }
+
+  /**
+   * Invalidate all the cache entries of the given index reader
+   */
+  private void invalidateReader(Object readerKey) {
+    logger.debug("{}: Invalidate shard cache entries of closed reader", Thread.currentThread().getName());
+    registeredReaders.remove(readerKey);
+    for (Iterator<Key> it = cache.asMap().keySet().iterator(); it.hasNext(); ) {
+      if (it.next().readerKey == readerKey) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Invalidate all cache entries
+   */
+  public void invalidateAll() {
+    logger.debug("{}: Invalidate all shard cache entries", Thread.currentThread().getName());
+    this.cache.invalidateAll();
+  }
+
+  /**
+   * Returns a current snapshot of this cache's cumulative statistics. All stats are initialized
+   * to zero, and are monotonically increasing over the lifetime of the cache.
+   */
+  public FilterJoinCache.FilterJoinCacheStats getStats() {
+    return new FilterJoinCache.FilterJoinCacheStats(cache.size(), cache.stats());
+  }
+
+  /**
+   * The key of a cache entry. The index reader is compared by identity, based on its
+   * {@link IndexReader#getCombinedCoreAndDeletesKey()}.
+   */
+  public static class Key {
+
+    private final ShardId shardId;
+    private final Object readerKey;
+    private final Query query;
+    private final String field;
+    private final TermsByQueryRequest.Ordering ordering;
+    private final Integer maxTermsPerShard;
+    private final Long expectedTerms;
+    private final TermsByQueryRequest.TermsEncoding termsEncoding;
+
+    public Key(ShardId shardId, IndexReader reader, Query query, TermsByQueryRequest request) {
+      this.shardId = shardId;
+      this.readerKey = reader.getCombinedCoreAndDeletesKey();
+      this.query = query;
+      this.field = request.field();
+      this.ordering = request.getOrderBy();
+      this.maxTermsPerShard = request.maxTermsPerShard();
+      this.expectedTerms = request.expectedTerms();
+      this.termsEncoding = request.termsEncoding();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Key other = (Key) o;
+      return readerKey == other.readerKey &&
+              shardId.equals(other.shardId) &&
+              query.equals(other.query) &&
+              field.equals(other.field) &&
+              ordering == other.ordering &&
+              Objects.equals(maxTermsPerShard, other.maxTermsPerShard) &&
+              Objects.equals(expectedTerms, other.expectedTerms) &&
+              termsEncoding == other.termsEncoding;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(shardId, System.identityHashCode(readerKey), query, field, ordering, maxTermsPerShard,
+              expectedTerms, termsEncoding);
+    }
+
+  }
+
+  /**
+   * A cache entry is composed of the set of terms (encoded) and the source from which the terms have been read.
+   */
+  public static class CacheEntry {
+
+    private final BytesRef encodedTerms;
+    public final TermsByQueryResponse.TermsSource termsSource;
+
+    private CacheEntry(BytesRef encodedTerms, TermsByQueryResponse.TermsSource termsSource) {
+      this.encodedTerms = encodedTerms;
+      this.termsSource = termsSource;
+    }
+
+    /**
+     * Deserializes the cached set of terms as {@link TermsByQueryShardResponse#readFrom(StreamInput)} does. The set
+     * is attached to the given circuit breaker, and must be released as the set of a shard response.
+     */
+    public TermsSet getTerms(BigArrays bigArrays, CircuitBreaker breaker) throws IOException {
+      StreamInput in = StreamInput.wrap(encodedTerms.bytes, encodedTerms.offset, encodedTerms.length);
+      return TermsByQueryShardResponse.readTermsSet(in, bigArrays, breaker);
+    }
+
+  }
+
+  static class CacheEntryWeigher implements Weigher<Key, CacheEntry> {
+
+    @Override
+    public int weigh(Key key, CacheEntry value) {
+      // the array of the serialization may be larger than its length
+      return value.encodedTerms.bytes.length;
+    }
+
+  }
+
+}
@@ -18,11 +18,13 @@
  */
 package solutions.siren.join.action.terms;
 
+import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.action.support.broadcast.BroadcastShardResponse;
 import org.elasticsearch.cluster.ClusterState;
 import org.elasticsearch.common.breaker.CircuitBreaker;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.util.BigArrays;
 import org.elasticsearch.index.shard.ShardId;
 import solutions.siren.join.action.terms.collector.*;
 
@@ -35,13 +37,18 @@ import java.util.concurrent.atomic.AtomicReferenceArray;
 class TermsByQueryShardResponse extends BroadcastShardResponse {
 
   private TermsSet termsSet;
+  private TermsByQueryResponse.TermsSource termsSource;
+  private int compressionThreshold = TermsCompression.DISABLED;
+  private long termsSizeInBytes = 0;
   private final CircuitBreaker breaker;
+  private final BigArrays bigArrays;
 
   /**
    * Default constructor
    */
-  TermsByQueryShardResponse(final CircuitBreaker breaker) {
+  TermsByQueryShardResponse(final BigArrays bigArrays, final CircuitBreaker breaker) {
     this.breaker = breaker;
+    this.bigArrays = bigArrays;
   }
 
   /**
@@ -49,11 +56,17 @@ class TermsByQueryShardResponse extends BroadcastShardResponse {
    *
    * @param shardId the id of the shard the request executed on
    * @param termsSet the terms gathered from the shard
+   * @param termsSource the source from which the terms have been read
+   * @param compressionThreshold the minimum size of the terms set to compress
    */
-  public TermsByQueryShardResponse(ShardId shardId, TermsSet termsSet) {
+  public TermsByQueryShardResponse(ShardId shardId, TermsSet termsSet, TermsByQueryResponse.TermsSource termsSource,
+                                   int compressionThreshold) {
     super(shardId);
     this.termsSet = termsSet;
+    this.termsSource = termsSource;
+    this.compressionThreshold = compressionThreshold;
     this.breaker = null;
+    this.bigArrays = null;
   }
 
   /**
@@ -65,6 +78,31 @@ class TermsByQueryShardResponse extends BroadcastShardResponse {
     return this.termsSet;
   }
 
+  /**
+   * Removes the terms from the response and returns them. Used by the coordinator to take ownership of the terms
+   * once they are merged.
+   */
+  TermsSet detachTerms() {
+    TermsSet terms = this.termsSet;
+    this.termsSet = null;
+    return terms;
+  }
+
+  /**
+   * Gets the source from which the terms have been read.
+   */
+  public TermsByQueryResponse.TermsSource getTermsSource() {
+    return this.termsSource;
+  }
+
+  /**
+   * Gets the number of bytes of the terms as received, i.e., once compressed if they were compressed, or 0 if the
+   * response was not serialized.
+   */
+  long getTermsSizeInBytes() {
+    return termsSizeInBytes;
+  }
+
   /**
    * Deserialize
    */
@@ -72,54 +110,116 @@ class TermsByQueryShardResponse extends BroadcastShardResponse {
   public void readFrom(StreamInput in) throws IOException {
     super.readFrom(in);
 
+    termsSource = TermsByQueryResponse.TermsSource.values()[in.readVInt()];
+
+    TermsCompression.CountingStreamInput counter = new TermsCompression.CountingStreamInput(in);
+    termsSet = readTermsSet(counter, bigArrays, breaker);
+    termsSizeInBytes = counter.count();
+  }
+
+  /**
+   * Serialize and release the terms set.
+   * <p>
+   * If the response is sent through a {@link org.elasticsearch.transport.TransportService.DirectResponseChannel},
+   * this method will not be called and the {@link #termsSet} will be released by the receiver, i.e.,
+   * {@link TransportTermsByQueryAction#newResponse(TermsByQueryRequest, AtomicReferenceArray, ClusterState)}.
+   */
+  @Override
+  public void writeTo(StreamOutput out) throws IOException {
+    try {
+      super.writeTo(out);
+      // Encode source of the terms
+      out.writeVInt(termsSource.ordinal());
+      writeTermsSet(termsSet, compressionThreshold, out);
+    }
+    finally {
+      // Releases the resources and adjust the circuit breaker
+      termsSet.release();
+    }
+  }
+
+  /**
+   * Deserialize a {@link TermsSet} encoded by {@link #writeTermsSet(TermsSet, int, StreamOutput)}. The numeric sets
+   * are allocated on pages of the given {@link BigArrays}.
+   */
+  static TermsSet readTermsSet(StreamInput in, BigArrays bigArrays, CircuitBreaker breaker) throws IOException {
+    TermsSet termsSet;
     TermsByQueryRequest.TermsEncoding termsEncoding = TermsByQueryRequest.TermsEncoding.values()[in.readVInt()];
     switch (termsEncoding) {
 
       case LONG:
-        termsSet = new LongTermsSet(breaker);
-        termsSet.readFrom(in);
-        return;
+        termsSet = new LongTermsSet(bigArrays, breaker);
+        break;
 
       case INTEGER:
-        termsSet = new IntegerTermsSet(breaker);
-        termsSet.readFrom(in);
-        return;
+        termsSet = new IntegerTermsSet(bigArrays, breaker);
+        break;
 
       case BLOOM:
-        termsSet = new BloomFilterTermsSet(breaker);
-        termsSet.readFrom(in);
-        return;
+        termsSet = new BloomFilterTermsSet(bigArrays, breaker);
+        break;
 
       case BYTES:
         termsSet = new BytesRefTermsSet(breaker);
-        termsSet.readFrom(in);
-        return;
+        break;
+
+      case ROARING:
+        termsSet = new RoaringTermsSet(breaker);
+        break;
+
+      case BINARY_FUSE:
+        termsSet = new BinaryFuseFilterTermsSet(bigArrays, breaker);
+        break;
 
       default:
         throw new IOException("[termsByQuery] Invalid type of terms encoding: " + termsEncoding.name());
 
     }
+    try {
+      if (in.readBoolean()) { // compressed terms
+        int length = in.readVInt();
+        BytesRef bytes = TermsCompression.decompress(in, length);
+        termsSet.readFrom(StreamInput.wrap(bytes.bytes, bytes.offset, length));
+      }
+      else {
+        termsSet.readFrom(in);
+      }
+    }
+    catch (Throwable t) {
+      termsSet.release();
+      throw t;
+    }
+    return termsSet;
   }
 
   /**
-   * Serialize and release the terms set.
-   * <p>
-   * If the response is sent through a {@link org.elasticsearch.transport.TransportService.DirectResponseChannel},
-   * this method will not be called and the {@link #termsSet} will be released by the receiver, i.e.,
-   * {@link TransportTermsByQueryAction#newResponse(TermsByQueryRequest, AtomicReferenceArray, ClusterState)}.
+   * Serialize a {@link TermsSet} with its type of encoding. The serialized set is compressed if it is larger
+   * than the given threshold, see {@link TermsCompression}. The set is serialized into a single array which is
+   * compressed directly into the output.
    */
-  @Override
-  public void writeTo(StreamOutput out) throws IOException {
-    try {
-      super.writeTo(out);
-      // Encode type of encoding
-      out.writeVInt(termsSet.getEncoding().ordinal());
-      // Encode terms
+  static void writeTermsSet(TermsSet termsSet, int compressionThreshold, StreamOutput out) throws IOException {
+    // Encode type of encoding
+    out.writeVInt(termsSet.getEncoding().ordinal());
+
+    if (compressionThreshold == TermsCompression.DISABLED) {
+      out.writeBoolean(false);
       termsSet.writeTo(out);
+      return;
     }
-    finally {
-      // Releases the resources and adjust the circuit breaker
-      termsSet.release();
+
+    // Serialize the terms first to find out if they are worth compressing
+    TermsCompression.ByteArrayStreamOutput buffer = new TermsCompression.ByteArrayStreamOutput();
+    termsSet.writeTo(buffer);
+    BytesRef bytes = buffer.bytes();
+    if (bytes.length < compressionThreshold) {
+      out.writeBoolean(false);
+      out.writeBytes(bytes.bytes, bytes.offset, bytes.length);
+    }
+    else {
+      out.writeBoolean(true);
+      out.writeVInt(bytes.length);
+      TermsCompression.compress(bytes, out);
     }
   }
-}
\ No newline at end of file
+
+}
@@ -0,0 +1,365 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms;
+
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.threadpool.ThreadPool;
+import solutions.siren.join.action.terms.collector.TermsSet;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Node service that holds the settings of the terms collection, and gives access to the fixed thread pool used to
+ * collect the terms of the segments of a shard in parallel. The pool is only declared if the parallelism is greater
+ * than 1, see {@link #threadPoolSettings(Settings)}. The same applies to the pool used by the coordinator to merge
+ * the terms sets of the shards by partitions, and to the pool used by the terms queries to decode large sets of
+ * terms in parallel. The pools are owned by the {@link ThreadPool} of the node, so that their threads are created
+ * and shut down as any other elasticsearch thread.
+ * <br>
+ * The service also keeps the terms sets of the node that are transferred to the coordinator in chunks, until their
+ * last chunk is fetched or until they are not accessed for longer than the keep alive.
+ */
+public class TermsCollectorService extends AbstractLifecycleComponent<TermsCollectorService> {
+
+  /**
+   * The number of threads used to collect the terms of the segments of a shard in parallel. Default to 1, i.e.,
+   * the segments are collected sequentially by the thread executing the shard operation.
+   */
+  public static final String SIREN_TERMSBYQUERY_COLLECTOR_PARALLELISM = "siren.termsbyquery.collector.parallelism";
+
+  private static final int DEFAULT_COLLECTOR_PARALLELISM = 1;
+
+  /**
+   * The number of partitions, and of threads, used by the coordinator to merge the terms sets of the shards in
+   * parallel, see {@link solutions.siren.join.action.terms.collector.PartitionedTermsSet}. Default to 1, i.e., the
+   * terms sets are merged sequentially by the thread building the response.
+   */
+  public static final String SIREN_TERMSBYQUERY_MERGE_PARALLELISM = "siren.termsbyquery.merge.parallelism";
+
+  private static final int DEFAULT_MERGE_PARALLELISM = 1;
+
+  /**
+   * Enables the single pass collection of the terms during the search when documents do not need to be ordered.
+   * Default to true. If disabled, or if the segments are collected in parallel, the hits are first collected into
+   * bitsets before extracting the terms.
+   */
+  public static final String SIREN_TERMSBYQUERY_COLLECTOR_STREAMING = "siren.termsbyquery.collector.streaming";
+
+  private static final boolean DEFAULT_COLLECTOR_STREAMING = true;
+
+  /**
+   * The maximum number of terms sent by a node to the coordinator in a single message. Larger terms sets are
+   * transferred in chunks. Default to 1048576 terms. Only applies when the request is executed by node, see
+   * {@link TransportTermsByQueryAction#SIREN_TERMSBYQUERY_BY_NODE}: the terms set of a shard is always sent in a
+   * single message.
+   */
+  public static final String SIREN_TERMSBYQUERY_CHUNK_SIZE = "siren.termsbyquery.chunk_size";
+
+  private static final int DEFAULT_CHUNK_SIZE = 1048576;
+
+  /**
+   * The time a terms set transferred in chunks is kept while waiting for its next chunk to be fetched. Default to 1m.
+   */
+  public static final String SIREN_TERMSBYQUERY_CHUNK_KEEP_ALIVE = "siren.termsbyquery.chunk_keep_alive";
+
+  private static final TimeValue DEFAULT_CHUNK_KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+
+  /**
+   * Enables the spilling of the long terms sets to sorted runs in the temporary directory of the node when they
+   * cannot grow without tripping the request circuit breaker, during the collection on the shards and the merge on
+   * the coordinator. Default to false, i.e., the circuit breaker exception fails the request.
+   */
+  public static final String SIREN_TERMSBYQUERY_SPILL_ENABLED = "siren.termsbyquery.spill.enabled";
+
+  private static final boolean DEFAULT_SPILL_ENABLED = false;
+
+  /**
+   * The number of threads used by {@link solutions.siren.join.index.query.FieldDataTermsQuery} and
+   * {@link solutions.siren.join.index.query.TermsEnumTermsQuery} to decode a large set of terms in parallel, see
+   * {@link TermsSet#readFrom(org.apache.lucene.util.BytesRef, boolean, ExecutorService, int)}. Default to 1, i.e.,
+   * the terms are decoded sequentially by the first thread executing the query.
+   */
+  public static final String SIREN_TERMSBYQUERY_DECODE_PARALLELISM = "siren.termsbyquery.decode.parallelism";
+
+  private static final int DEFAULT_DECODE_PARALLELISM = 1;
+
+  /**
+   * The names of the thread pools declared in the {@link ThreadPool} of the node.
+   */
+  public static final String COLLECTOR_THREAD_POOL = "termsbyquery_collector";
+  public static final String MERGE_THREAD_POOL = "termsbyquery_merge";
+  public static final String DECODE_THREAD_POOL = "termsbyquery_decode";
+
+  private final ThreadPool threadPool;
+
+  private final int parallelism;
+
+  private final int mergeParallelism;
+
+  private final int decodeParallelism;
+
+  private final boolean streaming;
+
+  private final int chunkSize;
+
+  private final TimeValue chunkKeepAlive;
+
+  private final Path spillDirectory;
+
+  private volatile ExecutorService pool;
+
+  private volatile ExecutorService mergePool;
+
+  private volatile ExecutorService decodePool;
+
+  private final ConcurrentMap<Long, ChunksContext> chunksContexts = ConcurrentCollections.newConcurrentMap();
+
+  private final AtomicLong chunksContextIdGenerator = new AtomicLong();
+
+  private volatile ThreadPool.Cancellable chunksReaper;
+
+  @Inject
+  public TermsCollectorService(Settings settings, Environment environment, ThreadPool threadPool) {
+    super(settings);
+    this.threadPool = threadPool;
+    this.parallelism = settings.getAsInt(SIREN_TERMSBYQUERY_COLLECTOR_PARALLELISM, DEFAULT_COLLECTOR_PARALLELISM);
+    this.mergeParallelism = settings.getAsInt(SIREN_TERMSBYQUERY_MERGE_PARALLELISM, DEFAULT_MERGE_PARALLELISM);
+    this.decodeParallelism = settings.getAsInt(SIREN_TERMSBYQUERY_DECODE_PARALLELISM, DEFAULT_DECODE_PARALLELISM);
+    this.streaming = settings.getAsBoolean(SIREN_TERMSBYQUERY_COLLECTOR_STREAMING, DEFAULT_COLLECTOR_STREAMING);
+    this.chunkSize = settings.getAsInt(SIREN_TERMSBYQUERY_CHUNK_SIZE, DEFAULT_CHUNK_SIZE);
+    this.chunkKeepAlive = settings.getAsTime(SIREN_TERMSBYQUERY_CHUNK_KEEP_ALIVE, DEFAULT_CHUNK_KEEP_ALIVE);
+    boolean spillEnabled = settings.getAsBoolean(SIREN_TERMSBYQUERY_SPILL_ENABLED, DEFAULT_SPILL_ENABLED);
+    this.spillDirectory = spillEnabled ? environment.tmpFile() : null;
+  }
+
+  /**
+   * Returns the settings declaring a fixed thread pool for each parallelism greater than 1. They are added by the
+   * plugin to the settings of the node, so that the {@link ThreadPool} creates the pools along with its own ones.
+   */
+  public static Settings threadPoolSettings(Settings settings) {
+    Settings.Builder builder = Settings.builder();
+    putThreadPoolSettings(builder, COLLECTOR_THREAD_POOL,
+      settings.getAsInt(SIREN_TERMSBYQUERY_COLLECTOR_PARALLELISM, DEFAULT_COLLECTOR_PARALLELISM));
+    putThreadPoolSettings(builder, MERGE_THREAD_POOL,
+      settings.getAsInt(SIREN_TERMSBYQUERY_MERGE_PARALLELISM, DEFAULT_MERGE_PARALLELISM));
+    putThreadPoolSettings(builder, DECODE_THREAD_POOL,
+      settings.getAsInt(SIREN_TERMSBYQUERY_DECODE_PARALLELISM, DEFAULT_DECODE_PARALLELISM));
+    return builder.build();
+  }
+
+  private static void putThreadPoolSettings(Settings.Builder builder, String name, int parallelism) {
+    if (parallelism > 1) {
+      builder.put(ThreadPool.THREADPOOL_GROUP + name + ".type", ThreadPool.ThreadPoolType.FIXED.getType());
+      builder.put(ThreadPool.THREADPOOL_GROUP + name + ".size", parallelism);
+    }
+  }
+
+  /**
+   * Returns the executor used to collect segments in parallel, or null if the parallel collection is disabled.
+   */
+  public ExecutorService getExecutor() {
+    return pool;
+  }
+
+  /**
+   * Returns the executor used to merge the terms sets by partitions, or null if the parallel merge is disabled.
+   */
+  public ExecutorService getMergeExecutor() {
+    return mergePool;
+  }
+
+  /**
+   * Returns the number of partitions used to merge the terms sets in parallel.
+   */
+  public int getMergeParallelism() {
+    return mergeParallelism;
+  }
+
+  /**
+   * Returns the executor used to decode the terms of the queries in parallel, or null if the parallel decoding is
+   * disabled.
+   */
+  public ExecutorService getDecodeExecutor() {
+    return decodePool;
+  }
+
+  /**
+   * Returns the number of tasks used to decode the terms in parallel.
+   */
+  public int getDecodeParallelism() {
+    return decodeParallelism;
+  }
+
+  /**
+   * Returns true if the single pass collection of the terms is enabled.
+   */
+  public boolean isStreaming() {
+    return streaming;
+  }
+
+  /**
+   * Returns the maximum number of terms sent by a node in a single message.
+   */
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * Returns the directory where the terms sets are spilled, or null if the spilling is disabled.
+   */
+  public Path getSpillDirectory() {
+    return spillDirectory;
+  }
+
+  /**
+   * Keeps the terms set and the iterator over its remaining chunks, and returns the id of the chunks context.
+   * The terms set will be released once its last chunk is fetched.
+   */
+  public long putChunks(TermsSet terms, Iterator<TermsSet> chunks) {
+    long id = chunksContextIdGenerator.incrementAndGet();
+    chunksContexts.put(id, new ChunksContext(terms, chunks, threadPool.estimatedTimeInMillis()));
+    return id;
+  }
+
+  /**
+   * Returns the next chunk of the given chunks context, or null if the context does not exist or was freed. The
+   * context is freed once its last chunk is returned.
+   */
+  public TermsSet nextChunk(long id) {
+    ChunksContext context = chunksContexts.get(id);
+    if (context == null) {
+      return null;
+    }
+    synchronized (context) {
+      // the context might have been freed by the reaper since we got it
+      if (context.isClosed) {
+        return null;
+      }
+      context.lastAccessTime = threadPool.estimatedTimeInMillis();
+      TermsSet chunk = context.chunks.next();
+      if (!context.chunks.hasNext()) {
+        this.freeChunks(id);
+      }
+      return chunk;
+    }
+  }
+
+  /**
+   * Returns true if the given chunks context has remaining chunks.
+   */
+  public boolean hasChunks(long id) {
+    return chunksContexts.containsKey(id);
+  }
+
+  /**
+   * Frees the given chunks context and releases its terms set. The terms set is released under the lock of the
+   * context, so that it is not released while a chunk is being read from it.
+   */
+  public void freeChunks(long id) {
+    ChunksContext context = chunksContexts.remove(id);
+    if (context != null) {
+      synchronized (context) {
+        context.isClosed = true;
+        context.terms.release();
+      }
+    }
+  }
+
+  @Override
+  protected void doStart() {
+    if (parallelism > 1) {
+      logger.debug("Using terms collector pool with parallelism [{}]", parallelism);
+      pool = (ExecutorService) threadPool.executor(COLLECTOR_THREAD_POOL);
+    }
+    if (mergeParallelism > 1) {
+      logger.debug("Using terms merge pool with parallelism [{}]", mergeParallelism);
+      mergePool = (ExecutorService) threadPool.executor(MERGE_THREAD_POOL);
+    }
+    if (decodeParallelism > 1) {
+      logger.debug("Using terms decode pool with parallelism [{}]", decodeParallelism);
+      decodePool = (ExecutorService) threadPool.executor(DECODE_THREAD_POOL);
+    }
+    chunksReaper = threadPool.scheduleWithFixedDelay(new ChunksReaper(), chunkKeepAlive, ThreadPool.Names.GENERIC);
+  }
+
+  @Override
+  protected void doStop() {
+    if (chunksReaper != null) {
+      chunksReaper.cancel();
+    }
+    for (Long id : chunksContexts.keySet()) {
+      this.freeChunks(id);
+    }
+    // the pools are shut down by the thread pool of the node
+    pool = null;
+    mergePool = null;
+    decodePool = null;
+  }
+
+  @Override
+  protected void doClose() {}
+
+  /**
+   * A terms set transferred in chunks.
+   */
+  private static class ChunksContext {
+
+    private final TermsSet terms;
+    private final Iterator<TermsSet> chunks;
+    private volatile long lastAccessTime;
+    private boolean isClosed = false;
+
+    private ChunksContext(TermsSet terms, Iterator<TermsSet> chunks, long lastAccessTime) {
+      this.terms = terms;
+      this.chunks = chunks;
+      this.lastAccessTime = lastAccessTime;
+    }
+
+  }
+
+  /**
+   * Frees the chunks contexts that have not been accessed for longer than the keep alive, e.g., if the coordinator
+   * failed while fetching the chunks.
+   */
+  private class ChunksReaper implements Runnable {
+
+    @Override
+    public void run() {
+      long time = threadPool.estimatedTimeInMillis();
+      for (Map.Entry<Long, ChunksContext> entry : chunksContexts.entrySet()) {
+        if (time - entry.getValue().lastAccessTime > chunkKeepAlive.millis()) {
+          logger.debug("Freeing expired chunks context [{}]", entry.getKey());
+          freeChunks(entry.getKey());
+        }
+      }
+    }
+
+  }
+
+}
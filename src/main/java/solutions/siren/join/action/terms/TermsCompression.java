@@ -0,0 +1,282 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms;
+
+import org.apache.lucene.codecs.compressing.CompressionMode;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.io.stream.FilterStreamInput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The compression of the encoded terms shipped between nodes, based on the LZ4 implementation of Lucene
+ * ({@link CompressionMode#FAST}).
+ * <br>
+ * The requester of a set of terms negotiates the compression: it sends along its request a threshold, derived from
+ * its settings and from the encoding of the terms, and the sender compresses the payloads larger than the threshold.
+ * A compressed payload is flagged on the wire, so that the receiver does not depend on the settings of the sender.
+ */
+public class TermsCompression {
+
+  /**
+   * The threshold of a request which disables the compression.
+   */
+  public static final int DISABLED = -1;
+
+  public static final String SIREN_TERMS_COMPRESSION_ENABLED = "siren.terms.compression.enabled";
+  public static final String SIREN_TERMS_COMPRESSION_THRESHOLD = "siren.terms.compression.threshold";
+  public static final String SIREN_TERMS_COMPRESSION_ENCODINGS = "siren.terms.compression.encodings";
+
+  /**
+   * The minimum size of a payload to compress. Default to 32KB.
+   */
+  private static final ByteSizeValue DEFAULT_THRESHOLD = new ByteSizeValue(32, ByteSizeUnit.KB);
+
+  /**
+   * The encodings compressed by default. Sorted numbers and front coded bytes compress well, while the
+   * bloom and binary fuse filters are close to random and the roaring bitmaps are already compressed.
+   */
+  private static final String[] DEFAULT_ENCODINGS = new String[] {
+    TermsByQueryRequest.TermsEncoding.LONG.name().toLowerCase(Locale.ROOT),
+    TermsByQueryRequest.TermsEncoding.INTEGER.name().toLowerCase(Locale.ROOT),
+    TermsByQueryRequest.TermsEncoding.BYTES.name().toLowerCase(Locale.ROOT)
+  };
+
+  private TermsCompression() {}
+
+  /**
+   * Returns the compression threshold (in bytes) to negotiate for terms of the given encoding, or
+   * {@link #DISABLED} if such terms must not be compressed.
+   */
+  public static int getThreshold(Settings settings, TermsByQueryRequest.TermsEncoding termsEncoding) {
+    if (!settings.getAsBoolean(SIREN_TERMS_COMPRESSION_ENABLED, true)) {
+      return DISABLED;
+    }
+    String[] encodings = settings.getAsArray(SIREN_TERMS_COMPRESSION_ENCODINGS, DEFAULT_ENCODINGS);
+    for (String encoding : encodings) {
+      if (termsEncoding.name().equalsIgnoreCase(encoding)) {
+        return (int) Math.min(Integer.MAX_VALUE,
+                settings.getAsBytesSize(SIREN_TERMS_COMPRESSION_THRESHOLD, DEFAULT_THRESHOLD).bytes());
+      }
+    }
+    return DISABLED;
+  }
+
+  /**
+   * Compresses the bytes if they are at least as large as the threshold. Returns null if the bytes should be
+   * shipped uncompressed, i.e., if they are below the threshold or if the compression does not reduce their size.
+   */
+  public static BytesRef compress(BytesRef bytes, int threshold) {
+    if (threshold == DISABLED || bytes.length < threshold) {
+      return null;
+    }
+    // the worst case size of a LZ4 compressed block
+    byte[] buffer = new byte[bytes.length + bytes.length / 255 + 16];
+    ByteArrayDataOutput out = new ByteArrayDataOutput(buffer);
+    try {
+      CompressionMode.FAST.newCompressor().compress(bytes.bytes, bytes.offset, bytes.length, out);
+    }
+    catch (IOException e) {
+      throw new IllegalStateException("Failed to compress terms", e);
+    }
+    if (out.getPosition() >= bytes.length) {
+      return null;
+    }
+    return new BytesRef(buffer, 0, out.getPosition());
+  }
+
+  /**
+   * Decompresses bytes compressed by {@link #compress(BytesRef, int)} into an array of the original length.
+   */
+  public static BytesRef decompress(BytesRef compressed, int length) throws IOException {
+    ByteArrayDataInput in = new ByteArrayDataInput(compressed.bytes, compressed.offset, compressed.length);
+    BytesRef bytes = new BytesRef();
+    CompressionMode.FAST.newDecompressor().decompress(in, length, 0, length, bytes);
+    // the decompressor pads the array, while the encoded terms are expected to fill their array
+    if (bytes.offset != 0 || bytes.bytes.length != length) {
+      return new BytesRef(Arrays.copyOfRange(bytes.bytes, bytes.offset, bytes.offset + length));
+    }
+    return bytes;
+  }
+
+  /**
+   * Compresses the bytes directly into the output, without buffering the compressed bytes. The compressed bytes
+   * are not prefixed by their length, and must be read by {@link #decompress(StreamInput, int)}.
+   */
+  public static void compress(BytesRef bytes, final StreamOutput out) throws IOException {
+    CompressionMode.FAST.newCompressor().compress(bytes.bytes, bytes.offset, bytes.length, new DataOutput() {
+
+      @Override
+      public void writeByte(byte b) throws IOException {
+        out.writeByte(b);
+      }
+
+      @Override
+      public void writeBytes(byte[] b, int offset, int length) throws IOException {
+        out.writeBytes(b, offset, length);
+      }
+
+    });
+  }
+
+  /**
+   * Decompresses the bytes compressed by {@link #compress(BytesRef, StreamOutput)} directly from the input. The
+   * array of the returned bytes may be larger than the original length.
+   */
+  public static BytesRef decompress(final StreamInput in, int length) throws IOException {
+    BytesRef bytes = new BytesRef();
+    CompressionMode.FAST.newDecompressor().decompress(new DataInput() {
+
+      @Override
+      public byte readByte() throws IOException {
+        return in.readByte();
+      }
+
+      @Override
+      public void readBytes(byte[] b, int offset, int length) throws IOException {
+        in.readBytes(b, offset, length);
+      }
+
+    }, length, 0, length, bytes);
+    return bytes;
+  }
+
+  /**
+   * Serializes the bytes, compressed if the given compressed bytes are not null.
+   */
+  public static void writeBytesRef(BytesRef bytes, BytesRef compressed, StreamOutput out) throws IOException {
+    if (compressed == null) {
+      out.writeBoolean(false);
+      out.writeBytesRef(bytes);
+    }
+    else {
+      out.writeBoolean(true);
+      out.writeVInt(bytes.length);
+      out.writeBytesRef(compressed);
+    }
+  }
+
+  /**
+   * Deserializes bytes serialized by {@link #writeBytesRef(BytesRef, BytesRef, StreamOutput)}.
+   */
+  public static BytesRef readBytesRef(StreamInput in) throws IOException {
+    if (in.readBoolean()) {
+      int length = in.readVInt();
+      return decompress(in.readBytesRef(), length);
+    }
+    return in.readBytesRef();
+  }
+
+  /**
+   * A {@link StreamOutput} which writes into a single growable array, so that the serialized bytes can be
+   * compressed without being copied first.
+   */
+  static class ByteArrayStreamOutput extends StreamOutput {
+
+    private byte[] bytes = BytesRef.EMPTY_BYTES;
+    private int length = 0;
+
+    @Override
+    public void writeByte(byte b) throws IOException {
+      bytes = ArrayUtil.grow(bytes, length + 1);
+      bytes[length++] = b;
+    }
+
+    @Override
+    public void writeBytes(byte[] b, int offset, int length) throws IOException {
+      bytes = ArrayUtil.grow(bytes, this.length + length);
+      System.arraycopy(b, offset, bytes, this.length, length);
+      this.length += length;
+    }
+
+    @Override
+    public void flush() throws IOException {}
+
+    @Override
+    public void close() throws IOException {}
+
+    @Override
+    public void reset() throws IOException {
+      length = 0;
+    }
+
+    /**
+     * Returns the bytes written so far, without copying them.
+     */
+    BytesRef bytes() {
+      return new BytesRef(bytes, 0, length);
+    }
+
+  }
+
+  /**
+   * A {@link StreamInput} which counts the bytes read from the wrapped input, so that the receiver of a set of terms
+   * knows the size of its payload as shipped, i.e., once compressed if it was compressed.
+   */
+  static class CountingStreamInput extends FilterStreamInput {
+
+    private long count = 0;
+
+    CountingStreamInput(StreamInput in) {
+      super(in);
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+      count++;
+      return super.readByte();
+    }
+
+    @Override
+    public void readBytes(byte[] b, int offset, int len) throws IOException {
+      count += len;
+      super.readBytes(b, offset, len);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        count++;
+      }
+      return b;
+    }
+
+    /**
+     * Returns the number of bytes read so far.
+     */
+    long count() {
+      return count;
+    }
+
+  }
+
+}
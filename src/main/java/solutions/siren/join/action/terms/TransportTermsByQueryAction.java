@@ -26,9 +26,11 @@ import org.elasticsearch.index.mapper.MappedFieldType;
 import org.elasticsearch.indices.breaker.CircuitBreakerService;
 import org.elasticsearch.search.SearchService;
 import org.elasticsearch.tasks.Task;
+import solutions.siren.join.action.admin.cache.FilterJoinCacheService;
 import solutions.siren.join.action.terms.collector.*;
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ShardOperationFailedException;
 import org.elasticsearch.action.support.ActionFilters;
@@ -39,7 +41,9 @@ import org.elasticsearch.cluster.ClusterService;
 import org.elasticsearch.cluster.ClusterState;
 import org.elasticsearch.cluster.block.ClusterBlockException;
 import org.elasticsearch.cluster.block.ClusterBlockLevel;
+import org.elasticsearch.cluster.node.DiscoveryNode;
 import org.elasticsearch.cluster.routing.GroupShardsIterator;
+import org.elasticsearch.cluster.routing.ShardIterator;
 import org.elasticsearch.cluster.routing.ShardRouting;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.inject.Inject;
@@ -52,6 +56,7 @@ import org.elasticsearch.index.fielddata.IndexFieldData;
 import org.elasticsearch.index.query.ParsedQuery;
 import org.elasticsearch.index.query.QueryParseContext;
 import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.index.shard.ShardId;
 import org.elasticsearch.indices.IndicesService;
 import org.elasticsearch.script.ScriptService;
 import org.elasticsearch.search.SearchContextException;
@@ -62,10 +67,22 @@ import org.elasticsearch.search.internal.ShardSearchLocalRequest;
 import org.elasticsearch.search.internal.ShardSearchRequest;
 import org.elasticsearch.search.query.QueryPhaseExecutionException;
 import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.transport.BaseTransportResponseHandler;
+import org.elasticsearch.transport.EmptyTransportResponseHandler;
+import org.elasticsearch.transport.TransportChannel;
+import org.elasticsearch.transport.TransportException;
+import org.elasticsearch.transport.TransportRequestHandler;
+import org.elasticsearch.transport.TransportResponse;
 import org.elasticsearch.transport.TransportService;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
@@ -77,8 +94,25 @@ public class TransportTermsByQueryAction extends TransportBroadcastAction<TermsB
   private final ScriptService scriptService;
   private final PageCacheRecycler pageCacheRecycler;
   private final BigArrays bigArrays;
+  private final BigArrays termsBigArrays;
   private final CircuitBreakerService breakerService;
   private final Client client;
+  private final TermsCollectorService termsCollectorService;
+  private final TermsByQueryShardCache shardCache;
+  private final boolean byNode;
+  private final String transportNodeAction;
+  private final String transportChunkAction;
+  private final String transportFreeChunksAction;
+
+  /**
+   * Executes the request with one request per node instead of one request per shard. Each node merges the terms
+   * of its shards before replying. Default to false: a failed shard is not retried on another copy, and the shard
+   * responses are neither merged by partitions nor incrementally on the coordinator. Only the terms sets of the
+   * nodes are transferred in chunks, see {@link TermsCollectorService#SIREN_TERMSBYQUERY_CHUNK_SIZE}.
+   */
+  public static final String SIREN_TERMSBYQUERY_BY_NODE = "siren.termsbyquery.by_node";
+
+  private static final boolean DEFAULT_BY_NODE = false;
 
   /**
    * Constructor
@@ -89,7 +123,9 @@ public class TransportTermsByQueryAction extends TransportBroadcastAction<TermsB
                                      CircuitBreakerService breakerService,
                                      ScriptService scriptService, PageCacheRecycler pageCacheRecycler,
                                      BigArrays bigArrays, ActionFilters actionFilters,
-                                     IndexNameExpressionResolver indexNameExpressionResolver, Client client) {
+                                     IndexNameExpressionResolver indexNameExpressionResolver, Client client,
+                                     TermsCollectorService termsCollectorService,
+                                     FilterJoinCacheService cacheService) {
     super(settings, TermsByQueryAction.NAME, threadPool, clusterService, transportService, actionFilters,
             indexNameExpressionResolver, TermsByQueryRequest.class, TermsByQueryShardRequest.class,
             // Use the generic threadpool which is cached, as we can end up with deadlock with the SEARCH threadpool
@@ -98,8 +134,23 @@ public class TransportTermsByQueryAction extends TransportBroadcastAction<TermsB
     this.scriptService = scriptService;
     this.pageCacheRecycler = pageCacheRecycler;
     this.bigArrays = bigArrays;
+    // The terms sets are allocated on recycled pages, and account their memory on the request circuit breaker
+    // themselves, see PagedLongHashSet
+    this.termsBigArrays = new BigArrays(pageCacheRecycler, null);
     this.breakerService = breakerService;
     this.client = client;
+    this.termsCollectorService = termsCollectorService;
+    this.shardCache = cacheService.getShardCacheInstance();
+    this.byNode = settings.getAsBoolean(SIREN_TERMSBYQUERY_BY_NODE, DEFAULT_BY_NODE);
+    this.transportNodeAction = TermsByQueryAction.NAME + "[n]";
+    transportService.registerRequestHandler(transportNodeAction, TermsByQueryNodeRequest.class,
+            ThreadPool.Names.GENERIC, new NodeTransportHandler());
+    this.transportChunkAction = TermsByQueryAction.NAME + "[c]";
+    transportService.registerRequestHandler(transportChunkAction, TermsByQueryChunkRequest.class,
+            ThreadPool.Names.GENERIC, new ChunkTransportHandler());
+    this.transportFreeChunksAction = TermsByQueryAction.NAME + "[f]";
+    transportService.registerRequestHandler(transportFreeChunksAction, TermsByQueryChunkRequest.class,
+            ThreadPool.Names.SAME, new FreeChunksTransportHandler());
   }
 
   /**
@@ -108,7 +159,15 @@ public class TransportTermsByQueryAction extends TransportBroadcastAction<TermsB
   @Override
   protected void doExecute(Task task, TermsByQueryRequest request, ActionListener<TermsByQueryResponse> listener) {
     request.nowInMillis(System.currentTimeMillis()); // set time to be used in scripts
-    super.doExecute(task, request, listener);
+    if (byNode) {
+      new AsyncByNodeAction(request, listener).start();
+    }
+    else if (termsCollectorService.getMergeExecutor() == null) {
+      new IncrementalBroadcastAction(task, request, listener).start();
+    }
+    else { // the shard terms sets are merged by partitions once all the shards responded
+      super.doExecute(task, request, listener);
+    }
   }
 
   /**
@@ -125,7 +184,7 @@ public class TransportTermsByQueryAction extends TransportBroadcastAction<TermsB
    */
   @Override
   protected TermsByQueryShardResponse newShardResponse() {
-    return new TermsByQueryShardResponse(breakerService.getBreaker(CircuitBreaker.REQUEST));
+    return new TermsByQueryShardResponse(termsBigArrays, breakerService.getBreaker(CircuitBreaker.REQUEST));
   }
 
   /**
@@ -148,13 +207,19 @@ public class TransportTermsByQueryAction extends TransportBroadcastAction<TermsB
   }
 
   /**
-   * Merges the individual shard responses and returns the final {@link TermsByQueryResponse}.
+   * Merges the individual shard responses and returns the final {@link TermsByQueryResponse}. If the shard responses
+   * have been merged incrementally by an {@link IncrementalBroadcastAction}, the shard responses do not hold their
+   * terms anymore but a reference to the action, see {@link IncrementalShardResponse}, and the merged terms are
+   * taken from the action.
    */
   @Override
   protected TermsByQueryResponse newResponse(TermsByQueryRequest request, AtomicReferenceArray shardsResponses, ClusterState clusterState) {
+    IncrementalBroadcastAction broadcast = null;
     int successfulShards = 0;
     int failedShards = 0;
     int numTerms = 0;
+    long shardsCompressedSizeInBytes = 0;
+    TermsByQueryResponse.TermsSource termsSource = TermsByQueryResponse.TermsSource.NONE;
     TermsSet[] termsSets = new TermsSet[shardsResponses.length()];
     List<ShardOperationFailedException> shardFailures = null;
 
@@ -176,41 +241,126 @@ public class TransportTermsByQueryAction extends TransportBroadcastAction<TermsB
         // initialization of the final TermsResponse below (to avoid rehashing during merging)
         TermsByQueryShardResponse shardResp = ((TermsByQueryShardResponse) shardResponse);
         TermsSet terms = shardResp.getTerms();
-        termsSets[i] = terms;
-        numTerms += terms.size();
+        if (terms != null) {
+          termsSets[i] = terms;
+          numTerms += terms.size();
+        }
+        if (shardResp instanceof IncrementalShardResponse) {
+          broadcast = ((IncrementalShardResponse) shardResp).broadcast;
+        }
+        termsSource = termsSource.merge(shardResp.getTermsSource());
+        shardsCompressedSizeInBytes += shardResp.getTermsSizeInBytes();
         successfulShards++;
       }
     }
 
-    // Merge the responses
+    long tookInMillis = System.currentTimeMillis() - request.nowInMillis();
+    TermsSet termsSet;
+    if (broadcast != null) {
+      termsSet = broadcast.takeTermsSet();
+    }
+    else {
+      termsSet = this.mergeByPartitions(request, termsSets, numTerms);
+      if (termsSet == null) {
+        termsSet = this.merge(request, termsSets, numTerms);
+      }
+    }
+    return this.newResponse(request, termsSet, termsSource, tookInMillis, shardsResponses.length(), successfulShards,
+            failedShards, shardFailures, shardsCompressedSizeInBytes);
+  }
+
+  /**
+   * Returns the final {@link TermsByQueryResponse} for the merged terms set. The terms set is released.
+   */
+  private TermsByQueryResponse newResponse(TermsByQueryRequest request, TermsSet termsSet, TermsByQueryResponse.TermsSource termsSource,
+                                           long tookInMillis, int totalShards, int successfulShards, int failedShards,
+                                           List<ShardOperationFailedException> shardFailures,
+                                           long shardsCompressedSizeInBytes) {
+    try {
+      return new TermsByQueryResponse(termsSet, termsSource, tookInMillis, totalShards, successfulShards, failedShards,
+              shardFailures, shardsCompressedSizeInBytes, request.compressionThreshold());
+    }
+    finally {
+      // we can now release the terms set and adjust the circuit breaker, since the TermsByQueryResponse holds an
+      // encoded version of the terms set
+      termsSet.release();
+    }
+  }
 
+  /**
+   * Merges the terms sets in parallel into a {@link PartitionedTermsSet}, which is only encoded into the response.
+   * Returns null if the parallel merge is disabled or if the terms sets cannot be partitioned, in which case the
+   * terms sets are not released. Otherwise, the terms sets are released once merged.
+   */
+  private TermsSet mergeByPartitions(TermsByQueryRequest request, TermsSet[] termsSets, long numTerms) {
+    ExecutorService executor = termsCollectorService.getMergeExecutor();
+    if (executor == null) {
+      return null;
+    }
+    TermsSet termsSet;
+    try {
+      long expectedElements = request.expectedTerms() != null ? request.expectedTerms() : numTerms;
+      termsSet = PartitionedTermsSet.merge(termsSets, expectedElements, request.termsEncoding(),
+              termsCollectorService.getMergeParallelism(), executor, termsBigArrays,
+              breakerService.getBreaker(CircuitBreaker.REQUEST));
+    }
+    catch (Throwable t) { // If something happens, release the terms sets and adjust the circuit breaker
+      this.release(termsSets);
+      throw t;
+    }
+    if (termsSet != null) {
+      this.release(termsSets);
+    }
+    return termsSet;
+  }
+
+  /**
+   * Instantiates the terms set into which the terms sets of the shards or of the nodes are merged. The set is spilled
+   * to disk if it cannot grow without tripping the circuit breaker, if enabled, see
+   * {@link TermsCollectorService#SIREN_TERMSBYQUERY_SPILL_ENABLED}.
+   */
+  private TermsSet newMergedTermsSet(long expectedElements, TermsByQueryRequest request) {
+    TermsSet termsSet = TermsSet.newTermsSet(expectedElements, request.termsEncoding(), termsBigArrays, breakerService.getBreaker(CircuitBreaker.REQUEST));
+    if (termsCollectorService.getSpillDirectory() != null) {
+      termsSet.enableSpill(termsCollectorService.getSpillDirectory());
+    }
+    return termsSet;
+  }
+
+  private void release(TermsSet[] termsSets) {
+    for (int i = 0; i < termsSets.length; i++) {
+      if (termsSets[i] != null) {
+        termsSets[i].release();
+        termsSets[i] = null;
+      }
+    }
+  }
+
+  /**
+   * Merges the terms sets into a single terms set. The terms sets are released once merged.
+   */
+  private TermsSet merge(TermsByQueryRequest request, TermsSet[] termsSets, long numTerms) {
     try {
       // NumericTermsSet is responsible for the merge, set size to avoid rehashing on certain implementations.
       long expectedElements = request.expectedTerms() != null ? request.expectedTerms() : numTerms;
-      TermsSet termsSet = TermsSet.newTermsSet(expectedElements, request.termsEncoding(), breakerService.getBreaker(CircuitBreaker.REQUEST));
+      TermsSet termsSet = this.newMergedTermsSet(expectedElements, request);
 
-      TermsByQueryResponse rsp;
       try {
         for (int i = 0; i < termsSets.length; i++) {
           TermsSet terms = termsSets[i];
           if (terms != null) {
             termsSet.merge(terms);
-            terms.release(); // release the shard terms set and adjust the circuit breaker
+            terms.release(); // release the terms set and adjust the circuit breaker
             termsSets[i] = null;
           }
         }
-
-        long tookInMillis = System.currentTimeMillis() - request.nowInMillis();
-
-        rsp = new TermsByQueryResponse(termsSet, tookInMillis, shardsResponses.length(), successfulShards, failedShards, shardFailures);
       }
-      finally {
-        // we can now release the terms set and adjust the circuit breaker, since the TermsByQueryResponse holds an
-        // encoded version of the terms set
+      catch (Throwable t) {
         termsSet.release();
+        throw t;
       }
 
-      return rsp;
+      return termsSet;
     }
     finally { // If something happens, release the terms sets and adjust the circuit breaker
       for (int i = 0; i < termsSets.length; i++) {
@@ -222,6 +372,594 @@ public class TransportTermsByQueryAction extends TransportBroadcastAction<TermsB
     }
   }
 
+  /**
+   * Executes the request with one request per shard, and merges the terms set of each shard into the terms set of
+   * the response as soon as it arrives. The terms set of a shard is released once merged, so that the coordinator
+   * does not hold the terms sets of all the shards until the last one responds, and the merge overlaps with the
+   * execution of the slowest shards.
+   * <br>
+   * The shard responses are handled on the network threads, which must not be blocked by a merge. The terms sets
+   * are therefore queued, and merged one at a time by a single task of the generic threadpool which drains the
+   * queue. The response is built by the same task once the queue is drained after the last shard responded.
+   */
+  private class IncrementalBroadcastAction extends AsyncBroadcastAction {
+
+    private final TermsByQueryRequest request;
+    private final ActionListener<TermsByQueryResponse> listener;
+
+    private final Queue<TermsSet> pendingTerms = ConcurrentCollections.newQueue();
+    private final AtomicInteger pendingDrains = new AtomicInteger();
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private volatile boolean finishRequested = false;
+
+    // guarded by this
+    private TermsSet termsSet;
+    private Throwable mergeFailure;
+
+    private IncrementalBroadcastAction(Task task, TermsByQueryRequest request, ActionListener<TermsByQueryResponse> listener) {
+      super(task, request, listener);
+      this.request = request;
+      this.listener = listener;
+    }
+
+    /**
+     * Queues the terms of the shard for the merge, and records in place of its response a response pointing to this
+     * action.
+     */
+    @Override
+    protected void onOperation(ShardRouting shard, int shardIndex, TermsByQueryShardResponse response) {
+      TermsSet terms = response.detachTerms();
+      if (terms != null) {
+        pendingTerms.add(terms);
+        this.drain();
+      }
+      super.onOperation(shard, shardIndex, new IncrementalShardResponse(response, this));
+    }
+
+    /**
+     * Drains the queue of terms sets on the generic threadpool, unless a task is already draining it, in which case
+     * that task will drain it once more. If the threadpool rejects the task, the queue is drained by the calling
+     * thread.
+     */
+    private void drain() {
+      if (pendingDrains.getAndIncrement() != 0) {
+        return;
+      }
+      try {
+        threadPool.executor(ThreadPool.Names.GENERIC).execute(new AbstractRunnable() {
+
+          @Override
+          protected void doRun() throws Exception {
+            drainQueue();
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            logger.error("[termsByQuery] Failed to merge the shard terms sets", t);
+            if (finished.compareAndSet(false, true)) {
+              releaseTermsSet();
+              listener.onFailure(t);
+            }
+          }
+
+        });
+      }
+      catch (EsRejectedExecutionException e) {
+        this.drainQueue();
+      }
+    }
+
+    private void drainQueue() {
+      do {
+        // read the flag before polling, so that the terms queued before the last shard responded are merged
+        boolean finish = finishRequested;
+        TermsSet terms;
+        while ((terms = pendingTerms.poll()) != null) {
+          this.merge(terms);
+        }
+        if (finish && finished.compareAndSet(false, true)) {
+          this.buildResponse();
+        }
+      } while (pendingDrains.decrementAndGet() > 0);
+    }
+
+    /**
+     * Merges the terms into the terms set of the response, and releases them.
+     */
+    private synchronized void merge(TermsSet terms) {
+      if (terms == null) {
+        return;
+      }
+      try {
+        if (mergeFailure == null) {
+          if (termsSet == null) {
+            // set size to avoid rehashing on certain implementations
+            long expectedElements = request.expectedTerms() != null ? request.expectedTerms() : terms.size();
+            termsSet = newMergedTermsSet(expectedElements, request);
+          }
+          termsSet.merge(terms);
+        }
+      }
+      catch (Throwable t) {
+        mergeFailure = t;
+      }
+      finally {
+        terms.release(); // release the terms and adjust the circuit breaker
+      }
+    }
+
+    /**
+     * Returns the merged terms set, whose ownership is transferred to the caller, or throws the failure of the
+     * merge if any.
+     */
+    private synchronized TermsSet takeTermsSet() {
+      if (mergeFailure != null) {
+        throw ExceptionsHelper.convertToRuntime(mergeFailure);
+      }
+      if (termsSet == null) {
+        long expectedElements = request.expectedTerms() != null ? request.expectedTerms() : 0;
+        termsSet = newMergedTermsSet(expectedElements, request);
+      }
+      TermsSet terms = termsSet;
+      termsSet = null;
+      return terms;
+    }
+
+    /**
+     * Builds the response once the queued terms sets are merged.
+     */
+    @Override
+    protected void finishHim() {
+      finishRequested = true;
+      this.drain();
+    }
+
+    /**
+     * Builds the response, and releases the merged terms set if the response failed before taking it, or if no
+     * shard response pointed to this action.
+     */
+    private void buildResponse() {
+      try {
+        super.finishHim();
+      }
+      finally {
+        this.releaseTermsSet();
+      }
+    }
+
+    private synchronized void releaseTermsSet() {
+      if (termsSet != null) {
+        termsSet.release();
+        termsSet = null;
+      }
+    }
+
+  }
+
+  /**
+   * The response of a shard whose terms have been merged by an {@link IncrementalBroadcastAction}. It holds no terms,
+   * but passes the action to {@link #newResponse(TermsByQueryRequest, AtomicReferenceArray, ClusterState)}.
+   */
+  private static class IncrementalShardResponse extends TermsByQueryShardResponse {
+
+    private final IncrementalBroadcastAction broadcast;
+    private final long termsSizeInBytes;
+
+    private IncrementalShardResponse(TermsByQueryShardResponse response, IncrementalBroadcastAction broadcast) {
+      super(new ShardId(response.getIndex(), response.getShardId()), null, response.getTermsSource(),
+              TermsCompression.DISABLED);
+      this.broadcast = broadcast;
+      this.termsSizeInBytes = response.getTermsSizeInBytes();
+    }
+
+    @Override
+    long getTermsSizeInBytes() {
+      return termsSizeInBytes;
+    }
+
+  }
+
+  /**
+   * Executes the request with one request per node. The coordinator merges the terms set of each node as they
+   * arrive, each one holding the terms of all the shards of the node. A large terms set is fetched chunk by chunk,
+   * and each chunk is released once merged, so that only one chunk per node is held in memory before being merged.
+   */
+  private class AsyncByNodeAction {
+
+    private final TermsByQueryRequest request;
+    private final ActionListener<TermsByQueryResponse> listener;
+    private final ClusterState clusterState;
+    private final Map<String, TermsByQueryNodeRequest> nodeRequests = new HashMap<>();
+    private final int totalShards;
+    private final AtomicInteger counter = new AtomicInteger();
+
+    // guarded by this
+    private TermsSet termsSet;
+    private Throwable mergeFailure;
+    private TermsByQueryResponse.TermsSource termsSource = TermsByQueryResponse.TermsSource.NONE;
+    private long shardsCompressedSizeInBytes = 0;
+    private int successfulShards = 0;
+    private int failedShards = 0;
+    private List<ShardOperationFailedException> shardFailures = null;
+
+    private AsyncByNodeAction(TermsByQueryRequest request, ActionListener<TermsByQueryResponse> listener) {
+      this.request = request;
+      this.listener = listener;
+      this.clusterState = clusterService.state();
+
+      ClusterBlockException blockException = checkGlobalBlock(clusterState, request);
+      if (blockException != null) {
+        throw blockException;
+      }
+      String[] concreteIndices = indexNameExpressionResolver.concreteIndices(clusterState, request);
+      blockException = checkRequestBlock(clusterState, request, concreteIndices);
+      if (blockException != null) {
+        throw blockException;
+      }
+
+      GroupShardsIterator shardsIts = shards(clusterState, request, concreteIndices);
+      this.totalShards = shardsIts.size();
+      for (ShardIterator shardIt : shardsIts) {
+        ShardRouting shard = shardIt.nextOrNull();
+        // simply ignore non active shards
+        if (shard != null && clusterState.nodes().get(shard.currentNodeId()) != null) {
+          TermsByQueryNodeRequest nodeRequest = nodeRequests.get(shard.currentNodeId());
+          if (nodeRequest == null) {
+            nodeRequest = new TermsByQueryNodeRequest(request);
+            nodeRequests.put(shard.currentNodeId(), nodeRequest);
+          }
+          nodeRequest.addShard(shard.shardId(),
+                  indexNameExpressionResolver.filteringAliases(clusterState, shard.index(), request.indices()));
+        }
+      }
+    }
+
+    private void start() {
+      if (nodeRequests.isEmpty()) {
+        this.finish();
+        return;
+      }
+
+      counter.set(nodeRequests.size());
+      for (Map.Entry<String, TermsByQueryNodeRequest> entry : nodeRequests.entrySet()) {
+        final DiscoveryNode node = clusterState.nodes().get(entry.getKey());
+        final TermsByQueryNodeRequest nodeRequest = entry.getValue();
+        transportService.sendRequest(node, transportNodeAction, nodeRequest,
+          new BaseTransportResponseHandler<TermsByQueryNodeResponse>() {
+
+            @Override
+            public TermsByQueryNodeResponse newInstance() {
+              return new TermsByQueryNodeResponse(termsBigArrays, breakerService.getBreaker(CircuitBreaker.REQUEST));
+            }
+
+            @Override
+            public void handleResponse(TermsByQueryNodeResponse response) {
+              merge(response.getTerms(), response.getTermsSource(), response.getTermsSizeInBytes());
+              if (response.getChunksContextId() != -1 && hasMergeFailure()) {
+                freeChunks(node, response);
+                onNodeResponse(response);
+              }
+              else if (response.getChunksContextId() != -1) {
+                fetchChunk(node, nodeRequest, response);
+              }
+              else {
+                onNodeResponse(response);
+              }
+            }
+
+            @Override
+            public void handleException(TransportException exp) {
+              onNodeFailure(nodeRequest, exp);
+            }
+
+            @Override
+            public String executor() {
+              return ThreadPool.Names.SAME;
+            }
+
+          });
+      }
+    }
+
+    /**
+     * Fetches the next chunk of the terms set of the node.
+     */
+    private void fetchChunk(final DiscoveryNode node, final TermsByQueryNodeRequest nodeRequest,
+                            final TermsByQueryNodeResponse nodeResponse) {
+      TermsByQueryChunkRequest chunkRequest = new TermsByQueryChunkRequest(request, nodeResponse.getChunksContextId());
+      transportService.sendRequest(node, transportChunkAction, chunkRequest,
+        new BaseTransportResponseHandler<TermsByQueryChunkResponse>() {
+
+          @Override
+          public TermsByQueryChunkResponse newInstance() {
+            return new TermsByQueryChunkResponse(termsBigArrays, breakerService.getBreaker(CircuitBreaker.REQUEST));
+          }
+
+          @Override
+          public void handleResponse(TermsByQueryChunkResponse response) {
+            merge(response.getTerms(), TermsByQueryResponse.TermsSource.NONE, response.getTermsSizeInBytes());
+            if (response.hasMoreChunks() && hasMergeFailure()) {
+              freeChunks(node, nodeResponse);
+              onNodeResponse(nodeResponse);
+            }
+            else if (response.hasMoreChunks()) {
+              fetchChunk(node, nodeRequest, nodeResponse);
+            }
+            else {
+              onNodeResponse(nodeResponse);
+            }
+          }
+
+          @Override
+          public void handleException(TransportException exp) {
+            onNodeFailure(nodeRequest, exp);
+          }
+
+          @Override
+          public String executor() {
+            return ThreadPool.Names.SAME;
+          }
+
+        });
+    }
+
+    /**
+     * Releases the remaining chunks of the terms set of the node, which will not be fetched since the merge failed.
+     * The request fails with the merge failure once all the nodes have responded.
+     */
+    private void freeChunks(final DiscoveryNode node, final TermsByQueryNodeResponse nodeResponse) {
+      TermsByQueryChunkRequest freeRequest = new TermsByQueryChunkRequest(request, nodeResponse.getChunksContextId());
+      transportService.sendRequest(node, transportFreeChunksAction, freeRequest,
+        new EmptyTransportResponseHandler(ThreadPool.Names.SAME) {
+
+          @Override
+          public void handleException(TransportException exp) {
+            // the chunks context will be freed by the reaper of the node once it expires
+            logger.warn("[termsByQuery] Failed to free chunks context [{}] on node [{}]", exp,
+                    nodeResponse.getChunksContextId(), node);
+          }
+
+        });
+    }
+
+    private synchronized boolean hasMergeFailure() {
+      return mergeFailure != null;
+    }
+
+    /**
+     * Merges the terms into the terms set of the response, and releases them.
+     */
+    private synchronized void merge(TermsSet terms, TermsByQueryResponse.TermsSource source, long termsSizeInBytes) {
+      if (terms == null) {
+        return;
+      }
+      shardsCompressedSizeInBytes += termsSizeInBytes;
+      try {
+        if (mergeFailure == null) {
+          if (termsSet == null) {
+            // set size to avoid rehashing on certain implementations
+            long expectedElements = request.expectedTerms() != null ? request.expectedTerms() : terms.size();
+            termsSet = newMergedTermsSet(expectedElements, request);
+          }
+          termsSet.merge(terms);
+          termsSource = termsSource.merge(source);
+        }
+      }
+      catch (Throwable t) {
+        mergeFailure = t;
+      }
+      finally {
+        terms.release(); // release the terms and adjust the circuit breaker
+      }
+    }
+
+    private void onNodeResponse(TermsByQueryNodeResponse response) {
+      synchronized (this) {
+        successfulShards += response.getSuccessfulShards();
+        failedShards += response.getShardFailures().size();
+        if (!response.getShardFailures().isEmpty()) {
+          if (shardFailures == null) {
+            shardFailures = new ArrayList<>();
+          }
+          shardFailures.addAll(response.getShardFailures());
+        }
+      }
+      if (counter.decrementAndGet() == 0) {
+        this.finish();
+      }
+    }
+
+    private void onNodeFailure(TermsByQueryNodeRequest nodeRequest, Throwable t) {
+      logger.error("Node operation failed", t);
+      synchronized (this) {
+        failedShards += nodeRequest.numShards();
+        if (shardFailures == null) {
+          shardFailures = new ArrayList<>();
+        }
+        for (TermsByQueryShardRequest shardRequest : nodeRequest.shardRequests()) {
+          shardFailures.add(new DefaultShardOperationFailedException(shardRequest.shardId().getIndex(),
+                  shardRequest.shardId().id(), t));
+        }
+      }
+      if (counter.decrementAndGet() == 0) {
+        this.finish();
+      }
+    }
+
+    private void finish() {
+      TermsByQueryResponse rsp;
+      synchronized (this) {
+        try {
+          if (mergeFailure != null) {
+            throw mergeFailure;
+          }
+          if (termsSet == null) {
+            long expectedElements = request.expectedTerms() != null ? request.expectedTerms() : 0;
+            termsSet = newMergedTermsSet(expectedElements, request);
+          }
+          long tookInMillis = System.currentTimeMillis() - request.nowInMillis();
+          rsp = new TermsByQueryResponse(termsSet, termsSource, tookInMillis, totalShards, successfulShards,
+                  failedShards, shardFailures, shardsCompressedSizeInBytes, request.compressionThreshold());
+        }
+        catch (Throwable t) {
+          listener.onFailure(t);
+          return;
+        }
+        finally {
+          // we can now release the terms set and adjust the circuit breaker, since the TermsByQueryResponse holds an
+          // encoded version of the terms set
+          if (termsSet != null) {
+            termsSet.release();
+            termsSet = null;
+          }
+        }
+      }
+      listener.onResponse(rsp);
+    }
+
+  }
+
+  /**
+   * Executes the {@link TermsByQueryNodeRequest} on the shards of the node, and merges their terms into a single
+   * {@link TermsByQueryNodeResponse}. The shard operations are executed concurrently on the generic threadpool.
+   */
+  private class NodeTransportHandler extends TransportRequestHandler<TermsByQueryNodeRequest> {
+
+    @Override
+    public void messageReceived(final TermsByQueryNodeRequest request, final TransportChannel channel) throws Exception {
+      final List<TermsByQueryShardRequest> shardRequests = request.shardRequests();
+      final AtomicReferenceArray<Object> shardsResponses = new AtomicReferenceArray<>(shardRequests.size());
+      final AtomicInteger counter = new AtomicInteger(shardRequests.size());
+
+      for (int i = 0; i < shardRequests.size(); i++) {
+        final int shardIndex = i;
+        final TermsByQueryShardRequest shardRequest = shardRequests.get(i);
+        threadPool.executor(ThreadPool.Names.GENERIC).execute(new AbstractRunnable() {
+
+          @Override
+          protected void doRun() throws Exception {
+            shardsResponses.set(shardIndex, shardOperation(shardRequest));
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            shardsResponses.set(shardIndex, new BroadcastShardOperationFailedException(shardRequest.shardId(), t));
+          }
+
+          @Override
+          public void onAfter() {
+            if (counter.decrementAndGet() == 0) {
+              sendNodeResponse(request.request(), shardsResponses, channel);
+            }
+          }
+
+        });
+      }
+    }
+
+    private void sendNodeResponse(TermsByQueryRequest request, AtomicReferenceArray<Object> shardsResponses,
+                                  TransportChannel channel) {
+      int successfulShards = 0;
+      long numTerms = 0;
+      TermsByQueryResponse.TermsSource termsSource = TermsByQueryResponse.TermsSource.NONE;
+      TermsSet[] termsSets = new TermsSet[shardsResponses.length()];
+      List<ShardOperationFailedException> shardFailures = null;
+
+      for (int i = 0; i < shardsResponses.length(); i++) {
+        Object shardResponse = shardsResponses.get(i);
+        if (shardResponse instanceof BroadcastShardOperationFailedException) {
+          if (shardFailures == null) {
+            shardFailures = new ArrayList<>();
+          }
+          logger.error("Shard operation failed", (BroadcastShardOperationFailedException) shardResponse);
+          shardFailures.add(new DefaultShardOperationFailedException((BroadcastShardOperationFailedException) shardResponse));
+        } else {
+          TermsByQueryShardResponse shardResp = ((TermsByQueryShardResponse) shardResponse);
+          termsSets[i] = shardResp.getTerms();
+          numTerms += termsSets[i].size();
+          termsSource = termsSource.merge(shardResp.getTermsSource());
+          successfulShards++;
+        }
+      }
+
+      try {
+        TermsSet termsSet = null;
+        if (successfulShards == 1) { // no need to merge the terms set of a single shard
+          for (TermsSet terms : termsSets) {
+            if (terms != null) {
+              termsSet = terms;
+            }
+          }
+        }
+        else if (successfulShards > 1) {
+          termsSet = merge(request, termsSets, numTerms);
+        }
+
+        // transfer a large terms set in chunks, the first chunk being sent with the node response
+        long chunksContextId = -1;
+        if (termsSet != null && termsSet.size() > termsCollectorService.getChunkSize()) {
+          try {
+            Iterator<TermsSet> chunks = termsSet.chunks(termsCollectorService.getChunkSize(), breakerService.getBreaker(CircuitBreaker.REQUEST));
+            if (chunks != null) {
+              TermsSet firstChunk = chunks.next();
+              chunksContextId = termsCollectorService.putChunks(termsSet, chunks);
+              termsSet = firstChunk;
+            }
+          }
+          catch (Throwable t) {
+            termsSet.release();
+            throw t;
+          }
+        }
+
+        TermsByQueryNodeResponse nodeResponse = new TermsByQueryNodeResponse(termsSet, termsSource, successfulShards, shardFailures,
+                request.compressionThreshold());
+        nodeResponse.setChunksContextId(chunksContextId);
+        channel.sendResponse(nodeResponse);
+      }
+      catch (Throwable t) {
+        logger.error("[termsByQuery] Failed to send node response", t);
+        try {
+          channel.sendResponse(t);
+        }
+        catch (Throwable e) {
+          logger.warn("[termsByQuery] Failed to send error response", e);
+        }
+      }
+    }
+
+  }
+
+  /**
+   * Returns the next chunk of a terms set kept by the node.
+   */
+  private class ChunkTransportHandler extends TransportRequestHandler<TermsByQueryChunkRequest> {
+
+    @Override
+    public void messageReceived(final TermsByQueryChunkRequest request, final TransportChannel channel) throws Exception {
+      TermsSet chunk = termsCollectorService.nextChunk(request.chunksContextId());
+      if (chunk == null) {
+        throw new ElasticsearchException("[termsByQuery] No chunks context found for id [" + request.chunksContextId() + "]");
+      }
+      channel.sendResponse(new TermsByQueryChunkResponse(chunk, termsCollectorService.hasChunks(request.chunksContextId()),
+              request.compressionThreshold()));
+    }
+
+  }
+
+  /**
+   * Frees the chunks context of a terms set whose remaining chunks will not be fetched.
+   */
+  private class FreeChunksTransportHandler extends TransportRequestHandler<TermsByQueryChunkRequest> {
+
+    @Override
+    public void messageReceived(final TermsByQueryChunkRequest request, final TransportChannel channel) throws Exception {
+      termsCollectorService.freeChunks(request.chunksContextId());
+      channel.sendResponse(TransportResponse.Empty.INSTANCE);
+    }
+
+  }
+
   /**
    * The operation that executes the query and generates a {@link TermsByQueryShardResponse} for each shard.
    */
@@ -275,20 +1013,45 @@ public class TransportTermsByQueryAction extends TransportBroadcastAction<TermsB
 
       context.preProcess();
 
+      // lookup the terms in the shard cache, unless the query depends on the current time
+      TermsByQueryShardCache.Key cacheKey = null;
+      if (shardCache.isEnabled() && !context.nowInMillisUsed()) {
+        cacheKey = new TermsByQueryShardCache.Key(shardRequest.shardId(), context.searcher().getDirectoryReader(),
+          context.query(), request);
+        TermsByQueryShardCache.CacheEntry cacheEntry = shardCache.get(cacheKey);
+        if (cacheEntry != null) {
+          logger.debug("{}: Returns cached terms response for shard {}", Thread.currentThread().getName(),
+            shardRequest.shardId());
+          TermsSet cachedTerms = cacheEntry.getTerms(termsBigArrays, breakerService.getBreaker(CircuitBreaker.REQUEST));
+          return new TermsByQueryShardResponse(shardRequest.shardId(), cachedTerms, cacheEntry.termsSource,
+                  request.compressionThreshold());
+        }
+      }
+
       // execute the search only gathering the hit count and bitset for each segment
       logger.debug("{}: Executes search for collecting terms {}", Thread.currentThread().getName(),
         shardRequest.shardId());
 
       TermsCollector termsCollector = this.getTermsCollector(request.termsEncoding(), indexFieldData, context);
+      termsCollector.setBigArrays(termsBigArrays);
       if (request.expectedTerms() != null) termsCollector.setExpectedTerms(request.expectedTerms());
       if (request.maxTermsPerShard() != null) termsCollector.setMaxTerms(request.maxTermsPerShard());
-      HitStream hitStream = orderByOperation.getHitStream(context);
-      TermsSet terms = termsCollector.collect(hitStream);
+      termsCollector.setExecutor(termsCollectorService.getExecutor());
+      termsCollector.setStreaming(termsCollectorService.isStreaming());
+      termsCollector.setSpillDirectory(termsCollectorService.getSpillDirectory());
+      TermsSet terms = orderByOperation.collect(termsCollector, context);
 
       logger.debug("{}: Returns terms response with {} terms for shard {}", Thread.currentThread().getName(),
         terms.size(), shardRequest.shardId());
 
-      return new TermsByQueryShardResponse(shardRequest.shardId(), terms);
+      // a spilled terms set is not cached since its encoding would not fit in memory either
+      if (cacheKey != null && terms.getSpilledBytes() == 0) {
+        shardCache.put(cacheKey, context.searcher().getDirectoryReader(), terms, termsCollector.getTermsSource(),
+          breakerService.getBreaker(CircuitBreaker.REQUEST));
+      }
+
+      return new TermsByQueryShardResponse(shardRequest.shardId(), terms, termsCollector.getTermsSource(),
+              request.compressionThreshold());
     }
     catch (Throwable e) {
       logger.error("[termsByQuery] Error executing shard operation", e);
@@ -312,6 +1075,10 @@ public class TransportTermsByQueryAction extends TransportBroadcastAction<TermsB
         return new BloomFilterTermsCollector(indexFieldData, context, breakerService.getBreaker(CircuitBreaker.REQUEST));
       case BYTES:
         return new BytesRefTermsCollector(indexFieldData, context, breakerService.getBreaker(CircuitBreaker.REQUEST));
+      case ROARING:
+        return new RoaringTermsCollector(indexFieldData, context, breakerService.getBreaker(CircuitBreaker.REQUEST));
+      case BINARY_FUSE:
+        return new BinaryFuseFilterTermsCollector(indexFieldData, context, breakerService.getBreaker(CircuitBreaker.REQUEST));
       default:
         throw new IllegalArgumentException("[termsByQuery] Invalid terms encoding: " + termsEncoding.name());
     }
@@ -340,6 +1107,14 @@ public class TransportTermsByQueryAction extends TransportBroadcastAction<TermsB
      */
     protected abstract HitStream getHitStream(final SearchContext context) throws IOException;
 
+    /**
+     * Collects the terms with the given {@link TermsCollector}. By default, the terms are collected from the
+     * {@link HitStream} associated to this order by operation.
+     */
+    protected TermsSet collect(final TermsCollector termsCollector, final SearchContext context) throws IOException {
+      return termsCollector.collect(this.getHitStream(context));
+    }
+
     /**
      * Instantiates the appropriate {@link OrderByShardOperation} for the given
      * {@link TermsByQueryRequest.Ordering}.
@@ -377,6 +1152,18 @@ public class TransportTermsByQueryAction extends TransportBroadcastAction<TermsB
       return new BitSetHitStream(context.query(), context.searcher());
     }
 
+    /**
+     * As documents do not need to be ordered, the terms are collected in a single pass during the search if
+     * the collector supports it, which avoids to materialise the hits and to visit them twice.
+     */
+    @Override
+    protected TermsSet collect(TermsCollector termsCollector, SearchContext context) throws IOException {
+      if (termsCollector.isStreamable()) {
+        return termsCollector.collect(context.query(), context.searcher());
+      }
+      return super.collect(termsCollector, context);
+    }
+
   }
 
   /**
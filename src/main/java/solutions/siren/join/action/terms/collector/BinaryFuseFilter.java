@@ -0,0 +1,234 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms.collector;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import solutions.siren.join.common.Bytes;
+
+import java.util.Arrays;
+
+/**
+ * A binary fuse filter with 8-bit fingerprints, as described in "Binary Fuse Filters: Fast and Smaller Than Xor
+ * Filters" by Graf and Lemire. It uses about 9 bits per key for a false positive probability of about 0.4%, and a
+ * lookup performs exactly three memory accesses.
+ * <br>
+ * The filter is immutable: it is built at once from the full set of keys, and cannot be merged with another filter.
+ */
+public class BinaryFuseFilter {
+
+  /**
+   * The number of hash functions
+   */
+  private static final int ARITY = 3;
+
+  /**
+   * The maximum number of attempts to build the filter with a new seed
+   */
+  private static final int MAX_ITERATIONS = 100;
+
+  final long seed;
+  final int segmentLength;
+  final int segmentCountLength;
+  final byte[] fingerprints;
+
+  /**
+   * Constructor used during serialisation
+   */
+  BinaryFuseFilter(long seed, int segmentLength, int segmentCountLength, byte[] fingerprints) {
+    this.seed = seed;
+    this.segmentLength = segmentLength;
+    this.segmentCountLength = segmentCountLength;
+    this.fingerprints = fingerprints;
+  }
+
+  public boolean mightContain(long key) {
+    long hash = mix(key + seed);
+    int h0 = (int) mulhi(hash, segmentCountLength);
+    int h1 = h0 + segmentLength;
+    int h2 = h1 + segmentLength;
+    int segmentLengthMask = segmentLength - 1;
+    h1 ^= (int) (hash >>> 18) & segmentLengthMask;
+    h2 ^= (int) hash & segmentLengthMask;
+    return (byte) (fingerprint(hash) ^ fingerprints[h0] ^ fingerprints[h1] ^ fingerprints[h2]) == 0;
+  }
+
+  /**
+   * Returns the number of bytes of the filter once encoded with {@link #writeTo(BytesRef)}.
+   */
+  public int sizeInBytes() {
+    return 8 + 4 + 4 + 4 + fingerprints.length;
+  }
+
+  public void writeTo(BytesRef bytes) {
+    Bytes.writeLong(bytes, seed);
+    Bytes.writeInt(bytes, segmentLength);
+    Bytes.writeInt(bytes, segmentCountLength);
+    Bytes.writeInt(bytes, fingerprints.length);
+    System.arraycopy(fingerprints, 0, bytes.bytes, bytes.offset, fingerprints.length);
+    bytes.offset += fingerprints.length;
+  }
+
+  public static BinaryFuseFilter readFrom(BytesRef bytes) {
+    long seed = Bytes.readLong(bytes);
+    int segmentLength = Bytes.readInt(bytes);
+    int segmentCountLength = Bytes.readInt(bytes);
+    int length = Bytes.readInt(bytes);
+    byte[] fingerprints = Arrays.copyOfRange(bytes.bytes, bytes.offset, bytes.offset + length);
+    bytes.offset += length;
+    return new BinaryFuseFilter(seed, segmentLength, segmentCountLength, fingerprints);
+  }
+
+  /**
+   * Builds a filter from a set of distinct keys. The temporary memory used during the construction, about
+   * 21 bytes per key, is accounted in the circuit breaker.
+   */
+  public static BinaryFuseFilter build(long[] keys, CircuitBreaker breaker) {
+    int size = keys.length;
+    int segmentLength = size <= 1 ? 4 : Math.min(1 << (int) Math.floor(Math.log(size) / Math.log(3.33) + 2.25), 1 << 18);
+    double sizeFactor = size <= 1 ? 0 : Math.max(1.125, 0.875 + 0.25 * Math.log(1000000) / Math.log(size));
+    int capacity = (int) Math.round(size * sizeFactor);
+    int segmentCount = Math.max((capacity + segmentLength - 1) / segmentLength - (ARITY - 1), 1);
+    int arrayLength = (segmentCount + ARITY - 1) * segmentLength;
+    int segmentCountLength = segmentCount * segmentLength;
+
+    long memSize = arrayLength * (1L + 8 + 4) + size * (8L + 1);
+    breaker.addEstimateBytesAndMaybeBreak(memSize, "<terms_set>");
+    try {
+      byte[] t2count = new byte[arrayLength];
+      long[] t2hash = new long[arrayLength];
+      int[] alone = new int[arrayLength];
+      long[] reverseOrder = new long[size];
+      byte[] reverseH = new byte[size];
+      int[] h012 = new int[5];
+
+      long rngCounter = 0x726b2b9d438b9d4dL;
+      for (int iteration = 0; ; iteration++) {
+        if (iteration == MAX_ITERATIONS) {
+          throw new IllegalStateException("Unable to build the binary fuse filter for " + size + " keys");
+        }
+        rngCounter += 0x9E3779B97F4A7C15L;
+        long seed = mix(rngCounter);
+        Arrays.fill(t2count, (byte) 0);
+        Arrays.fill(t2hash, 0L);
+
+        // add the keys: t2count holds the number of keys of each slot in the 6 high bits, and the xor of the
+        // index of the hash function of the keys in the 2 low bits, and t2hash holds the xor of the hashes
+        boolean error = false;
+        for (int i = 0; i < size; i++) {
+          long hash = mix(keys[i] + seed);
+          for (int index = 0; index < ARITY; index++) {
+            int h = hash(index, hash, segmentLength, segmentCountLength);
+            t2count[h] += 4;
+            t2count[h] ^= index;
+            t2hash[h] ^= hash;
+            error |= (t2count[h] & 0xFF) < 4; // overflow of the count
+          }
+        }
+        if (error) {
+          continue;
+        }
+
+        // peel the slots with a single key
+        int queueSize = 0;
+        for (int i = 0; i < arrayLength; i++) {
+          alone[queueSize] = i;
+          queueSize += (t2count[i] & 0xFF) >> 2 == 1 ? 1 : 0;
+        }
+        int stackSize = 0;
+        while (queueSize > 0) {
+          int index = alone[--queueSize];
+          if ((t2count[index] & 0xFF) >> 2 == 1) {
+            long hash = t2hash[index];
+            int found = t2count[index] & 3;
+            reverseH[stackSize] = (byte) found;
+            reverseOrder[stackSize] = hash;
+            stackSize++;
+            h012[0] = hash(0, hash, segmentLength, segmentCountLength);
+            h012[1] = hash(1, hash, segmentLength, segmentCountLength);
+            h012[2] = hash(2, hash, segmentLength, segmentCountLength);
+            h012[3] = h012[0];
+            h012[4] = h012[1];
+            for (int j = 1; j < ARITY; j++) {
+              int other = h012[found + j];
+              alone[queueSize] = other;
+              queueSize += (t2count[other] & 0xFF) >> 2 == 2 ? 1 : 0;
+              t2count[other] -= 4;
+              t2count[other] ^= (found + j) % ARITY;
+              t2hash[other] ^= hash;
+            }
+          }
+        }
+        if (stackSize != size) { // the keys could not be all peeled, retry with another seed
+          continue;
+        }
+
+        // assign the fingerprints in the reverse order of the peeling
+        byte[] fingerprints = new byte[arrayLength];
+        for (int i = size - 1; i >= 0; i--) {
+          long hash = reverseOrder[i];
+          int found = reverseH[i];
+          h012[0] = hash(0, hash, segmentLength, segmentCountLength);
+          h012[1] = hash(1, hash, segmentLength, segmentCountLength);
+          h012[2] = hash(2, hash, segmentLength, segmentCountLength);
+          h012[3] = h012[0];
+          h012[4] = h012[1];
+          fingerprints[h012[found]] = (byte) (fingerprint(hash) ^ fingerprints[h012[found + 1]] ^ fingerprints[h012[found + 2]]);
+        }
+        return new BinaryFuseFilter(seed, segmentLength, segmentCountLength, fingerprints);
+      }
+    }
+    finally {
+      breaker.addWithoutBreaking(-memSize);
+    }
+  }
+
+  private static int hash(int index, long hash, int segmentLength, int segmentCountLength) {
+    long h = mulhi(hash, segmentCountLength) + index * segmentLength;
+    // use 18 bits of the hash per hash function to pick a slot in the segment
+    long hh = hash & ((1L << 36) - 1);
+    h ^= (hh >>> (36 - 18 * index)) & (segmentLength - 1);
+    return (int) h;
+  }
+
+  private static int fingerprint(long hash) {
+    return (int) (hash ^ (hash >>> 32));
+  }
+
+  /**
+   * Returns the 64 high bits of the unsigned 128-bit product of a 64-bit hash and a 31-bit positive integer, i.e.,
+   * maps the hash to the range [0, b).
+   */
+  private static long mulhi(long hash, int b) {
+    return ((hash >>> 32) * b + (((hash & 0xFFFFFFFFL) * b) >>> 32)) >>> 32;
+  }
+
+  /**
+   * The finalizer of MurmurHash3.
+   */
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms.collector;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.util.BigArrays;
+import solutions.siren.join.action.terms.TermsByQueryRequest;
+import solutions.siren.join.common.Bytes;
+
+import java.nio.file.Path;
+
+/**
+ * A set of terms encoded as a {@link BinaryFuseFilter}. A binary fuse filter cannot be merged, therefore the set
+ * collects and merges the long terms as a {@link LongTermsSet}, and the filter is only built when the set is
+ * encoded with {@link #writeToBytes()}, i.e., on the coordinator node once all the shard terms are merged.
+ * A set decoded from a byte array can only be used for lookups.
+ */
+public class BinaryFuseFilterTermsSet extends LongTermsSet {
+
+  /**
+   * The filter of a set decoded from a byte array
+   */
+  private transient BinaryFuseFilter filter;
+
+  /**
+   * The number of terms of a set decoded from a byte array
+   */
+  private transient int filterSize;
+
+  /**
+   * The size of the header: 4 bytes for the terms encoding ordinal, 1 byte for the {@link #isPruned} flag,
+   * and 4 bytes for the size.
+   */
+  private static final int HEADER_SIZE = 9;
+
+  private static final ESLogger logger = Loggers.getLogger(BinaryFuseFilterTermsSet.class);
+
+  /**
+   * Constructor used by {@link solutions.siren.join.action.terms.TermsByQueryShardResponse}
+   */
+  public BinaryFuseFilterTermsSet(final CircuitBreaker breaker) {
+    super(breaker);
+  }
+
+  public BinaryFuseFilterTermsSet(final BigArrays bigArrays, final CircuitBreaker breaker) {
+    super(bigArrays, breaker);
+  }
+
+  public BinaryFuseFilterTermsSet(final long expectedElements, final CircuitBreaker breaker) {
+    super(expectedElements, breaker);
+  }
+
+  public BinaryFuseFilterTermsSet(final long expectedElements, final BigArrays bigArrays, final CircuitBreaker breaker) {
+    super(expectedElements, bigArrays, breaker);
+  }
+
+  /**
+   * Constructor based on a byte array containing the encoded set of terms.
+   * Used in {@link solutions.siren.join.index.query.FieldDataTermsQuery}.
+   */
+  public BinaryFuseFilterTermsSet(BytesRef bytes) {
+    super((CircuitBreaker) null);
+    this.readFromBytes(bytes);
+  }
+
+  /**
+   * The filter is built from all the terms in memory, the terms cannot be spilled.
+   */
+  @Override
+  public boolean enableSpill(Path directory) {
+    return false;
+  }
+
+  /**
+   * The filter does not keep the terms, they cannot be enumerated.
+   */
+  @Override
+  public long[] toSortedArray() {
+    return null;
+  }
+
+  @Override
+  public boolean contains(long term) {
+    if (filter != null) {
+      return filterSize > 0 && filter.mightContain(term);
+    }
+    return super.contains(term);
+  }
+
+  @Override
+  public int size() {
+    if (filter != null) {
+      return filterSize;
+    }
+    return super.size();
+  }
+
+  @Override
+  protected BytesRef writeToBytes(long[] terms) {
+    long start = System.nanoTime();
+
+    BinaryFuseFilter filter = BinaryFuseFilter.build(terms, breaker);
+
+    BytesRef bytes = new BytesRef(new byte[HEADER_SIZE + filter.sizeInBytes()]);
+
+    // Encode encoding type
+    Bytes.writeInt(bytes, this.getEncoding().ordinal());
+
+    // Encode flag
+    bytes.bytes[bytes.offset++] = (byte) (this.isPruned() ? 1 : 0);
+
+    // Encode size of the set
+    Bytes.writeInt(bytes, terms.length);
+
+    // Encode filter
+    filter.writeTo(bytes);
+
+    logger.debug("Serialized {} terms - took {} ms", terms.length, (System.nanoTime() - start) / 1000000);
+
+    bytes.length = bytes.offset;
+    bytes.offset = 0;
+    return bytes;
+  }
+
+  private void readFromBytes(BytesRef bytes) {
+    // Read pruned flag
+    this.setIsPruned(bytes.bytes[bytes.offset++] == 1 ? true : false);
+
+    // Read size of the set
+    filterSize = Bytes.readInt(bytes);
+
+    // Decode filter
+    filter = BinaryFuseFilter.readFrom(bytes);
+  }
+
+  @Override
+  public TermsByQueryRequest.TermsEncoding getEncoding() {
+    return TermsByQueryRequest.TermsEncoding.BINARY_FUSE;
+  }
+
+  @Override
+  public void release() {
+    super.release();
+    filter = null;
+  }
+
+}
@@ -77,6 +77,23 @@ public class BitSetHitStream extends HitStream {
     this.count++;
   }
 
+  /**
+   * Splits the stream into one {@link AtomicReaderHitStream} per non-empty bitset.
+   */
+  @Override
+  public List<HitStream> split() throws IOException {
+    LimitedBitSetHitCollector collector = (LimitedBitSetHitCollector) this.getCollector();
+    List<HitStream> streams = new ArrayList<>(collector.getFixedSets().size());
+    for (int i = 0; i < collector.getFixedSets().size(); i++) {
+      FixedBitSet bitSet = collector.getFixedSets().get(i);
+      int hits = bitSet.cardinality();
+      if (hits > 0) {
+        streams.add(new AtomicReaderHitStream(i, bitSet, hits, searcher));
+      }
+    }
+    return streams;
+  }
+
   @Override
   public int getAtomicDocId() {
     return currentAtomicDocId;
@@ -139,4 +156,60 @@ public class BitSetHitStream extends HitStream {
 
   }
 
+  /**
+   * A {@link HitStream} over the bitset of a single atomic reader. The search has already been executed by the
+   * parent {@link BitSetHitStream}, therefore {@link #initialize()} is a no-op.
+   */
+  private static class AtomicReaderHitStream extends HitStream {
+
+    private final int atomicReaderId;
+    private final FixedBitSet bitSet;
+    private final int hits;
+
+    private int count = 0;
+    private int currentAtomicDocId = -1;
+
+    private AtomicReaderHitStream(int atomicReaderId, FixedBitSet bitSet, int hits, IndexSearcher searcher) throws IOException {
+      super(null, null, searcher);
+      this.atomicReaderId = atomicReaderId;
+      this.bitSet = bitSet;
+      this.hits = hits;
+    }
+
+    @Override
+    public void initialize() throws IOException {}
+
+    @Override
+    public int getTotalHits() {
+      return hits;
+    }
+
+    @Override
+    public int getHits() {
+      return hits;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return this.count < this.hits;
+    }
+
+    @Override
+    public void next() {
+      this.currentAtomicDocId = bitSet.nextSetBit(currentAtomicDocId + 1);
+      this.count++;
+    }
+
+    @Override
+    protected int getAtomicDocId() {
+      return currentAtomicDocId;
+    }
+
+    @Override
+    protected int getAtomicReaderId() {
+      return atomicReaderId;
+    }
+
+  }
+
 }
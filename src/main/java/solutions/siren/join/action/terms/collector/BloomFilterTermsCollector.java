@@ -34,7 +34,25 @@ public class BloomFilterTermsCollector extends NumericTermsCollector {
 
   @Override
   protected NumericTermsSet newTermsSet(final int expectedElements, final CircuitBreaker breaker) {
-    return new BloomFilterTermsSet(expectedElements, breaker);
+    return new BloomFilterTermsSet(expectedElements, bigArrays, breaker);
+  }
+
+  /**
+   * Bloom filters can only be merged if they have the same size, therefore the local set of a segment
+   * is sized based on the expected number of terms for the whole shard.
+   */
+  @Override
+  protected TermsSet newSegmentTermsSet(final int expectedElements, final int segmentHits) {
+    return this.newTermsSet(expectedElements, breaker);
+  }
+
+  /**
+   * A bloom filter cannot grow, therefore the single pass collection is only possible if the expected number of
+   * terms is known before the search.
+   */
+  @Override
+  public boolean isStreamable() {
+    return super.isStreamable() && expectedTerms != -1;
   }
 
 }
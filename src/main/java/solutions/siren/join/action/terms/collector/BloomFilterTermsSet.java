@@ -19,13 +19,14 @@
 package solutions.siren.join.action.terms.collector;
 
 import com.google.common.math.LongMath;
-import com.google.common.primitives.Ints;
 import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.common.breaker.CircuitBreaker;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.util.LongArray;
 import solutions.siren.join.action.terms.TermsByQueryRequest;
 import solutions.siren.join.common.Bytes;
 import solutions.siren.join.common.Math;
@@ -54,8 +55,20 @@ public class BloomFilterTermsSet extends NumericTermsSet {
     super(breaker);
   }
 
+  /**
+   * Constructor used by {@link solutions.siren.join.action.terms.TermsByQueryShardResponse}, the deserialized
+   * filter is allocated on pages of the given {@link BigArrays}.
+   */
+  public BloomFilterTermsSet(final BigArrays bigArrays, final CircuitBreaker breaker) {
+    super(bigArrays, breaker);
+  }
+
   public BloomFilterTermsSet(final long expectedElements, final CircuitBreaker breakerService) {
-    super(breakerService);
+    this(expectedElements, BigArrays.NON_RECYCLING_INSTANCE, breakerService);
+  }
+
+  public BloomFilterTermsSet(final long expectedElements, final BigArrays bigArrays, final CircuitBreaker breakerService) {
+    super(bigArrays, breakerService);
     this.set = new CircuitBreakerLongBloomFilter(Math.toIntExact(expectedElements), DEFAULT_FPP);
   }
 
@@ -86,6 +99,18 @@ public class BloomFilterTermsSet extends NumericTermsSet {
     this.set.merge(((BloomFilterTermsSet) terms).set);
   }
 
+  /**
+   * A bloom filter cannot be truncated, the other filter is either fully merged or left out.
+   */
+  @Override
+  protected boolean addAll(TermsSet terms, int maxTerms) {
+    if (this.size() >= maxTerms) {
+      return false;
+    }
+    this.addAll(terms);
+    return true;
+  }
+
   @Override
   public int size() {
     return this.set.estimateCardinality();
@@ -102,21 +127,25 @@ public class BloomFilterTermsSet extends NumericTermsSet {
     int numLongs = in.readVInt();
 
     // Adjust breaker
-    long memSize = numLongs * 8;
+    long memSize = numLongs * 8L;
     breaker.addEstimateBytesAndMaybeBreak(memSize, "<terms_set>");
 
+    LongArray data;
     try {
-      long[] data = new long[numLongs];
-      for (int i = 0; i < numLongs; i++) {
-        data[i] = in.readLong();
-      }
-      set = new CircuitBreakerLongBloomFilter(new LongBloomFilter.BitArray(data), numberOfHashFunctions, LongBloomFilter.Hashing.fromType(hashType));
+      data = bigArrays.newLongArray(numLongs, false);
     }
     catch (OutOfMemoryError e) {
       // Ensure no change is done if we hit an OOM.
       breaker.addWithoutBreaking(-memSize);
       throw e;
     }
+    // Adjust breaker with the memory actually allocated, released by the filter
+    breaker.addWithoutBreaking(data.ramBytesUsed() - memSize);
+
+    for (int i = 0; i < numLongs; i++) {
+      data.set(i, in.readLong());
+    }
+    set = new CircuitBreakerLongBloomFilter(new LongBloomFilter.BitArray(data), numberOfHashFunctions, LongBloomFilter.Hashing.fromType(hashType));
   }
 
   /**
@@ -135,10 +164,10 @@ public class BloomFilterTermsSet extends NumericTermsSet {
     // Encode bloom filter
     out.writeVInt(set.numHashFunctions);
     out.writeVInt(set.hashing.type()); // hashType
-    out.writeVInt(set.bits.data.length);
+    out.writeVInt(Math.toIntExact(set.bits.data.size()));
     BytesRef buffer = new BytesRef(new byte[1024 * 8]);
-    for (long l : set.bits.data) {
-      Bytes.writeLong(buffer, l);
+    for (long i = 0; i < set.bits.data.size(); i++) {
+      Bytes.writeLong(buffer, set.bits.data.get(i));
       if (buffer.offset == buffer.length) {
         out.write(buffer.bytes, 0, buffer.offset);
         buffer.offset = 0;
@@ -148,11 +177,17 @@ public class BloomFilterTermsSet extends NumericTermsSet {
     out.write(buffer.bytes, 0, buffer.offset);
   }
 
+  @Override
+  public long serializedSizeInBytes() {
+    return HEADER_SIZE + 8L * set.bits.data.size();
+  }
+
   @Override
   public BytesRef writeToBytes() {
     long start = System.nanoTime();
 
-    BytesRef bytes = new BytesRef(new byte[HEADER_SIZE + set.bits.data.length * 8]);
+    int numLongs = Math.toIntExact(set.bits.data.size());
+    BytesRef bytes = new BytesRef(new byte[HEADER_SIZE + numLongs * 8]);
 
     // Encode encoding type
     Bytes.writeInt(bytes, this.getEncoding().ordinal());
@@ -162,9 +197,9 @@ public class BloomFilterTermsSet extends NumericTermsSet {
 
     Bytes.writeInt(bytes, set.numHashFunctions);
     Bytes.writeInt(bytes, set.hashing.type()); // hashType
-    Bytes.writeInt(bytes, set.bits.data.length);
-    for (long l : set.bits.data) {
-      Bytes.writeLong(bytes, l);
+    Bytes.writeInt(bytes, numLongs);
+    for (int i = 0; i < numLongs; i++) {
+      Bytes.writeLong(bytes, set.bits.data.get(i));
     }
 
     logger.debug("Serialized {} terms - took {} ms", this.size(), (System.nanoTime() - start) / 1000000);
@@ -182,9 +217,9 @@ public class BloomFilterTermsSet extends NumericTermsSet {
     int numberOfHashFunctions = Bytes.readInt(bytes);
     int hashType = Bytes.readInt(bytes);
     int numLongs = Bytes.readInt(bytes);
-    long[] data = new long[numLongs];
+    LongArray data = bigArrays.newLongArray(numLongs, false);
     for (int i = 0; i < numLongs; i++) {
-      data[i] = Bytes.readLong(bytes);
+      data.set(i, Bytes.readLong(bytes));
     }
     set = new LongBloomFilter(new LongBloomFilter.BitArray(data), numberOfHashFunctions, LongBloomFilter.Hashing.fromType(hashType));
   }
@@ -213,23 +248,27 @@ public class BloomFilterTermsSet extends NumericTermsSet {
 
     @Override
     protected BitArray createBitArray(long numBits) {
-      int memSize = Ints.checkedCast(LongMath.divide(numBits, 64, RoundingMode.CEILING)) * 8;
+      long memSize = LongMath.divide(numBits, 64, RoundingMode.CEILING) * 8;
       // Adjust the breaker with the new memory size
       breaker.addEstimateBytesAndMaybeBreak(memSize, "<terms_set>");
 
+      BitArray bits;
       try {
-        return new BitArray(numBits);
+        bits = new BitArray(numBits, bigArrays);
       }
       catch (OutOfMemoryError e) {
         // Ensure no change is done if we hit an OOM.
         breaker.addWithoutBreaking(-memSize);
         throw e;
       }
+      // Adjust the breaker with the memory actually allocated
+      breaker.addWithoutBreaking(bits.data.ramBytesUsed() - memSize);
+      return bits;
     }
 
     @Override
     protected void release() {
-      int memSize = bits.data.length * 8;
+      long memSize = bits.data.ramBytesUsed();
 
       super.release();
 
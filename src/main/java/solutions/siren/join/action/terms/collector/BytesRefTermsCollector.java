@@ -18,12 +18,12 @@
  */
 package solutions.siren.join.action.terms.collector;
 
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.common.breaker.CircuitBreaker;
 import org.elasticsearch.index.fielddata.IndexFieldData;
 import org.elasticsearch.search.internal.SearchContext;
 
-import java.io.IOException;
-
 /**
  * Collects {@link org.apache.lucene.util.BytesRef} terms for a given field based on a {@link HitStream}.
  */
@@ -35,32 +35,45 @@ public class BytesRefTermsCollector extends TermsCollector {
   }
 
   @Override
-  public TermsSet collect(HitStream hitStream) throws IOException {
-    hitStream.initialize(); // initialise the stream
-    int nHits = hitStream.getHits();
-    BytesRefTermsSet terms = new BytesRefTermsSet(breaker);
-    try {
-      BytesRefTermStream reusableTermStream = BytesRefTermStream.get(context.searcher().getIndexReader(), indexFieldData);
+  protected TermsSet newTermsSet(final int expectedElements, final CircuitBreaker breaker) {
+    return new BytesRefTermsSet(breaker);
+  }
+
+  /**
+   * Instantiates a consumer that adds the terms into a {@link BytesRefTermsSet}. If the field is backed by ordinals,
+   * the terms are deduplicated using the ordinals before being copied, see {@link OrdinalsTermStream}.
+   */
+  @Override
+  protected TermsConsumer newTermsConsumer(final TermsSet termsSet) {
+    final BytesRefTermsSet bytesRefTerms = (BytesRefTermsSet) termsSet;
+    IndexReader reader = context.searcher().getIndexReader();
 
-      while (terms.size() < this.maxTerms && hitStream.hasNext()) {
-        hitStream.next();
-        reusableTermStream = hitStream.getTermStream(reusableTermStream);
+    if (OrdinalsTermStream.isSupported(indexFieldData)) {
+      return new OrdinalsTermsConsumer(new OrdinalsTermStream(reader, indexFieldData), bytesRefTerms) {
 
-        while (terms.size() < this.maxTerms && reusableTermStream.hasNext()) {
-          terms.add(reusableTermStream.next());
+        @Override
+        protected void add(BytesRef term) {
+          bytesRefTerms.add(term);
         }
-      }
 
-      boolean isPruned = hitStream.getTotalHits() > hitStream.getHits();
-      isPruned |= this.maxTerms < nHits;
-      terms.setIsPruned(isPruned);
-      return terms;
-    }
-    catch (Throwable t) {
-      // If something happens during the term collection, release the terms set and adjust the circuit breaker
-      terms.release();
-      throw t;
+      };
     }
+
+    final BytesRefTermStream reusableTermStream = BytesRefTermStream.get(reader, indexFieldData);
+    return new TermsConsumer(reusableTermStream, bytesRefTerms) {
+
+      @Override
+      protected void consume(int atomicReaderId, int atomicDocId) {
+        reusableTermStream.set(atomicReaderId, atomicDocId);
+        while (!this.isFull() && reusableTermStream.hasNext()) {
+          bytesRefTerms.add(reusableTermStream.next());
+        }
+        if (reusableTermStream.hasNext()) { // some terms of the document were left out
+          bytesRefTerms.setIsPruned(true);
+        }
+      }
+
+    };
   }
 
 }
@@ -19,9 +19,13 @@
 package solutions.siren.join.action.terms.collector;
 
 import org.apache.lucene.util.ByteBlockPool;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
 import org.apache.lucene.util.BytesRefHash;
 import org.apache.lucene.util.Counter;
+import org.apache.lucene.util.IntroSorter;
+import org.apache.lucene.util.StringHelper;
 import org.elasticsearch.common.breaker.CircuitBreaker;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
@@ -31,9 +35,12 @@ import solutions.siren.join.action.terms.TermsByQueryRequest;
 import solutions.siren.join.common.Bytes;
 
 import java.io.IOException;
+import java.util.Iterator;
 
 /**
- * A set of bytes ref terms.
+ * A set of bytes ref terms. The terms are encoded in sorted order with front coding, i.e., each term is encoded
+ * as the length of the prefix it shares with the previous term followed by the remaining suffix. Every
+ * {@link #RESTART_INTERVAL} terms, a term is encoded in full, which provides restart points for binary searches.
  */
 public class BytesRefTermsSet extends TermsSet {
 
@@ -41,12 +48,29 @@ public class BytesRefTermsSet extends TermsSet {
   private transient ByteBlockPool pool;
   private transient BytesRefHash set;
 
+  /**
+   * The front-coded terms of a lookup-only set, used instead of {@link #set}. For a set backed by {@link #set}, a
+   * snapshot of its terms built for the sorted iterations, and discarded once a term is added.
+   */
+  private transient byte[] frontCodedTerms;
+
+  /**
+   * The offsets of the restart points in {@link #frontCodedTerms}, and the number of terms of a lookup-only set.
+   */
+  private transient int[] restarts;
+  private transient int frontCodedSize;
+
   /**
    * The size of the header: four bytes for the terms encoding ordinal,
    * 1 byte for the {@link #isPruned} flag, and four bytes for the size.
    */
   private static final int HEADER_SIZE = 9;
 
+  /**
+   * The number of terms between two restart points.
+   */
+  private static final int RESTART_INTERVAL = 16;
+
   private static final ESLogger logger = Loggers.getLogger(BytesRefTermsSet.class);
 
   public BytesRefTermsSet(final CircuitBreaker breaker) {
@@ -58,49 +82,185 @@ public class BytesRefTermsSet extends TermsSet {
 
   /**
    * Constructor based on a byte array containing the encoded set of terms.
-   * Used in {@link solutions.siren.join.index.query.TermsEnumTermsQuery}.
    */
   public BytesRefTermsSet(BytesRef bytes) {
+    this(bytes, false);
+  }
+
+  /**
+   * Constructor based on a byte array containing the encoded set of terms. If <code>lookupOnly</code> is true,
+   * the set keeps the front-coded terms as encoded, and can only be used for lookups and sorted iterations.
+   * Used in {@link solutions.siren.join.index.query.TermsEnumTermsQuery}.
+   */
+  public BytesRefTermsSet(BytesRef bytes, boolean lookupOnly) {
     super(null);
-    this.readFromBytes(bytes);
+    this.readFromBytes(bytes, lookupOnly);
   }
 
   public void add(BytesRef term) {
+    this.discardFrontCoded();
     this.set.add(term);
   }
 
   public boolean contains(BytesRef term) {
+    if (set == null) {
+      return this.containsFrontCoded(term);
+    }
     return this.set.find(term) != -1;
   }
 
+  /**
+   * Binary search of the restart point preceding the term, followed by a scan of the terms until the next
+   * restart point.
+   */
+  private boolean containsFrontCoded(BytesRef term) {
+    BytesRef restartTerm = new BytesRef(frontCodedTerms);
+    int low = 0;
+    int high = restarts.length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      readRestartTerm(mid, restartTerm);
+      int cmp = restartTerm.compareTo(term);
+      if (cmp < 0) {
+        low = mid + 1;
+      }
+      else if (cmp > 0) {
+        high = mid - 1;
+      }
+      else {
+        return true;
+      }
+    }
+    if (high < 0) { // the term is before the first term
+      return false;
+    }
+
+    SortedTermsIterator it = new SortedTermsIterator(high);
+    it.next(); // skip the restart term
+    for (int i = 1; i < RESTART_INTERVAL; i++) {
+      BytesRef current = it.next();
+      if (current == null) {
+        return false;
+      }
+      int cmp = current.compareTo(term);
+      if (cmp >= 0) {
+        return cmp == 0;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reads the full term at the given restart point, without copying it.
+   */
+  private void readRestartTerm(int restart, BytesRef term) {
+    term.offset = restarts[restart];
+    Bytes.readVInt(term); // the shared prefix is empty at a restart point
+    int length = Bytes.readVInt(term);
+    term.length = length;
+  }
+
   @Override
   protected void addAll(TermsSet terms) {
     if (!(terms instanceof BytesRefTermsSet)) {
       throw new UnsupportedOperationException("Invalid type: BytesRefTermsSet expected.");
     }
 
+    this.discardFrontCoded();
+    BytesRefHash input = ((BytesRefTermsSet) terms).set;
+    BytesRef reusable = new BytesRef();
+    for (int i = 0; i < input.size(); i++) {
+      input.get(i, reusable);
+      set.add(reusable);
+    }
+  }
+
+  @Override
+  protected boolean addAll(TermsSet terms, int maxTerms) {
+    if (!(terms instanceof BytesRefTermsSet)) {
+      throw new UnsupportedOperationException("Invalid type: BytesRefTermsSet expected.");
+    }
+
+    this.discardFrontCoded();
     BytesRefHash input = ((BytesRefTermsSet) terms).set;
     BytesRef reusable = new BytesRef();
     for (int i = 0; i < input.size(); i++) {
       input.get(i, reusable);
+      if (set.size() >= maxTerms && set.find(reusable) < 0) {
+        return false;
+      }
       set.add(reusable);
     }
+    return true;
   }
 
   public BytesRefHash getBytesRefHash() {
     return set;
   }
 
+  /**
+   * Returns an iterator over the terms in sorted order. The iterator does not see the terms added afterwards.
+   */
+  public SortedTermsIterator sortedIterator() {
+    this.ensureFrontCoded();
+    return new SortedTermsIterator(0);
+  }
+
+  /**
+   * Returns a copy of the greatest term of the set, or null if the set is empty.
+   */
+  public BytesRef lastTerm() {
+    this.ensureFrontCoded();
+    if (frontCodedSize == 0) {
+      return null;
+    }
+    SortedTermsIterator it = new SortedTermsIterator(restarts.length - 1);
+    BytesRef last = null;
+    for (BytesRef term = it.next(); term != null; term = it.next()) {
+      last = term;
+    }
+    return BytesRef.deepCopyOf(last);
+  }
+
+  /**
+   * Builds a snapshot of the front-coded terms from the hash set if this set is not a lookup-only set.
+   */
+  private void ensureFrontCoded() {
+    if (frontCodedTerms == null) {
+      BytesRef bytes = this.writeToBytes();
+      bytes.offset = 4; // skip the encoding ordinal
+      this.readFrontCoded(bytes);
+    }
+  }
+
+  /**
+   * Discards the snapshot of the front-coded terms, which is outdated once a term is added to the hash set.
+   */
+  private void discardFrontCoded() {
+    if (frontCodedTerms != null) {
+      frontCodedTerms = null;
+      restarts = null;
+      frontCodedSize = 0;
+    }
+  }
+
   @Override
   public int size() {
+    if (set == null) {
+      return frontCodedSize;
+    }
     return this.set.size();
   }
 
   /**
-   * Return the memory usage of this object in bytes.
+   * Return the memory usage of this object in bytes, including the snapshot of the front-coded terms if any.
    */
   public long ramBytesUsed() {
-    return bytesUsed.get();
+    long frontCodedBytes = frontCodedTerms == null ? 0 : frontCodedTerms.length + restarts.length * 4;
+    if (set == null) {
+      return frontCodedBytes;
+    }
+    return bytesUsed.get() + frontCodedBytes;
   }
 
   @Override
@@ -133,12 +293,115 @@ public class BytesRefTermsSet extends TermsSet {
     }
   }
 
+  /**
+   * The serialization adds the variable-length length of each term to its bytes.
+   */
+  @Override
+  public long serializedSizeInBytes() {
+    return HEADER_SIZE + this.ramBytesUsed() + 5L * this.size();
+  }
+
+  /**
+   * Serialize the set of terms to a byte array. The terms are sorted and front coded, so that
+   * {@link solutions.siren.join.index.query.TermsEnumTermsQuery} can seek the terms dictionary without
+   * sorting them again.
+   */
   @Override
   public BytesRef writeToBytes() {
+    return this.writePartitionsToBytes(new TermsSet[] { this });
+  }
+
+  @Override
+  protected boolean isPartitionable() {
+    return true;
+  }
+
+  @Override
+  protected void addAll(TermsSet terms, int partition, int numPartitions) {
+    if (!(terms instanceof BytesRefTermsSet)) {
+      throw new UnsupportedOperationException("Invalid type: BytesRefTermsSet expected.");
+    }
+
+    BytesRefHash input = ((BytesRefTermsSet) terms).set;
+    BytesRef reusable = new BytesRef();
+    for (int i = 0; i < input.size(); i++) {
+      input.get(i, reusable);
+      if (partition(StringHelper.murmurhash3_x86_32(reusable, 0), numPartitions) == partition) {
+        set.add(reusable);
+      }
+    }
+  }
+
+  /**
+   * Sorts the terms of all the partitions together, a term being referenced by the partition number in the high
+   * bits and its id in the hash set of the partition in the low bits, then front codes them.
+   */
+  @Override
+  protected BytesRef writePartitionsToBytes(TermsSet[] partitions) {
     long start = System.nanoTime();
-    int size = set.size();
+    final BytesRefHash[] hashes = new BytesRefHash[partitions.length];
+    int total = 0;
+    for (int p = 0; p < partitions.length; p++) {
+      hashes[p] = ((BytesRefTermsSet) partitions[p]).set;
+      total += hashes[p].size();
+    }
+    final int size = total;
+
+    // sort the references to the terms without altering the hash sets
+    final long[] refs = new long[size];
+    for (int p = 0, i = 0; p < hashes.length; p++) {
+      for (int id = 0; id < hashes[p].size(); id++) {
+        refs[i++] = ((long) p << 32) | id;
+      }
+    }
+    new IntroSorter() {
+
+      private final BytesRef pivot = new BytesRef();
+      private final BytesRef scratch1 = new BytesRef();
+      private final BytesRef scratch2 = new BytesRef();
+
+      @Override
+      protected void swap(int i, int j) {
+        long tmp = refs[i];
+        refs[i] = refs[j];
+        refs[j] = tmp;
+      }
+
+      @Override
+      protected int compare(int i, int j) {
+        return get(hashes, refs[i], scratch1).compareTo(get(hashes, refs[j], scratch2));
+      }
+
+      @Override
+      protected void setPivot(int i) {
+        get(hashes, refs[i], pivot);
+      }
+
+      @Override
+      protected int comparePivot(int j) {
+        return pivot.compareTo(get(hashes, refs[j], scratch2));
+      }
+
+    }.sort(0, size);
+
+    // compute the shared prefixes in order to allocate the exact size
+    int[] prefixes = new int[size];
+    int sizeInBytes = HEADER_SIZE;
+    BytesRef previous = new BytesRef();
+    BytesRef current = new BytesRef();
+    for (int i = 0; i < size; i++) {
+      get(hashes, refs[i], current);
+      if (i % RESTART_INTERVAL != 0) {
+        prefixes[i] = StringHelper.bytesDifference(previous, current);
+      }
+      int suffix = current.length - prefixes[i];
+      sizeInBytes += Bytes.vIntSize(prefixes[i]) + Bytes.vIntSize(suffix) + suffix;
+      BytesRef tmp = previous;
+      previous = current;
+      current = tmp;
+    }
 
-    BytesRef bytes = new BytesRef(new byte[HEADER_SIZE + (int) bytesUsed.get()]);
+    BytesRef bytes = new BytesRef(new byte[sizeInBytes]);
 
     // Encode encoding type
     Bytes.writeInt(bytes, this.getEncoding().ordinal());
@@ -149,37 +412,108 @@ public class BytesRefTermsSet extends TermsSet {
     // Encode size of the set
     Bytes.writeInt(bytes, size);
 
-    // Encode longs
-    BytesRef reusable = new BytesRef();
-    for (int i = 0; i < this.set.size(); i++) {
-      this.set.get(i, reusable);
-      Bytes.writeBytesRef(reusable, bytes);
+    // Encode the shared prefix length, the suffix length and the suffix of each term
+    for (int i = 0; i < size; i++) {
+      get(hashes, refs[i], current);
+      int suffix = current.length - prefixes[i];
+      Bytes.writeVInt(bytes, prefixes[i]);
+      Bytes.writeVInt(bytes, suffix);
+      System.arraycopy(current.bytes, current.offset + prefixes[i], bytes.bytes, bytes.offset, suffix);
+      bytes.offset += suffix;
     }
 
-    logger.debug("Serialized {} terms - took {} ms", this.size(), (System.nanoTime() - start) / 1000000);
+    logger.debug("Serialized {} terms in {} bytes - took {} ms", size, sizeInBytes, (System.nanoTime() - start) / 1000000);
 
     bytes.length = bytes.offset;
     bytes.offset = 0;
     return bytes;
   }
 
-  private void readFromBytes(BytesRef bytes) {
-    // Read pruned flag
-    this.setIsPruned(bytes.bytes[bytes.offset++] == 1 ? true : false);
+  private static BytesRef get(BytesRefHash[] hashes, long ref, BytesRef term) {
+    return hashes[(int) (ref >>> 32)].get((int) ref, term);
+  }
 
-    // Read size fo the set
-    int size = Bytes.readInt(bytes);
+  private void readFromBytes(BytesRef bytes, boolean lookupOnly) {
+    this.readFrontCoded(bytes);
+    if (lookupOnly) {
+      return;
+    }
 
     // Read terms
     bytesUsed = Counter.newCounter();
     pool = new ByteBlockPool(new ByteBlockPool.DirectTrackingAllocator(bytesUsed));
     set = new BytesRefHash(pool);
 
-    BytesRef reusable = new BytesRef();
-    for (int i = 0; i < size; i++) {
-      Bytes.readBytesRef(bytes, reusable);
-      set.add(reusable);
+    SortedTermsIterator it = new SortedTermsIterator(0);
+    for (BytesRef term = it.next(); term != null; term = it.next()) {
+      set.add(term);
     }
+
+    // release the front-coded terms, the hash set is used instead
+    frontCodedTerms = null;
+    restarts = null;
+  }
+
+  /**
+   * Reads the front-coded terms and records the offsets of the restart points. The suffixes are skipped, not
+   * decoded.
+   */
+  private void readFrontCoded(BytesRef bytes) {
+    // Read pruned flag
+    this.setIsPruned(bytes.bytes[bytes.offset++] == 1 ? true : false);
+
+    // Read size fo the set
+    frontCodedSize = Bytes.readInt(bytes);
+
+    int base = bytes.offset;
+    restarts = new int[(frontCodedSize + RESTART_INTERVAL - 1) / RESTART_INTERVAL];
+    for (int i = 0; i < frontCodedSize; i++) {
+      if (i % RESTART_INTERVAL == 0) {
+        restarts[i / RESTART_INTERVAL] = bytes.offset - base;
+      }
+      Bytes.readVInt(bytes);
+      int suffix = Bytes.readVInt(bytes);
+      bytes.offset += suffix;
+    }
+    frontCodedTerms = new byte[bytes.offset - base];
+    System.arraycopy(bytes.bytes, base, frontCodedTerms, 0, frontCodedTerms.length);
+  }
+
+  /**
+   * Iterates over the front-coded terms in sorted order, starting from a restart point. The returned
+   * {@link BytesRef} is reused across calls.
+   */
+  public class SortedTermsIterator {
+
+    private final BytesRef in;
+    private final BytesRefBuilder term = new BytesRefBuilder();
+    private final int size;
+    private int upto;
+
+    private SortedTermsIterator(int restart) {
+      // keep the front-coded terms, which are discarded from the set once a term is added
+      this.in = new BytesRef(frontCodedTerms, restarts.length == 0 ? 0 : restarts[restart], 0);
+      this.size = frontCodedSize;
+      this.upto = restart * RESTART_INTERVAL;
+    }
+
+    /**
+     * Returns the next term, or null if there are no more terms.
+     */
+    public BytesRef next() {
+      if (upto >= size) {
+        return null;
+      }
+      int prefix = Bytes.readVInt(in);
+      int suffix = Bytes.readVInt(in);
+      term.grow(prefix + suffix);
+      System.arraycopy(in.bytes, in.offset, term.bytes(), prefix, suffix);
+      term.setLength(prefix + suffix);
+      in.offset += suffix;
+      upto++;
+      return term.get();
+    }
+
   }
 
   @Override
@@ -187,11 +521,45 @@ public class BytesRefTermsSet extends TermsSet {
     return TermsByQueryRequest.TermsEncoding.BYTES;
   }
 
+  @Override
+  public Iterator<TermsSet> chunks(final int chunkSize, final CircuitBreaker breaker) {
+    return new Iterator<TermsSet>() {
+
+      private int next = 0;
+
+      @Override
+      public boolean hasNext() {
+        return next < set.size();
+      }
+
+      @Override
+      public TermsSet next() {
+        int end = Math.min(next + chunkSize, set.size());
+        BytesRefTermsSet chunk = new BytesRefTermsSet(breaker);
+        chunk.setIsPruned(isPruned());
+        BytesRef reusable = new BytesRef();
+        for (; next < end; next++) {
+          set.get(next, reusable);
+          chunk.add(reusable);
+        }
+        return chunk;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+
+    };
+  }
+
   @Override
   public void release() {
     if (set != null) {
       set.close();
     }
+    frontCodedTerms = null;
+    restarts = null;
   }
 
 }
@@ -23,6 +23,7 @@ import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 
 import java.io.IOException;
+import java.util.List;
 
 /**
  * A stream over the search hits. This stream is low-level and operates on a segment-level.
@@ -46,6 +47,15 @@ public abstract class HitStream {
     this.searcher.search(query, this.collector);
   }
 
+  /**
+   * Splits the stream into one independent stream per atomic reader, so that the terms of each atomic reader
+   * can be collected concurrently. Must be called after {@link #initialize()}. Returns null if the stream
+   * cannot be split.
+   */
+  public List<HitStream> split() throws IOException {
+    return null;
+  }
+
   /**
    * Returns the total number of documents that the collector encountered.
    */
@@ -34,7 +34,7 @@ public class IntegerTermsCollector extends NumericTermsCollector {
 
   @Override
   protected NumericTermsSet newTermsSet(final int expectedElements, final CircuitBreaker breaker) {
-    return new IntegerTermsSet(expectedElements, breaker);
+    return new IntegerTermsSet(expectedElements, bigArrays, breaker);
   }
 
 }
@@ -18,9 +18,6 @@
  */
 package solutions.siren.join.action.terms.collector;
 
-import com.carrotsearch.hppc.BufferAllocationException;
-import com.carrotsearch.hppc.IntHashSet;
-import com.carrotsearch.hppc.IntScatterSet;
 import com.carrotsearch.hppc.cursors.IntCursor;
 import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.common.breaker.CircuitBreaker;
@@ -28,16 +25,18 @@ import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.util.BigArrays;
 import solutions.siren.join.action.terms.TermsByQueryRequest;
 import solutions.siren.join.common.Bytes;
 import solutions.siren.join.common.Math;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 
 public class IntegerTermsSet extends NumericTermsSet {
 
-  private transient IntHashSet set;
+  private transient PagedIntHashSet set;
 
   /**
    * The size of the header: four bytes for the terms encoding ordinal,
@@ -51,9 +50,17 @@ public class IntegerTermsSet extends NumericTermsSet {
     super(breaker);
   }
 
+  public IntegerTermsSet(final BigArrays bigArrays, final CircuitBreaker breaker) {
+    super(bigArrays, breaker);
+  }
+
   public IntegerTermsSet(final long expectedElements, final CircuitBreaker breaker) {
-    super(breaker);
-    this.set = new CircuitBreakerIntHashSet(Math.toIntExact(expectedElements));
+    this(expectedElements, BigArrays.NON_RECYCLING_INSTANCE, breaker);
+  }
+
+  public IntegerTermsSet(final long expectedElements, final BigArrays bigArrays, final CircuitBreaker breaker) {
+    super(bigArrays, breaker);
+    this.set = new PagedIntHashSet(Math.toIntExact(expectedElements), bigArrays, breaker);
   }
 
   /**
@@ -75,6 +82,17 @@ public class IntegerTermsSet extends NumericTermsSet {
     return this.set.contains((int) term);
   }
 
+  @Override
+  public long[] toSortedArray() {
+    long[] terms = new long[this.set.size()];
+    int i = 0;
+    for (IntCursor c : this.set) {
+      terms[i++] = c.value;
+    }
+    Arrays.sort(terms);
+    return terms;
+  }
+
   @Override
   protected void addAll(TermsSet terms) {
     if (!(terms instanceof IntegerTermsSet)) {
@@ -83,6 +101,20 @@ public class IntegerTermsSet extends NumericTermsSet {
     this.set.addAll(((IntegerTermsSet) terms).set);
   }
 
+  @Override
+  protected boolean addAll(TermsSet terms, int maxTerms) {
+    if (!(terms instanceof IntegerTermsSet)) {
+      throw new UnsupportedOperationException("Invalid type: IntegerTermsSet expected.");
+    }
+    for (IntCursor i : ((IntegerTermsSet) terms).set) {
+      if (this.set.size() >= maxTerms && !this.set.contains(i.value)) {
+        return false;
+      }
+      this.set.add(i.value);
+    }
+    return true;
+  }
+
   @Override
   public int size() {
     return this.set.size();
@@ -92,7 +124,7 @@ public class IntegerTermsSet extends NumericTermsSet {
   public void readFrom(StreamInput in) throws IOException {
     this.setIsPruned(in.readBoolean());
     int size = in.readInt();
-    set = new CircuitBreakerIntHashSet(size);
+    set = new PagedIntHashSet(size, bigArrays, breaker);
     for (long i = 0; i < size; i++) {
       set.add(in.readVInt());
     }
@@ -131,10 +163,40 @@ public class IntegerTermsSet extends NumericTermsSet {
     out.write(buffer.bytes, 0, buffer.offset);
   }
 
+  @Override
+  public long serializedSizeInBytes() {
+    return HEADER_SIZE + 5L * this.size();
+  }
+
   @Override
   public BytesRef writeToBytes() {
+    return this.writePartitionsToBytes(new TermsSet[] { this });
+  }
+
+  @Override
+  protected boolean isPartitionable() {
+    return true;
+  }
+
+  @Override
+  protected void addAll(TermsSet terms, int partition, int numPartitions) {
+    if (!(terms instanceof IntegerTermsSet)) {
+      throw new UnsupportedOperationException("Invalid type: IntegerTermsSet expected.");
+    }
+    for (IntCursor i : ((IntegerTermsSet) terms).set) {
+      if (partition(i.value, numPartitions) == partition) {
+        this.set.add(i.value);
+      }
+    }
+  }
+
+  @Override
+  protected BytesRef writePartitionsToBytes(TermsSet[] partitions) {
     long start = System.nanoTime();
-    int size = set.size();
+    int size = 0;
+    for (TermsSet partition : partitions) {
+      size += partition.size();
+    }
 
     BytesRef bytesRef = new BytesRef(new byte[HEADER_SIZE + size * 5]);
 
@@ -148,11 +210,13 @@ public class IntegerTermsSet extends NumericTermsSet {
     Bytes.writeInt(bytesRef, size);
 
     // Encode ints
-    for (IntCursor i : set) {
-      Bytes.writeVInt(bytesRef, i.value);
+    for (TermsSet partition : partitions) {
+      for (IntCursor i : ((IntegerTermsSet) partition).set) {
+        Bytes.writeVInt(bytesRef, i.value);
+      }
     }
 
-    logger.debug("Serialized {} terms - took {} ms", this.size(), (System.nanoTime() - start) / 1000000);
+    logger.debug("Serialized {} terms - took {} ms", size, (System.nanoTime() - start) / 1000000);
 
     bytesRef.length = bytesRef.offset;
     bytesRef.offset = 0;
@@ -167,12 +231,17 @@ public class IntegerTermsSet extends NumericTermsSet {
     int size = Bytes.readInt(bytesRef);
 
     // Read terms
-
-    // Scatter set is slightly more efficient than the hash set, but should be used only for lookups,
-    // not for merging
-    set = new IntScatterSet(size);
+    set = new PagedIntHashSet(size, bigArrays, breaker);
+    int minValue = Integer.MAX_VALUE;
+    int maxValue = Integer.MIN_VALUE;
     for (int i = 0; i < size; i++) {
-      set.add(Bytes.readVInt(bytesRef));
+      int term = Bytes.readVInt(bytesRef);
+      set.add(term);
+      minValue = java.lang.Math.min(minValue, term);
+      maxValue = java.lang.Math.max(maxValue, term);
+    }
+    if (size > 0) {
+      this.setBounds(minValue, maxValue);
     }
   }
 
@@ -182,57 +251,42 @@ public class IntegerTermsSet extends NumericTermsSet {
   }
 
   @Override
-  public void release() {
-    if (set != null) {
-      set.release();
-    }
-  }
+  public Iterator<TermsSet> chunks(final int chunkSize, final CircuitBreaker breaker) {
+    final Iterator<IntCursor> it = set.iterator();
+    return new Iterator<TermsSet>() {
 
-  /**
-   * A {@link IntHashSet} integrated with the {@link CircuitBreaker}. It will adjust the circuit breaker
-   * for every new call to {@link #allocateBuffers(int)}.
-   * <p>
-   * This set must not be reused after a call to {@link #release()}.
-   */
-  private final class CircuitBreakerIntHashSet extends IntHashSet {
-
-    public CircuitBreakerIntHashSet(int expectedElements) {
-      super(expectedElements);
-    }
+      private int remaining = set.size();
 
-    @Override
-    protected void allocateBuffers(int arraySize) {
-      long newMemSize = (arraySize + 1) * 4l; // array size + emtpyElementSlot
-      long oldMemSize = keys == null ? 0 : keys.length * 4l;
-
-      // Adjust the breaker with the new memory size
-      breaker.addEstimateBytesAndMaybeBreak(newMemSize, "<terms_set>");
-
-      try {
-        // Allocate the new buffer
-        super.allocateBuffers(arraySize);
-        // Adjust the breaker by removing old memory size
-        breaker.addWithoutBreaking(-oldMemSize);
+      @Override
+      public boolean hasNext() {
+        return remaining > 0;
       }
-      catch (BufferAllocationException e) {
-        // If the allocation failed, remove
-        breaker.addWithoutBreaking(-newMemSize);
+
+      @Override
+      public TermsSet next() {
+        int size = java.lang.Math.min(chunkSize, remaining);
+        IntegerTermsSet chunk = new IntegerTermsSet(size, bigArrays, breaker);
+        chunk.setIsPruned(isPruned());
+        for (int i = 0; i < size; i++) {
+          chunk.add(it.next().value);
+        }
+        remaining -= size;
+        return chunk;
       }
-    }
 
-    @Override
-    public void release() {
-      long memSize = keys == null ? 0 : keys.length * 4l;
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
 
-      // Release - do not allocate a new minimal buffer
-      assigned = 0;
-      hasEmptyKey = false;
-      keys = null;
+    };
+  }
 
-      // Adjust breaker
-      breaker.addWithoutBreaking(-memSize);
+  @Override
+  public void release() {
+    if (set != null) {
+      set.close();
     }
-
   }
 
 }
@@ -19,11 +19,11 @@
 package solutions.siren.join.action.terms.collector;
 
 import com.google.common.math.LongMath;
-import com.google.common.primitives.Ints;
 import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.util.LongArray;
 
 import java.math.RoundingMode;
-import java.util.Arrays;
 
 /**
  * A bloom filter. Inspired by Guava bloom filter implementation though with some optimizations.
@@ -52,6 +52,14 @@ public class LongBloomFilter {
     this(expectedInsertions, fpp, -1);
   }
 
+  /**
+   * Creates a bloom filter based on the expected number of insertions, expected false positive probability,
+   * and hashing.
+   */
+  LongBloomFilter(int expectedInsertions, double fpp, Hashing hashing) {
+    this(expectedInsertions, fpp, -1, hashing);
+  }
+
   /**
    * Creates a bloom filter based on the expected number of insertions, expected false positive probability,
    * and number of hash functions.
@@ -61,6 +69,10 @@ public class LongBloomFilter {
    * @param numHashFunctions   the number of hash functions to use (must be less than or equal to 255)
    */
   LongBloomFilter(int expectedInsertions, double fpp, int numHashFunctions) {
+    this(expectedInsertions, fpp, numHashFunctions, Hashing.DEFAULT);
+  }
+
+  private LongBloomFilter(int expectedInsertions, double fpp, int numHashFunctions, Hashing hashing) {
     if (expectedInsertions == 0) {
       expectedInsertions = 1;
     }
@@ -70,16 +82,16 @@ public class LongBloomFilter {
        * much of a point after all, e.g. optimalM(1000, 0.0000000000000001) = 76680
        * which is less that 10kb. Who cares!
        */
-    long numBits = optimalNumOfBits(expectedInsertions, fpp);
+    long numBits = hashing.numOfBits(expectedInsertions, fpp);
     this.bits = this.createBitArray(numBits);
 
     // calculate the optimal number of hash functions
     if (numHashFunctions == -1) {
-      numHashFunctions = optimalNumOfHashFunctions(expectedInsertions, numBits);
+      numHashFunctions = optimalNumOfHashFunctions(expectedInsertions, optimalNumOfBits(expectedInsertions, fpp));
     }
 
     this.numHashFunctions = numHashFunctions;
-    this.hashing = Hashing.DEFAULT;
+    this.hashing = hashing;
 
     /*
      * This only exists to forbid BFs that cannot use the compact persistent representation.
@@ -108,7 +120,8 @@ public class LongBloomFilter {
    * Removes all elements from the set and additionally releases any internal buffers.
    */
   protected void release() {
-    bits.data = new long[0];
+    bits.data.close();
+    bits.data = BigArrays.NON_RECYCLING_INSTANCE.newLongArray(0, false);
     bits.bitSize = 0;
     bits.bitCount = 0;
   }
@@ -124,7 +137,7 @@ public class LongBloomFilter {
    * @param other the other {@link LongBloomFilter} to merge with.
    */
   public void merge(LongBloomFilter other) {
-    if (bits.data.length != other.bits.data.length ||
+    if (bits.data.size() != other.bits.data.size() ||
         numHashFunctions != other.getNumHashFunctions() ||
         hashing.type() != other.hashing.type()) {
       throw new IllegalArgumentException("BloomFilters must have same size, number of hash functions, and hash type");
@@ -141,7 +154,7 @@ public class LongBloomFilter {
     return this.numHashFunctions;
   }
 
-  public int getSizeInBytes() {
+  public long getSizeInBytes() {
     return bits.ramBytesUsed();
   }
 
@@ -211,32 +224,39 @@ public class LongBloomFilter {
     return (long) (-n * Math.log(p) / (Math.log(2) * Math.log(2)));
   }
 
-  // Note: We use this instead of java.util.BitSet because we need access to the long[] data field
+  // Note: We use this instead of java.util.BitSet because we need access to the data field, which is a
+  // LongArray so that large filters are allocated on pages of BigArrays instead of a single contiguous array
   static final class BitArray {
 
-    long[] data;
+    LongArray data;
     long bitSize;
     long bitCount;
 
     BitArray(long bits) {
-      this(new long[Ints.checkedCast(LongMath.divide(bits, 64, RoundingMode.CEILING))]);
+      this(bits, BigArrays.NON_RECYCLING_INSTANCE);
+    }
+
+    BitArray(long bits, BigArrays bigArrays) {
+      this(bigArrays.newLongArray(LongMath.divide(bits, 64, RoundingMode.CEILING), true));
     }
 
     // Used by serialization
-    BitArray(long[] data) {
+    BitArray(LongArray data) {
       this.data = data;
       long bitCount = 0;
-      for (long value : data) {
-        bitCount += Long.bitCount(value);
+      for (long i = 0; i < data.size(); i++) {
+        bitCount += Long.bitCount(data.get(i));
       }
       this.bitCount = bitCount;
-      this.bitSize = data.length * Long.SIZE;
+      this.bitSize = data.size() * Long.SIZE;
     }
 
     /** Returns true if the bit changed value. */
     boolean set(long index) {
-      if (!get(index)) {
-        data[(int) (index >>> 6)] |= (1L << index);
+      long word = data.get(index >>> 6);
+      long mask = 1L << index;
+      if ((word & mask) == 0) {
+        data.set(index >>> 6, word | mask);
         bitCount++;
         return true;
       }
@@ -244,7 +264,7 @@ public class LongBloomFilter {
     }
 
     boolean get(long index) {
-      return (data[(int) (index >>> 6)] & (1L << index)) != 0;
+      return (data.get(index >>> 6) & (1L << index)) != 0;
     }
 
     /** Number of bits */
@@ -258,15 +278,20 @@ public class LongBloomFilter {
     }
 
     BitArray copy() {
-      return new BitArray(data.clone());
+      LongArray copy = BigArrays.NON_RECYCLING_INSTANCE.newLongArray(data.size(), false);
+      for (long i = 0; i < data.size(); i++) {
+        copy.set(i, data.get(i));
+      }
+      return new BitArray(copy);
     }
 
     /** Combines the two BitArrays using bitwise OR. */
     void putAll(BitArray array) {
       bitCount = 0;
-      for (int i = 0; i < data.length; i++) {
-        data[i] |= array.data[i];
-        bitCount += Long.bitCount(data[i]);
+      for (long i = 0; i < data.size(); i++) {
+        long word = data.get(i) | array.data.get(i);
+        data.set(i, word);
+        bitCount += Long.bitCount(word);
       }
     }
 
@@ -274,18 +299,31 @@ public class LongBloomFilter {
     public boolean equals(Object o) {
       if (o instanceof BitArray) {
         BitArray bitArray = (BitArray) o;
-        return Arrays.equals(data, bitArray.data);
+        if (data.size() != bitArray.data.size()) {
+          return false;
+        }
+        for (long i = 0; i < data.size(); i++) {
+          if (data.get(i) != bitArray.data.get(i)) {
+            return false;
+          }
+        }
+        return true;
       }
       return false;
     }
 
     @Override
     public int hashCode() {
-      return Arrays.hashCode(data);
+      int result = 1;
+      for (long i = 0; i < data.size(); i++) {
+        long element = data.get(i);
+        result = 31 * result + (int) (element ^ (element >>> 32));
+      }
+      return result;
     }
 
-    public int ramBytesUsed() {
-      return RamUsageEstimator.NUM_BYTES_LONG * data.length + RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + 16;
+    public long ramBytesUsed() {
+      return data.ramBytesUsed() + RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + 16;
     }
 
   }
@@ -330,19 +368,119 @@ public class LongBloomFilter {
       protected int type() {
         return 0;
       }
+    },
+
+    /**
+     * All the probes of a hash fall into a single block of 512 bits, i.e., one cache line, instead of being spread
+     * across the whole bit array. A lookup costs at most one or two cache misses, as the long array is not aligned
+     * on cache lines, instead of up to one per hash function. The hash is mixed first, since numeric terms are not
+     * hashed before being added.
+     * <br>
+     * The bits of a block are less evenly filled than the ones of the whole array, which increases the false
+     * positive probability. The number of bits is therefore increased until the expected false positive probability
+     * of the blocked layout meets the requested one.
+     */
+    BLOCKED() {
+      @Override
+      protected boolean put(long hash64, int numHashFunctions, BitArray bits) {
+        hash64 = fmix(hash64);
+        long block = block(hash64, bits);
+        int hash1 = (int) hash64;
+        int hash2 = (int) (hash64 >>> 16) | 1;
+
+        boolean bitsChanged = false;
+        for (int i = 0; i < numHashFunctions; i++) {
+          bitsChanged |= bits.set(block + ((hash1 + i * hash2) & (BLOCK_SIZE - 1)));
+        }
+        return bitsChanged;
+      }
+
+      @Override
+      protected boolean mightContain(long hash64, int numHashFunctions, BitArray bits) {
+        hash64 = fmix(hash64);
+        long block = block(hash64, bits);
+        int hash1 = (int) hash64;
+        int hash2 = (int) (hash64 >>> 16) | 1;
+
+        for (int i = 0; i < numHashFunctions; i++) {
+          if (!bits.get(block + ((hash1 + i * hash2) & (BLOCK_SIZE - 1)))) {
+            return false;
+          }
+        }
+        return true;
+      }
+
+      /**
+       * Returns the index of the first bit of the block of the hash, based on the 32 high bits of the hash.
+       */
+      private long block(long hash64, BitArray bits) {
+        long numBlocks = bits.data.size() / (BLOCK_SIZE / 64);
+        return ((hash64 >>> 32) * numBlocks >>> 32) * BLOCK_SIZE;
+      }
+
+      @Override
+      protected long numOfBits(long n, double p) {
+        int k = optimalNumOfHashFunctions(n, optimalNumOfBits(n, p));
+        long m = Math.max(optimalNumOfBits(n, p), BLOCK_SIZE);
+        for (int i = 0; i < 100; i++) {
+          m = LongMath.divide(m, BLOCK_SIZE, RoundingMode.CEILING) * BLOCK_SIZE;
+          if (fpp(n, m, k) <= p) {
+            break;
+          }
+          m += m / 50;
+        }
+        return m;
+      }
+
+      /**
+       * Computes the expected false positive probability of the blocked layout, the number of insertions in a
+       * block following a Poisson distribution.
+       */
+      private double fpp(long n, long m, int k) {
+        double lambda = (double) BLOCK_SIZE * n / m;
+        if (lambda > 500) { // the probability mass function underflows
+          return 1;
+        }
+        double pmf = Math.exp(-lambda);
+        double fpp = 0;
+        for (int x = 0; x < lambda + 10 * Math.sqrt(lambda) + 10; x++) {
+          fpp += pmf * Math.pow(1 - Math.pow(1 - 1.0 / BLOCK_SIZE, (double) k * x), k);
+          pmf *= lambda / (x + 1);
+        }
+        return fpp;
+      }
+
+      @Override
+      protected int type() {
+        return 1;
+      }
     };
 
+    /**
+     * The number of bits of a block of the {@link #BLOCKED} hashing: a cache line of 64 bytes.
+     */
+    private static final int BLOCK_SIZE = 512;
+
     protected abstract boolean put(long hash64, int numHashFunctions, BitArray bits);
 
     protected abstract boolean mightContain(long hash64, int numHashFunctions, BitArray bits);
 
     protected abstract int type();
 
-    public static final Hashing DEFAULT = Hashing.V0;
+    /**
+     * Computes the number of bits expected to achieve the false positive probability for the number of insertions.
+     */
+    protected long numOfBits(long n, double p) {
+      return optimalNumOfBits(n, p);
+    }
+
+    public static final Hashing DEFAULT = Hashing.BLOCKED;
 
     public static Hashing fromType(int type) {
       if (type == 0) {
         return Hashing.V0;
+      } else if (type == 1) {
+        return Hashing.BLOCKED;
       } else {
         throw new IllegalArgumentException("no hashing type matching " + type);
       }
@@ -34,7 +34,7 @@ public class LongTermsCollector extends NumericTermsCollector {
 
   @Override
   protected NumericTermsSet newTermsSet(final int expectedElements, final CircuitBreaker breaker) {
-    return new LongTermsSet(expectedElements, breaker);
+    return new LongTermsSet(expectedElements, bigArrays, breaker);
   }
 
 }
@@ -18,26 +18,55 @@
  */
 package solutions.siren.join.action.terms.collector;
 
-import com.carrotsearch.hppc.BufferAllocationException;
-import com.carrotsearch.hppc.LongHashSet;
-import com.carrotsearch.hppc.LongScatterSet;
 import com.carrotsearch.hppc.cursors.LongCursor;
 import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.util.BigArrays;
 import solutions.siren.join.action.terms.TermsByQueryRequest;
 import solutions.siren.join.common.Math;
 import solutions.siren.join.common.Bytes;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 
 public class LongTermsSet extends NumericTermsSet {
 
-  private transient LongHashSet set;
+  private transient PagedLongHashSet set;
+
+  /**
+   * The sorted terms of a lookup-only set, used instead of {@link #set}.
+   */
+  private transient long[] sortedTerms;
+
+  /**
+   * The tables of a lookup-only set decoded in parallel, each one holding the terms of a partition, used instead
+   * of {@link #set}.
+   */
+  private transient PagedLongHashSet[] partitions;
+
+  /**
+   * The runs of terms spilled to disk, if spilling is enabled.
+   */
+  private transient LongTermsSpill spill;
+
+  /**
+   * The exact number of terms of a spilled set, once all its terms have been spilled, or -1.
+   */
+  private transient int spilledSize = -1;
 
   /**
    * The size of the header: four bytes for the terms encoding ordinal,
@@ -45,6 +74,28 @@ public class LongTermsSet extends NumericTermsSet {
    */
   private static final int HEADER_SIZE = 9;
 
+  /**
+   * The number of deltas per block. Each block of deltas is bit-packed with its own frame of reference.
+   */
+  private static final int BLOCK_SIZE = 128;
+
+  /**
+   * The minimum number of terms above which a lookup-only set keeps the sorted terms and performs a binary search,
+   * instead of building a hash set twice as large.
+   */
+  private static final int SORTED_LOOKUP_MIN_SIZE = 1 << 20;
+
+  /**
+   * The minimum number of terms above which a set is decoded in parallel, if an executor is provided.
+   */
+  private static final int PARALLEL_DECODE_MIN_SIZE = 1 << 17;
+
+  /**
+   * The minimum number of terms in the table for spilling them to disk when the table cannot grow. Below, the
+   * circuit breaker exception is thrown since spilling would not free enough memory.
+   */
+  private static final int SPILL_MIN_SIZE = 1 << 10;
+
   private static final ESLogger logger = Loggers.getLogger(LongTermsSet.class);
 
   /**
@@ -54,17 +105,53 @@ public class LongTermsSet extends NumericTermsSet {
     super(breaker);
   }
 
+  /**
+   * Constructor used by {@link solutions.siren.join.action.terms.TermsByQueryShardResponse}, the deserialized set
+   * is allocated on pages of the given {@link BigArrays}.
+   */
+  public LongTermsSet(final BigArrays bigArrays, final CircuitBreaker breaker) {
+    super(bigArrays, breaker);
+  }
+
   @Override
   protected void addAll(TermsSet terms) {
     if (!(terms instanceof LongTermsSet)) {
       throw new UnsupportedOperationException("Invalid type: LongTermSet expected.");
     }
-    this.set.addAll(((LongTermsSet) terms).set);
+    LongTermsSet other = (LongTermsSet) terms;
+    if (spill == null && !other.isSpilled()) {
+      this.set.addAll(other.set);
+      return;
+    }
+    Iterator<LongCursor> it = other.terms();
+    while (it.hasNext()) {
+      this.add(it.next().value);
+    }
+  }
+
+  @Override
+  protected boolean addAll(TermsSet terms, int maxTerms) {
+    if (!(terms instanceof LongTermsSet)) {
+      throw new UnsupportedOperationException("Invalid type: LongTermSet expected.");
+    }
+    Iterator<LongCursor> it = ((LongTermsSet) terms).terms();
+    while (it.hasNext()) {
+      LongCursor i = it.next();
+      if (this.set.size() >= maxTerms && !this.set.contains(i.value)) {
+        return false;
+      }
+      this.set.add(i.value);
+    }
+    return true;
   }
 
   public LongTermsSet(final long expectedElements, final CircuitBreaker breakerService) {
-    super(breakerService);
-    this.set = new CircuitBreakerLongHashSet(Math.toIntExact(expectedElements));
+    this(expectedElements, BigArrays.NON_RECYCLING_INSTANCE, breakerService);
+  }
+
+  public LongTermsSet(final long expectedElements, final BigArrays bigArrays, final CircuitBreaker breakerService) {
+    super(bigArrays, breakerService);
+    this.set = new PagedLongHashSet(Math.toIntExact(expectedElements), bigArrays, breakerService);
   }
 
   /**
@@ -72,31 +159,197 @@ public class LongTermsSet extends NumericTermsSet {
    * Used in {@link solutions.siren.join.index.query.FieldDataTermsQuery}.
    */
   public LongTermsSet(BytesRef bytes) {
+    this(bytes, false);
+  }
+
+  /**
+   * Constructor based on a byte array containing the encoded set of terms. If <code>lookupOnly</code> is true,
+   * a large set keeps the sorted terms as decoded, and can only be used for lookups.
+   */
+  public LongTermsSet(BytesRef bytes, boolean lookupOnly) {
+    this(bytes, lookupOnly, null, 1);
+  }
+
+  /**
+   * Constructor based on a byte array containing the encoded set of terms, decoded for lookups only. If the set is
+   * large and an executor is provided, the blocks of terms are decoded in parallel by <code>parallelism</code>
+   * tasks, and the terms are hashed in parallel into as many partitions.
+   */
+  public LongTermsSet(BytesRef bytes, boolean lookupOnly, ExecutorService executor, int parallelism) {
     super(null);
-    this.readFromBytes(bytes);
+    this.readFromBytes(bytes, lookupOnly, executor, parallelism);
   }
 
   /**
    * Used by unit-tests
    */
-  public LongHashSet getLongHashSet() {
+  public PagedLongHashSet getLongHashSet() {
     return set;
   }
 
+  /**
+   * Enables the spilling of the terms to sorted runs when the table cannot grow without tripping the circuit
+   * breaker, see {@link LongTermsSpill}. Once spilled, the set can only be merged into another set, serialized or
+   * encoded, and its size is an upper bound until it is serialized or encoded.
+   */
+  @Override
+  public boolean enableSpill(Path directory) {
+    if (set == null) {
+      return false;
+    }
+    spill = new LongTermsSpill(directory);
+    return true;
+  }
+
   @Override
   public void add(long term) {
-    this.set.add(term);
+    if (spill == null) {
+      this.set.add(term);
+      return;
+    }
+    try {
+      this.set.add(term);
+    }
+    catch (CircuitBreakingException e) {
+      // the table is left unchanged when it fails to grow
+      if (spilledSize != -1 || this.set.size() < SPILL_MIN_SIZE) {
+        throw e;
+      }
+      this.spill();
+      this.set.add(term);
+    }
+  }
+
+  private boolean isSpilled() {
+    return spill != null && spill.hasRuns();
+  }
+
+  /**
+   * Moves the terms of the table to a new sorted run.
+   */
+  private void spill() {
+    long start = System.nanoTime();
+    long bytes = spill.spill(set);
+    this.addSpillStats(bytes, System.nanoTime() - start);
+  }
+
+  /**
+   * Spills the remaining terms of a spilled set once all the terms have been added, releases its table, and counts
+   * the distinct terms of the runs.
+   */
+  private void seal() {
+    if (spilledSize != -1) {
+      return;
+    }
+    this.spill();
+    set.close();
+    int size = 0;
+    for (Iterator<LongCursor> it = spill.iterator(); it.hasNext(); it.next()) {
+      size++;
+    }
+    spilledSize = size;
+  }
+
+  /**
+   * Returns an iterator over the terms, merged from the runs if the set has been spilled.
+   */
+  private Iterator<LongCursor> terms() {
+    if (this.isSpilled()) {
+      this.seal();
+      return spill.iterator();
+    }
+    return set.iterator();
   }
 
   @Override
   public boolean contains(long term) {
+    if (sortedTerms != null) {
+      return Arrays.binarySearch(sortedTerms, term) >= 0;
+    }
+    if (partitions != null) {
+      return partitions[partition(term, partitions.length)].contains(term);
+    }
     return this.set.contains(term);
   }
 
+  @Override
+  public long[] toSortedArray() {
+    if (sortedTerms != null) {
+      return sortedTerms;
+    }
+    long[] terms = new long[this.size()];
+    int i = 0;
+    if (partitions != null) {
+      for (PagedLongHashSet partition : partitions) {
+        for (LongCursor c : partition) {
+          terms[i++] = c.value;
+        }
+      }
+      Arrays.sort(terms);
+      return terms;
+    }
+    for (Iterator<LongCursor> it = this.terms(); it.hasNext();) {
+      terms[i++] = it.next().value;
+    }
+    if (i != terms.length) { // the size of a spilled set is an upper bound until sealed
+      terms = Arrays.copyOf(terms, i);
+    }
+    Arrays.sort(terms);
+    return terms;
+  }
 
+  @Override
+  protected boolean isPartitionable() {
+    return !this.isSpilled();
+  }
+
+  @Override
+  protected void addAll(TermsSet terms, int partition, int numPartitions) {
+    if (!(terms instanceof LongTermsSet)) {
+      throw new UnsupportedOperationException("Invalid type: LongTermSet expected.");
+    }
+    for (LongCursor i : ((LongTermsSet) terms).set) {
+      if (partition(i.value, numPartitions) == partition) {
+        this.set.add(i.value);
+      }
+    }
+  }
+
+  @Override
+  protected BytesRef writePartitionsToBytes(TermsSet[] partitions) {
+    int size = 0;
+    for (TermsSet partition : partitions) {
+      size += partition.size();
+    }
+    long[] terms = new long[size];
+    int i = 0;
+    for (TermsSet partition : partitions) {
+      for (LongCursor c : ((LongTermsSet) partition).set) {
+        terms[i++] = c.value;
+      }
+    }
+    return this.writeToBytes(terms);
+  }
 
   @Override
   public int size() {
+    if (sortedTerms != null) {
+      return sortedTerms.length;
+    }
+    if (partitions != null) {
+      int size = 0;
+      for (PagedLongHashSet partition : partitions) {
+        size += partition.size();
+      }
+      return size;
+    }
+    if (this.isSpilled()) {
+      if (spilledSize != -1) {
+        return spilledSize;
+      }
+      // the runs might share some terms
+      return (int) java.lang.Math.min(Integer.MAX_VALUE, spill.getNumTerms() + this.set.size());
+    }
     return this.set.size();
   }
 
@@ -104,10 +357,11 @@ public class LongTermsSet extends NumericTermsSet {
   public void readFrom(StreamInput in) throws IOException {
     this.setIsPruned(in.readBoolean());
     int size = in.readInt();
-    set = new CircuitBreakerLongHashSet(size);
+    set = new PagedLongHashSet(size, bigArrays, breaker);
     for (long i = 0; i < size; i++) {
       set.add(in.readLong());
     }
+    this.addSpillStats(in.readVLong(), in.readVLong());
   }
 
   /**
@@ -126,11 +380,11 @@ public class LongTermsSet extends NumericTermsSet {
     out.writeBoolean(this.isPruned());
 
     // Encode size of list
-    out.writeInt(set.size());
+    Iterator<LongCursor> it = this.terms();
+    out.writeInt(this.size());
 
     // Encode longs
     BytesRef buffer = new BytesRef(new byte[1024 * 8]);
-    Iterator<LongCursor> it = set.iterator();
     while (it.hasNext()) {
       Bytes.writeLong(buffer, it.next().value);
       if (buffer.offset == buffer.length) {
@@ -141,17 +395,117 @@ public class LongTermsSet extends NumericTermsSet {
 
     // flush the remaining bytes from the buffer
     out.write(buffer.bytes, 0, buffer.offset);
+
+    // Encode spill stats
+    out.writeVLong(this.getSpilledBytes());
+    out.writeVLong(this.getSpillTimeInNanos());
   }
 
+  /**
+   * Encodes the set of terms into a byte array. The terms are sorted, and the deltas between consecutive terms are
+   * bit-packed by blocks of {@link #BLOCK_SIZE}. Each block stores its minimum delta as frame of reference and the
+   * number of bits required to encode the remainder of each delta. This is much more compact than 8 bytes per term
+   * for clustered terms such as identifiers, and the deltas between sorted hashes still save a few bits per term.
+   * <br>
+   * The deltas are considered as unsigned longs, so that they can span the full range of longs.
+   * <br>
+   * The terms of a spilled set are encoded while merging its runs.
+   */
   @Override
   public BytesRef writeToBytes() {
+    if (this.isSpilled()) {
+      this.seal();
+      return this.writeToBytes(spilledSize, new SortedTerms() {
+
+        private Iterator<LongCursor> it;
+
+        @Override
+        void reset() {
+          it = spill.iterator();
+        }
+
+        @Override
+        long next() {
+          return it.next().value;
+        }
+
+      });
+    }
+    return this.writeToBytes(set.toArray());
+  }
+
+  /**
+   * Encodes the given distinct terms as described in {@link #writeToBytes()}. The array is sorted in place.
+   */
+  protected BytesRef writeToBytes(final long[] terms) {
+    Arrays.sort(terms);
+    return this.writeToBytes(terms.length, new SortedTerms() {
+
+      private int i;
+
+      @Override
+      void reset() {
+        i = 0;
+      }
+
+      @Override
+      long next() {
+        return terms[i++];
+      }
+
+    });
+  }
+
+  /**
+   * The distinct terms to encode in ascending order, read once to compute the size of the encoding and once to
+   * write it.
+   */
+  private static abstract class SortedTerms {
+
+    /**
+     * Positions the terms before the first one.
+     */
+    abstract void reset();
+
+    abstract long next();
+
+  }
+
+  private BytesRef writeToBytes(int size, SortedTerms terms) {
     long start = System.nanoTime();
-    int size = set.size();
 
-    BytesRef bytes = new BytesRef(new byte[HEADER_SIZE + 8 * size]);
+    // compute the frame of reference and the number of bits of each block in order to allocate the exact size
+    int numBlocks = (java.lang.Math.max(size - 1, 0) + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    long[] minDeltas = new long[numBlocks];
+    byte[] bitsPerValue = new byte[numBlocks];
+    long[] deltas = new long[BLOCK_SIZE];
+    int sizeInBytes = HEADER_SIZE + (size > 0 ? 8 : 0);
+    terms.reset();
+    long previous = size > 0 ? terms.next() : 0;
+    for (int b = 0; b < numBlocks; b++) {
+      int n = java.lang.Math.min(BLOCK_SIZE, size - 1 - b * BLOCK_SIZE);
+      long minDelta = -1L; // the maximum unsigned long
+      for (int i = 0; i < n; i++) {
+        long term = terms.next();
+        deltas[i] = term - previous;
+        previous = term;
+        if (deltas[i] + Long.MIN_VALUE < minDelta + Long.MIN_VALUE) { // unsigned comparison
+          minDelta = deltas[i];
+        }
+      }
+      long bits = 0;
+      for (int i = 0; i < n; i++) {
+        bits |= deltas[i] - minDelta;
+      }
+      minDeltas[b] = minDelta;
+      bitsPerValue[b] = (byte) (64 - Long.numberOfLeadingZeros(bits));
+      sizeInBytes += Bytes.vLongSize(minDelta) + 1 + (n * bitsPerValue[b] + 7) / 8;
+    }
 
-    // Encode encoding type
-    Bytes.writeInt(bytes, this.getEncoding().ordinal());
+    BytesRef bytes = new BytesRef(new byte[sizeInBytes]);
+
+    // Encode encoding type - subclasses reusing this encoding are decoded as a long terms set
+    Bytes.writeInt(bytes, TermsByQueryRequest.TermsEncoding.LONG.ordinal());
 
     // Encode flag
     bytes.bytes[bytes.offset++] = (byte) (this.isPruned() ? 1 : 0);
@@ -159,19 +513,40 @@ public class LongTermsSet extends NumericTermsSet {
     // Encode size of the set
     Bytes.writeInt(bytes, size);
 
-    // Encode longs
-    for (LongCursor i : set) {
-      Bytes.writeLong(bytes, i.value);
+    // Encode the first term, then the blocks of deltas
+    terms.reset();
+    if (size > 0) {
+      previous = terms.next();
+      Bytes.writeLong(bytes, previous);
+    }
+    for (int b = 0; b < numBlocks; b++) {
+      int n = java.lang.Math.min(BLOCK_SIZE, size - 1 - b * BLOCK_SIZE);
+      Bytes.writeVLong(bytes, minDeltas[b]);
+      bytes.bytes[bytes.offset++] = bitsPerValue[b];
+      int bitOffset = 0;
+      for (int i = 0; i < n; i++) {
+        long term = terms.next();
+        long value = term - previous - minDeltas[b];
+        previous = term;
+        for (int remaining = bitsPerValue[b]; remaining > 0; ) {
+          int k = java.lang.Math.min(8 - (bitOffset & 7), remaining);
+          bytes.bytes[bytes.offset + (bitOffset >>> 3)] |= (byte) ((value & ((1L << k) - 1)) << (bitOffset & 7));
+          value >>>= k;
+          remaining -= k;
+          bitOffset += k;
+        }
+      }
+      bytes.offset += (bitOffset + 7) >>> 3;
     }
 
-    logger.debug("Serialized {} terms - took {} ms", this.size(), (System.nanoTime() - start) / 1000000);
+    logger.debug("Serialized {} terms in {} bytes - took {} ms", size, sizeInBytes, (System.nanoTime() - start) / 1000000);
 
     bytes.length = bytes.offset;
     bytes.offset = 0;
     return bytes;
   }
 
-  private void readFromBytes(BytesRef bytes) {
+  private void readFromBytes(BytesRef bytes, boolean lookupOnly, ExecutorService executor, int parallelism) {
     // Read pruned flag
     this.setIsPruned(bytes.bytes[bytes.offset++] == 1 ? true : false);
 
@@ -179,73 +554,241 @@ public class LongTermsSet extends NumericTermsSet {
     int size = Bytes.readInt(bytes);
 
     // Read terms
+    long[] terms = new long[size];
+    if (size > 0) {
+      terms[0] = Bytes.readLong(bytes);
+    }
+    boolean isParallel = lookupOnly && executor != null && parallelism > 1 && size >= PARALLEL_DECODE_MIN_SIZE;
+    if (isParallel) {
+      this.readBlocksInParallel(bytes, terms, executor, parallelism);
+    }
+    else {
+      for (int from = 1; from < size; from += BLOCK_SIZE) {
+        readBlock(bytes, terms, from, java.lang.Math.min(from + BLOCK_SIZE, size), terms[from - 1]);
+      }
+    }
+
+    // the terms are decoded in ascending order
+    if (size > 0) {
+      this.setBounds(terms[0], terms[size - 1]);
+    }
+
+    if (lookupOnly && size >= SORTED_LOOKUP_MIN_SIZE) {
+      sortedTerms = terms;
+      return;
+    }
 
-    // Scatter set is slightly more efficient than the hash set, but should be used only for lookups,
-    // not for merging
-    set = new LongScatterSet(size);
+    if (isParallel) {
+      this.hashInParallel(terms, executor, parallelism);
+      return;
+    }
+
+    set = new PagedLongHashSet(size, bigArrays, breaker);
     for (int i = 0; i < size; i++) {
-      set.add(Bytes.readLong(bytes));
+      set.add(terms[i]);
     }
   }
 
-  @Override
-  public TermsByQueryRequest.TermsEncoding getEncoding() {
-    return TermsByQueryRequest.TermsEncoding.LONG;
+  /**
+   * Decodes the block of deltas at the offset of the given bytes into <code>terms[from, to)</code>, the first
+   * delta being relative to <code>previous</code>, and moves the offset to the next block.
+   */
+  private static void readBlock(BytesRef bytes, long[] terms, int from, int to, long previous) {
+    long minDelta = Bytes.readVLong(bytes);
+    int bitsPerValue = bytes.bytes[bytes.offset++];
+    int bitOffset = 0;
+    for (int i = from; i < to; i++) {
+      long value = 0;
+      for (int read = 0; read < bitsPerValue; ) {
+        int n = java.lang.Math.min(8 - (bitOffset & 7), bitsPerValue - read);
+        long bits = (bytes.bytes[bytes.offset + (bitOffset >>> 3)] & 0xFF) >>> (bitOffset & 7);
+        value |= (bits & ((1L << n) - 1)) << read;
+        read += n;
+        bitOffset += n;
+      }
+      previous += minDelta + value;
+      terms[i] = previous;
+    }
+    bytes.offset += (bitOffset + 7) >>> 3;
   }
 
-  @Override
-  public void release() {
-    if (set != null) {
-      set.release();
+  /**
+   * Decodes the blocks of deltas in parallel. The offsets of the blocks are first located by reading their
+   * headers. Each task then decodes a range of consecutive blocks, its first delta being relative to 0. The terms
+   * of each range are finally shifted by the last term of the previous range.
+   */
+  private void readBlocksInParallel(final BytesRef bytes, final long[] terms, ExecutorService executor, int parallelism) {
+    final int size = terms.length;
+    final int numBlocks = (size - 1 + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    final int[] offsets = new int[numBlocks];
+    for (int b = 0; b < numBlocks; b++) {
+      offsets[b] = bytes.offset;
+      int n = java.lang.Math.min(BLOCK_SIZE, size - 1 - b * BLOCK_SIZE);
+      Bytes.readVLong(bytes);
+      int bitsPerValue = bytes.bytes[bytes.offset++];
+      bytes.offset += (n * bitsPerValue + 7) >>> 3;
+    }
+
+    final int blocksPerRange = (numBlocks + parallelism - 1) / parallelism;
+    final int numRanges = (numBlocks + blocksPerRange - 1) / blocksPerRange;
+    List<Callable<Void>> tasks = new ArrayList<>(numRanges);
+    for (int r = 0; r < numRanges; r++) {
+      final int fromBlock = r * blocksPerRange;
+      final int toBlock = java.lang.Math.min(fromBlock + blocksPerRange, numBlocks);
+      final long previous = r == 0 ? terms[0] : 0;
+      tasks.add(new Callable<Void>() {
+
+        @Override
+        public Void call() throws Exception {
+          BytesRef block = new BytesRef(bytes.bytes, offsets[fromBlock], bytes.bytes.length - offsets[fromBlock]);
+          long last = previous;
+          for (int b = fromBlock; b < toBlock; b++) {
+            int from = 1 + b * BLOCK_SIZE;
+            int to = java.lang.Math.min(from + BLOCK_SIZE, size);
+            readBlock(block, terms, from, to, last);
+            last = terms[to - 1];
+          }
+          return null;
+        }
+
+      });
     }
+    invokeAll(executor, tasks);
+
+    // the shift of a range is the last term of the previous range once shifted
+    final long[] shifts = new long[numRanges];
+    for (int r = 1; r < numRanges; r++) {
+      shifts[r] = terms[r * blocksPerRange * BLOCK_SIZE] + shifts[r - 1];
+    }
+    tasks.clear();
+    for (int r = 1; r < numRanges; r++) {
+      final int from = 1 + r * blocksPerRange * BLOCK_SIZE;
+      final int to = java.lang.Math.min(from + blocksPerRange * BLOCK_SIZE, size);
+      final long shift = shifts[r];
+      tasks.add(new Callable<Void>() {
+
+        @Override
+        public Void call() throws Exception {
+          for (int i = from; i < to; i++) {
+            terms[i] += shift;
+          }
+          return null;
+        }
+
+      });
+    }
+    invokeAll(executor, tasks);
   }
 
   /**
-   * A {@link LongHashSet} integrated with the {@link CircuitBreaker}. It will adjust the circuit breaker
-   * for every new call to {@link #allocateBuffers(int)}.
-   * <p>
-   * This set must not be reused after a call to {@link #release()}.
+   * Adds the terms in parallel into one table per partition, each task adding the terms of one partition.
    */
-  private final class CircuitBreakerLongHashSet extends LongHashSet {
+  private void hashInParallel(final long[] terms, ExecutorService executor, final int numPartitions) {
+    partitions = new PagedLongHashSet[numPartitions];
+    List<Callable<Void>> tasks = new ArrayList<>(numPartitions);
+    for (int i = 0; i < numPartitions; i++) {
+      final int partition = i;
+      partitions[partition] = new PagedLongHashSet(terms.length / numPartitions + 1, bigArrays, breaker);
+      tasks.add(new Callable<Void>() {
+
+        @Override
+        public Void call() throws Exception {
+          PagedLongHashSet set = partitions[partition];
+          for (long term : terms) {
+            if (partition(term, numPartitions) == partition) {
+              set.add(term);
+            }
+          }
+          return null;
+        }
+
+      });
+    }
+    try {
+      invokeAll(executor, tasks);
+    }
+    catch (Throwable t) {
+      this.release();
+      throw t;
+    }
+  }
 
-    public CircuitBreakerLongHashSet(int expectedElements) {
-      super(expectedElements);
+  /**
+   * Executes the tasks and waits for the completion of all of them before checking for failures.
+   */
+  private static void invokeAll(ExecutorService executor, List<Callable<Void>> tasks) {
+    try {
+      ParallelTasks.invokeAll(executor, tasks);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ElasticsearchException("[termsByQuery] Interrupted while decoding terms", e);
     }
+    catch (ExecutionException e) {
+      throw ExceptionsHelper.convertToRuntime(e.getCause());
+    }
+  }
+
+  @Override
+  public TermsByQueryRequest.TermsEncoding getEncoding() {
+    return TermsByQueryRequest.TermsEncoding.LONG;
+  }
+
+  @Override
+  public Iterator<TermsSet> chunks(final int chunkSize, final CircuitBreaker breaker) {
+    final Iterator<LongCursor> it = this.terms();
+    return new Iterator<TermsSet>() {
 
-    @Override
-    protected void allocateBuffers(int arraySize) {
-      long newMemSize = (arraySize + 1) * 8l; // array size + emptyElementSlot
-      long oldMemSize = keys == null ? 0 : keys.length * 8l;
+      private int remaining = LongTermsSet.this.size();
 
-      // Adjust the breaker with the new memory size
-      breaker.addEstimateBytesAndMaybeBreak(newMemSize, "<terms_set>");
+      private boolean isFirst = true;
 
-      try {
-        // Allocate the new buffer
-        super.allocateBuffers(arraySize);
-        // Adjust the breaker by removing old memory size
-        breaker.addWithoutBreaking(-oldMemSize);
+      @Override
+      public boolean hasNext() {
+        return remaining > 0;
       }
-      catch (BufferAllocationException e) {
-        // If the allocation failed, remove
-        breaker.addWithoutBreaking(-newMemSize);
-        throw e;
+
+      @Override
+      public TermsSet next() {
+        int size = java.lang.Math.min(chunkSize, remaining);
+        LongTermsSet chunk = new LongTermsSet(size, bigArrays, breaker);
+        chunk.setIsPruned(isPruned());
+        if (isFirst) { // the first chunk reports the spill stats of the set
+          chunk.addSpillStats(getSpilledBytes(), getSpillTimeInNanos());
+          isFirst = false;
+        }
+        for (int i = 0; i < size; i++) {
+          chunk.add(it.next().value);
+        }
+        remaining -= size;
+        return chunk;
       }
-    }
 
-    @Override
-    public void release() {
-      long memSize = keys == null ? 0 : keys.length * 8l;
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
 
-      // Release - do not allocate a new minimal buffer
-      assigned = 0;
-      hasEmptyKey = false;
-      keys = null;
+    };
+  }
 
-      // Adjust breaker
-      breaker.addWithoutBreaking(-memSize);
+  @Override
+  public void release() {
+    if (set != null) {
+      set.close();
     }
-
+    if (spill != null) {
+      spill.close();
+    }
+    if (partitions != null) {
+      for (PagedLongHashSet partition : partitions) {
+        if (partition != null) {
+          partition.close();
+        }
+      }
+      partitions = null;
+    }
+    sortedTerms = null;
   }
 
 }
@@ -0,0 +1,238 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms.collector;
+
+import com.carrotsearch.hppc.cursors.LongCursor;
+import org.apache.lucene.util.PriorityQueue;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The sorted runs of terms spilled to disk by a {@link LongTermsSet} whose table cannot grow without tripping the
+ * circuit breaker. Each run is a temporary file holding distinct terms in ascending order, written by
+ * {@link PagedLongHashSet#drainSortedTo(java.io.DataOutput)}. The runs are read through memory-mapped windows, and
+ * merged on the fly into a single ascending sequence of distinct terms by {@link #iterator()}, so that the terms
+ * can be encoded without being loaded on the heap.
+ * <br>
+ * The files are deleted by {@link #close()}.
+ */
+public class LongTermsSpill implements Iterable<LongCursor>, Releasable {
+
+  private static final String FILE_PREFIX = "siren-terms-";
+
+  private static final String FILE_SUFFIX = ".run";
+
+  private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+  /**
+   * The size of the window of a run mapped in memory at once, a multiple of 8.
+   */
+  private static final long MAP_WINDOW_SIZE = 1L << 27;
+
+  private static final ESLogger logger = Loggers.getLogger(LongTermsSpill.class);
+
+  private final Path directory;
+
+  private final List<Path> runs = new ArrayList<>();
+
+  private long numTerms;
+
+  public LongTermsSpill(Path directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Returns true if some terms have been spilled to disk.
+   */
+  public boolean hasRuns() {
+    return !runs.isEmpty();
+  }
+
+  /**
+   * Returns the number of terms written to the runs. A term might be written to several runs.
+   */
+  public long getNumTerms() {
+    return numTerms;
+  }
+
+  /**
+   * Writes the terms of the set to a new sorted run, and removes them from the set.
+   *
+   * @return the number of bytes written
+   */
+  public long spill(PagedLongHashSet set) {
+    if (set.size() == 0) {
+      return 0;
+    }
+    Path path = null;
+    try {
+      path = Files.createTempFile(directory, FILE_PREFIX, FILE_SUFFIX);
+      int size;
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), WRITE_BUFFER_SIZE))) {
+        size = set.drainSortedTo(out);
+      }
+      runs.add(path);
+      numTerms += size;
+      logger.debug("Spilled {} terms to {}", size, path);
+      return size * 8L;
+    }
+    catch (IOException e) {
+      if (path != null) {
+        deleteRun(path);
+      }
+      throw new ElasticsearchException("[termsByQuery] Failed to spill terms to [" + directory + "]", e);
+    }
+  }
+
+  /**
+   * Returns an iterator over the distinct terms of all the runs in ascending order.
+   */
+  @Override
+  public Iterator<LongCursor> iterator() {
+    final PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(runs.size()) {
+
+      @Override
+      protected boolean lessThan(RunReader a, RunReader b) {
+        return a.current < b.current;
+      }
+
+    };
+    for (Path path : runs) {
+      RunReader reader = new RunReader(path);
+      if (reader.next()) {
+        queue.add(reader);
+      }
+    }
+
+    return new Iterator<LongCursor>() {
+
+      private final LongCursor cursor = new LongCursor();
+      private boolean isFirst = true;
+
+      @Override
+      public boolean hasNext() {
+        // skip the duplicates of the last term across the runs
+        while (!isFirst && queue.size() > 0 && queue.top().current == cursor.value) {
+          this.advanceTop();
+        }
+        return queue.size() > 0;
+      }
+
+      @Override
+      public LongCursor next() {
+        if (!this.hasNext()) {
+          throw new NoSuchElementException();
+        }
+        cursor.value = queue.top().current;
+        isFirst = false;
+        this.advanceTop();
+        return cursor;
+      }
+
+      private void advanceTop() {
+        if (queue.top().next()) {
+          queue.updateTop();
+        }
+        else {
+          queue.pop();
+        }
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+
+    };
+  }
+
+  /**
+   * Deletes the runs.
+   */
+  @Override
+  public void close() {
+    for (Path path : runs) {
+      deleteRun(path);
+    }
+    runs.clear();
+  }
+
+  private static void deleteRun(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    }
+    catch (IOException e) {
+      logger.warn("Failed to delete spilled terms {}", e, path);
+    }
+  }
+
+  /**
+   * Reads the terms of a run sequentially, mapping one window of the file in memory at a time.
+   */
+  private static class RunReader {
+
+    private final Path path;
+    private long position = 0;
+    private long length = -1;
+    private ByteBuffer window;
+    private long current;
+
+    private RunReader(Path path) {
+      this.path = path;
+    }
+
+    private boolean next() {
+      if (window == null || !window.hasRemaining()) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+          if (length == -1) {
+            length = channel.size();
+          }
+          if (position == length) {
+            return false;
+          }
+          long size = java.lang.Math.min(MAP_WINDOW_SIZE, length - position);
+          window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+          position += size;
+        }
+        catch (IOException e) {
+          throw new ElasticsearchException("[termsByQuery] Failed to read spilled terms [" + path + "]", e);
+        }
+      }
+      current = window.getLong();
+      return true;
+    }
+
+  }
+
+}
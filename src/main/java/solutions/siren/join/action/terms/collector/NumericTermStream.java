@@ -18,7 +18,6 @@
  */
 package solutions.siren.join.action.terms.collector;
 
-import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.SortedNumericDocValues;
 import org.apache.lucene.util.BytesRef;
@@ -87,11 +86,10 @@ abstract class NumericTermStream extends TermStream {
 
     @Override
     protected void set(int atomicReaderId, int atomicDocId) {
-      // loading values from field data cache is costly,
-      // therefore we load values from cache only if new atomic reader id
+      // loading values from doc values or field data cache is costly,
+      // therefore we load values only if new atomic reader id
       if (lastAtomicReaderId != atomicReaderId) {
-        LeafReaderContext leafReader = reader.leaves().get(atomicReaderId);
-        this.values = this.fieldData.load(leafReader).getLongValues();
+        this.values = this.loadLongValues(atomicReaderId, this.fieldData);
       }
       this.values.setDocument(atomicDocId);
       this.count = 0;
@@ -127,11 +125,10 @@ abstract class NumericTermStream extends TermStream {
 
     @Override
     protected void set(int atomicReaderId, int atomicDocId) {
-      // loading values from field data cache is costly,
-      // therefore we load values from cache only if new atomic reader id
+      // loading values from doc values or field data cache is costly,
+      // therefore we load values only if new atomic reader id
       if (lastAtomicReaderId != atomicReaderId) {
-        LeafReaderContext leafReader = reader.leaves().get(atomicReaderId);
-        this.values = this.fieldData.load(leafReader).getBytesValues();
+        this.values = this.loadBytesValues(atomicReaderId, this.fieldData);
       }
       this.values.setDocument(atomicDocId);
       this.count = 0;
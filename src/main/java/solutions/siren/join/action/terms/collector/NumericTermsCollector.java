@@ -18,13 +18,12 @@
  */
 package solutions.siren.join.action.terms.collector;
 
-import com.carrotsearch.hppc.LongHashSet;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.common.breaker.CircuitBreaker;
 import org.elasticsearch.index.fielddata.IndexFieldData;
 import org.elasticsearch.search.internal.SearchContext;
 
-import java.io.IOException;
-
 /**
  * Collects numeric terms for a given field based on a {@link HitStream}.
  */
@@ -35,37 +34,44 @@ public abstract class NumericTermsCollector extends TermsCollector {
     super(indexFieldData, context, breaker);
   }
 
+  @Override
   protected abstract NumericTermsSet newTermsSet(final int expectedElements, final CircuitBreaker breaker);
 
   /**
-   * Collects the terms into a {@link LongHashSet}.
+   * Instantiates a consumer that adds the terms into a {@link NumericTermsSet}. If the field is backed by ordinals,
+   * the terms are deduplicated using the ordinals before being hashed, see {@link OrdinalsTermStream}.
    */
-  public NumericTermsSet collect(HitStream hitStream) throws IOException {
-    hitStream.initialize(); // initialise the stream
-    int nHits = hitStream.getHits();
-    NumericTermsSet terms = this.newTermsSet(this.expectedTerms != -1 ? this.expectedTerms : nHits, breaker);
-    try {
-      NumericTermStream reusableTermStream = NumericTermStream.get(context.searcher().getIndexReader(), indexFieldData);
+  @Override
+  protected TermsConsumer newTermsConsumer(final TermsSet termsSet) {
+    final NumericTermsSet numericTerms = (NumericTermsSet) termsSet;
+    IndexReader reader = context.searcher().getIndexReader();
 
-      while (terms.size() < this.maxTerms && hitStream.hasNext()) {
-        hitStream.next();
-        reusableTermStream = hitStream.getTermStream(reusableTermStream);
+    if (OrdinalsTermStream.isSupported(indexFieldData)) {
+      return new OrdinalsTermsConsumer(new OrdinalsTermStream(reader, indexFieldData), numericTerms) {
 
-        while (terms.size() < this.maxTerms && reusableTermStream.hasNext()) {
-          terms.add(reusableTermStream.next());
+        @Override
+        protected void add(BytesRef term) {
+          numericTerms.add(LongBloomFilter.hash3_x64_128(term.bytes, term.offset, term.length, 0));
         }
-      }
 
-      boolean isPruned = hitStream.getTotalHits() > hitStream.getHits();
-      isPruned |= this.maxTerms < nHits;
-      terms.setIsPruned(isPruned);
-      return terms;
-    }
-    catch (Throwable t) {
-      // If something happens during the term collection, release the terms set and adjust the circuit breaker
-      terms.release();
-      throw t;
+      };
     }
+
+    final NumericTermStream reusableTermStream = NumericTermStream.get(reader, indexFieldData);
+    return new TermsConsumer(reusableTermStream, numericTerms) {
+
+      @Override
+      protected void consume(int atomicReaderId, int atomicDocId) {
+        reusableTermStream.set(atomicReaderId, atomicDocId);
+        while (!this.isFull() && reusableTermStream.hasNext()) {
+          numericTerms.add(reusableTermStream.next());
+        }
+        if (reusableTermStream.hasNext()) { // some terms of the document were left out
+          numericTerms.setIsPruned(true);
+        }
+      }
+
+    };
   }
 
 }
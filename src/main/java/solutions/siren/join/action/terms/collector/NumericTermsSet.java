@@ -19,18 +19,66 @@
 package solutions.siren.join.action.terms.collector;
 
 import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.util.BigArrays;
 
 /**
  * A set of numeric terms.
  */
 public abstract class NumericTermsSet extends TermsSet {
 
+  /**
+   * The big arrays used to allocate the pages of the set, see {@link PagedLongHashSet}.
+   */
+  protected final BigArrays bigArrays;
+
+  /**
+   * The bounds of the terms of a set decoded from a byte array, if known.
+   */
+  private long minValue = Long.MIN_VALUE;
+  private long maxValue = Long.MAX_VALUE;
+
   protected NumericTermsSet(final CircuitBreaker breaker) {
+    this(BigArrays.NON_RECYCLING_INSTANCE, breaker);
+  }
+
+  protected NumericTermsSet(final BigArrays bigArrays, final CircuitBreaker breaker) {
     super(breaker);
+    this.bigArrays = bigArrays;
   }
 
   public abstract void add(long term);
 
   public abstract boolean contains(long term);
 
+  /**
+   * Returns the terms of the set in ascending order, or null if the terms cannot be enumerated. The returned array
+   * might be shared with the set and must not be modified. Used by
+   * {@link solutions.siren.join.index.query.FieldDataTermsQuery} to seek the terms in the terms dictionary of a
+   * segment.
+   */
+  public long[] toSortedArray() {
+    return null;
+  }
+
+  /**
+   * Returns the minimum term of a set decoded from a byte array, or {@link Long#MIN_VALUE} if unknown. Used by
+   * {@link solutions.siren.join.index.query.FieldDataTermsQuery} to skip the segments whose values are all
+   * out of the bounds of the set.
+   */
+  public long getMinValue() {
+    return minValue;
+  }
+
+  /**
+   * Returns the maximum term of a set decoded from a byte array, or {@link Long#MAX_VALUE} if unknown.
+   */
+  public long getMaxValue() {
+    return maxValue;
+  }
+
+  protected void setBounds(long minValue, long maxValue) {
+    this.minValue = minValue;
+    this.maxValue = maxValue;
+  }
+
 }
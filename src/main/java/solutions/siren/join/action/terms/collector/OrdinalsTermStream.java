@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms.collector;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.RandomAccessOrds;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LongBitSet;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.index.fielddata.IndexOrdinalsFieldData;
+
+/**
+ * A stream of distinct terms for an ordinal-backed field. Instead of streaming the terms of each document,
+ * the ordinals of the documents of a segment are first marked in a bit set over the ordinal space of the segment
+ * with {@link HitStream#getTermStream(TermStream)}. The distinct terms of the segment are then streamed in
+ * ordinal order with {@link #hasNext()} and {@link #next()}, so that each distinct term is looked up only once.
+ * <br>
+ * The marked terms must be consumed before moving to the next segment, see {@link #isNewSegment(int)}.
+ */
+class OrdinalsTermStream extends TermStream {
+
+  private final IndexOrdinalsFieldData fieldData;
+  private int lastAtomicReaderId = -1;
+  private RandomAccessOrds values;
+  private long valueCount;
+  private LongBitSet ordinals;
+  private long cursor;
+
+  /**
+   * Returns true if the field is backed by ordinals.
+   */
+  static boolean isSupported(IndexFieldData indexFieldData) {
+    return indexFieldData instanceof IndexOrdinalsFieldData;
+  }
+
+  protected OrdinalsTermStream(IndexReader reader, IndexFieldData indexFieldData) {
+    super(reader);
+    this.fieldData = (IndexOrdinalsFieldData) indexFieldData;
+  }
+
+  /**
+   * Returns true if the given atomic reader is different from the one of the marked ordinals. In this case,
+   * the marked terms must be consumed before calling {@link #set(int, int)} for the new atomic reader.
+   */
+  public boolean isNewSegment(int atomicReaderId) {
+    return lastAtomicReaderId != -1 && lastAtomicReaderId != atomicReaderId;
+  }
+
+  /**
+   * Marks the ordinals of the given document.
+   */
+  @Override
+  protected void set(int atomicReaderId, int atomicDocId) {
+    if (lastAtomicReaderId != atomicReaderId) {
+      this.values = this.loadOrdinals(atomicReaderId, this.fieldData);
+      this.reset(values.getValueCount());
+      this.lastAtomicReaderId = atomicReaderId;
+    }
+    this.values.setDocument(atomicDocId);
+    for (int i = 0; i < this.values.cardinality(); i++) {
+      this.ordinals.set(this.values.ordAt(i));
+    }
+  }
+
+  /**
+   * Clears the ordinals of the previous segment, and resizes the bit set if necessary.
+   */
+  private void reset(long valueCount) {
+    if (this.ordinals == null || this.ordinals.length() < valueCount) {
+      this.ordinals = new LongBitSet(valueCount);
+    }
+    else if (this.valueCount > 0) {
+      this.ordinals.clear(0, this.valueCount);
+    }
+    this.valueCount = valueCount;
+    this.cursor = 0;
+  }
+
+  /**
+   * Returns true if there is at least one remaining distinct term marked in the segment.
+   */
+  public boolean hasNext() {
+    if (this.cursor >= this.valueCount) {
+      return false;
+    }
+    long ordinal = this.ordinals.nextSetBit(this.cursor);
+    this.cursor = ordinal == -1 ? this.valueCount : ordinal;
+    return ordinal != -1;
+  }
+
+  /**
+   * Move to the next distinct term, and returns it. The returned {@link BytesRef} might be reused.
+   */
+  public BytesRef next() {
+    return this.values.lookupOrd(this.cursor++);
+  }
+
+}
@@ -0,0 +1,349 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms.collector;
+
+import com.carrotsearch.hppc.BitMixer;
+import com.carrotsearch.hppc.cursors.LongCursor;
+import org.apache.lucene.util.IntroSorter;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.util.LongArray;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A hash set of longs with open addressing and linear probing, whose keys are stored in a {@link LongArray}
+ * allocated by {@link BigArrays}. A large table is split into fixed-size pages, recycled if the {@link BigArrays}
+ * is, instead of a single contiguous array: growing a large set does not require humongous allocations, and the
+ * pages are returned to the recycler by {@link #close()}.
+ * <br>
+ * If a {@link CircuitBreaker} is provided, it is adjusted with the exact memory of the allocated tables under the
+ * <code>&lt;terms_set&gt;</code> label. The {@link BigArrays} should therefore not be attached to a circuit breaker
+ * itself, otherwise the memory would be accounted twice.
+ * <br>
+ * The key 0 marks an empty slot, and is tracked by a separate flag. Each set mixes the hash of the keys with its own
+ * seed, so that adding the keys of a set in iteration order to another set does not degenerate into long probe
+ * sequences.
+ * <p>
+ * This set must not be reused after a call to {@link #close()}.
+ */
+public class PagedLongHashSet implements Iterable<LongCursor>, Releasable {
+
+  private static final float LOAD_FACTOR = 0.75f;
+
+  private static final int MIN_CAPACITY = 4;
+
+  private static final AtomicLong SEEDS = new AtomicLong();
+
+  private final BigArrays bigArrays;
+  private final CircuitBreaker breaker;
+  private final long seed;
+
+  private LongArray keys;
+  private long mask;
+  private long resizeAt;
+  private int assigned;
+  private boolean hasEmptyKey;
+
+  public PagedLongHashSet(int expectedElements, BigArrays bigArrays, CircuitBreaker breaker) {
+    this.bigArrays = bigArrays;
+    this.breaker = breaker;
+    this.seed = BitMixer.mix64(SEEDS.incrementAndGet());
+    this.allocateBuffers(capacity(expectedElements));
+  }
+
+  /**
+   * Returns the number of slots, a power of two, for the expected number of elements.
+   */
+  private static long capacity(long expectedElements) {
+    long capacity = (long) java.lang.Math.ceil(java.lang.Math.max(expectedElements, 1) / LOAD_FACTOR);
+    return java.lang.Math.max(MIN_CAPACITY, Long.highestOneBit(capacity - 1) << 1);
+  }
+
+  private long slot(long key) {
+    return BitMixer.mix64(key ^ seed) & mask;
+  }
+
+  /**
+   * Adds the key to the set.
+   *
+   * @return true if the key was not already in the set
+   */
+  public boolean add(long key) {
+    if (key == 0) {
+      boolean added = !hasEmptyKey;
+      hasEmptyKey = true;
+      return added;
+    }
+    long slot = this.slot(key);
+    long existing;
+    while ((existing = keys.get(slot)) != 0) {
+      if (existing == key) {
+        return false;
+      }
+      slot = (slot + 1) & mask;
+    }
+    if (assigned == resizeAt) {
+      this.allocateBuffers(keys.size() << 1);
+      slot = this.slot(key);
+      while (keys.get(slot) != 0) {
+        slot = (slot + 1) & mask;
+      }
+    }
+    keys.set(slot, key);
+    assigned++;
+    return true;
+  }
+
+  /**
+   * Adds all the keys of the other set.
+   */
+  public void addAll(PagedLongHashSet other) {
+    for (LongCursor c : other) {
+      this.add(c.value);
+    }
+  }
+
+  public boolean contains(long key) {
+    if (key == 0) {
+      return hasEmptyKey;
+    }
+    long slot = this.slot(key);
+    long existing;
+    while ((existing = keys.get(slot)) != 0) {
+      if (existing == key) {
+        return true;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return false;
+  }
+
+  public int size() {
+    return assigned + (hasEmptyKey ? 1 : 0);
+  }
+
+  /**
+   * Returns the keys of the set in iteration order.
+   */
+  public long[] toArray() {
+    long[] array = new long[this.size()];
+    int i = 0;
+    for (LongCursor c : this) {
+      array[i++] = c.value;
+    }
+    return array;
+  }
+
+  /**
+   * Writes the keys in ascending order to the output, and removes them from the set. The keys are moved to the
+   * front of the table and sorted in place, so that no additional memory is required. The table keeps its capacity,
+   * so that the set can be filled again without growing.
+   *
+   * @return the number of keys written
+   */
+  public int drainSortedTo(DataOutput out) throws IOException {
+    int size = assigned;
+    long to = 0;
+    for (long i = 0; i < keys.size() && to < size; i++) {
+      long key = keys.get(i);
+      if (key != 0) {
+        keys.set(i, 0);
+        keys.set(to++, key);
+      }
+    }
+
+    new IntroSorter() {
+
+      private long pivot;
+
+      @Override
+      protected int compare(int i, int j) {
+        return Long.compare(keys.get(i), keys.get(j));
+      }
+
+      @Override
+      protected void swap(int i, int j) {
+        long tmp = keys.get(i);
+        keys.set(i, keys.get(j));
+        keys.set(j, tmp);
+      }
+
+      @Override
+      protected void setPivot(int i) {
+        pivot = keys.get(i);
+      }
+
+      @Override
+      protected int comparePivot(int j) {
+        return Long.compare(pivot, keys.get(j));
+      }
+
+    }.sort(0, size);
+
+    boolean writeEmptyKey = hasEmptyKey;
+    for (int i = 0; i < size; i++) {
+      long key = keys.get(i);
+      if (writeEmptyKey && key > 0) {
+        out.writeLong(0);
+        writeEmptyKey = false;
+      }
+      out.writeLong(key);
+    }
+    if (writeEmptyKey) {
+      out.writeLong(0);
+    }
+
+    keys.fill(0, size, 0);
+    int written = this.size();
+    assigned = 0;
+    hasEmptyKey = false;
+    return written;
+  }
+
+  /**
+   * Returns the memory used by the table of keys.
+   */
+  public long ramBytesUsed() {
+    return keys == null ? 0 : keys.ramBytesUsed();
+  }
+
+  /**
+   * Allocates a new table with the given number of slots and moves the keys of the current table into it. The
+   * circuit breaker is checked with the size of the new table before the allocation, then adjusted with the memory
+   * actually allocated, and the memory of the previous table once it is released.
+   */
+  private void allocateBuffers(long capacity) {
+    long estimate = capacity * 8;
+    if (breaker != null) {
+      breaker.addEstimateBytesAndMaybeBreak(estimate, "<terms_set>");
+    }
+
+    LongArray newKeys;
+    try {
+      newKeys = bigArrays.newLongArray(capacity, true);
+    }
+    catch (OutOfMemoryError e) {
+      // Ensure no change is done if we hit an OOM.
+      if (breaker != null) {
+        breaker.addWithoutBreaking(-estimate);
+      }
+      throw e;
+    }
+    if (breaker != null) {
+      breaker.addWithoutBreaking(newKeys.ramBytesUsed() - estimate);
+    }
+
+    LongArray oldKeys = keys;
+    keys = newKeys;
+    mask = capacity - 1;
+    resizeAt = java.lang.Math.min(capacity - 1, (long) java.lang.Math.ceil(capacity * LOAD_FACTOR));
+
+    if (oldKeys != null) {
+      for (long i = 0; i < oldKeys.size(); i++) {
+        long key = oldKeys.get(i);
+        if (key != 0) {
+          long slot = this.slot(key);
+          while (keys.get(slot) != 0) {
+            slot = (slot + 1) & mask;
+          }
+          keys.set(slot, key);
+        }
+      }
+      this.releaseBuffers(oldKeys);
+    }
+  }
+
+  private void releaseBuffers(LongArray array) {
+    long memSize = array.ramBytesUsed();
+    array.close();
+    if (breaker != null) {
+      breaker.addWithoutBreaking(-memSize);
+    }
+  }
+
+  /**
+   * Removes all the keys, and returns the pages of the table to the recycler.
+   */
+  @Override
+  public void close() {
+    if (keys != null) {
+      this.releaseBuffers(keys);
+      keys = null;
+    }
+    assigned = 0;
+    hasEmptyKey = false;
+  }
+
+  @Override
+  public Iterator<LongCursor> iterator() {
+    return new Iterator<LongCursor>() {
+
+      private final LongCursor cursor = new LongCursor();
+      private final long capacity = keys.size();
+      private long slot = -1;
+      private boolean emptyKeyReturned = !hasEmptyKey;
+
+      {
+        this.advance();
+      }
+
+      private void advance() {
+        slot++;
+        while (slot < capacity && keys.get(slot) == 0) {
+          slot++;
+        }
+      }
+
+      @Override
+      public boolean hasNext() {
+        return slot < capacity || !emptyKeyReturned;
+      }
+
+      @Override
+      public LongCursor next() {
+        if (slot < capacity) {
+          cursor.index = (int) slot;
+          cursor.value = keys.get(slot);
+          this.advance();
+          return cursor;
+        }
+        if (!emptyKeyReturned) {
+          emptyKeyReturned = true;
+          cursor.index = -1;
+          cursor.value = 0;
+          return cursor;
+        }
+        throw new NoSuchElementException();
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+
+    };
+  }
+
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms.collector;
+
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Executes a list of tasks in parallel on an executor, with the calling thread taking part in the execution.
+ * The tasks that could not be submitted, or that are not yet picked up by a worker of the executor, are executed
+ * by the calling thread. The calling thread therefore only waits for the tasks that are already running on a worker,
+ * and falls back to a serial execution if the executor rejects the tasks or cannot start its workers.
+ */
+final class ParallelTasks {
+
+  private ParallelTasks() {}
+
+  /**
+   * Executes the tasks and waits for the completion of all of them before checking for failures. Throws the
+   * failure of the first failed task in the order of the list.
+   */
+  static void invokeAll(ExecutorService executor, List<Callable<Void>> tasks) throws InterruptedException, ExecutionException {
+    List<FutureTask<Void>> futures = new ArrayList<>(tasks.size());
+    for (Callable<Void> task : tasks) {
+      futures.add(new FutureTask<>(task));
+    }
+
+    try {
+      // the first task is kept for the calling thread
+      for (int i = 1; i < futures.size(); i++) {
+        executor.execute(futures.get(i));
+      }
+    }
+    catch (RejectedExecutionException | EsRejectedExecutionException e) {
+      // the tasks that were not submitted are executed by the calling thread below
+    }
+
+    // a task already started by a worker is not executed a second time
+    for (FutureTask<Void> future : futures) {
+      future.run();
+    }
+
+    ExecutionException failure = null;
+    for (FutureTask<Void> future : futures) {
+      try {
+        future.get();
+      }
+      catch (ExecutionException e) {
+        if (failure == null) {
+          failure = e;
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+}
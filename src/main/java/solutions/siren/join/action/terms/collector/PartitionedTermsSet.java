@@ -0,0 +1,174 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms.collector;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.util.BigArrays;
+import solutions.siren.join.action.terms.TermsByQueryRequest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A set of terms split into disjoint partitions by hash, each partition being a set of the same encoding. The
+ * partitions are merged in parallel from the terms sets of the shards by {@link #merge(TermsSet[], long,
+ * TermsByQueryRequest.TermsEncoding, int, ExecutorService, BigArrays, CircuitBreaker)}, and encoded at once by
+ * {@link #writeToBytes()} with the same encoding as a single set holding all the terms.
+ * <br>
+ * The set can only be encoded into a byte array, it cannot be merged nor serialized to a stream.
+ */
+public class PartitionedTermsSet extends TermsSet {
+
+  private final TermsSet[] partitions;
+
+  private PartitionedTermsSet(TermsSet[] partitions, CircuitBreaker breaker) {
+    super(breaker);
+    this.partitions = partitions;
+  }
+
+  /**
+   * Merges the terms sets into <code>numPartitions</code> partitions, each partition being merged by a task of the
+   * executor. A task reads all the terms sets, and only adds the terms of its partition. Returns null if the terms
+   * sets cannot be partitioned. The terms sets are not released.
+   */
+  public static PartitionedTermsSet merge(final TermsSet[] termsSets, long expectedElements,
+                                          TermsByQueryRequest.TermsEncoding termsEncoding, final int numPartitions,
+                                          ExecutorService executor, BigArrays bigArrays, CircuitBreaker breaker) {
+    boolean isPruned = false;
+    for (TermsSet terms : termsSets) {
+      if (terms != null) {
+        if (!terms.isPartitionable()) {
+          return null;
+        }
+        isPruned |= terms.isPruned();
+      }
+    }
+
+    final TermsSet[] partitions = new TermsSet[numPartitions];
+    try {
+      // the terms are evenly distributed across the partitions
+      long partitionExpectedElements = expectedElements / numPartitions + 1;
+      for (int i = 0; i < numPartitions; i++) {
+        partitions[i] = TermsSet.newTermsSet(partitionExpectedElements, termsEncoding, bigArrays, breaker);
+      }
+
+      List<Callable<Void>> tasks = new ArrayList<>(numPartitions);
+      for (int i = 0; i < numPartitions; i++) {
+        final int partition = i;
+        tasks.add(new Callable<Void>() {
+
+          @Override
+          public Void call() throws Exception {
+            for (TermsSet terms : termsSets) {
+              if (terms != null) {
+                partitions[partition].addAll(terms, partition, numPartitions);
+              }
+            }
+            return null;
+          }
+
+        });
+      }
+
+      // wait for the completion of all the tasks before checking for failures, so that no task is still
+      // adding terms to a partition when we release them
+      ParallelTasks.invokeAll(executor, tasks);
+
+      PartitionedTermsSet termsSet = new PartitionedTermsSet(partitions, breaker);
+      termsSet.setIsPruned(isPruned);
+      return termsSet;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      release(partitions);
+      throw new ElasticsearchException("[termsByQuery] Interrupted while merging terms", e);
+    }
+    catch (ExecutionException e) {
+      release(partitions);
+      throw ExceptionsHelper.convertToRuntime(e.getCause());
+    }
+    catch (Throwable t) {
+      release(partitions);
+      throw t;
+    }
+  }
+
+  private static void release(TermsSet[] partitions) {
+    for (TermsSet partition : partitions) {
+      if (partition != null) {
+        partition.release();
+      }
+    }
+  }
+
+  @Override
+  protected void addAll(TermsSet terms) {
+    throw new UnsupportedOperationException("A partitioned terms set cannot be merged");
+  }
+
+  @Override
+  protected boolean addAll(TermsSet terms, int maxTerms) {
+    throw new UnsupportedOperationException("A partitioned terms set cannot be merged");
+  }
+
+  @Override
+  public int size() {
+    int size = 0;
+    for (TermsSet partition : partitions) {
+      size += partition.size();
+    }
+    return size;
+  }
+
+  @Override
+  public void readFrom(StreamInput in) throws IOException {
+    throw new UnsupportedOperationException("A partitioned terms set cannot be serialized");
+  }
+
+  @Override
+  public void writeTo(StreamOutput out) throws IOException {
+    throw new UnsupportedOperationException("A partitioned terms set cannot be serialized");
+  }
+
+  @Override
+  public BytesRef writeToBytes() {
+    partitions[0].setIsPruned(this.isPruned());
+    return partitions[0].writePartitionsToBytes(partitions);
+  }
+
+  @Override
+  public TermsByQueryRequest.TermsEncoding getEncoding() {
+    return partitions[0].getEncoding();
+  }
+
+  @Override
+  public void release() {
+    release(partitions);
+  }
+
+}
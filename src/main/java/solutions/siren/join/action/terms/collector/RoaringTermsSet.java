@@ -0,0 +1,694 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms.collector;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import solutions.siren.join.action.terms.TermsByQueryRequest;
+import solutions.siren.join.common.Bytes;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * A set of integer terms based on a roaring bitmap. The 32-bit space of integers is split into chunks of 2^16
+ * integers sharing the same 16 most significant bits. Each chunk is stored in a container: a sorted array of the
+ * 16 least significant bits when the chunk is sparse, or a bitmap of 2^16 bits when the chunk holds more than
+ * {@link #ARRAY_CONTAINER_MAX_SIZE} integers. This encoding is well suited to dense and clustered integer
+ * terms, e.g., incremental identifiers, for which it is much more compact than {@link IntegerTermsSet}.
+ */
+public class RoaringTermsSet extends NumericTermsSet {
+
+  /**
+   * The maximum cardinality of an array container, above which a bitmap container takes less memory.
+   */
+  static final int ARRAY_CONTAINER_MAX_SIZE = 4096;
+
+  /**
+   * The number of longs of a bitmap container.
+   */
+  private static final int BITMAP_CONTAINER_SIZE = 1 << 10;
+
+  /**
+   * The size of the header: 4 bytes for the terms encoding ordinal and 1 byte for the {@link #isPruned} flag.
+   */
+  private static final int HEADER_SIZE = 5;
+
+  /**
+   * The 16 most significant bits of each container, in ascending order.
+   */
+  private transient char[] keys;
+  private transient Container[] containers;
+  private transient int numContainers;
+  private transient int size;
+
+  /**
+   * The memory size accounted for in the circuit breaker.
+   */
+  private transient long memSize;
+
+  private static final ESLogger logger = Loggers.getLogger(RoaringTermsSet.class);
+
+  /**
+   * Constructor used by {@link solutions.siren.join.action.terms.TermsByQueryShardResponse}
+   */
+  public RoaringTermsSet(final CircuitBreaker breaker) {
+    super(breaker);
+  }
+
+  public RoaringTermsSet(final long expectedElements, final CircuitBreaker breaker) {
+    super(breaker);
+    // the containers are allocated lazily, the expected number of elements does not tell us how clustered they are
+    this.allocateContainers(4);
+  }
+
+  /**
+   * Constructor based on a byte array containing the encoded set of terms.
+   * Used in {@link solutions.siren.join.index.query.FieldDataTermsQuery}.
+   */
+  public RoaringTermsSet(BytesRef bytes) {
+    super(null);
+    this.readFromBytes(bytes);
+  }
+
+  @Override
+  public void add(long term) {
+    int i = (int) term;
+    char key = (char) (i >>> 16);
+    int index = this.indexOf(key);
+    Container container;
+    if (index < 0) {
+      index = -index - 1;
+      container = new ArrayContainer();
+      this.insertContainer(index, key, container);
+    }
+    else {
+      container = containers[index];
+    }
+
+    long oldMemSize = container.ramBytesUsed();
+    int oldCardinality = container.cardinality();
+    Container newContainer = container.add((char) i);
+    size += newContainer.cardinality() - oldCardinality;
+    containers[index] = newContainer;
+    this.adjustBreaker(newContainer.ramBytesUsed() - oldMemSize);
+  }
+
+  @Override
+  public boolean contains(long term) {
+    int i = (int) term;
+    int index = this.indexOf((char) (i >>> 16));
+    return index >= 0 && containers[index].contains((char) i);
+  }
+
+  @Override
+  public long[] toSortedArray() {
+    long[] terms = new long[size];
+    int i = 0;
+    // the negative integers come first in ascending order
+    int firstNegative = this.firstNegativeContainer();
+    for (int n = 0; n < numContainers; n++) {
+      int index = (firstNegative + n) % numContainers;
+      int high = keys[index] << 16;
+      for (char low : containers[index].toArray()) {
+        terms[i++] = high | low;
+      }
+    }
+    return terms;
+  }
+
+  /**
+   * Returns the index of the first container holding negative integers, or {@link #numContainers} if none. The
+   * containers are sorted by unsigned key, the negative integers having the largest keys.
+   */
+  private int firstNegativeContainer() {
+    int index = 0;
+    while (index < numContainers && keys[index] < 0x8000) {
+      index++;
+    }
+    return index;
+  }
+
+  @Override
+  protected void addAll(TermsSet terms) {
+    if (!(terms instanceof RoaringTermsSet)) {
+      throw new UnsupportedOperationException("Invalid type: RoaringTermsSet expected.");
+    }
+    RoaringTermsSet other = (RoaringTermsSet) terms;
+    for (int j = 0; j < other.numContainers; j++) {
+      int index = this.indexOf(other.keys[j]);
+      if (index < 0) {
+        Container container = other.containers[j].clone();
+        this.adjustBreaker(container.ramBytesUsed());
+        this.insertContainer(-index - 1, other.keys[j], container);
+        size += container.cardinality();
+      }
+      else {
+        Container container = containers[index];
+        long oldMemSize = container.ramBytesUsed();
+        int oldCardinality = container.cardinality();
+        Container newContainer = container.or(other.containers[j]);
+        containers[index] = newContainer;
+        size += newContainer.cardinality() - oldCardinality;
+        this.adjustBreaker(newContainer.ramBytesUsed() - oldMemSize);
+      }
+    }
+  }
+
+  @Override
+  protected boolean addAll(TermsSet terms, int maxTerms) {
+    if (!(terms instanceof RoaringTermsSet)) {
+      throw new UnsupportedOperationException("Invalid type: RoaringTermsSet expected.");
+    }
+    RoaringTermsSet other = (RoaringTermsSet) terms;
+    for (int j = 0; j < other.numContainers; j++) {
+      int high = other.keys[j] << 16;
+      for (char low : other.containers[j].toArray()) {
+        int term = high | low;
+        if (this.size >= maxTerms && !this.contains(term)) {
+          return false;
+        }
+        this.add(term);
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public void readFrom(StreamInput in) throws IOException {
+    this.setIsPruned(in.readBoolean());
+    int length = in.readVInt();
+    byte[] bytes = new byte[length];
+    in.readBytes(bytes, 0, length);
+    this.readContainers(new BytesRef(bytes));
+  }
+
+  @Override
+  public void writeTo(StreamOutput out) throws IOException {
+    // Encode flag
+    out.writeBoolean(this.isPruned());
+
+    // Encode the containers
+    BytesRef bytesRef = new BytesRef(new byte[this.containersSizeInBytes()]);
+    this.writeContainers(bytesRef);
+    out.writeVInt(bytesRef.offset);
+    out.writeBytes(bytesRef.bytes, 0, bytesRef.offset);
+  }
+
+  @Override
+  public long serializedSizeInBytes() {
+    return HEADER_SIZE + this.containersSizeInBytes();
+  }
+
+  @Override
+  public BytesRef writeToBytes() {
+    long start = System.nanoTime();
+
+    BytesRef bytesRef = new BytesRef(new byte[HEADER_SIZE + this.containersSizeInBytes()]);
+
+    // Encode encoding type
+    Bytes.writeInt(bytesRef, this.getEncoding().ordinal());
+
+    // Encode flag
+    bytesRef.bytes[bytesRef.offset++] = (byte) (this.isPruned() ? 1 : 0);
+
+    // Encode the containers
+    this.writeContainers(bytesRef);
+
+    logger.debug("Serialized {} terms in {} containers - took {} ms", this.size(), numContainers, (System.nanoTime() - start) / 1000000);
+
+    bytesRef.length = bytesRef.offset;
+    bytesRef.offset = 0;
+    return bytesRef;
+  }
+
+  private void readFromBytes(BytesRef bytesRef) {
+    // Read pruned flag
+    this.setIsPruned(bytesRef.bytes[bytesRef.offset++] == 1 ? true : false);
+
+    // Read the containers
+    this.readContainers(bytesRef);
+  }
+
+  /**
+   * Returns the number of bytes needed to encode the size, the number of containers and the containers.
+   */
+  private int containersSizeInBytes() {
+    int sizeInBytes = 8;
+    for (int i = 0; i < numContainers; i++) {
+      sizeInBytes += 4 + containers[i].sizeInBytes();
+    }
+    return sizeInBytes;
+  }
+
+  /**
+   * Encodes the size, the number of containers, then for each container its key, its cardinality and its content.
+   * The type of a container is implied by its cardinality.
+   */
+  private void writeContainers(BytesRef bytesRef) {
+    Bytes.writeInt(bytesRef, size);
+    Bytes.writeInt(bytesRef, numContainers);
+    for (int i = 0; i < numContainers; i++) {
+      writeChar(bytesRef, keys[i]);
+      // the cardinality of a container is between 1 and 2^16
+      writeChar(bytesRef, (char) (containers[i].cardinality() - 1));
+      containers[i].writeTo(bytesRef);
+    }
+  }
+
+  private void readContainers(BytesRef bytesRef) {
+    int size = Bytes.readInt(bytesRef);
+    int numContainers = Bytes.readInt(bytesRef);
+    this.allocateContainers(numContainers);
+    for (int i = 0; i < numContainers; i++) {
+      char key = readChar(bytesRef);
+      int cardinality = readChar(bytesRef) + 1;
+      Container container = cardinality > ARRAY_CONTAINER_MAX_SIZE ?
+              BitmapContainer.readFrom(bytesRef, cardinality) : ArrayContainer.readFrom(bytesRef, cardinality);
+      this.adjustBreaker(container.ramBytesUsed());
+      this.keys[i] = key;
+      this.containers[i] = container;
+    }
+    this.numContainers = numContainers;
+    this.size = size;
+
+    if (numContainers > 0) {
+      int firstNegative = this.firstNegativeContainer();
+      int minIndex = firstNegative < numContainers ? firstNegative : 0;
+      int maxIndex = firstNegative > 0 ? firstNegative - 1 : numContainers - 1;
+      char[] minValues = containers[minIndex].toArray();
+      char[] maxValues = containers[maxIndex].toArray();
+      this.setBounds((keys[minIndex] << 16) | minValues[0], (keys[maxIndex] << 16) | maxValues[maxValues.length - 1]);
+    }
+  }
+
+  @Override
+  public TermsByQueryRequest.TermsEncoding getEncoding() {
+    return TermsByQueryRequest.TermsEncoding.ROARING;
+  }
+
+  @Override
+  public Iterator<TermsSet> chunks(final int chunkSize, final CircuitBreaker breaker) {
+    return new Iterator<TermsSet>() {
+
+      private int container = 0;
+      private char[] values = new char[0];
+      private int offset = 0;
+      private int remaining = size;
+
+      @Override
+      public boolean hasNext() {
+        return remaining > 0;
+      }
+
+      @Override
+      public TermsSet next() {
+        int n = Math.min(chunkSize, remaining);
+        RoaringTermsSet chunk = new RoaringTermsSet(n, breaker);
+        chunk.setIsPruned(isPruned());
+        for (int i = 0; i < n; i++) {
+          if (offset == values.length) {
+            values = containers[container++].toArray();
+            offset = 0;
+          }
+          chunk.add((keys[container - 1] << 16) | values[offset++]);
+        }
+        remaining -= n;
+        return chunk;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+
+    };
+  }
+
+  @Override
+  public void release() {
+    keys = null;
+    containers = null;
+    numContainers = 0;
+    size = 0;
+    this.adjustBreaker(-memSize);
+  }
+
+  private int indexOf(char key) {
+    // fast path for terms added in ascending order
+    if (numContainers > 0 && keys[numContainers - 1] == key) {
+      return numContainers - 1;
+    }
+    return Arrays.binarySearch(keys, 0, numContainers, key);
+  }
+
+  private void allocateContainers(int capacity) {
+    long newMemSize = containersRamBytesUsed(capacity);
+    long oldMemSize = keys == null ? 0 : containersRamBytesUsed(keys.length);
+    this.adjustBreaker(newMemSize - oldMemSize);
+    this.keys = keys == null ? new char[capacity] : Arrays.copyOf(keys, capacity);
+    this.containers = containers == null ? new Container[capacity] : Arrays.copyOf(containers, capacity);
+  }
+
+  private void insertContainer(int index, char key, Container container) {
+    if (numContainers == keys.length) {
+      this.allocateContainers(Math.min(Math.max(4, keys.length * 2), 1 << 16));
+    }
+    System.arraycopy(keys, index, keys, index + 1, numContainers - index);
+    System.arraycopy(containers, index, containers, index + 1, numContainers - index);
+    keys[index] = key;
+    containers[index] = container;
+    numContainers++;
+  }
+
+  /**
+   * Adjusts the circuit breaker, if any, with the given difference of memory size.
+   */
+  private void adjustBreaker(long delta) {
+    if (breaker != null) {
+      if (delta > 0) {
+        breaker.addEstimateBytesAndMaybeBreak(delta, "<terms_set>");
+      }
+      else {
+        breaker.addWithoutBreaking(delta);
+      }
+    }
+    memSize += delta;
+  }
+
+  private static long containersRamBytesUsed(int capacity) {
+    return 2 * RamUsageEstimator.NUM_BYTES_ARRAY_HEADER +
+            (long) capacity * (RamUsageEstimator.NUM_BYTES_CHAR + RamUsageEstimator.NUM_BYTES_OBJECT_REF);
+  }
+
+  private static void writeChar(BytesRef dst, char c) {
+    dst.bytes[dst.offset++] = (byte) (c >> 8);
+    dst.bytes[dst.offset++] = (byte) c;
+  }
+
+  private static char readChar(BytesRef src) {
+    return (char) (((src.bytes[src.offset++] & 0xFF) << 8) | (src.bytes[src.offset++] & 0xFF));
+  }
+
+  /**
+   * A container of the 16 least significant bits of the integers sharing the same 16 most significant bits.
+   */
+  private static abstract class Container implements Cloneable {
+
+    abstract int cardinality();
+
+    abstract boolean contains(char value);
+
+    /**
+     * Adds the value, and returns the container holding the result, which may be a new container.
+     */
+    abstract Container add(char value);
+
+    /**
+     * Adds the values of the other container, and returns the container holding the result, which may be
+     * a new container.
+     */
+    abstract Container or(Container other);
+
+    /**
+     * Returns the values of the container in ascending order.
+     */
+    abstract char[] toArray();
+
+    abstract long ramBytesUsed();
+
+    abstract int sizeInBytes();
+
+    abstract void writeTo(BytesRef dst);
+
+    @Override
+    public abstract Container clone();
+
+  }
+
+  /**
+   * A container storing the values in a sorted array.
+   */
+  private static final class ArrayContainer extends Container {
+
+    private char[] values;
+    private int cardinality;
+
+    ArrayContainer() {
+      this(new char[4], 0);
+    }
+
+    ArrayContainer(char[] values, int cardinality) {
+      this.values = values;
+      this.cardinality = cardinality;
+    }
+
+    static ArrayContainer readFrom(BytesRef src, int cardinality) {
+      char[] values = new char[cardinality];
+      for (int i = 0; i < cardinality; i++) {
+        values[i] = readChar(src);
+      }
+      return new ArrayContainer(values, cardinality);
+    }
+
+    @Override
+    int cardinality() {
+      return cardinality;
+    }
+
+    @Override
+    boolean contains(char value) {
+      return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+    }
+
+    @Override
+    Container add(char value) {
+      // fast path for values added in ascending order
+      int index = cardinality > 0 && values[cardinality - 1] < value ? -cardinality - 1 :
+              Arrays.binarySearch(values, 0, cardinality, value);
+      if (index >= 0) {
+        return this;
+      }
+      if (cardinality == ARRAY_CONTAINER_MAX_SIZE) {
+        return this.toBitmapContainer().add(value);
+      }
+      index = -index - 1;
+      if (cardinality == values.length) {
+        values = Arrays.copyOf(values, Math.min(values.length * 2, ARRAY_CONTAINER_MAX_SIZE));
+      }
+      System.arraycopy(values, index, values, index + 1, cardinality - index);
+      values[index] = value;
+      cardinality++;
+      return this;
+    }
+
+    @Override
+    Container or(Container other) {
+      if (other instanceof BitmapContainer) {
+        return other.clone().or(this);
+      }
+      ArrayContainer o = (ArrayContainer) other;
+      if (cardinality + o.cardinality > ARRAY_CONTAINER_MAX_SIZE) {
+        // the values may overlap, and the type of a container must be implied by its cardinality when decoding
+        BitmapContainer bitmap = this.toBitmapContainer();
+        bitmap.or(o);
+        return bitmap.cardinality() > ARRAY_CONTAINER_MAX_SIZE ? bitmap : bitmap.toArrayContainer();
+      }
+      // merge the two sorted arrays
+      char[] merged = new char[cardinality + o.cardinality];
+      int i = 0, j = 0, k = 0;
+      while (i < cardinality && j < o.cardinality) {
+        if (values[i] < o.values[j]) {
+          merged[k++] = values[i++];
+        }
+        else if (values[i] > o.values[j]) {
+          merged[k++] = o.values[j++];
+        }
+        else {
+          merged[k++] = values[i++];
+          j++;
+        }
+      }
+      while (i < cardinality) {
+        merged[k++] = values[i++];
+      }
+      while (j < o.cardinality) {
+        merged[k++] = o.values[j++];
+      }
+      values = merged;
+      cardinality = k;
+      return this;
+    }
+
+    private BitmapContainer toBitmapContainer() {
+      BitmapContainer bitmap = new BitmapContainer();
+      for (int i = 0; i < cardinality; i++) {
+        bitmap.add(values[i]);
+      }
+      return bitmap;
+    }
+
+    @Override
+    char[] toArray() {
+      return Arrays.copyOf(values, cardinality);
+    }
+
+    @Override
+    long ramBytesUsed() {
+      return RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + RamUsageEstimator.NUM_BYTES_OBJECT_REF +
+              RamUsageEstimator.NUM_BYTES_INT + RamUsageEstimator.sizeOf(values);
+    }
+
+    @Override
+    int sizeInBytes() {
+      return cardinality * 2;
+    }
+
+    @Override
+    void writeTo(BytesRef dst) {
+      for (int i = 0; i < cardinality; i++) {
+        writeChar(dst, values[i]);
+      }
+    }
+
+    @Override
+    public ArrayContainer clone() {
+      return new ArrayContainer(Arrays.copyOf(values, cardinality), cardinality);
+    }
+
+  }
+
+  /**
+   * A container storing the values in a bitmap of 2^16 bits.
+   */
+  private static final class BitmapContainer extends Container {
+
+    private final long[] bits;
+    private int cardinality;
+
+    BitmapContainer() {
+      this(new long[BITMAP_CONTAINER_SIZE], 0);
+    }
+
+    BitmapContainer(long[] bits, int cardinality) {
+      this.bits = bits;
+      this.cardinality = cardinality;
+    }
+
+    static BitmapContainer readFrom(BytesRef src, int cardinality) {
+      long[] bits = new long[BITMAP_CONTAINER_SIZE];
+      for (int i = 0; i < BITMAP_CONTAINER_SIZE; i++) {
+        bits[i] = Bytes.readLong(src);
+      }
+      return new BitmapContainer(bits, cardinality);
+    }
+
+    @Override
+    int cardinality() {
+      return cardinality;
+    }
+
+    @Override
+    boolean contains(char value) {
+      return (bits[value >>> 6] & (1L << value)) != 0;
+    }
+
+    @Override
+    Container add(char value) {
+      long word = bits[value >>> 6];
+      long newWord = word | (1L << value);
+      bits[value >>> 6] = newWord;
+      cardinality += (int) ((word ^ newWord) >>> value);
+      return this;
+    }
+
+    @Override
+    Container or(Container other) {
+      if (other instanceof ArrayContainer) {
+        ArrayContainer o = (ArrayContainer) other;
+        for (int i = 0; i < o.cardinality; i++) {
+          this.add(o.values[i]);
+        }
+        return this;
+      }
+      long[] otherBits = ((BitmapContainer) other).bits;
+      int cardinality = 0;
+      for (int i = 0; i < BITMAP_CONTAINER_SIZE; i++) {
+        bits[i] |= otherBits[i];
+        cardinality += Long.bitCount(bits[i]);
+      }
+      this.cardinality = cardinality;
+      return this;
+    }
+
+    @Override
+    char[] toArray() {
+      char[] values = new char[cardinality];
+      int k = 0;
+      for (int i = 0; i < BITMAP_CONTAINER_SIZE; i++) {
+        long word = bits[i];
+        while (word != 0) {
+          values[k++] = (char) ((i << 6) + Long.numberOfTrailingZeros(word));
+          word &= word - 1;
+        }
+      }
+      return values;
+    }
+
+    private ArrayContainer toArrayContainer() {
+      return new ArrayContainer(this.toArray(), cardinality);
+    }
+
+    @Override
+    long ramBytesUsed() {
+      return RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + RamUsageEstimator.NUM_BYTES_OBJECT_REF +
+              RamUsageEstimator.NUM_BYTES_INT + RamUsageEstimator.sizeOf(bits);
+    }
+
+    @Override
+    int sizeInBytes() {
+      return BITMAP_CONTAINER_SIZE * 8;
+    }
+
+    @Override
+    void writeTo(BytesRef dst) {
+      for (int i = 0; i < BITMAP_CONTAINER_SIZE; i++) {
+        Bytes.writeLong(dst, bits[i]);
+      }
+    }
+
+    @Override
+    public BitmapContainer clone() {
+      return new BitmapContainer(Arrays.copyOf(bits, BITMAP_CONTAINER_SIZE), cardinality);
+    }
+
+  }
+
+}
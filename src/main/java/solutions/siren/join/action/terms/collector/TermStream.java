@@ -18,20 +18,121 @@
  */
 package solutions.siren.join.action.terms.collector;
 
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.RandomAccessOrds;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.index.fielddata.FieldData;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.fielddata.IndexOrdinalsFieldData;
+import org.elasticsearch.index.fielddata.SortedBinaryDocValues;
+import solutions.siren.join.action.terms.TermsByQueryResponse;
+
+import java.io.IOException;
 
 /**
  * A stream of terms coming for a given document and field. A {@link TermStream} is a reusable object
  * used in combination with {@link HitStream#getTermStream(TermStream)}.
+ * <br>
+ * The values of a segment are read directly from the doc values of the segment if the field has doc values,
+ * bypassing the loading of the {@link IndexFieldData}. Otherwise, it falls back to the {@link IndexFieldData}.
+ * The source used is recorded and can be retrieved with {@link #getTermsSource()}.
  */
 abstract class TermStream {
 
   protected final IndexReader reader;
 
+  private TermsByQueryResponse.TermsSource termsSource = TermsByQueryResponse.TermsSource.NONE;
+
   protected TermStream(IndexReader reader) {
     this.reader = reader;
   }
 
+  /**
+   * Returns the source of the values read so far by this stream.
+   */
+  public TermsByQueryResponse.TermsSource getTermsSource() {
+    return termsSource;
+  }
+
+  /**
+   * Loads the numeric values of the given segment, from the doc values if available or from the field data.
+   */
+  protected SortedNumericDocValues loadLongValues(int atomicReaderId, IndexNumericFieldData fieldData) {
+    LeafReaderContext leafReader = reader.leaves().get(atomicReaderId);
+    String field = fieldData.getFieldNames().indexName();
+    DocValuesType type = getDocValuesType(leafReader.reader(), field);
+    if (type == DocValuesType.NUMERIC || type == DocValuesType.SORTED_NUMERIC) {
+      try {
+        SortedNumericDocValues values = DocValues.getSortedNumeric(leafReader.reader(), field);
+        this.addTermsSource(TermsByQueryResponse.TermsSource.DOC_VALUES);
+        return values;
+      }
+      catch (IOException e) {
+        throw new ElasticsearchException("[termsByQuery] Failed to load doc values for field [" + field + "]", e);
+      }
+    }
+    this.addTermsSource(TermsByQueryResponse.TermsSource.FIELD_DATA);
+    return fieldData.load(leafReader).getLongValues();
+  }
+
+  /**
+   * Loads the binary values of the given segment, from the doc values if available or from the field data.
+   */
+  protected SortedBinaryDocValues loadBytesValues(int atomicReaderId, IndexFieldData fieldData) {
+    LeafReaderContext leafReader = reader.leaves().get(atomicReaderId);
+    String field = fieldData.getFieldNames().indexName();
+    DocValuesType type = getDocValuesType(leafReader.reader(), field);
+    if (type == DocValuesType.SORTED || type == DocValuesType.SORTED_SET) {
+      try {
+        SortedBinaryDocValues values = FieldData.toString(FieldData.maybeSlowRandomAccessOrds(DocValues.getSortedSet(leafReader.reader(), field)));
+        this.addTermsSource(TermsByQueryResponse.TermsSource.DOC_VALUES);
+        return values;
+      }
+      catch (IOException e) {
+        throw new ElasticsearchException("[termsByQuery] Failed to load doc values for field [" + field + "]", e);
+      }
+    }
+    this.addTermsSource(TermsByQueryResponse.TermsSource.FIELD_DATA);
+    return fieldData.load(leafReader).getBytesValues();
+  }
+
+  /**
+   * Loads the ordinals of the given segment, from the doc values if available or from the field data.
+   */
+  protected RandomAccessOrds loadOrdinals(int atomicReaderId, IndexOrdinalsFieldData fieldData) {
+    LeafReaderContext leafReader = reader.leaves().get(atomicReaderId);
+    String field = fieldData.getFieldNames().indexName();
+    DocValuesType type = getDocValuesType(leafReader.reader(), field);
+    if (type == DocValuesType.SORTED || type == DocValuesType.SORTED_SET) {
+      try {
+        RandomAccessOrds values = FieldData.maybeSlowRandomAccessOrds(DocValues.getSortedSet(leafReader.reader(), field));
+        this.addTermsSource(TermsByQueryResponse.TermsSource.DOC_VALUES);
+        return values;
+      }
+      catch (IOException e) {
+        throw new ElasticsearchException("[termsByQuery] Failed to load doc values for field [" + field + "]", e);
+      }
+    }
+    this.addTermsSource(TermsByQueryResponse.TermsSource.FIELD_DATA);
+    return fieldData.load(leafReader).getOrdinalsValues();
+  }
+
+  private static DocValuesType getDocValuesType(LeafReader reader, String field) {
+    FieldInfo fieldInfo = reader.getFieldInfos().fieldInfo(field);
+    return fieldInfo == null ? DocValuesType.NONE : fieldInfo.getDocValuesType();
+  }
+
+  private void addTermsSource(TermsByQueryResponse.TermsSource source) {
+    this.termsSource = this.termsSource.merge(source);
+  }
+
   /**
    * Set the stream to the given document.
    * @see HitStream#getTermStream(TermStream)
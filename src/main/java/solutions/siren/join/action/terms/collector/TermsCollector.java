@@ -18,15 +18,42 @@
  */
 package solutions.siren.join.action.terms.collector;
 
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.util.BigArrays;
 import org.elasticsearch.index.fielddata.IndexFieldData;
 import org.elasticsearch.search.internal.SearchContext;
+import solutions.siren.join.action.terms.TermsByQueryResponse;
 import solutions.siren.join.common.Math;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Collects terms for a given field based on a {@link HitStream}.
+ * <br>
+ * If an {@link ExecutorService} is provided with {@link #setExecutor(ExecutorService)} and the {@link HitStream}
+ * can be split per segment (see {@link HitStream#split()}), the terms of each segment are collected in parallel
+ * into a local {@link TermsSet}, and the local sets are merged at the end.
+ * <br>
+ * Alternatively, the terms can be collected in a single pass with {@link #collect(Query, IndexSearcher)}: the terms
+ * of each document are extracted as soon as the document is collected by the search, and the search is terminated
+ * early once {@link #maxTerms} is reached.
  */
 public abstract class TermsCollector {
 
@@ -34,9 +61,26 @@ public abstract class TermsCollector {
   protected final IndexFieldData indexFieldData;
   protected final CircuitBreaker breaker;
 
+  protected BigArrays bigArrays = BigArrays.NON_RECYCLING_INSTANCE;
+
   protected int expectedTerms = -1;
   protected int maxTerms = Integer.MAX_VALUE;
 
+  /**
+   * The initial size of the {@link TermsSet} for a single pass collection, if no expected number of terms is provided.
+   * The set starts with a minimal size and grows with the number of terms, so that sparse queries on large shards
+   * do not over-allocate.
+   */
+  private static final int DEFAULT_STREAMING_EXPECTED_TERMS = 0;
+
+  private ExecutorService executor;
+
+  private boolean streaming = true;
+
+  private Path spillDirectory;
+
+  private TermsByQueryResponse.TermsSource termsSource = TermsByQueryResponse.TermsSource.NONE;
+
   public TermsCollector(final IndexFieldData indexFieldData, final SearchContext context,
                         final CircuitBreaker breaker) {
     this.indexFieldData = indexFieldData;
@@ -51,6 +95,14 @@ public abstract class TermsCollector {
     this.expectedTerms = Math.toIntExact(expectedTerms);
   }
 
+  /**
+   * Sets the big arrays used to allocate the pages of the numeric {@link TermsSet}. Default to
+   * {@link BigArrays#NON_RECYCLING_INSTANCE}.
+   */
+  public void setBigArrays(BigArrays bigArrays) {
+    this.bigArrays = bigArrays;
+  }
+
   /**
    * Sets the maximum number of terms to collect.
    */
@@ -58,9 +110,348 @@ public abstract class TermsCollector {
     this.maxTerms = maxTerms;
   }
 
+  /**
+   * Sets the executor used to collect the terms of each segment in parallel. Default to null, i.e., the
+   * segments are collected sequentially by the calling thread.
+   */
+  public void setExecutor(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Enables or disables the single pass collection of the terms, see {@link #collect(Query, IndexSearcher)}.
+   * Default to true.
+   */
+  public void setStreaming(boolean streaming) {
+    this.streaming = streaming;
+  }
+
+  /**
+   * Sets the directory where the terms sets are spilled when they cannot grow without tripping the circuit breaker,
+   * see {@link TermsSet#enableSpill(Path)}. Default to null, i.e., the spilling is disabled. The spilling is only
+   * enabled if the number of terms is not bounded by {@link #maxTerms}.
+   */
+  public void setSpillDirectory(Path spillDirectory) {
+    this.spillDirectory = spillDirectory;
+  }
+
+  /**
+   * Returns true if the terms can be collected in a single pass with {@link #collect(Query, IndexSearcher)}.
+   * The single pass collection is disabled if the segments are collected in parallel.
+   */
+  public boolean isStreamable() {
+    return streaming && executor == null;
+  }
+
+  /**
+   * Returns the source, doc values or field data, from which the terms have been read.
+   */
+  public synchronized TermsByQueryResponse.TermsSource getTermsSource() {
+    return termsSource;
+  }
+
+  /**
+   * Records the source of the terms read by a {@link TermStream}. Segments might be collected concurrently.
+   */
+  protected synchronized void addTermsSource(TermsByQueryResponse.TermsSource source) {
+    this.termsSource = this.termsSource.merge(source);
+  }
+
+  /**
+   * Instantiates a new {@link TermsSet} for the terms collected by this collector.
+   */
+  protected abstract TermsSet newTermsSet(final int expectedElements, final CircuitBreaker breaker);
+
+  /**
+   * Instantiates the local {@link TermsSet} of a segment during a parallel collection. By default, it is sized
+   * based on the number of hits of the segment.
+   *
+   * @param expectedElements  The expected number of terms for the whole shard
+   * @param segmentHits       The number of hits in the segment
+   */
+  protected TermsSet newSegmentTermsSet(final int expectedElements, final int segmentHits) {
+    return this.newTermsSet(java.lang.Math.min(segmentHits, maxTerms), breaker);
+  }
+
+  /**
+   * Enables the spilling of the given set if a spill directory is set and the number of terms is not bounded.
+   */
+  private TermsSet enableSpill(TermsSet terms) {
+    if (spillDirectory != null && maxTerms == Integer.MAX_VALUE) {
+      terms.enableSpill(spillDirectory);
+    }
+    return terms;
+  }
+
+  /**
+   * Instantiates a new {@link TermsConsumer} that adds the terms of the hits to the given {@link TermsSet}.
+   */
+  protected abstract TermsConsumer newTermsConsumer(final TermsSet terms);
+
+  /**
+   * Collects the terms of the hits from the {@link HitStream} into the {@link TermsSet}, until the set
+   * reaches {@link #maxTerms}.
+   */
+  protected void collect(HitStream hitStream, TermsSet terms) throws IOException {
+    TermsConsumer consumer = this.newTermsConsumer(terms);
+
+    while (!consumer.isFull() && hitStream.hasNext()) {
+      hitStream.next();
+      consumer.consume(hitStream.getAtomicReaderId(), hitStream.getAtomicDocId());
+    }
+
+    consumer.finish();
+  }
+
+  /**
+   * Collects the terms into a {@link TermsSet} in a single pass, by extracting the terms of each document during
+   * the execution of the query. The search is terminated early once the set reaches {@link #maxTerms}. Since the
+   * number of hits is unknown before the search, the set is sized based on the expected number of terms if
+   * provided, and grows from a minimal size otherwise.
+   */
+  public TermsSet collect(Query query, IndexSearcher searcher) throws IOException {
+    int expectedElements = this.expectedTerms != -1 ? this.expectedTerms : DEFAULT_STREAMING_EXPECTED_TERMS;
+    TermsSet terms = this.enableSpill(this.newTermsSet(expectedElements, breaker));
+    try {
+      TermsConsumerCollector collector = new TermsConsumerCollector(this.newTermsConsumer(terms));
+      // wraps the query into a ConstantScoreQuery since we do not need the score
+      searcher.search(new ConstantScoreQuery(query), collector);
+      collector.finish();
+      terms.setIsPruned(terms.isPruned() || collector.isPruned());
+      return terms;
+    }
+    catch (Throwable t) {
+      // If something happens during the term collection, release the terms set and adjust the circuit breaker
+      terms.release();
+      throw t;
+    }
+  }
+
   /**
    * Collects the terms into a {@link TermsSet}.
    */
-  public abstract TermsSet collect(HitStream hitStream) throws IOException;
+  public TermsSet collect(HitStream hitStream) throws IOException {
+    hitStream.initialize(); // initialise the stream
+    int nHits = hitStream.getHits();
+    int expectedElements = this.expectedTerms != -1 ? this.expectedTerms : nHits;
+
+    List<HitStream> segments = executor != null ? hitStream.split() : null;
+    TermsSet terms;
+    if (segments != null && segments.size() > 1) {
+      terms = this.collect(segments, expectedElements);
+    }
+    else {
+      terms = this.enableSpill(this.newTermsSet(expectedElements, breaker));
+      try {
+        this.collect(hitStream, terms);
+      }
+      catch (Throwable t) {
+        // If something happens during the term collection, release the terms set and adjust the circuit breaker
+        terms.release();
+        throw t;
+      }
+    }
+
+    boolean isPruned = hitStream.getTotalHits() > hitStream.getHits();
+    isPruned |= this.maxTerms < nHits;
+    terms.setIsPruned(terms.isPruned() || isPruned);
+    return terms;
+  }
+
+  /**
+   * Collects the terms of each segment in parallel, and merges the local sets in the order of the segments.
+   * The local sets are accounted to the same {@link CircuitBreaker}, and released as soon as they are merged.
+   */
+  private TermsSet collect(final List<HitStream> segments, final int expectedElements) throws IOException {
+    final TermsSet[] localSets = new TermsSet[segments.size()];
+    TermsSet terms = null;
+
+    try {
+      List<Callable<Void>> tasks = new ArrayList<>(segments.size());
+      for (int i = 0; i < segments.size(); i++) {
+        final int segment = i;
+        tasks.add(new Callable<Void>() {
+
+          @Override
+          public Void call() throws Exception {
+            HitStream hitStream = segments.get(segment);
+            localSets[segment] = TermsCollector.this.enableSpill(TermsCollector.this.newSegmentTermsSet(expectedElements, hitStream.getHits()));
+            TermsCollector.this.collect(hitStream, localSets[segment]);
+            return null;
+          }
+
+        });
+      }
+
+      // wait for the completion of all the tasks before checking for failures, so that every local set
+      // is created before we release them
+      ParallelTasks.invokeAll(executor, tasks);
+
+      terms = this.enableSpill(this.newTermsSet(expectedElements, breaker));
+      for (int i = 0; i < localSets.length; i++) {
+        terms.merge(localSets[i], maxTerms);
+        localSets[i].release(); // release the local terms set and adjust the circuit breaker
+        localSets[i] = null;
+      }
+      return terms;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      if (terms != null) terms.release();
+      throw new ElasticsearchException("[termsByQuery] Interrupted while collecting terms", e);
+    }
+    catch (ExecutionException e) {
+      if (terms != null) terms.release();
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw ExceptionsHelper.convertToRuntime(e.getCause());
+    }
+    catch (Throwable t) {
+      if (terms != null) terms.release();
+      throw t;
+    }
+    finally { // If something happens, release the local terms sets and adjust the circuit breaker
+      for (int i = 0; i < localSets.length; i++) {
+        if (localSets[i] != null) {
+          localSets[i].release();
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds the terms of the hits to a {@link TermsSet}, until the set reaches {@link #maxTerms}. A consumer is
+   * instantiated for each collection and is not thread-safe. The hits must be consumed in atomic reader order.
+   */
+  protected abstract class TermsConsumer {
+
+    protected final TermStream termStream;
+    protected final TermsSet terms;
+
+    protected TermsConsumer(TermStream termStream, TermsSet terms) {
+      this.termStream = termStream;
+      this.terms = terms;
+    }
+
+    /**
+     * Adds the terms of the given hit to the set.
+     */
+    protected abstract void consume(int atomicReaderId, int atomicDocId);
+
+    /**
+     * Called once all the hits of an atomic reader have been consumed, if known.
+     */
+    protected void endSegment() {}
+
+    /**
+     * Called once all the hits have been consumed.
+     */
+    protected void finish() {
+      this.endSegment();
+      TermsCollector.this.addTermsSource(termStream.getTermsSource());
+    }
+
+    /**
+     * Returns true if the set has reached {@link #maxTerms}.
+     */
+    protected boolean isFull() {
+      return terms.size() >= maxTerms;
+    }
+
+  }
+
+  /**
+   * A {@link TermsConsumer} for ordinal-backed fields that deduplicates the terms of a segment using the ordinals,
+   * see {@link OrdinalsTermStream}. The distinct terms of a segment are added to the set at the end of the segment.
+   */
+  protected abstract class OrdinalsTermsConsumer extends TermsConsumer {
+
+    private final OrdinalsTermStream ordinalsTermStream;
+
+    protected OrdinalsTermsConsumer(OrdinalsTermStream termStream, TermsSet terms) {
+      super(termStream, terms);
+      this.ordinalsTermStream = termStream;
+    }
+
+    @Override
+    protected void consume(int atomicReaderId, int atomicDocId) {
+      // add the distinct terms of the previous segment before moving to the next one
+      if (ordinalsTermStream.isNewSegment(atomicReaderId)) {
+        this.endSegment();
+      }
+      ordinalsTermStream.set(atomicReaderId, atomicDocId);
+    }
+
+    @Override
+    protected void endSegment() {
+      while (!this.isFull() && ordinalsTermStream.hasNext()) {
+        this.add(ordinalsTermStream.next());
+      }
+      if (ordinalsTermStream.hasNext()) { // some terms of the segment were left out
+        terms.setIsPruned(true);
+      }
+    }
+
+    /**
+     * Adds a distinct term to the set.
+     */
+    protected abstract void add(BytesRef term);
+
+  }
+
+  /**
+   * A Lucene {@link Collector} that feeds each collected document to a {@link TermsConsumer}, and terminates
+   * the collection once the set of terms is full.
+   */
+  private static class TermsConsumerCollector implements Collector {
+
+    private final TermsConsumer consumer;
+    private boolean isPruned = false;
+
+    private TermsConsumerCollector(TermsConsumer consumer) {
+      this.consumer = consumer;
+    }
+
+    @Override
+    public LeafCollector getLeafCollector(final LeafReaderContext context) throws IOException {
+      consumer.endSegment();
+      if (isPruned) {
+        // a hit has already been left out, the remaining segments do not change the result
+        throw new CollectionTerminatedException();
+      }
+
+      final int atomicReaderId = context.ord;
+      return new LeafCollector() {
+
+        @Override
+        public void setScorer(Scorer scorer) throws IOException {}
+
+        @Override
+        public void collect(int doc) throws IOException {
+          if (consumer.isFull()) { // the set is only pruned if a hit is left out
+            isPruned = true;
+            throw new CollectionTerminatedException();
+          }
+          consumer.consume(atomicReaderId, doc);
+        }
+
+      };
+    }
+
+    @Override
+    public boolean needsScores() {
+      return false;
+    }
+
+    void finish() {
+      consumer.finish();
+    }
+
+    boolean isPruned() {
+      return isPruned;
+    }
+
+  }
 
 }
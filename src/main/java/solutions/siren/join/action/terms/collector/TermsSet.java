@@ -18,15 +18,20 @@
  */
 package solutions.siren.join.action.terms.collector;
 
+import com.carrotsearch.hppc.BitMixer;
 import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.common.breaker.CircuitBreaker;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.util.BigArrays;
 import solutions.siren.join.action.terms.TermsByQueryRequest;
 import solutions.siren.join.common.Bytes;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
 
 /**
  * A set of terms.
@@ -38,6 +43,16 @@ public abstract class TermsSet implements Streamable {
    */
   private boolean isPruned = false;
 
+  /**
+   * The number of bytes spilled to disk while building this set and the sets merged into it
+   */
+  private long spilledBytes = 0;
+
+  /**
+   * The time spent spilling to disk while building this set and the sets merged into it
+   */
+  private long spillTimeInNanos = 0;
+
   protected final CircuitBreaker breaker;
 
   protected TermsSet(final CircuitBreaker breaker) {
@@ -55,8 +70,49 @@ public abstract class TermsSet implements Streamable {
     return isPruned;
   }
 
+  /**
+   * Returns the number of bytes spilled to disk while building this set, see {@link #enableSpill(Path)}.
+   */
+  public long getSpilledBytes() {
+    return spilledBytes;
+  }
+
+  /**
+   * Returns the time in millis spent spilling to disk while building this set, see {@link #enableSpill(Path)}.
+   */
+  public long getSpillTimeInMillis() {
+    return spillTimeInNanos / 1000000;
+  }
+
+  protected long getSpillTimeInNanos() {
+    return spillTimeInNanos;
+  }
+
+  /**
+   * Records bytes spilled to disk by this set or by a set merged into it.
+   */
+  protected void addSpillStats(long spilledBytes, long spillTimeInNanos) {
+    this.spilledBytes += spilledBytes;
+    this.spillTimeInNanos += spillTimeInNanos;
+  }
+
+  /**
+   * Enables the spilling of the terms to temporary files in the given directory when the set cannot grow without
+   * tripping the circuit breaker. Returns false if the set does not support spilling, which is the default.
+   */
+  public boolean enableSpill(Path directory) {
+    return false;
+  }
+
   protected abstract void addAll(TermsSet terms);
 
+  /**
+   * Adds the terms of the other {@link TermsSet} until this set reaches <code>maxTerms</code> terms.
+   *
+   * @return false if some terms of the other set were left out, true otherwise
+   */
+  protected abstract boolean addAll(TermsSet terms, int maxTerms);
+
   /**
    * Called to merge {@link TermsSet} from other shards.
    *
@@ -65,6 +121,24 @@ public abstract class TermsSet implements Streamable {
   public void merge(TermsSet other) {
     this.addAll(other);
     this.isPruned |= other.isPruned;
+    this.addSpillStats(other.spilledBytes, other.spillTimeInNanos);
+  }
+
+  /**
+   * Called to merge {@link TermsSet} from other segments, without exceeding a maximum number of terms. If some
+   * terms of the other set are left out, the set is flagged as pruned.
+   *
+   * @param other     The {@link TermsSet} to merge with
+   * @param maxTerms  The maximum number of terms
+   */
+  public void merge(TermsSet other, int maxTerms) {
+    if (maxTerms - this.size() >= other.size()) { // no need to check the limit for each term
+      this.merge(other);
+      return;
+    }
+    boolean isComplete = this.addAll(other, maxTerms);
+    this.isPruned |= other.isPruned | !isComplete;
+    this.addSpillStats(other.spilledBytes, other.spillTimeInNanos);
   }
 
   /**
@@ -102,6 +176,57 @@ public abstract class TermsSet implements Streamable {
    */
   public abstract BytesRef writeToBytes();
 
+  /**
+   * Returns an estimate of the number of bytes written by {@link #writeTo(StreamOutput)}, computed without
+   * serializing the set. Defaults to 8 bytes per term, and must be overridden by sets whose serialization can be
+   * larger. Used by {@link solutions.siren.join.action.terms.TermsByQueryShardCache}.
+   */
+  public long serializedSizeInBytes() {
+    return 8L * this.size();
+  }
+
+  /**
+   * Returns an iterator over the terms of this set split into chunks of at most <code>chunkSize</code> terms. Each
+   * chunk is a new set attached to the given circuit breaker, and must be released once consumed. Returns null if
+   * the set cannot be split. Used by {@link solutions.siren.join.action.terms.TransportTermsByQueryAction} to
+   * transfer large sets in bounded chunks.
+   */
+  public Iterator<TermsSet> chunks(int chunkSize, CircuitBreaker breaker) {
+    return null;
+  }
+
+  /**
+   * Returns true if the terms of this set can be merged by partitions, see {@link PartitionedTermsSet}.
+   */
+  protected boolean isPartitionable() {
+    return false;
+  }
+
+  /**
+   * Adds the terms of the other set which belong to the given partition, out of <code>numPartitions</code>
+   * partitions of the terms by hash. Must be implemented by the sets returning true for {@link #isPartitionable()}.
+   */
+  protected void addAll(TermsSet terms, int partition, int numPartitions) {
+    throw new UnsupportedOperationException("Terms set cannot be partitioned");
+  }
+
+  /**
+   * Encodes the terms of the given disjoint partitions, this set being the first one, with the same encoding as
+   * {@link #writeToBytes()} for a single set holding all their terms. Must be implemented by the sets returning
+   * true for {@link #isPartitionable()}.
+   */
+  protected BytesRef writePartitionsToBytes(TermsSet[] partitions) {
+    throw new UnsupportedOperationException("Terms set cannot be partitioned");
+  }
+
+  /**
+   * Returns the partition of a term given its hash. The partition only depends on the term, so that the same
+   * term falls into the same partition whatever the set it comes from.
+   */
+  protected static int partition(long hash, int numPartitions) {
+    return (int) (((BitMixer.mix64(hash) >>> 32) * numPartitions) >>> 32);
+  }
+
   /**
    * Returns the type of encoding for the terms.
    */
@@ -113,37 +238,67 @@ public abstract class TermsSet implements Streamable {
   public abstract void release();
 
   /**
-   * Used by {@link solutions.siren.join.action.terms.TransportTermsByQueryAction}
+   * Used by {@link solutions.siren.join.action.terms.TransportTermsByQueryAction}. The numeric sets are allocated
+   * on pages of the given {@link BigArrays}.
    */
-  public static TermsSet newTermsSet(long expectedElements, TermsByQueryRequest.TermsEncoding termsEncoding, CircuitBreaker breaker) {
+  public static TermsSet newTermsSet(long expectedElements, TermsByQueryRequest.TermsEncoding termsEncoding,
+                                     BigArrays bigArrays, CircuitBreaker breaker) {
     switch (termsEncoding) {
       case LONG:
-        return new LongTermsSet(expectedElements, breaker);
+        return new LongTermsSet(expectedElements, bigArrays, breaker);
       case INTEGER:
-        return new IntegerTermsSet(expectedElements, breaker);
+        return new IntegerTermsSet(expectedElements, bigArrays, breaker);
       case BLOOM:
-        return new BloomFilterTermsSet(expectedElements, breaker);
+        return new BloomFilterTermsSet(expectedElements, bigArrays, breaker);
       case BYTES:
         return new BytesRefTermsSet(breaker);
+      case ROARING:
+        return new RoaringTermsSet(expectedElements, breaker);
+      case BINARY_FUSE:
+        return new BinaryFuseFilterTermsSet(expectedElements, bigArrays, breaker);
       default:
         throw new IllegalArgumentException("[termsByQuery] Invalid terms encoding: " + termsEncoding.name());
     }
   }
 
   /**
-   * Used by {@link solutions.siren.join.index.query.FieldDataTermsQuery} to decode encoded terms.
+   * Decodes encoded terms.
    */
   public static TermsSet readFrom(BytesRef in) {
+    return readFrom(in, false);
+  }
+
+  /**
+   * Used by {@link solutions.siren.join.index.query.FieldDataTermsQuery} and
+   * {@link solutions.siren.join.index.query.TermsEnumTermsQuery} to decode encoded terms. If
+   * <code>lookupOnly</code> is true, the decoded set may use a more compact representation which only supports
+   * lookups.
+   */
+  public static TermsSet readFrom(BytesRef in, boolean lookupOnly) {
+    return readFrom(in, lookupOnly, null, 1);
+  }
+
+  /**
+   * Decodes encoded terms as {@link #readFrom(BytesRef, boolean)}. A large set of the
+   * {@link TermsByQueryRequest.TermsEncoding#LONG} encoding decoded for lookups only is decoded in parallel by
+   * <code>parallelism</code> tasks of the executor, if provided, into a set partitioned by hash. The other
+   * encodings are decoded sequentially.
+   */
+  public static TermsSet readFrom(BytesRef in, boolean lookupOnly, ExecutorService executor, int parallelism) {
     TermsByQueryRequest.TermsEncoding termsEncoding = TermsByQueryRequest.TermsEncoding.values()[Bytes.readInt(in)];
     switch (termsEncoding) {
       case INTEGER:
         return new IntegerTermsSet(in);
       case LONG:
-        return new LongTermsSet(in);
+        return new LongTermsSet(in, lookupOnly, executor, parallelism);
       case BLOOM:
         return new BloomFilterTermsSet(in);
       case BYTES:
-        return new BytesRefTermsSet(in);
+        return new BytesRefTermsSet(in, lookupOnly);
+      case ROARING:
+        return new RoaringTermsSet(in);
+      case BINARY_FUSE:
+        return new BinaryFuseFilterTermsSet(in);
       default:
         throw new IllegalArgumentException("[termsByQuery] Invalid terms encoding: " + termsEncoding.name());
     }
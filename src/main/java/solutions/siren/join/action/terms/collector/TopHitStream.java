@@ -20,55 +20,54 @@ package solutions.siren.join.action.terms.collector;
 
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.search.*;
-import org.apache.lucene.util.PriorityQueue;
 
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.Comparator;
 
 /**
- * A {@link HitStream} implementation based on a {@link TopDocsCollector}.
+ * A {@link HitStream} implementation based on a top-N {@link Collector} ordered by document score.
+ * <br>
+ * The top hits are kept in a primitive binary heap, where a hit is encoded as a long packing the atomic reader id
+ * and the document id, so that no object is allocated per hit, neither during the collection nor during the
+ * sort of the hits.
  */
 public class TopHitStream extends HitStream {
 
-  private final int numHit;
-  private ScoreDoc[] topHits;
+  private long[] topHits;
+  private int numTopHits;
 
   private int count = 0;
   private int currentAtomicReaderId = 0;
   private int currentAtomicDocId = -1;
 
   public TopHitStream(final int numHit, final Query query, final IndexSearcher searcher) throws IOException {
-    super(query, new TopHitCollector(new HitQueue(numHit)), searcher);
-    this.numHit = numHit;
+    // the number of hits can not exceed the number of documents, there is no need to allocate a larger heap
+    super(query, new TopHitCollector(Math.min(numHit, searcher.getIndexReader().maxDoc())), searcher);
   }
 
   @Override
   public void initialize() throws IOException {
     super.initialize();
-    this.topHits = ((TopHitCollector) this.getCollector()).topDocs().scoreDocs;
+    TopHitCollector collector = (TopHitCollector) this.getCollector();
+    this.topHits = collector.hits;
+    this.numTopHits = collector.size;
     // Sort the hits by atomicReaderId in order to optimise lookup to field data cache. If the atomicReaderIds
     // are random, the atomic reader will likely change for each hit which is not very optimal when loading
     // values for the field data cache.
     // At this stage, we do not really care anymore about the order of the documents, so it is fine to reorder it.
-    Arrays.sort(this.topHits, new Comparator<ScoreDoc>() {
-
-      @Override
-      public int compare(final ScoreDoc o1, final ScoreDoc o2) {
-        return ((ScoreHit) o1).atomicReaderId - ((ScoreHit) o2).atomicReaderId;
-      }
-
-    });
+    // As the atomic reader id is encoded in the high bits of the hit, a natural sort of the hits orders them
+    // by atomic reader id then by document id.
+    Arrays.sort(this.topHits, 0, this.numTopHits);
   }
 
   @Override
   public int getTotalHits() {
-    return ((TopHitCollector) this.getCollector()).getTotalHits();
+    return ((TopHitCollector) this.getCollector()).totalHits;
   }
 
   @Override
   public int getHits() {
-    return this.topHits.length;
+    return this.numTopHits;
   }
 
   @Override
@@ -81,9 +80,9 @@ public class TopHitStream extends HitStream {
 
   @Override
   public void next() {
-    ScoreHit scoreHit = (ScoreHit) this.topHits[this.count];
-    this.currentAtomicReaderId = scoreHit.atomicReaderId;
-    this.currentAtomicDocId = scoreHit.doc;
+    long hit = this.topHits[this.count];
+    this.currentAtomicReaderId = TopHitCollector.atomicReaderId(hit);
+    this.currentAtomicDocId = TopHitCollector.atomicDocId(hit);
     this.count++;
   }
 
@@ -98,22 +97,39 @@ public class TopHitStream extends HitStream {
   }
 
   /**
-   * A {@link TopDocsCollector} over the
-   * {@link TopHitStream.ScoreHit}s.
+   * A {@link Collector} keeping the top scoring hits in a min-heap backed by two parallel primitive arrays:
+   * the hits, encoded as longs, and their scores. The root of the heap is the least competitive hit. Among hits
+   * with equal score, the hit with the lowest atomic reader id and document id is favored.
    */
-  private static class TopHitCollector extends TopDocsCollector<ScoreHit> {
+  static class TopHitCollector implements Collector {
+
+    /** The heap of hits, each hit packing the atomic reader id and the document id */
+    final long[] hits;
+
+    /** The scores of the hits, parallel to {@link #hits} */
+    final float[] scores;
+
+    /** The number of hits in the heap */
+    int size = 0;
+
+    /** The total number of hits encountered */
+    int totalHits = 0;
+
+    TopHitCollector(int numHit) {
+      this.hits = new long[numHit];
+      this.scores = new float[numHit];
+    }
 
-    /** The identifier of the current atomic reader */
-    private int currentAtomicReaderId;
+    static long encode(int atomicReaderId, int atomicDocId) {
+      return ((long) atomicReaderId << 32) | (atomicDocId & 0xFFFFFFFFL);
+    }
 
-    /** The priority queue */
-    private ScoreHit pqTop;
+    static int atomicReaderId(long hit) {
+      return (int) (hit >>> 32);
+    }
 
-    public TopHitCollector(HitQueue hq) {
-      super(hq);
-      // HitQueue implements getSentinelObject to return a ScoreHit, so we know
-      // that at this point top() is already initialized.
-      pqTop = pq.top();
+    static int atomicDocId(long hit) {
+      return (int) hit;
     }
 
     @Override
@@ -123,8 +139,7 @@ public class TopHitStream extends HitStream {
 
     @Override
     public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
-      currentAtomicReaderId = context.ord;
-      final int docBase = context.docBase;
+      final int currentAtomicReaderId = context.ord;
       return new LeafCollector() {
 
         Scorer scorer;
@@ -143,63 +158,64 @@ public class TopHitStream extends HitStream {
           assert !Float.isNaN(score);
 
           totalHits++;
-          if (score <= pqTop.score) {
+          if (size < hits.length) {
+            hits[size] = encode(currentAtomicReaderId, doc);
+            scores[size] = score;
+            upHeap(size++);
+          }
+          else if (size > 0 && score > scores[0]) {
             // Since docs are returned in-order (i.e., increasing doc Id), a document
-            // with equal score to pqTop.score cannot compete since HitQueue favors
+            // with equal score to the top score cannot compete since the heap favors
             // documents with lower doc Ids. Therefore reject those docs too.
-            return;
+            hits[0] = encode(currentAtomicReaderId, doc);
+            scores[0] = score;
+            downHeap(0);
           }
-          pqTop.atomicReaderId = currentAtomicReaderId;
-          pqTop.doc = doc;
-          pqTop.score = score;
-          pqTop = pq.updateTop();
         }
 
       };
     }
 
-  }
-
-  /**
-   * A {@link ScoreDoc} with an additional metadata to track the atomic reader id.
-   */
-  private static class ScoreHit extends ScoreDoc {
-
-    /** the atomic reader id associated to the document's id */
-    public int atomicReaderId;
-
-    /** Constructs a ScoreHit. */
-    public ScoreHit(int atomicReaderId, int docId, float score) {
-      super(docId, score);
-      this.atomicReaderId = atomicReaderId;
-    }
-
-  }
-
-  /**
-   * A priority queue over the {@link TopHitStream.ScoreHit}s.
-   * ORder by taking into account the atomic reader id and the doc id.
-   */
-  private static class HitQueue extends PriorityQueue<ScoreHit> {
-
-    HitQueue(int size) {
-      super(size, true);
+    private static boolean lessThan(float scoreA, long hitA, float scoreB, long hitB) {
+      if (scoreA == scoreB) {
+        return hitA > hitB;
+      }
+      return scoreA < scoreB;
     }
 
-    @Override
-    protected ScoreHit getSentinelObject() {
-      // Always set the doc Id to MAX_VALUE so that it won't be favored by
-      // lessThan. This generally should not happen since if score is not NEG_INF,
-      // TopScoreDocCollector will always add the object to the queue.
-      return new ScoreHit(Integer.MAX_VALUE, Integer.MAX_VALUE, Float.NEGATIVE_INFINITY);
+    private void upHeap(int i) {
+      final long hit = hits[i];
+      final float score = scores[i];
+      int j = (i - 1) >>> 1;
+      while (i > 0 && lessThan(score, hit, scores[j], hits[j])) {
+        hits[i] = hits[j];
+        scores[i] = scores[j];
+        i = j;
+        j = (i - 1) >>> 1;
+      }
+      hits[i] = hit;
+      scores[i] = score;
     }
 
-    @Override
-    protected final boolean lessThan(ScoreHit hitA, ScoreHit hitB) {
-      if (hitA.score == hitB.score)
-        return hitA.atomicReaderId > hitB.atomicReaderId & hitA.doc > hitB.doc;
-      else
-        return hitA.score < hitB.score;
+    private void downHeap(int i) {
+      final long hit = hits[i];
+      final float score = scores[i];
+      int j = (i << 1) + 1; // smaller child
+      while (j < size) {
+        int k = j + 1;
+        if (k < size && lessThan(scores[k], hits[k], scores[j], hits[j])) {
+          j = k;
+        }
+        if (!lessThan(scores[j], hits[j], score, hit)) {
+          break;
+        }
+        hits[i] = hits[j];
+        scores[i] = scores[j];
+        i = j;
+        j = (i << 1) + 1;
+      }
+      hits[i] = hit;
+      scores[i] = score;
     }
 
   }
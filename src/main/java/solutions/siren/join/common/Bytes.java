@@ -77,6 +77,13 @@ public class Bytes {
     dst.bytes[dst.offset++] = (byte) i;
   }
 
+  /**
+   * Returns the number of bytes needed to encode the int with {@link #writeVInt(BytesRef, int)}.
+   */
+  public final static int vIntSize(int i) {
+    return i == 0 ? 1 : (38 - Integer.numberOfLeadingZeros(i)) / 7;
+  }
+
   /**
    * Encodes a long into the byte array dst at the given offset.
    */
@@ -85,6 +92,25 @@ public class Bytes {
     writeInt(dst, (int) i);
   }
 
+  /**
+   * Writes a long in a variable-length format, the long being considered as unsigned.
+   * Writes between one and ten bytes. Smaller values take fewer bytes.
+   */
+  public final static void writeVLong(BytesRef dst, long i) {
+    while ((i & ~0x7FL) != 0L) {
+      dst.bytes[dst.offset++] = (byte) ((i & 0x7FL) | 0x80L);
+      i >>>= 7;
+    }
+    dst.bytes[dst.offset++] = (byte) i;
+  }
+
+  /**
+   * Returns the number of bytes needed to encode the long with {@link #writeVLong(BytesRef, long)}.
+   */
+  public final static int vLongSize(long i) {
+    return i == 0 ? 1 : (70 - Long.numberOfLeadingZeros(i)) / 7;
+  }
+
   public final static int readInt(BytesRef src) {
     return ((src.bytes[src.offset++] & 0xFF) << 24) | ((src.bytes[src.offset++] & 0xFF) << 16)
             | ((src.bytes[src.offset++] & 0xFF) << 8) | (src.bytes[src.offset++] & 0xFF);
@@ -122,6 +148,20 @@ public class Bytes {
     return i | ((b & 0x7F) << 28);
   }
 
+  /**
+   * Reads a long stored in variable-length format by {@link #writeVLong(BytesRef, long)}.
+   */
+  public final static long readVLong(BytesRef src) {
+    long i = 0L;
+    for (int shift = 0; ; shift += 7) {
+      byte b = src.bytes[src.offset++];
+      i |= (b & 0x7FL) << shift;
+      if ((b & 0x80) == 0) {
+        return i;
+      }
+    }
+  }
+
   public final static long readLong(BytesRef src) {
     return (((long) readInt(src)) << 32) | (readInt(src) & 0xFFFFFFFFL);
   }
@@ -20,6 +20,7 @@ package solutions.siren.join.index.query;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.carrotsearch.hppc.LongHashSet;
 import org.apache.lucene.index.*;
@@ -27,6 +28,10 @@ import org.apache.lucene.search.*;
 import org.apache.lucene.util.Accountable;
 import org.apache.lucene.util.AttributeSource;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.DocIdSetBuilder;
+import org.apache.lucene.util.LongBitSet;
+import org.apache.lucene.util.NumericUtils;
 import org.apache.lucene.util.RamUsageEstimator;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
@@ -35,27 +40,29 @@ import org.elasticsearch.index.fielddata.IndexNumericFieldData;
 import org.elasticsearch.index.fielddata.SortedBinaryDocValues;
 import solutions.siren.join.action.terms.collector.LongBloomFilter;
 import solutions.siren.join.action.terms.collector.NumericTermsSet;
-import solutions.siren.join.action.terms.collector.TermsSet;
 
 /**
  * Specialization for a disjunction over many terms, encoded in a byte array, which scans the
- * {@link IndexFieldData} to collect documents ids.
+ * values of the field to collect documents ids.
  * It behaves like a {@link ConstantScoreQuery} over a {@link BooleanQuery} containing only
  * {@link org.apache.lucene.search.BooleanClause.Occur#SHOULD} clauses.
+ * <br>
+ * The values of a segment are read directly from the doc values of the segment if the field has doc values,
+ * bypassing the loading of the {@link IndexFieldData} on the heap. Otherwise, it falls back to the
+ * {@link IndexFieldData}. The path taken for each segment is recorded in the {@link TermsQueryShardStats} of the
+ * shard, if provided.
+ * <br>
+ * On numeric fields, a small set of terms against a large segment is instead matched by seeking each term in the
+ * terms dictionary of the field, see {@link LongsFieldDataTermsQuery}.
  */
 public abstract class FieldDataTermsQuery extends Query implements Accountable {
 
   private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(FieldDataTermsQuery.class);
 
   /**
-   * Reference to the encoded list of terms for late decoding.
+   * The encoded set of terms, decoded on first access
    */
-  private byte[] encodedTerms;
-
-  /**
-   * The set of terms after decoding
-   */
-  private NumericTermsSet termsSet;
+  private final TermsSetHolder<NumericTermsSet> terms;
 
   /**
    * The field data for the field
@@ -67,41 +74,50 @@ public abstract class FieldDataTermsQuery extends Query implements Accountable {
    */
   protected final long cacheKey;
 
-  private static final ESLogger logger = Loggers.getLogger(FieldDataTermsQuery.class);
+  /**
+   * The stats of the shard, or null
+   */
+  protected final TermsQueryShardStats stats;
 
   /**
    * Get a {@link FieldDataTermsQuery} that filters on non-floating point numeric terms found in a hppc
    * {@link LongHashSet}.
    *
-   * @param encodedTerms  An encoded set of terms.
+   * @param terms         An encoded set of terms.
    * @param fieldData     The fielddata for the field.
    * @param cacheKey      A unique key to use for caching this query.
+   * @param stats         The stats of the shard, or null.
    * @return the query.
    */
-  public static FieldDataTermsQuery newLongs(final byte[] encodedTerms, final IndexNumericFieldData fieldData, final long cacheKey) {
-    return new LongsFieldDataTermsQuery(encodedTerms, fieldData, cacheKey);
+  public static FieldDataTermsQuery newLongs(final TermsSetHolder<NumericTermsSet> terms, final IndexNumericFieldData fieldData,
+                                             final long cacheKey, final TermsQueryShardStats stats) {
+    return new LongsFieldDataTermsQuery(terms, fieldData, cacheKey, stats);
   }
 
   /**
    * Get a {@link FieldDataTermsQuery} that filters on non-numeric terms found in a hppc {@link LongHashSet} of
    * {@link BytesRef}.
    *
-   * @param encodedTerms  An encoded set of terms.
+   * @param terms         An encoded set of terms.
    * @param fieldData     The fielddata for the field.
    * @param cacheKey      A unique key to use for caching this query.
+   * @param stats         The stats of the shard, or null.
    * @return the query.
    */
-  public static FieldDataTermsQuery newBytes(final byte[] encodedTerms, final IndexFieldData fieldData, final long cacheKey) {
-    return new BytesFieldDataTermsQuery(encodedTerms, fieldData, cacheKey);
+  public static FieldDataTermsQuery newBytes(final TermsSetHolder<NumericTermsSet> terms, final IndexFieldData fieldData,
+                                             final long cacheKey, final TermsQueryShardStats stats) {
+    return new BytesFieldDataTermsQuery(terms, fieldData, cacheKey, stats);
   }
 
   /**
    * Creates a new {@link FieldDataTermsQuery} from the given field data.
    */
-  public FieldDataTermsQuery(final byte[] encodedTerms, final IndexFieldData fieldData, final long cacheKey) {
-    this.encodedTerms = encodedTerms;
+  public FieldDataTermsQuery(final TermsSetHolder<NumericTermsSet> terms, final IndexFieldData fieldData,
+                             final long cacheKey, final TermsQueryShardStats stats) {
+    this.terms = terms;
     this.fieldData = fieldData;
     this.cacheKey = cacheKey;
+    this.stats = stats;
   }
 
   @Override
@@ -131,21 +147,48 @@ public abstract class FieldDataTermsQuery extends Query implements Accountable {
   }
 
   /**
-   * Returns the set of terms. This method will perform a late-decoding of the encoded terms, and will release the
-   * byte array. This method needs to be synchronized as each segment thread will call it concurrently.
+   * Returns the set of terms. The first call performs a late-decoding of the encoded terms, and the next calls
+   * read the decoded set without locking, see {@link TermsSetHolder}.
    */
-  protected synchronized NumericTermsSet getTermsSet() {
-    if (encodedTerms != null) { // late decoding of the encoded terms
-      long start = System.nanoTime();
-      termsSet = (NumericTermsSet) TermsSet.readFrom(new BytesRef(encodedTerms));
-      logger.debug("{}: Deserialized {} terms - took {} ms", new Object[] { Thread.currentThread().getName(), termsSet.size(), (System.nanoTime() - start) / 1000000 });
-      encodedTerms = null; // release reference to the byte array to be able to reclaim memory
-    }
-    return termsSet;
+  protected NumericTermsSet getTermsSet() {
+    return terms.get();
   }
 
   public abstract DocIdSet getDocIdSet(LeafReaderContext context) throws IOException;
 
+  /**
+   * Returns the doc values type of the field in the given segment, or null if no document of the segment has
+   * the field.
+   */
+  protected DocValuesType getDocValuesType(LeafReader reader) {
+    FieldInfo fieldInfo = reader.getFieldInfos().fieldInfo(fieldData.getFieldNames().indexName());
+    return fieldInfo == null ? null : fieldInfo.getDocValuesType();
+  }
+
+  protected void onDocValues() {
+    if (stats != null) {
+      stats.onDocValues();
+    }
+  }
+
+  protected void onFieldData() {
+    if (stats != null) {
+      stats.onFieldData();
+    }
+  }
+
+  protected void onPostings() {
+    if (stats != null) {
+      stats.onPostings();
+    }
+  }
+
+  protected void onPruned() {
+    if (stats != null) {
+      stats.onPruned();
+    }
+  }
+
   @Override
   public Weight createWeight(final IndexSearcher searcher, final boolean needsScores) throws IOException {
     return new ConstantScoreWeight(new CacheKeyFieldDataTermsQuery(cacheKey)) {
@@ -187,34 +230,82 @@ public abstract class FieldDataTermsQuery extends Query implements Accountable {
 
   /**
    * Filters on non-floating point numeric fields.
+   * <br>
+   * The strategy is selected per segment based on an estimation of their cost. The scan of the values costs one
+   * lookup in the set per document of the segment. The seek of the terms in the postings costs, for each term
+   * of the set, a lookup in the terms dictionary, logarithmic in the number of terms of the field, plus the reading
+   * of its postings, estimated by the average document frequency of the terms of the field. The number of
+   * segments matched with each strategy is reported by {@link #toString(String)}, and therefore visible in the
+   * search profile.
    */
   protected static class LongsFieldDataTermsQuery extends FieldDataTermsQuery {
 
+    /**
+     * The terms in ascending order, loaded the first time a segment is matched against the postings. The array is
+     * published by the write to the volatile flag.
+     */
+    private long[] sortedTerms;
+    private volatile boolean sortedTermsLoaded = false;
+
+    /**
+     * The number of segments matched with each strategy
+     */
+    private final AtomicInteger postingsSegments = new AtomicInteger();
+    private final AtomicInteger scanSegments = new AtomicInteger();
+
     /**
      * Creates a new {@link FieldDataTermsQuery} from the given field data.
      *
      * @param fieldData
      */
-    public LongsFieldDataTermsQuery(final byte[] encodedTerms, final IndexFieldData fieldData, final long cacheKey) {
-      super(encodedTerms, fieldData, cacheKey);
+    public LongsFieldDataTermsQuery(final TermsSetHolder<NumericTermsSet> terms, final IndexFieldData fieldData,
+                                    final long cacheKey, final TermsQueryShardStats stats) {
+      super(terms, fieldData, cacheKey, stats);
     }
 
+    /**
+     * Includes the sorted terms once loaded. For a hash-backed set, they are a copy of the terms that lives as long
+     * as the query. For a set decoded in sorted order, they are shared with the set and are counted twice, which
+     * errs on the side of the cache evicting the query earlier.
+     */
     @Override
     public long ramBytesUsed() {
       NumericTermsSet termsSet = this.getTermsSet();
-      return BASE_RAM_BYTES_USED + termsSet.size() * 8;
+      long ramBytesUsed = BASE_RAM_BYTES_USED + termsSet.size() * 8;
+      if (sortedTermsLoaded && sortedTerms != null) {
+        ramBytesUsed += RamUsageEstimator.sizeOf(sortedTerms);
+      }
+      return ramBytesUsed;
     }
 
     @Override
     public String toString(String defaultField) {
       NumericTermsSet termsSet = this.getTermsSet();
       final StringBuilder sb = new StringBuilder("LongsFieldDataTermsQuery:");
-      return sb
-              .append(defaultField)
-              .append(":")
-              // Do not serialise the full array, but instead the number of elements - see issue #168
-              .append("[size=" + termsSet.size() + "]")
-              .toString();
+      sb.append(defaultField)
+        .append(":")
+        // Do not serialise the full array, but instead the number of elements - see issue #168
+        .append("[size=" + termsSet.size() + "]");
+      if (postingsSegments.get() + scanSegments.get() > 0) {
+        sb.append("[postings=" + postingsSegments.get() + ", scan=" + scanSegments.get() + "]");
+      }
+      return sb.toString();
+    }
+
+    /**
+     * Returns the terms in ascending order, or null if the set cannot enumerate its terms.
+     */
+    private long[] getSortedTerms() {
+      if (sortedTermsLoaded) {
+        return sortedTerms;
+      }
+      synchronized (this) {
+        if (!sortedTermsLoaded) {
+          sortedTerms = this.getTermsSet().toSortedArray();
+          sortedTermsLoaded = true;
+        }
+        return sortedTerms;
+      }
     }
 
     @Override
@@ -226,7 +317,19 @@ public abstract class FieldDataTermsQuery extends Query implements Accountable {
 
       IndexNumericFieldData numericFieldData = (IndexNumericFieldData) fieldData;
       if (!numericFieldData.getNumericType().isFloatingPoint()) {
-        final SortedNumericDocValues values = numericFieldData.load(context).getLongValues(); // load fielddata
+        final Terms terms = context.reader().terms(fieldData.getFieldNames().indexName());
+        if (!this.overlaps(terms, numericFieldData.getNumericType(), termsSet)) {
+          this.onPruned();
+          return null;
+        }
+        if (this.usePostings(context.reader(), terms, termsSet)) {
+          postingsSegments.incrementAndGet();
+          this.onPostings();
+          return this.seekPostings(context.reader(), terms, numericFieldData.getNumericType());
+        }
+        scanSegments.incrementAndGet();
+        final SortedNumericDocValues values = this.loadLongValues(context);
+        if (values == null) return null;
         return new DocValuesDocIdSet(context.reader().maxDoc(), context.reader().getLiveDocs()) {
           @Override
           protected boolean matchDoc(int doc) {
@@ -248,6 +351,99 @@ public abstract class FieldDataTermsQuery extends Query implements Accountable {
       return null;
     }
 
+    /**
+     * Returns false if the range of the values indexed in the segment does not overlap the bounds of the terms, in
+     * which case no document of the segment can match. The range is read from the trie-encoded terms of the field
+     * and includes deleted documents. Returns true if the range or the bounds are unknown.
+     */
+    private boolean overlaps(Terms terms, IndexNumericFieldData.NumericType numericType, NumericTermsSet termsSet)
+    throws IOException {
+      if (termsSet.getMinValue() == Long.MIN_VALUE && termsSet.getMaxValue() == Long.MAX_VALUE) {
+        return true;
+      }
+      if (terms == null) { // the field is not indexed
+        return true;
+      }
+      Number min, max;
+      if (numericType.requiredBits() > 32) {
+        min = NumericUtils.getMinLong(terms);
+        max = NumericUtils.getMaxLong(terms);
+      }
+      else {
+        min = NumericUtils.getMinInt(terms);
+        max = NumericUtils.getMaxInt(terms);
+      }
+      if (min == null || max == null) {
+        return true;
+      }
+      return min.longValue() <= termsSet.getMaxValue() && max.longValue() >= termsSet.getMinValue();
+    }
+
+    /**
+     * Returns true if seeking the terms in the postings of the segment is estimated to be cheaper than scanning
+     * the values of all its documents. Returns false if the field is not indexed or if the set cannot enumerate
+     * its terms.
+     */
+    private boolean usePostings(LeafReader reader, Terms terms, NumericTermsSet termsSet) throws IOException {
+      if (terms == null) {
+        return false;
+      }
+      long numFieldTerms = terms.size();
+      long sumDocFreq = terms.getSumDocFreq();
+      if (numFieldTerms <= 0 || sumDocFreq < 0) { // statistics not available
+        return false;
+      }
+      double seekCost = (64 - Long.numberOfLeadingZeros(numFieldTerms)) + (double) sumDocFreq / numFieldTerms;
+      double postingsCost = termsSet.size() * seekCost;
+      return postingsCost < reader.maxDoc() && this.getSortedTerms() != null;
+    }
+
+    /**
+     * Seeks each term, encoded with the full precision of the numeric type, in the terms dictionary of the
+     * segment, and collects the documents of their postings. The terms are seeked in ascending order.
+     */
+    private DocIdSet seekPostings(LeafReader reader, Terms terms, IndexNumericFieldData.NumericType numericType)
+    throws IOException {
+      final boolean is64Bits = numericType.requiredBits() > 32;
+      final TermsEnum termsEnum = terms.iterator();
+      final BytesRefBuilder term = new BytesRefBuilder();
+      DocIdSetBuilder builder = new DocIdSetBuilder(reader.maxDoc());
+      PostingsEnum docs = null;
+      for (long value : this.getSortedTerms()) {
+        if (is64Bits) {
+          NumericUtils.longToPrefixCoded(value, 0, term);
+        }
+        else {
+          if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) { // cannot be a value of the field
+            continue;
+          }
+          NumericUtils.intToPrefixCoded((int) value, 0, term);
+        }
+        if (termsEnum.seekExact(term.get())) {
+          docs = termsEnum.postings(docs, PostingsEnum.NONE);
+          builder.add(docs);
+        }
+      }
+      return builder.build();
+    }
+
+    /**
+     * Loads the values of the segment from the doc values if available, or from the field data. Returns null if
+     * no document of the segment has the field.
+     */
+    private SortedNumericDocValues loadLongValues(LeafReaderContext context) throws IOException {
+      DocValuesType type = this.getDocValuesType(context.reader());
+      if (type == null) {
+        return null;
+      }
+      if (type == DocValuesType.NUMERIC || type == DocValuesType.SORTED_NUMERIC) {
+        this.onDocValues();
+        return DocValues.getSortedNumeric(context.reader(), fieldData.getFieldNames().indexName());
+      }
+      this.onFieldData();
+      return ((IndexNumericFieldData) fieldData).load(context).getLongValues(); // load fielddata
+    }
+
   }
 
   /**
@@ -262,8 +458,9 @@ public abstract class FieldDataTermsQuery extends Query implements Accountable {
      *
      * @param fieldData
      */
-    public BytesFieldDataTermsQuery(final byte[] encodedTerms, final IndexFieldData fieldData, final long cacheKey) {
-      super(encodedTerms, fieldData, cacheKey);
+    public BytesFieldDataTermsQuery(final TermsSetHolder<NumericTermsSet> terms, final IndexFieldData fieldData,
+                                    final long cacheKey, final TermsQueryShardStats stats) {
+      super(terms, fieldData, cacheKey, stats);
     }
 
     @Override
@@ -291,6 +488,29 @@ public abstract class FieldDataTermsQuery extends Query implements Accountable {
       // make sure there are terms to filter on
       if (termsSet == null || termsSet.isEmpty()) return null;
 
+      DocValuesType type = this.getDocValuesType(context.reader());
+      if (type == null) return null;
+
+      if (type == DocValuesType.SORTED || type == DocValuesType.SORTED_SET) {
+        this.onDocValues();
+        final SortedSetDocValues ords = DocValues.getSortedSet(context.reader(), fieldData.getFieldNames().indexName());
+        final LongBitSet matchingOrds = this.getMatchingOrds(termsSet, ords);
+        if (matchingOrds == null) return null;
+        return new DocValuesDocIdSet(context.reader().maxDoc(), context.reader().getLiveDocs()) {
+          @Override
+          protected boolean matchDoc(int doc) {
+            ords.setDocument(doc);
+            for (long ord = ords.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = ords.nextOrd()) {
+              if (matchingOrds.get(ord)) {
+                return true;
+              }
+            }
+            return false;
+          }
+        };
+      }
+
+      this.onFieldData();
       final SortedBinaryDocValues values = fieldData.load(context).getBytesValues(); // load fielddata
       return new DocValuesDocIdSet(context.reader().maxDoc(), context.reader().getLiveDocs()) {
         @Override
@@ -310,6 +530,25 @@ public abstract class FieldDataTermsQuery extends Query implements Accountable {
       };
     }
 
+    /**
+     * Returns the ordinals of the segment whose term belongs to the set, so that each term of the segment is hashed
+     * once instead of once per document. Returns null if no term of the segment belongs to the set.
+     */
+    private LongBitSet getMatchingOrds(NumericTermsSet termsSet, SortedSetDocValues ords) throws IOException {
+      LongBitSet matchingOrds = null;
+      TermsEnum termsEnum = ords.termsEnum();
+      for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+        long termHash = LongBloomFilter.hash3_x64_128(term.bytes, term.offset, term.length, 0);
+        if (termsSet.contains(termHash)) {
+          if (matchingOrds == null) {
+            matchingOrds = new LongBitSet(ords.getValueCount());
+          }
+          matchingOrds.set(termsEnum.ord());
+        }
+      }
+      return matchingOrds;
+    }
+
   }
 
   /**
@@ -21,6 +21,8 @@ package solutions.siren.join.index.query;
 import org.apache.lucene.search.MatchNoDocsQuery;
 import org.apache.lucene.search.Query;
 import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.xcontent.XContentParser;
@@ -32,6 +34,11 @@ import org.elasticsearch.index.mapper.core.StringFieldMapper;
 import org.elasticsearch.index.query.QueryParseContext;
 import org.elasticsearch.index.query.QueryParser;
 import org.elasticsearch.index.query.QueryParsingException;
+import org.elasticsearch.indices.IndicesService;
+import solutions.siren.join.action.admin.cache.FilterJoinCacheService;
+import solutions.siren.join.action.coordinate.terms.EncodedTermsStore;
+import solutions.siren.join.action.terms.TermsCollectorService;
+import solutions.siren.join.action.terms.collector.NumericTermsSet;
 
 import java.io.IOException;
 
@@ -44,7 +51,38 @@ public class FieldDataTermsQueryParser implements QueryParser {
 
   private static final ESLogger logger = Loggers.getLogger(FieldDataTermsQueryParser.class);
 
-  public FieldDataTermsQueryParser() {}
+  /**
+   * The node store of the encoded terms, used when the query only references the terms by their cache key
+   */
+  private final EncodedTermsStore termsStore;
+
+  /**
+   * Used to fetch the encoded terms from the coordinator if they are missing from the node store
+   */
+  private Client client;
+
+  /**
+   * Used to retrieve the {@link TermsQueryShardStats} of the shard on which the query is parsed
+   */
+  private final IndicesService indicesService;
+
+  /**
+   * Provides the executor used to decode large sets of terms in parallel
+   */
+  private final TermsCollectorService termsCollectorService;
+
+  @Inject
+  public FieldDataTermsQueryParser(FilterJoinCacheService cacheService, IndicesService indicesService,
+                                   TermsCollectorService termsCollectorService) {
+    this.termsStore = cacheService.getTermsStoreInstance();
+    this.indicesService = indicesService;
+    this.termsCollectorService = termsCollectorService;
+  }
+
+  @Inject(optional = true)
+  public void setClient(Client client) {
+    this.client = client;
+  }
 
   @Override
   public String[] names() {
@@ -64,6 +102,7 @@ public class FieldDataTermsQueryParser implements QueryParser {
     String queryName = null;
     byte[] value = null;
     Long cacheKey = null;
+    String storeNodeId = null;
 
     token = parser.nextToken();
     if (token == XContentParser.Token.START_OBJECT) {
@@ -78,6 +117,8 @@ public class FieldDataTermsQueryParser implements QueryParser {
             queryName = parser.text();
           } else if ("_cache_key".equals(currentFieldName) || "_cacheKey".equals(currentFieldName)) {
             cacheKey = parser.longValue();
+          } else if ("_store_node".equals(currentFieldName)) {
+            storeNodeId = parser.text();
           } else {
             throw new QueryParsingException(parseContext, "[fielddata_terms] filter does not support [" + currentFieldName + "]");
           }
@@ -90,12 +131,23 @@ public class FieldDataTermsQueryParser implements QueryParser {
       parser.nextToken();
     }
 
-    if (value == null) {
-      throw new QueryParsingException(parseContext, "[fielddata_terms] a binary value is required");
-    }
     if (cacheKey == null) { // cache key is mandatory - see #170
       throw new QueryParsingException(parseContext, "[fielddata_terms] a cache key is required");
     }
+    if (value == null) { // the encoded terms were shipped to the node by the coordinator
+      try {
+        // fetch them from the coordinator if they were evicted or never reached this node
+        value = termsStore.get(cacheKey, storeNodeId, client);
+      }
+      catch (Exception e) {
+        throw new QueryParsingException(parseContext, "[fielddata_terms] failed to fetch the encoded terms for " +
+                "cache key [" + cacheKey + "] from node [" + storeNodeId + "]", e);
+      }
+      if (value == null) {
+        throw new QueryParsingException(parseContext, "[fielddata_terms] a binary value is required, " +
+                "and no encoded terms are stored for cache key [" + cacheKey + "]");
+      }
+    }
 
     if (fieldName == null) {
       throw new QueryParsingException(parseContext, "[fielddata_terms] a field name is required");
@@ -119,11 +171,14 @@ public class FieldDataTermsQueryParser implements QueryParser {
   private final Query toFieldDataTermsQuery(MappedFieldType fieldType, IndexFieldData fieldData,
                                             byte[] encodedTerms, long cacheKey) {
     Query query = null;
+    TermsQueryShardStats stats = TermsQueryShardStats.current(indicesService);
+    TermsSetHolder<NumericTermsSet> terms = new TermsSetHolder<>(encodedTerms,
+            termsCollectorService.getDecodeExecutor(), termsCollectorService.getDecodeParallelism());
 
     if (fieldType instanceof NumberFieldMapper.NumberFieldType) {
-      query = FieldDataTermsQuery.newLongs(encodedTerms, (IndexNumericFieldData) fieldData, cacheKey);
+      query = FieldDataTermsQuery.newLongs(terms, (IndexNumericFieldData) fieldData, cacheKey, stats);
     } else if (fieldType instanceof StringFieldMapper.StringFieldType) {
-      query = FieldDataTermsQuery.newBytes(encodedTerms, fieldData, cacheKey);
+      query = FieldDataTermsQuery.newBytes(terms, fieldData, cacheKey, stats);
     } else {
       throw new ElasticsearchParseException("[fielddata_terms] query does not support field data type " + fieldType.fieldDataType().getType());
     }
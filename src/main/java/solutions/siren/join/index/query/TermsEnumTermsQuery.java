@@ -21,8 +21,6 @@ package solutions.siren.join.index.query;
 import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
 import org.apache.lucene.util.*;
-import org.elasticsearch.common.logging.ESLogger;
-import org.elasticsearch.common.logging.Loggers;
 import solutions.siren.join.action.terms.collector.*;
 
 import java.io.IOException;
@@ -41,14 +39,9 @@ public class TermsEnumTermsQuery extends Query implements Accountable {
   private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(TermsEnumTermsQuery.class);
 
   /**
-   * Reference to the encoded list of terms for late decoding.
+   * The encoded set of terms, decoded on first access
    */
-  private byte[] encodedTerms;
-
-  /**
-   * The set of terms after decoding
-   */
-  private BytesRefTermsSet termsSet;
+  private final TermsSetHolder<BytesRefTermsSet> terms;
 
   /**
    * The field to enumerate
@@ -60,13 +53,11 @@ public class TermsEnumTermsQuery extends Query implements Accountable {
    */
   protected final long cacheKey;
 
-  private static final ESLogger logger = Loggers.getLogger(TermsEnumTermsQuery.class);
-
   /**
    * Creates a new {@link TermsEnumTermsQuery} from the given field data.
    */
-  public TermsEnumTermsQuery(final byte[] encodedTerms, final String field, final long cacheKey) {
-    this.encodedTerms = encodedTerms;
+  public TermsEnumTermsQuery(final TermsSetHolder<BytesRefTermsSet> terms, final String field, final long cacheKey) {
+    this.terms = terms;
     this.cacheKey = cacheKey;
     this.field = field;
   }
@@ -74,7 +65,7 @@ public class TermsEnumTermsQuery extends Query implements Accountable {
   @Override
   public long ramBytesUsed() {
     BytesRefTermsSet termsSet = this.getTermsSet();
-    return BASE_RAM_BYTES_USED + termsSet.size() * 8;
+    return BASE_RAM_BYTES_USED + termsSet.ramBytesUsed();
   }
 
   @Override
@@ -120,17 +111,11 @@ public class TermsEnumTermsQuery extends Query implements Accountable {
   }
 
   /**
-   * Returns the set of terms. This method will perform a late-decoding of the encoded terms, and will release the
-   * byte array. This method needs to be synchronized as each segment thread will call it concurrently.
+   * Returns the set of terms. The first call performs a late-decoding of the encoded terms, and the next calls
+   * read the decoded set without locking, see {@link TermsSetHolder}.
    */
-  protected synchronized BytesRefTermsSet getTermsSet() {
-    if (encodedTerms != null) { // late decoding of the encoded terms
-      long start = System.nanoTime();
-      termsSet = (BytesRefTermsSet) TermsSet.readFrom(new BytesRef(encodedTerms));
-      logger.debug("{}: Deserialized {} terms - took {} ms", new Object[] { Thread.currentThread().getName(), termsSet.size(), (System.nanoTime() - start) / 1000000 });
-      encodedTerms = null; // release reference to the byte array to be able to reclaim memory
-    }
-    return termsSet;
+  protected BytesRefTermsSet getTermsSet() {
+    return terms.get();
   }
 
   public DocIdSet getDocIdSet(LeafReaderContext context) throws IOException {
@@ -243,25 +228,23 @@ public class TermsEnumTermsQuery extends Query implements Accountable {
 
   }
 
+  /**
+   * Seeks the terms dictionary with the terms of the set. The terms are iterated in the sorted order in which
+   * they were encoded, so they do not have to be sorted for each segment.
+   */
   static class SeekingTermSetTermsEnum extends FilteredTermsEnum {
 
-    private final BytesRefHash terms;
-    private final int[] ords;
-    private final int lastElement;
-
+    private final BytesRefTermsSet.SortedTermsIterator terms;
     private final BytesRef lastTerm;
-    private final BytesRef spare = new BytesRef();
 
+    private BytesRef currentTerm;
     private BytesRef seekTerm;
-    private int upto = 0;
 
     SeekingTermSetTermsEnum(TermsEnum tenum, BytesRefTermsSet termsSet) {
       super(tenum);
-      this.terms = termsSet.getBytesRefHash();
-      this.ords = this.terms.sort(BytesRef.getUTF8SortedAsUnicodeComparator());
-      lastElement = terms.size() - 1;
-      lastTerm = terms.get(ords[lastElement], new BytesRef());
-      seekTerm = terms.get(ords[upto], spare);
+      this.terms = termsSet.sortedIterator();
+      lastTerm = termsSet.lastTerm();
+      seekTerm = currentTerm = terms.next();
     }
 
     @Override
@@ -273,42 +256,33 @@ public class TermsEnumTermsQuery extends Query implements Accountable {
 
     @Override
     protected AcceptStatus accept(BytesRef term) throws IOException {
-      if (term.compareTo(lastTerm) > 0) {
+      if (currentTerm == null || term.compareTo(lastTerm) > 0) {
         return AcceptStatus.END;
       }
 
-      BytesRef currentTerm = terms.get(ords[upto], spare);
-      if (term.compareTo(currentTerm) == 0) {
-        if (upto == lastElement) {
-          return AcceptStatus.YES;
-        } else {
-          seekTerm = terms.get(ords[++upto], spare);
-          return AcceptStatus.YES_AND_SEEK;
-        }
-      } else {
-        if (upto == lastElement) {
+      int cmp;
+      // We maybe are behind the given term by more than one step. Keep incrementing till we're the same or higher.
+      // Typically the terms dict is a superset of query's terms so it's unusual that we have to skip many of
+      // our terms so we don't do a binary search here
+      while ((cmp = currentTerm.compareTo(term)) < 0) {
+        currentTerm = terms.next();
+        if (currentTerm == null) {
           return AcceptStatus.NO;
-        } else { // Our current term doesn't match the the given term.
-          int cmp;
-          do { // We maybe are behind the given term by more than one step. Keep incrementing till we're the same or higher.
-            if (upto == lastElement) {
-              return AcceptStatus.NO;
-            }
-            // typically the terms dict is a superset of query's terms so it's unusual that we have to skip many of
-            // our terms so we don't do a binary search here
-            seekTerm = terms.get(ords[++upto], spare);
-          } while ((cmp = seekTerm.compareTo(term)) < 0);
-          if (cmp == 0) {
-            if (upto == lastElement) {
-              return AcceptStatus.YES;
-            }
-            seekTerm = terms.get(ords[++upto], spare);
-            return AcceptStatus.YES_AND_SEEK;
-          } else {
-            return AcceptStatus.NO_AND_SEEK;
-          }
         }
       }
+
+      if (cmp == 0) {
+        currentTerm = terms.next();
+        if (currentTerm == null) {
+          return AcceptStatus.YES;
+        }
+        seekTerm = currentTerm;
+        return AcceptStatus.YES_AND_SEEK;
+      }
+      else {
+        seekTerm = currentTerm;
+        return AcceptStatus.NO_AND_SEEK;
+      }
     }
 
   }
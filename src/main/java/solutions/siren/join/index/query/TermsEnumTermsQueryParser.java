@@ -20,6 +20,8 @@ package solutions.siren.join.index.query;
 
 import org.apache.lucene.search.MatchNoDocsQuery;
 import org.apache.lucene.search.Query;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.xcontent.XContentParser;
@@ -27,6 +29,9 @@ import org.elasticsearch.index.mapper.MappedFieldType;
 import org.elasticsearch.index.query.QueryParseContext;
 import org.elasticsearch.index.query.QueryParser;
 import org.elasticsearch.index.query.QueryParsingException;
+import solutions.siren.join.action.admin.cache.FilterJoinCacheService;
+import solutions.siren.join.action.coordinate.terms.EncodedTermsStore;
+import solutions.siren.join.action.terms.collector.BytesRefTermsSet;
 
 import java.io.IOException;
 
@@ -39,7 +44,25 @@ public class TermsEnumTermsQueryParser implements QueryParser {
 
   private static final ESLogger logger = Loggers.getLogger(TermsEnumTermsQueryParser.class);
 
-  public TermsEnumTermsQueryParser() {}
+  /**
+   * The node store of the encoded terms, used when the query only references the terms by their cache key
+   */
+  private final EncodedTermsStore termsStore;
+
+  /**
+   * Used to fetch the encoded terms from the coordinator if they are missing from the node store
+   */
+  private Client client;
+
+  @Inject
+  public TermsEnumTermsQueryParser(FilterJoinCacheService cacheService) {
+    this.termsStore = cacheService.getTermsStoreInstance();
+  }
+
+  @Inject(optional = true)
+  public void setClient(Client client) {
+    this.client = client;
+  }
 
   @Override
   public String[] names() {
@@ -59,6 +82,7 @@ public class TermsEnumTermsQueryParser implements QueryParser {
     String queryName = null;
     byte[] value = null;
     Long cacheKey = null;
+    String storeNodeId = null;
 
     token = parser.nextToken();
     if (token == XContentParser.Token.START_OBJECT) {
@@ -73,6 +97,8 @@ public class TermsEnumTermsQueryParser implements QueryParser {
               queryName = parser.text();
           } else if ("_cache_key".equals(currentFieldName) || "_cacheKey".equals(currentFieldName)) {
               cacheKey = parser.longValue();
+          } else if ("_store_node".equals(currentFieldName)) {
+              storeNodeId = parser.text();
           } else {
             throw new QueryParsingException(parseContext, "[termsenum_terms] filter does not support [" + currentFieldName + "]");
           }
@@ -85,12 +111,23 @@ public class TermsEnumTermsQueryParser implements QueryParser {
       parser.nextToken();
     }
 
-    if (value == null) {
-      throw new QueryParsingException(parseContext, "[termsenum_terms] a binary value is required");
-    }
     if (cacheKey == null) { // cache key is mandatory - see #170
       throw new QueryParsingException(parseContext, "[termsenum_terms] a cache key is required");
     }
+    if (value == null) { // the encoded terms were shipped to the node by the coordinator
+      try {
+        // fetch them from the coordinator if they were evicted or never reached this node
+        value = termsStore.get(cacheKey, storeNodeId, client);
+      }
+      catch (Exception e) {
+        throw new QueryParsingException(parseContext, "[termsenum_terms] failed to fetch the encoded terms for " +
+                "cache key [" + cacheKey + "] from node [" + storeNodeId + "]", e);
+      }
+      if (value == null) {
+        throw new QueryParsingException(parseContext, "[termsenum_terms] a binary value is required, " +
+                "and no encoded terms are stored for cache key [" + cacheKey + "]");
+      }
+    }
 
     if (fieldName == null) {
       throw new QueryParsingException(parseContext, "[termsenum_terms] a field name is required");
@@ -101,7 +138,8 @@ public class TermsEnumTermsQueryParser implements QueryParser {
       return new MatchNoDocsQuery();
     }
 
-    Query query = new TermsEnumTermsQuery(value, fieldName, cacheKey);
+    // the bytes encoding is always decoded sequentially
+    Query query = new TermsEnumTermsQuery(new TermsSetHolder<BytesRefTermsSet>(value), fieldName, cacheKey);
 
     if (queryName != null) {
       parseContext.addNamedQuery(queryName, query);
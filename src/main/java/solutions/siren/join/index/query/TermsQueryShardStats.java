@@ -0,0 +1,194 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.index.query;
+
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.shard.AbstractIndexShardComponent;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.index.shard.ShardNotFoundException;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Per-shard statistics of the {@link FieldDataTermsQuery} executed on a shard: the number of segments matched
+ * against the doc values of the field, the number of segments matched against the field data loaded on the
+ * heap because the field has no doc values, the number of segments matched by seeking the terms in the postings,
+ * and the number of segments skipped because their range of values does not overlap the range of the terms.
+ */
+public class TermsQueryShardStats extends AbstractIndexShardComponent implements Closeable {
+
+  private final CounterMetric docValuesSegments = new CounterMetric();
+
+  private final CounterMetric fieldDataSegments = new CounterMetric();
+
+  private final CounterMetric postingsSegments = new CounterMetric();
+
+  private final CounterMetric prunedSegments = new CounterMetric();
+
+  @Inject
+  public TermsQueryShardStats(ShardId shardId, Settings indexSettings) {
+    super(shardId, indexSettings);
+  }
+
+  /**
+   * Returns the stats of the shard targeted by the current {@link SearchContext}, or null if the query is not
+   * parsed within a search context.
+   */
+  public static TermsQueryShardStats current(IndicesService indicesService) {
+    SearchContext context = SearchContext.current();
+    if (context == null || context.indexShard() == null) {
+      return null;
+    }
+    ShardId shardId = context.indexShard().shardId();
+    IndexService indexService = indicesService.indexService(shardId.getIndex());
+    if (indexService == null) {
+      return null;
+    }
+    return indexService.shardInjectorSafe(shardId.id()).getInstance(TermsQueryShardStats.class);
+  }
+
+  /**
+   * Returns the sum of the stats of the shards allocated on the node. The stats of a shard are lost once the shard
+   * is closed.
+   */
+  public static Stats nodeStats(IndicesService indicesService) {
+    Stats stats = new Stats();
+    for (IndexService indexService : indicesService) {
+      for (int shardId : indexService.shardIds()) {
+        try {
+          stats.add(indexService.shardInjectorSafe(shardId).getInstance(TermsQueryShardStats.class));
+        }
+        catch (ShardNotFoundException e) {
+          // the shard has been closed in the meantime
+        }
+      }
+    }
+    return stats;
+  }
+
+  void onDocValues() {
+    docValuesSegments.inc();
+  }
+
+  void onFieldData() {
+    fieldDataSegments.inc();
+  }
+
+  void onPostings() {
+    postingsSegments.inc();
+  }
+
+  void onPruned() {
+    prunedSegments.inc();
+  }
+
+  /**
+   * Returns the number of segments matched against the doc values of the field.
+   */
+  public long getDocValuesSegments() {
+    return docValuesSegments.count();
+  }
+
+  /**
+   * Returns the number of segments matched against the field data of the field.
+   */
+  public long getFieldDataSegments() {
+    return fieldDataSegments.count();
+  }
+
+  /**
+   * Returns the number of segments matched by seeking the terms in the terms dictionary of the field.
+   */
+  public long getPostingsSegments() {
+    return postingsSegments.count();
+  }
+
+  /**
+   * Returns the number of segments skipped because none of their values is within the bounds of the terms.
+   */
+  public long getPrunedSegments() {
+    return prunedSegments.count();
+  }
+
+  @Override
+  public void close() {}
+
+  /**
+   * A snapshot of the stats of one or more shards.
+   */
+  public static class Stats implements Streamable {
+
+    private long docValuesSegments;
+    private long fieldDataSegments;
+    private long postingsSegments;
+    private long prunedSegments;
+
+    public Stats() {}
+
+    void add(TermsQueryShardStats stats) {
+      docValuesSegments += stats.getDocValuesSegments();
+      fieldDataSegments += stats.getFieldDataSegments();
+      postingsSegments += stats.getPostingsSegments();
+      prunedSegments += stats.getPrunedSegments();
+    }
+
+    public long getDocValuesSegments() {
+      return docValuesSegments;
+    }
+
+    public long getFieldDataSegments() {
+      return fieldDataSegments;
+    }
+
+    public long getPostingsSegments() {
+      return postingsSegments;
+    }
+
+    public long getPrunedSegments() {
+      return prunedSegments;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+      docValuesSegments = in.readVLong();
+      fieldDataSegments = in.readVLong();
+      postingsSegments = in.readVLong();
+      prunedSegments = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+      out.writeVLong(docValuesSegments);
+      out.writeVLong(fieldDataSegments);
+      out.writeVLong(postingsSegments);
+      out.writeVLong(prunedSegments);
+    }
+
+  }
+
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.index.query;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import solutions.siren.join.action.terms.collector.TermsSet;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Holds the encoded set of terms of a {@link FieldDataTermsQuery} or a {@link TermsEnumTermsQuery}, and decodes it
+ * once, on first access. The decoded set is published through a volatile reference, so that the threads executing
+ * the query on the segments read it without locking once decoded. Only the threads accessing the set while it is
+ * being decoded wait for the decoding thread.
+ * <br>
+ * If an executor is provided, a large set is decoded in parallel, see
+ * {@link TermsSet#readFrom(BytesRef, boolean, ExecutorService, int)}.
+ */
+public class TermsSetHolder<T extends TermsSet> {
+
+  /**
+   * Reference to the encoded list of terms for late decoding, released once decoded.
+   */
+  private byte[] encodedTerms;
+
+  /**
+   * The set of terms after decoding
+   */
+  private volatile T termsSet;
+
+  private final ExecutorService executor;
+
+  private final int parallelism;
+
+  private static final ESLogger logger = Loggers.getLogger(TermsSetHolder.class);
+
+  public TermsSetHolder(final byte[] encodedTerms) {
+    this(encodedTerms, null, 1);
+  }
+
+  /**
+   * Creates a holder decoding the terms with <code>parallelism</code> tasks of the executor. The executor might
+   * be null, in which case the terms are decoded sequentially.
+   */
+  public TermsSetHolder(final byte[] encodedTerms, final ExecutorService executor, final int parallelism) {
+    this.encodedTerms = encodedTerms;
+    this.executor = executor;
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Returns the set of terms, decoding it on the first call.
+   */
+  public T get() {
+    T terms = termsSet;
+    if (terms != null) {
+      return terms;
+    }
+    return this.decode();
+  }
+
+  @SuppressWarnings("unchecked")
+  private synchronized T decode() {
+    if (termsSet == null) { // another thread might have decoded the terms while we were waiting
+      long start = System.nanoTime();
+      T terms = (T) TermsSet.readFrom(new BytesRef(encodedTerms), true, executor, parallelism);
+      logger.debug("{}: Deserialized {} terms - took {} ms", new Object[] { Thread.currentThread().getName(), terms.size(), (System.nanoTime() - start) / 1000000 });
+      encodedTerms = null; // release reference to the byte array to be able to reclaim memory
+      termsSet = terms;
+    }
+    return termsSet;
+  }
+
+}
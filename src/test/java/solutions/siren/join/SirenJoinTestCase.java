@@ -24,6 +24,7 @@ import solutions.siren.join.action.admin.cache.ClearFilterJoinCacheAction;
 import solutions.siren.join.action.admin.cache.ClearFilterJoinCacheRequestBuilder;
 import solutions.siren.join.action.admin.cache.ClearFilterJoinCacheResponse;
 import org.elasticsearch.common.settings.Settings;
+import org.junit.After;
 import org.junit.Before;
 
 import java.util.Arrays;
@@ -55,4 +56,10 @@ public class SirenJoinTestCase extends ESIntegTestCase {
     ClearFilterJoinCacheResponse rsp = new ClearFilterJoinCacheRequestBuilder(client(), ClearFilterJoinCacheAction.INSTANCE).get();
   }
 
+  @After
+  public void afterTest() throws Exception {
+    logger.info("Invalidate filter join cache after test, to release the encoded terms accounted on the request breaker");
+    ClearFilterJoinCacheResponse rsp = new ClearFilterJoinCacheRequestBuilder(client(), ClearFilterJoinCacheAction.INSTANCE).get();
+  }
+
 }
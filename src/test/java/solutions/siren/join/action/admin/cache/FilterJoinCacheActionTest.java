@@ -23,6 +23,10 @@ import org.elasticsearch.test.ESIntegTestCase;
 import org.junit.Test;
 import solutions.siren.join.SirenJoinTestCase;
 import solutions.siren.join.action.coordinate.CoordinateSearchRequestBuilder;
+import solutions.siren.join.action.terms.TermsByQueryAction;
+import solutions.siren.join.action.terms.TermsByQueryRequest;
+import solutions.siren.join.action.terms.TermsByQueryRequestBuilder;
+import solutions.siren.join.action.terms.TermsByQueryResponse;
 import solutions.siren.join.index.query.QueryBuilders;
 
 import java.util.concurrent.ExecutionException;
@@ -46,6 +50,40 @@ public class FilterJoinCacheActionTest extends SirenJoinTestCase {
     }
   }
 
+  @Test
+  public void testShardCacheStats() throws Exception {
+    assertAcked(prepareCreate("index3").addMapping("type", "id", "type=integer"));
+    ensureGreen();
+
+    indexRandom(true,
+            client().prepareIndex("index3", "type", "1").setSource("id", 1),
+            client().prepareIndex("index3", "type", "2").setSource("id", 2));
+
+    // the second lookup is served by the shard cache
+    assertThat(this.lookupTerms().getSize(), equalTo(2));
+    assertThat(this.lookupTerms().getSize(), equalTo(2));
+
+    StatsFilterJoinCacheResponse rsp = new StatsFilterJoinCacheRequestBuilder(client(), StatsFilterJoinCacheAction.INSTANCE).get();
+    for (StatsFilterJoinCacheNodeResponse nodeResponse : rsp.getNodeResponses()) {
+      assertThat(nodeResponse.getShardCacheStats().getSize(), greaterThanOrEqualTo(1l));
+      assertThat(nodeResponse.getShardCacheStats().getCacheStats().hitCount(), greaterThanOrEqualTo(1l));
+    }
+
+    // a refresh invalidates the cached terms
+    indexRandom(true, client().prepareIndex("index3", "type", "3").setSource("id", 3));
+    assertThat(this.lookupTerms().getSize(), equalTo(3));
+  }
+
+  private TermsByQueryResponse lookupTerms() {
+    TermsByQueryResponse rsp = new TermsByQueryRequestBuilder(client(), TermsByQueryAction.INSTANCE).setIndices("index3")
+            .setField("id")
+            .setQuery(matchAllQuery())
+            .setTermsEncoding(TermsByQueryRequest.TermsEncoding.LONG)
+            .get();
+    assertNoFailures(rsp);
+    return rsp;
+  }
+
   private void warmCache() throws ExecutionException, InterruptedException {
     this.loadData();
     for (int i = 0; i < 5; i++) {
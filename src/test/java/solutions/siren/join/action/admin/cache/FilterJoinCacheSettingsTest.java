@@ -25,6 +25,7 @@ import org.junit.Test;
 import solutions.siren.join.SirenJoinTestCase;
 import solutions.siren.join.action.coordinate.CoordinateSearchRequestBuilder;
 import solutions.siren.join.action.coordinate.execution.FilterJoinCache;
+import solutions.siren.join.action.terms.TermsByQueryShardCache;
 import solutions.siren.join.index.query.QueryBuilders;
 
 import java.util.concurrent.ExecutionException;
@@ -42,6 +43,7 @@ public class FilterJoinCacheSettingsTest extends SirenJoinTestCase {
   protected Settings nodeSettings(int nodeOrdinal) {
     return settingsBuilder()
             .put(FilterJoinCache.SIREN_FILTERJOIN_CACHE_ENABLED, false)
+            .put(TermsByQueryShardCache.SIREN_TERMSBYQUERY_SHARD_CACHE_ENABLED, false)
             .put(super.nodeSettings(nodeOrdinal)).build();
   }
 
@@ -52,6 +54,7 @@ public class FilterJoinCacheSettingsTest extends SirenJoinTestCase {
     assertThat(rsp.getNodeResponses().length, equalTo(1));
     for (StatsFilterJoinCacheNodeResponse nodeResponse : rsp.getNodeResponses()) {
       assertThat(nodeResponse.getCacheStats().getSize(), equalTo(0l));
+      assertThat(nodeResponse.getShardCacheStats().getSize(), equalTo(0l));
     }
   }
 
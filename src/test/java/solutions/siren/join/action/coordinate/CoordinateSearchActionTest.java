@@ -20,18 +20,31 @@ package solutions.siren.join.action.coordinate;
 
 import org.elasticsearch.test.ESIntegTestCase;
 import solutions.siren.join.SirenJoinTestCase;
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+import solutions.siren.join.action.admin.cache.FilterJoinCacheService;
+import solutions.siren.join.action.coordinate.terms.EncodedTermsStore;
 import solutions.siren.join.action.terms.TermsByQueryRequest;
 import solutions.siren.join.index.query.QueryBuilders;
+import solutions.siren.join.index.query.FilterJoinBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.common.settings.Settings;
 import org.junit.Test;
 
 import static org.elasticsearch.index.query.QueryBuilders.*;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.*;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 
 @ESIntegTestCase.ClusterScope(scope= ESIntegTestCase.Scope.SUITE, numDataNodes=1)
 public class CoordinateSearchActionTest extends SirenJoinTestCase {
 
+  @Override
+  protected Settings nodeSettings(int nodeOrdinal) {
+    return Settings.builder()
+            .put(super.nodeSettings(nodeOrdinal))
+            .put(EncodedTermsStore.SIREN_FILTERJOIN_TERMS_STORE_ENABLED, RandomizedTest.randomBoolean())
+            .build();
+  }
+
   @Test
   public void testSimpleJoinWithStringFields() throws Exception {
     assertAcked(prepareCreate("index1").addMapping("type", "id", "type=string", "foreign_key", "type=string"));
@@ -659,6 +672,46 @@ public class CoordinateSearchActionTest extends SirenJoinTestCase {
     assertHitCount(searchResponse, 0L);
   }
 
+  @Test
+  public void testBloomEncodingWithLearnedCardinality() throws Exception {
+    assertAcked(prepareCreate("index1").addMapping("type", "id", "type=integer", "foreign_key", "type=integer"));
+    assertAcked(prepareCreate("index2").addMapping("type", "id", "type=integer", "tag", "type=string"));
+
+    ensureGreen();
+
+    indexRandom(true,
+            client().prepareIndex("index1", "type", "1").setSource("id", "1", "foreign_key", new String[]{"1", "3"}),
+            client().prepareIndex("index1", "type", "2").setSource("id", "2"),
+            client().prepareIndex("index1", "type", "3").setSource("id", "3", "foreign_key", new String[]{"2"}),
+            client().prepareIndex("index1", "type", "4").setSource("id", "4", "foreign_key", new String[]{"5"}),
+
+            client().prepareIndex("index2", "type", "1").setSource("id", "1", "tag", "aaa"),
+            client().prepareIndex("index2", "type", "2").setSource("id", "2", "tag", "aaa"),
+            client().prepareIndex("index2", "type", "3").setSource("id", "3", "tag", "bbb"));
+
+    FilterJoinBuilder filterJoin = QueryBuilders.filterJoin("foreign_key").indices("index2").types("type").path("id").query(
+            boolQuery().filter(termQuery("tag", "aaa"))
+    ).termsEncoding(TermsByQueryRequest.TermsEncoding.BLOOM);
+
+    // The first execution estimates the cardinality and records the number of terms
+    SearchResponse searchResponse = new CoordinateSearchRequestBuilder(client()).setIndices("index1").setQuery(filterJoin).get();
+    assertHitCount(searchResponse, 2L);
+    assertSearchHits(searchResponse, "1", "3");
+
+    long cardinalities = 0;
+    for (FilterJoinCacheService cacheService : internalCluster().getInstances(FilterJoinCacheService.class)) {
+      cardinalities += cacheService.getCacheInstance().getCardinalitySize();
+    }
+    assertThat(cardinalities, greaterThanOrEqualTo(1L));
+
+    // Updating the lookup index invalidates the cached terms, the next execution reuses the recorded cardinality
+    indexRandom(true, client().prepareIndex("index2", "type", "5").setSource("id", "5", "tag", "aaa"));
+
+    searchResponse = new CoordinateSearchRequestBuilder(client()).setIndices("index1").setQuery(filterJoin).get();
+    assertHitCount(searchResponse, 3L);
+    assertSearchHits(searchResponse, "1", "3", "4");
+  }
+
   @Test
   public void testSimpleJoinWithBytesEncodingOnIntegerField() throws Exception {
     assertAcked(prepareCreate("index1").addMapping("type", "id", "type=integer", "foreign_key", "type=integer"));
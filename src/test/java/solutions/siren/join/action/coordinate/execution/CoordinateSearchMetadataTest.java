@@ -18,6 +18,7 @@
  */
 package solutions.siren.join.action.coordinate.execution;
 
+import com.carrotsearch.randomizedtesting.RandomizedTest;
 import org.elasticsearch.common.bytes.BytesArray;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentHelper;
@@ -30,6 +31,9 @@ import org.elasticsearch.test.rest.client.http.HttpResponse;
 import org.junit.Test;
 import solutions.siren.join.SirenJoinTestCase;
 import solutions.siren.join.action.terms.TermsByQueryRequest;
+import solutions.siren.join.action.terms.TermsByQueryResponse;
+import solutions.siren.join.action.coordinate.terms.EncodedTermsStore;
+import solutions.siren.join.action.terms.TermsCompression;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -45,6 +49,7 @@ import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcke
 import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static solutions.siren.join.index.query.QueryBuilders.filterJoin;
 
 @ESIntegTestCase.ClusterScope(scope= ESIntegTestCase.Scope.SUITE, numDataNodes=1, numClientNodes=0)
@@ -54,6 +59,8 @@ public class CoordinateSearchMetadataTest extends SirenJoinTestCase {
   protected Settings nodeSettings(int nodeOrdinal) {
     return Settings.builder()
             .put(Node.HTTP_ENABLED, true) // enable http for these tests
+            .put(TermsCompression.SIREN_TERMS_COMPRESSION_THRESHOLD, RandomizedTest.randomBoolean() ? "32kb" : "0b")
+            .put(EncodedTermsStore.SIREN_FILTERJOIN_TERMS_STORE_ENABLED, RandomizedTest.randomBoolean())
             .put(super.nodeSettings(nodeOrdinal)).build();
   }
 
@@ -70,8 +77,10 @@ public class CoordinateSearchMetadataTest extends SirenJoinTestCase {
     protected int sizeInBytes;
     protected int took;
     protected TermsByQueryRequest.TermsEncoding termsEncoding = TermsByQueryRequest.TermsEncoding.LONG;
+    protected boolean isAutoTermsEncoding = false;
     protected TermsByQueryRequest.Ordering ordering;
     protected int maxTermsPerShard = -1;
+    protected TermsByQueryResponse.TermsSource termsSource;
   }
 
   private void assertAction(Map action, ExpectedAction expectedAction) {
@@ -118,6 +127,22 @@ public class CoordinateSearchMetadataTest extends SirenJoinTestCase {
 
     key = CoordinateSearchMetadata.Action.Fields.SIZE_IN_BYTES.underscore().getValue();
     assertThat((Integer) action.get(key), greaterThan(expectedAction.sizeInBytes));
+    int sizeInBytes = (Integer) action.get(key);
+
+    key = CoordinateSearchMetadata.Action.Fields.COMPRESSED_SIZE_IN_BYTES.underscore().getValue();
+    assertThat((Integer) action.get(key), greaterThan(0));
+    assertThat((Integer) action.get(key), lessThanOrEqualTo(sizeInBytes));
+
+    // the single data node is the coordinator, the terms of its shards are not shipped
+    key = CoordinateSearchMetadata.Action.Fields.SHARDS_COMPRESSED_SIZE_IN_BYTES.underscore().getValue();
+    assertThat((Integer) action.get(key), equalTo(0));
+
+    key = CoordinateSearchMetadata.Action.Fields.COORDINATOR_COMPRESSED_SIZE_IN_BYTES.underscore().getValue();
+    if (expectedAction.cacheHit) {
+      assertThat((Integer) action.get(key), equalTo(0));
+    } else {
+      assertThat((Integer) action.get(key), equalTo(sizeInBytes));
+    }
 
     key = CoordinateSearchMetadata.Action.Fields.TOOK.underscore().getValue();
     assertThat((Integer) action.get(key), greaterThan(expectedAction.took));
@@ -125,6 +150,9 @@ public class CoordinateSearchMetadataTest extends SirenJoinTestCase {
     key = CoordinateSearchMetadata.Action.Fields.TERMS_ENCODING.underscore().getValue();
     assertThat((String) action.get(key), equalTo(expectedAction.termsEncoding.name().toLowerCase(Locale.ROOT)));
 
+    key = CoordinateSearchMetadata.Action.Fields.IS_AUTO_TERMS_ENCODING.underscore().getValue();
+    assertThat((Boolean) action.get(key), equalTo(expectedAction.isAutoTermsEncoding));
+
     key = CoordinateSearchMetadata.Action.Fields.ORDERING.underscore().getValue();
     if (expectedAction.ordering == null) {
       assertNull(action.get(key));
@@ -138,6 +166,12 @@ public class CoordinateSearchMetadataTest extends SirenJoinTestCase {
     } else {
       assertThat((Integer) action.get(key), equalTo(expectedAction.maxTermsPerShard));
     }
+
+    key = CoordinateSearchMetadata.Action.Fields.TERMS_SOURCE.underscore().getValue();
+    assertNotNull(action.get(key));
+    if (expectedAction.termsSource != null) {
+      assertThat((String) action.get(key), equalTo(expectedAction.termsSource.name().toLowerCase(Locale.ROOT)));
+    }
   }
 
   @Test
@@ -240,6 +274,193 @@ public class CoordinateSearchMetadataTest extends SirenJoinTestCase {
     }});
   }
 
+  @Test
+  public void testTermsSource() throws IOException, RestException, ExecutionException, InterruptedException {
+    assertAcked(prepareCreate("index1").addMapping("type", "id", "type=integer", "foreign_key", "type=integer"));
+    assertAcked(prepareCreate("index2").addMapping("type", "id", "type=integer", "tag", "type=string"));
+    assertAcked(prepareCreate("index3").addMapping("type", "id", "type=string", "tag", "type=string"));
+
+    ensureGreen();
+
+    indexRandom(true,
+            client().prepareIndex("index1", "type", "1").setSource("id", "1", "foreign_key", new String[]{"1", "3"}),
+            client().prepareIndex("index1", "type", "2").setSource("id", "2"),
+
+            client().prepareIndex("index2", "type", "1").setSource("id", "1", "tag", "aaa"),
+            client().prepareIndex("index2", "type", "2").setSource("id", "2", "tag", "aaa"),
+
+            client().prepareIndex("index3", "type", "1").setSource("id", "1", "tag", "aaa"),
+            client().prepareIndex("index3", "type", "2").setSource("id", "2", "tag", "aaa"));
+
+    // Numeric fields have doc values by default
+    Map action = this.getSingleAction(boolQuery().filter(
+            filterJoin("foreign_key").indices("index2").types("type").path("id").query(
+                    boolQuery().filter(termQuery("tag", "aaa"))
+            )).toString());
+    assertAction(action, new ExpectedAction() {{
+      this.fromField = "foreign_key";
+      this.toIndex = "index2";
+      this.toType = "type";
+      this.toField = "id";
+      this.isPruned = false;
+      this.size = 2;
+      this.cacheHit = false;
+      this.sizeInBytes = 0;
+      this.termsSource = TermsByQueryResponse.TermsSource.DOC_VALUES;
+    }});
+
+    // Analyzed string fields have no doc values and fall back to field data
+    action = this.getSingleAction(boolQuery().filter(
+            filterJoin("foreign_key").indices("index3").types("type").path("id").query(
+                    boolQuery().filter(termQuery("tag", "aaa"))
+            )).toString());
+    assertAction(action, new ExpectedAction() {{
+      this.fromField = "foreign_key";
+      this.toIndex = "index3";
+      this.toType = "type";
+      this.toField = "id";
+      this.isPruned = false;
+      this.size = 2;
+      this.cacheHit = false;
+      this.sizeInBytes = 0;
+      this.termsSource = TermsByQueryResponse.TermsSource.FIELD_DATA;
+    }});
+  }
+
+  @Test
+  public void testAutoTermsEncoding() throws IOException, RestException, ExecutionException, InterruptedException {
+    assertAcked(prepareCreate("index1").addMapping("type", "id", "type=integer", "foreign_key", "type=integer"));
+    assertAcked(prepareCreate("index2").addMapping("type", "id", "type=integer", "tag", "type=string"));
+    assertAcked(prepareCreate("index3").addMapping("type", "id", "type=string", "tag", "type=string"));
+
+    ensureGreen();
+
+    indexRandom(true,
+            client().prepareIndex("index1", "type", "1").setSource("id", "1", "foreign_key", new String[]{"1", "3"}),
+            client().prepareIndex("index1", "type", "2").setSource("id", "2"),
+
+            client().prepareIndex("index2", "type", "1").setSource("id", "1", "tag", "aaa"),
+            client().prepareIndex("index2", "type", "2").setSource("id", "2", "tag", "aaa"),
+
+            client().prepareIndex("index3", "type", "1").setSource("id", "1", "tag", "aaa"),
+            client().prepareIndex("index3", "type", "2").setSource("id", "2", "tag", "aaa"));
+
+    // Integer lookup fields are encoded as integers
+    String q = boolQuery().filter(
+            filterJoin("foreign_key").indices("index2").types("type").path("id").query(
+                    boolQuery().filter(termQuery("tag", "aaa"))
+            ).termsEncoding(TermsByQueryRequest.TermsEncoding.AUTO)).toString();
+    Map action = this.getSingleAction(q);
+    assertAction(action, new ExpectedAction() {{
+      this.fromField = "foreign_key";
+      this.toIndex = "index2";
+      this.toType = "type";
+      this.toField = "id";
+      this.isPruned = false;
+      this.size = 2;
+      this.cacheHit = false;
+      this.sizeInBytes = 0;
+      this.termsEncoding = TermsByQueryRequest.TermsEncoding.INTEGER;
+      this.isAutoTermsEncoding = true;
+    }});
+
+    // The selected encoding is retrieved from the cache
+    action = this.getSingleAction(q);
+    assertAction(action, new ExpectedAction() {{
+      this.fromField = "foreign_key";
+      this.toIndex = "index2";
+      this.toType = "type";
+      this.toField = "id";
+      this.isPruned = false;
+      this.size = 2;
+      this.cacheHit = true;
+      this.sizeInBytes = 0;
+      this.took = -1;
+      this.termsEncoding = TermsByQueryRequest.TermsEncoding.INTEGER;
+      this.isAutoTermsEncoding = true;
+    }});
+
+    // String lookup fields are hashed into longs
+    action = this.getSingleAction(boolQuery().filter(
+            filterJoin("foreign_key").indices("index3").types("type").path("id").query(
+                    boolQuery().filter(termQuery("tag", "aaa"))
+            ).termsEncoding(TermsByQueryRequest.TermsEncoding.AUTO)).toString());
+    assertAction(action, new ExpectedAction() {{
+      this.fromField = "foreign_key";
+      this.toIndex = "index3";
+      this.toType = "type";
+      this.toField = "id";
+      this.isPruned = false;
+      this.size = 2;
+      this.cacheHit = false;
+      this.sizeInBytes = 0;
+      this.termsEncoding = TermsByQueryRequest.TermsEncoding.LONG;
+      this.isAutoTermsEncoding = true;
+    }});
+
+    // Small sets of strings are encoded as bytes if the number of terms per shard is bounded
+    action = this.getSingleAction(boolQuery().filter(
+            filterJoin("foreign_key").indices("index3").types("type").path("id").query(
+                    boolQuery().filter(termQuery("tag", "aaa"))
+            ).termsEncoding(TermsByQueryRequest.TermsEncoding.AUTO).maxTermsPerShard(10)).toString());
+    assertAction(action, new ExpectedAction() {{
+      this.fromField = "foreign_key";
+      this.toIndex = "index3";
+      this.toType = "type";
+      this.toField = "id";
+      this.isPruned = false;
+      this.size = 2;
+      this.cacheHit = false;
+      this.sizeInBytes = 0;
+      this.maxTermsPerShard = 10;
+      this.termsEncoding = TermsByQueryRequest.TermsEncoding.BYTES;
+      this.isAutoTermsEncoding = true;
+    }});
+
+    // The cached family of a lookup field is invalidated when the lookup index is recreated with another mapping
+    assertAcked(client().admin().indices().prepareDelete("index2"));
+    assertAcked(prepareCreate("index2").addMapping("type", "id", "type=long", "tag", "type=string"));
+    ensureGreen();
+    indexRandom(true,
+            client().prepareIndex("index2", "type", "1").setSource("id", "1", "tag", "bbb"),
+            client().prepareIndex("index2", "type", "2").setSource("id", "2", "tag", "bbb"));
+
+    action = this.getSingleAction(boolQuery().filter(
+            filterJoin("foreign_key").indices("index2").types("type").path("id").query(
+                    boolQuery().filter(termQuery("tag", "bbb"))
+            ).termsEncoding(TermsByQueryRequest.TermsEncoding.AUTO)).toString());
+    assertAction(action, new ExpectedAction() {{
+      this.fromField = "foreign_key";
+      this.toIndex = "index2";
+      this.toType = "type";
+      this.toField = "id";
+      this.isPruned = false;
+      this.size = 2;
+      this.cacheHit = false;
+      this.sizeInBytes = 0;
+      this.termsEncoding = TermsByQueryRequest.TermsEncoding.LONG;
+      this.isAutoTermsEncoding = true;
+    }});
+  }
+
+  private Map getSingleAction(String q) throws IOException {
+    String body = "{ \"query\" : " + q + "}";
+
+    HttpResponse response = httpClient().method("GET").path("/_coordinate_search").body(body).execute();
+    assertThat(response.getStatusCode(), equalTo(RestStatus.OK.getStatus()));
+    Map<String, Object> map = XContentHelper.convertToMap(new BytesArray(response.getBody().getBytes("UTF-8")), false).v2();
+
+    String key = CoordinateSearchMetadata.Fields.COORDINATE_SEARCH.underscore().getValue();
+    assertTrue(map.containsKey(key));
+    Map coordinateSearch = (Map) map.get(key);
+
+    key = CoordinateSearchMetadata.Fields.ACTIONS.underscore().getValue();
+    assertTrue(coordinateSearch.containsKey(key));
+    List actions = (List) coordinateSearch.get(key);
+    assertThat(actions.size(), equalTo(1));
+    return (Map) actions.get(0);
+  }
+
   @Test
   public void testOrdering() throws IOException, RestException, ExecutionException, InterruptedException {
     ElasticsearchAssertions.assertAcked(prepareCreate("index1").addMapping("type", "id", "type=string", "foreign_key", "type=string"));
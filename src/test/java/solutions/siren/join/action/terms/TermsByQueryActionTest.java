@@ -21,11 +21,16 @@ package solutions.siren.join.action.terms;
 import com.carrotsearch.hppc.cursors.LongCursor;
 import com.carrotsearch.randomizedtesting.RandomizedTest;
 import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.test.ESIntegTestCase;
 import solutions.siren.join.SirenJoinTestCase;
+import solutions.siren.join.action.terms.collector.BinaryFuseFilterTermsSet;
+import solutions.siren.join.action.terms.collector.BytesRefTermsSet;
 import solutions.siren.join.action.terms.collector.LongBloomFilter;
 import solutions.siren.join.action.terms.collector.LongTermsSet;
 import solutions.siren.join.action.terms.collector.NumericTermsSet;
+import solutions.siren.join.action.terms.collector.RoaringTermsSet;
 import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.test.hamcrest.ElasticsearchAssertions;
@@ -36,6 +41,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 
+import static org.elasticsearch.common.settings.Settings.settingsBuilder;
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
 import static org.hamcrest.Matchers.*;
@@ -43,6 +49,19 @@ import static org.hamcrest.Matchers.*;
 @ESIntegTestCase.ClusterScope(scope= ESIntegTestCase.Scope.SUITE, numDataNodes=1)
 public class TermsByQueryActionTest extends SirenJoinTestCase {
 
+  @Override
+  protected Settings nodeSettings(int nodeOrdinal) {
+    return settingsBuilder()
+            .put(super.nodeSettings(nodeOrdinal))
+            .put(TermsCollectorService.SIREN_TERMSBYQUERY_COLLECTOR_PARALLELISM, RandomizedTest.randomBoolean() ? 1 : RandomizedTest.randomIntBetween(2, 4))
+            .put(TermsCollectorService.SIREN_TERMSBYQUERY_COLLECTOR_STREAMING, RandomizedTest.randomBoolean())
+            .put(TermsCollectorService.SIREN_TERMSBYQUERY_MERGE_PARALLELISM, RandomizedTest.randomBoolean() ? 1 : RandomizedTest.randomIntBetween(2, 4))
+            .put(TransportTermsByQueryAction.SIREN_TERMSBYQUERY_BY_NODE, RandomizedTest.randomBoolean())
+            .put(TermsCollectorService.SIREN_TERMSBYQUERY_SPILL_ENABLED, RandomizedTest.randomBoolean())
+            .put(TermsCollectorService.SIREN_TERMSBYQUERY_CHUNK_SIZE, RandomizedTest.randomBoolean() ? 1048576 : RandomizedTest.randomIntBetween(1, 100))
+            .build();
+  }
+
   /**
    * Tests that the terms by query action returns the correct terms against string fields
    */
@@ -82,6 +101,66 @@ public class TermsByQueryActionTest extends SirenJoinTestCase {
     }
   }
 
+  /**
+   * Tests that the terms by query action returns each distinct term once against string fields with many
+   * repeated terms spread across multiple segments
+   */
+  @Test
+  public void testTermsByQueryStringFieldWithRepeatedTerms() throws Exception {
+    createIndex("test");
+
+    int numDocs = RandomizedTest.randomIntBetween(100, 2000);
+    int numTerms = RandomizedTest.randomIntBetween(1, 50);
+    logger.info("--> indexing [" + numDocs + "] docs with [" + numTerms + "] distinct terms");
+    for (int i = 0; i < numDocs; i++) {
+      client().prepareIndex("test", "type", "" + i)
+              .setSource(jsonBuilder().startObject()
+                                        .array("str", Integer.toString(i % numTerms), Integer.toString((i + 1) % numTerms))
+                                      .endObject())
+              .execute().actionGet();
+      if (RandomizedTest.rarely()) { // create several segments
+        client().admin().indices().prepareRefresh("test").execute().actionGet();
+      }
+    }
+
+    client().admin().indices().prepareRefresh("test").execute().actionGet();
+
+    logger.info("--> lookup terms in field [str] with bytes encoding");
+    TermsByQueryResponse resp = new TermsByQueryRequestBuilder(client(), TermsByQueryAction.INSTANCE).setIndices("test")
+                                                                        .setField("str")
+                                                                        .setQuery(QueryBuilders.matchAllQuery())
+                                                                        .setMaxTermsPerShard(numDocs)
+                                                                        .setTermsEncoding(TermsByQueryRequest.TermsEncoding.BYTES)
+                                                                        .execute()
+                                                                        .actionGet();
+
+    ElasticsearchAssertions.assertNoFailures(resp);
+    assertThat(resp.getSize(), is(numTerms));
+    TermsSet bTerms = TermsSet.readFrom(resp.getEncodedTermsSet());
+    assertThat(bTerms instanceof BytesRefTermsSet, is(true));
+    for (int i = 0; i < numTerms; i++) {
+      assertThat(((BytesRefTermsSet) bTerms).getBytesRefHash().find(new BytesRef(Integer.toString(i))), greaterThanOrEqualTo(0));
+    }
+
+    logger.info("--> lookup terms in field [str] with long encoding");
+    resp = new TermsByQueryRequestBuilder(client(), TermsByQueryAction.INSTANCE).setIndices("test")
+                                                                        .setField("str")
+                                                                        .setQuery(QueryBuilders.matchAllQuery())
+                                                                        .setTermsEncoding(TermsByQueryRequest.TermsEncoding.LONG)
+                                                                        .execute()
+                                                                        .actionGet();
+
+    ElasticsearchAssertions.assertNoFailures(resp);
+    assertThat(resp.getSize(), is(numTerms));
+    TermsSet lTerms = TermsSet.readFrom(resp.getEncodedTermsSet());
+    assertThat(lTerms instanceof LongTermsSet, is(true));
+    for (int i = 0; i < numTerms; i++) {
+      BytesRef bytesRef = new BytesRef(Integer.toString(i));
+      long termHash = LongBloomFilter.hash3_x64_128(bytesRef.bytes, bytesRef.offset, bytesRef.length, 0);
+      assertThat(((LongTermsSet) lTerms).contains(termHash), is(true));
+    }
+  }
+
   /**
    * Tests that the terms by query action returns the correct terms against integer fields
    */
@@ -120,6 +199,130 @@ public class TermsByQueryActionTest extends SirenJoinTestCase {
     }
   }
 
+  /**
+   * Tests that the terms by query action returns the correct terms when they are compressed on the wire
+   */
+  @Test
+  public void testTermsByQueryWithCompression() throws Exception {
+    createIndex("test");
+
+    int numDocs = RandomizedTest.randomIntBetween(100, 2000);
+    logger.info("--> indexing [" + numDocs + "] docs");
+    for (int i = 0; i < numDocs; i++) {
+      client().prepareIndex("test", "type", "" + i)
+              .setSource(jsonBuilder().startObject()
+                                        .field("int", i)
+                                      .endObject())
+              .execute().actionGet();
+    }
+
+    client().admin().indices().prepareRefresh("test").execute().actionGet();
+
+    TermsByQueryRequest.TermsEncoding termsEncoding = RandomizedTest.randomBoolean() ?
+            TermsByQueryRequest.TermsEncoding.LONG : TermsByQueryRequest.TermsEncoding.INTEGER;
+    logger.info("--> lookup terms in field [int] with encoding [" + termsEncoding + "]");
+    // a client node holds no shards, so that the terms of all the shards are shipped to the coordinator
+    Client client = internalCluster().clientNodeClient();
+    TermsByQueryResponse resp = new TermsByQueryRequestBuilder(client, TermsByQueryAction.INSTANCE).setIndices("test")
+                                                                        .setField("int")
+                                                                        .setQuery(QueryBuilders.matchAllQuery())
+                                                                        .setTermsEncoding(termsEncoding)
+                                                                        .setCompressionThreshold(0)
+                                                                        .execute()
+                                                                        .actionGet();
+
+    ElasticsearchAssertions.assertNoFailures(resp);
+    assertThat(resp.getSize(), is(numDocs));
+    assertThat(resp.getShardsCompressedSizeInBytes(), greaterThan(0L));
+    assertThat(resp.getCompressedSizeInBytes(), greaterThan(0L));
+    NumericTermsSet terms = (NumericTermsSet) TermsSet.readFrom(resp.getEncodedTermsSet());
+    assertThat(terms.size(), is(numDocs));
+    for (int i = 0; i < numDocs; i++) {
+      assertThat(terms.contains(i), is(true));
+    }
+  }
+
+  /**
+   * Tests that the terms by query action returns the correct terms against integer fields with the roaring encoding
+   */
+  @Test
+  public void testTermsByQueryIntegerFieldWithRoaringEncoding() throws Exception {
+    createIndex("test");
+
+    int numDocs = RandomizedTest.randomIntBetween(100, 2000);
+    logger.info("--> indexing [" + numDocs + "] docs");
+    for (int i = 0; i < numDocs; i++) {
+      client().prepareIndex("test", "type", "" + i)
+              .setSource(jsonBuilder().startObject()
+                                        .array("int", i, i * 100000, -i)
+                                      .endObject())
+              .execute().actionGet();
+    }
+
+    client().admin().indices().prepareRefresh("test").execute().actionGet();
+
+    logger.info("--> lookup terms in field [int]");
+    TermsByQueryResponse resp = new TermsByQueryRequestBuilder(client(), TermsByQueryAction.INSTANCE).setIndices("test")
+                                                                        .setField("int")
+                                                                        .setQuery(QueryBuilders.matchAllQuery())
+                                                                        .setTermsEncoding(TermsByQueryRequest.TermsEncoding.ROARING)
+                                                                        .execute()
+                                                                        .actionGet();
+
+    ElasticsearchAssertions.assertNoFailures(resp);
+    assertThat(resp.getEncodedTermsSet(), notNullValue());
+    // 0 is shared by the three values of the first document
+    assertThat(resp.getSize(), is(numDocs * 3 - 2));
+    TermsSet rTerms = TermsSet.readFrom(resp.getEncodedTermsSet());
+    assertThat(rTerms instanceof RoaringTermsSet, is(true));
+    assertThat(rTerms.size(), is(numDocs * 3 - 2));
+    for (int i = 0; i < numDocs; i++) {
+      assertThat(((RoaringTermsSet) rTerms).contains(i), is(true));
+      assertThat(((RoaringTermsSet) rTerms).contains(i * 100000), is(true));
+      assertThat(((RoaringTermsSet) rTerms).contains(-i), is(true));
+    }
+    assertThat(((RoaringTermsSet) rTerms).contains(numDocs), is(false));
+  }
+
+  /**
+   * Tests that the terms by query action returns the correct terms against integer fields with the binary fuse
+   * filter encoding
+   */
+  @Test
+  public void testTermsByQueryIntegerFieldWithBinaryFuseEncoding() throws Exception {
+    createIndex("test");
+
+    int numDocs = RandomizedTest.randomIntBetween(100, 2000);
+    logger.info("--> indexing [" + numDocs + "] docs");
+    for (int i = 0; i < numDocs; i++) {
+      client().prepareIndex("test", "type", "" + i)
+              .setSource(jsonBuilder().startObject()
+                                        .field("int", i)
+                                      .endObject())
+              .execute().actionGet();
+    }
+
+    client().admin().indices().prepareRefresh("test").execute().actionGet();
+
+    logger.info("--> lookup terms in field [int]");
+    TermsByQueryResponse resp = new TermsByQueryRequestBuilder(client(), TermsByQueryAction.INSTANCE).setIndices("test")
+                                                                        .setField("int")
+                                                                        .setQuery(QueryBuilders.matchAllQuery())
+                                                                        .setTermsEncoding(TermsByQueryRequest.TermsEncoding.BINARY_FUSE)
+                                                                        .execute()
+                                                                        .actionGet();
+
+    ElasticsearchAssertions.assertNoFailures(resp);
+    assertThat(resp.getEncodedTermsSet(), notNullValue());
+    assertThat(resp.getSize(), is(numDocs));
+    TermsSet fTerms = TermsSet.readFrom(resp.getEncodedTermsSet());
+    assertThat(fTerms instanceof BinaryFuseFilterTermsSet, is(true));
+    assertThat(fTerms.size(), is(numDocs));
+    for (int i = 0; i < numDocs; i++) {
+      assertThat(((BinaryFuseFilterTermsSet) fTerms).contains(i), is(true));
+    }
+  }
+
   /**
    * Tests that the limit for the number of terms retrieved is properly applied.
    */
@@ -127,7 +330,8 @@ public class TermsByQueryActionTest extends SirenJoinTestCase {
   public void testTermsByQueryWithLimit() throws Exception {
     createIndex("test");
 
-    int numDocs = RandomizedTest.randomIntBetween(100, 2000);
+    // more docs than the limit over all the shards, so that at least one shard exceeds the limit
+    int numDocs = RandomizedTest.randomIntBetween(this.getNumShards("test").numPrimaries * 50 + 1, 2000);
     logger.info("--> indexing [" + numDocs + "] docs");
     for (int i = 0; i < numDocs; i++) {
       client().prepareIndex("test", "type", "" + i)
@@ -153,6 +357,7 @@ public class TermsByQueryActionTest extends SirenJoinTestCase {
     ElasticsearchAssertions.assertNoFailures(resp);
     assertThat(resp.getEncodedTermsSet(), notNullValue());
     assertThat(resp.getSize(), lessThanOrEqualTo(expectedMaxResultSize));
+    assertThat(resp.isPruned(), is(true));
     TermsSet lTerms = TermsSet.readFrom(resp.getEncodedTermsSet());
     assertThat(lTerms instanceof LongTermsSet, is(true));
   }
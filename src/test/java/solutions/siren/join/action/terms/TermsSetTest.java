@@ -18,16 +18,37 @@
  */
 package solutions.siren.join.action.terms;
 
+import com.carrotsearch.hppc.cursors.LongCursor;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.cache.recycler.PageCacheRecycler;
 import org.elasticsearch.common.breaker.CircuitBreaker;
 import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.util.BigArrays;
 import org.elasticsearch.indices.breaker.HierarchyCircuitBreakerService;
 import org.elasticsearch.node.settings.NodeSettingsService;
 import org.elasticsearch.test.ESSingleNodeTestCase;
 import org.junit.Test;
+import solutions.siren.join.action.terms.collector.BinaryFuseFilterTermsSet;
+import solutions.siren.join.action.terms.collector.BytesRefTermsSet;
 import solutions.siren.join.action.terms.collector.IntegerTermsSet;
 import solutions.siren.join.action.terms.collector.LongTermsSet;
+import solutions.siren.join.action.terms.collector.NumericTermsSet;
+import solutions.siren.join.action.terms.collector.PartitionedTermsSet;
+import solutions.siren.join.action.terms.collector.RoaringTermsSet;
+import solutions.siren.join.action.terms.collector.TermsSet;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.hamcrest.Matchers.*;
 
@@ -105,4 +126,575 @@ public class TermsSetTest extends ESSingleNodeTestCase {
     assertThat(breaker.getUsed(), is(equalTo(0L)));
   }
 
+  @Test
+  public void testCappedMergeOnLongTermsSet() {
+    HierarchyCircuitBreakerService hcbs = new HierarchyCircuitBreakerService(
+            Settings.builder().build(),
+            new NodeSettingsService(Settings.EMPTY));
+
+    CircuitBreaker breaker = hcbs.getBreaker(CircuitBreaker.REQUEST);
+
+    LongTermsSet termsSet = new LongTermsSet(8, breaker);
+    LongTermsSet other = new LongTermsSet(8, breaker);
+    for (int i = 0; i < 8; i++) {
+      termsSet.add(i);
+      other.add(i + 4);
+    }
+
+    // all the terms fit: the merged set is not pruned
+    termsSet.merge(other, 12);
+    assertThat(termsSet.size(), is(equalTo(12)));
+    assertThat(termsSet.isPruned(), is(false));
+
+    other.add(42);
+    other.add(43);
+
+    // only one more term fits: the merged set is pruned
+    termsSet.merge(other, 13);
+    assertThat(termsSet.size(), is(equalTo(13)));
+    assertThat(termsSet.isPruned(), is(true));
+
+    termsSet.release();
+    other.release();
+    assertThat(breaker.getUsed(), is(equalTo(0L)));
+  }
+
+  @Test
+  public void testChunksOnLongTermsSet() {
+    HierarchyCircuitBreakerService hcbs = new HierarchyCircuitBreakerService(
+            Settings.builder().build(),
+            new NodeSettingsService(Settings.EMPTY));
+
+    CircuitBreaker breaker = hcbs.getBreaker(CircuitBreaker.REQUEST);
+
+    LongTermsSet termsSet = new LongTermsSet(8, breaker);
+    for (int i = 0; i < 10; i++) {
+      termsSet.add(i);
+    }
+
+    LongTermsSet merged = new LongTermsSet(8, breaker);
+    int numChunks = 0;
+    Iterator<TermsSet> chunks = termsSet.chunks(3, breaker);
+    while (chunks.hasNext()) {
+      TermsSet chunk = chunks.next();
+      assertThat(chunk.size(), lessThanOrEqualTo(3));
+      merged.merge(chunk);
+      chunk.release();
+      numChunks++;
+    }
+
+    assertThat(numChunks, is(equalTo(4)));
+    assertThat(merged.size(), is(equalTo(10)));
+    for (int i = 0; i < 10; i++) {
+      assertThat(merged.contains(i), is(true));
+    }
+
+    termsSet.release();
+    merged.release();
+    assertThat(breaker.getUsed(), is(equalTo(0L)));
+  }
+
+  @Test
+  public void testRoaringTermsSet() {
+    HierarchyCircuitBreakerService hcbs = new HierarchyCircuitBreakerService(
+            Settings.builder().build(),
+            new NodeSettingsService(Settings.EMPTY));
+
+    CircuitBreaker breaker = hcbs.getBreaker(CircuitBreaker.REQUEST);
+
+    // a dense range stored in bitmap containers, and sparse terms stored in array containers
+    RoaringTermsSet termsSet = new RoaringTermsSet(8, breaker);
+    for (int i = 0; i < 100000; i++) {
+      termsSet.add(i);
+    }
+    RoaringTermsSet other = new RoaringTermsSet(8, breaker);
+    for (int i = 0; i < 1000; i++) {
+      other.add(-i * 7919);
+      other.add(i * 3);
+    }
+    long usedMem = breaker.getUsed();
+    assertThat(usedMem, greaterThan(0L));
+
+    termsSet.merge(other);
+    assertThat(termsSet.size(), is(equalTo(100000 + 999)));
+    assertThat(breaker.getUsed(), greaterThan(usedMem));
+
+    // decode the encoded set
+    RoaringTermsSet decoded = (RoaringTermsSet) TermsSet.readFrom(termsSet.writeToBytes());
+    assertThat(decoded.size(), is(equalTo(termsSet.size())));
+    for (int i = 0; i < 100000; i++) {
+      assertThat(decoded.contains(i), is(true));
+    }
+    for (int i = 0; i < 1000; i++) {
+      assertThat(decoded.contains(-i * 7919), is(true));
+    }
+    assertThat(decoded.contains(100000), is(false));
+    assertThat(decoded.contains(-1), is(false));
+
+    // the encoded set is much smaller than an integer set
+    assertThat(termsSet.writeToBytes().length, lessThan(termsSet.size()));
+
+    termsSet.release();
+    other.release();
+    assertThat(breaker.getUsed(), is(equalTo(0L)));
+  }
+
+  @Test
+  public void testOverlappingMergeOnRoaringTermsSet() throws IOException {
+    HierarchyCircuitBreakerService hcbs = new HierarchyCircuitBreakerService(
+            Settings.builder().build(),
+            new NodeSettingsService(Settings.EMPTY));
+
+    CircuitBreaker breaker = hcbs.getBreaker(CircuitBreaker.REQUEST);
+
+    // two array containers whose cardinalities sum above the maximum size of an array container, but whose union
+    // does not exceed it
+    RoaringTermsSet termsSet = new RoaringTermsSet(8, breaker);
+    RoaringTermsSet other = new RoaringTermsSet(8, breaker);
+    for (int i = 0; i < 3000; i++) {
+      termsSet.add(i);
+      other.add(i + 500);
+    }
+    termsSet.merge(other);
+    assertThat(termsSet.size(), is(equalTo(3500)));
+
+    // decode the encoded set
+    RoaringTermsSet decoded = (RoaringTermsSet) TermsSet.readFrom(termsSet.writeToBytes());
+    assertThat(decoded.size(), is(equalTo(3500)));
+    for (int i = 0; i < 3500; i++) {
+      assertThat(decoded.contains(i), is(true));
+    }
+    assertThat(decoded.contains(3500), is(false));
+
+    // read the serialized set
+    BytesStreamOutput out = new BytesStreamOutput();
+    termsSet.writeTo(out);
+    RoaringTermsSet received = new RoaringTermsSet(breaker);
+    received.readFrom(StreamInput.wrap(out.bytes()));
+    assertThat(received.size(), is(equalTo(3500)));
+    for (int i = 0; i < 3500; i++) {
+      assertThat(received.contains(i), is(true));
+    }
+    assertThat(received.contains(3500), is(false));
+
+    termsSet.release();
+    other.release();
+    received.release();
+    assertThat(breaker.getUsed(), is(equalTo(0L)));
+  }
+
+  @Test
+  public void testBoundsOfDecodedTermsSets() {
+    HierarchyCircuitBreakerService hcbs = new HierarchyCircuitBreakerService(
+            Settings.builder().build(),
+            new NodeSettingsService(Settings.EMPTY));
+
+    CircuitBreaker breaker = hcbs.getBreaker(CircuitBreaker.REQUEST);
+
+    LongTermsSet longSet = new LongTermsSet(8, breaker);
+    IntegerTermsSet intSet = new IntegerTermsSet(8, breaker);
+    RoaringTermsSet roaringSet = new RoaringTermsSet(8, breaker);
+    for (int i = 0; i < 1000; i++) {
+      longSet.add(i * 7919L - 500000L);
+      intSet.add(i * 7919 - 500000);
+      roaringSet.add(i * 7919 - 500000);
+    }
+
+    // the bounds are unknown until the set is decoded
+    assertThat(longSet.getMinValue(), is(equalTo(Long.MIN_VALUE)));
+    assertThat(longSet.getMaxValue(), is(equalTo(Long.MAX_VALUE)));
+
+    long min = -500000L;
+    long max = 999 * 7919L - 500000L;
+    NumericTermsSet[] decoded = new NumericTermsSet[] {
+      (NumericTermsSet) TermsSet.readFrom(longSet.writeToBytes()),
+      (NumericTermsSet) TermsSet.readFrom(intSet.writeToBytes()),
+      (NumericTermsSet) TermsSet.readFrom(roaringSet.writeToBytes())
+    };
+    long[] sorted = new long[1000];
+    for (int i = 0; i < 1000; i++) {
+      sorted[i] = i * 7919L - 500000L;
+    }
+    for (NumericTermsSet set : decoded) {
+      assertThat(set.getMinValue(), is(equalTo(min)));
+      assertThat(set.getMaxValue(), is(equalTo(max)));
+      // the terms are enumerated in ascending order
+      assertArrayEquals(sorted, set.toSortedArray());
+    }
+
+    // a roaring set with positive terms only
+    RoaringTermsSet positive = new RoaringTermsSet(8, breaker);
+    positive.add(3);
+    positive.add(1 << 20);
+    NumericTermsSet decodedPositive = (NumericTermsSet) TermsSet.readFrom(positive.writeToBytes());
+    assertThat(decodedPositive.getMinValue(), is(equalTo(3L)));
+    assertThat(decodedPositive.getMaxValue(), is(equalTo((long) (1 << 20))));
+
+    longSet.release();
+    intSet.release();
+    roaringSet.release();
+    positive.release();
+    assertThat(breaker.getUsed(), is(equalTo(0L)));
+  }
+
+  @Test
+  public void testEncodingOnLongTermsSet() {
+    HierarchyCircuitBreakerService hcbs = new HierarchyCircuitBreakerService(
+            Settings.builder().build(),
+            new NodeSettingsService(Settings.EMPTY));
+
+    CircuitBreaker breaker = hcbs.getBreaker(CircuitBreaker.REQUEST);
+
+    // clustered identifiers, random hashes and the bounds of the range of longs
+    LongTermsSet termsSet = new LongTermsSet(8, breaker);
+    for (int i = 0; i < 1000; i++) {
+      termsSet.add(1000000 + i * 3);
+      termsSet.add(randomLong());
+    }
+    termsSet.add(Long.MIN_VALUE);
+    termsSet.add(Long.MAX_VALUE);
+    termsSet.add(0);
+
+    LongTermsSet decoded = (LongTermsSet) TermsSet.readFrom(termsSet.writeToBytes());
+    assertThat(decoded.size(), is(equalTo(termsSet.size())));
+    for (LongCursor c : termsSet.getLongHashSet()) {
+      assertThat(decoded.contains(c.value), is(true));
+    }
+    termsSet.release();
+
+    // a large set of identifiers is compressed to a few bits per term, and decoded as a sorted set for lookups
+    int size = 1 << 20;
+    termsSet = new LongTermsSet(size, breaker);
+    for (int i = 0; i < size; i++) {
+      termsSet.add(i * 2);
+    }
+    BytesRef bytes = termsSet.writeToBytes();
+    assertThat(bytes.length, lessThan(size));
+
+    decoded = (LongTermsSet) TermsSet.readFrom(bytes, true);
+    assertThat(decoded.size(), is(equalTo(size)));
+    assertThat(decoded.getLongHashSet(), is(nullValue()));
+    for (int i = 0; i < size; i++) {
+      assertThat(decoded.contains(i * 2), is(true));
+      assertThat(decoded.contains(i * 2 + 1), is(false));
+    }
+
+    termsSet.release();
+    assertThat(breaker.getUsed(), is(equalTo(0L)));
+  }
+
+  @Test
+  public void testSpillOnLongTermsSet() throws IOException {
+    HierarchyCircuitBreakerService hcbs = new HierarchyCircuitBreakerService(
+            Settings.builder()
+                    .put(HierarchyCircuitBreakerService.REQUEST_CIRCUIT_BREAKER_LIMIT_SETTING, 100, ByteSizeUnit.KB)
+                    .build(),
+            new NodeSettingsService(Settings.EMPTY));
+
+    CircuitBreaker breaker = hcbs.getBreaker(CircuitBreaker.REQUEST);
+    Path directory = createTempDir();
+
+    // the set cannot hold more than a few thousands terms: the terms are spilled instead of tripping the breaker
+    TreeSet<Long> expected = new TreeSet<>();
+    LongTermsSet termsSet = new LongTermsSet(8, breaker);
+    assertThat(termsSet.enableSpill(directory), is(true));
+    for (int i = 0; i < 50000; i++) {
+      long term = randomBoolean() ? randomIntBetween(-1000, 1000) : randomLong();
+      termsSet.add(term);
+      expected.add(term);
+    }
+    assertThat(termsSet.getSpilledBytes(), greaterThan(0L));
+
+    // the spilled runs are merged when the set is serialized
+    BytesStreamOutput out = new BytesStreamOutput();
+    termsSet.writeTo(out);
+    assertThat(termsSet.size(), is(equalTo(expected.size())));
+    LongTermsSet received = new LongTermsSet((CircuitBreaker) null);
+    received.readFrom(StreamInput.wrap(out.bytes()));
+    assertThat(received.size(), is(equalTo(expected.size())));
+    assertThat(received.getSpilledBytes(), is(equalTo(termsSet.getSpilledBytes())));
+    received.release();
+
+    // the spilled runs are merged into another set which spills too
+    LongTermsSet merged = new LongTermsSet(8, breaker);
+    assertThat(merged.enableSpill(directory), is(true));
+    merged.merge(termsSet);
+    termsSet.release();
+    assertThat(merged.getSpilledBytes(), greaterThan(termsSet.getSpilledBytes()));
+
+    LongTermsSet decoded = (LongTermsSet) TermsSet.readFrom(merged.writeToBytes());
+    assertThat(merged.size(), is(equalTo(expected.size())));
+    assertThat(decoded.size(), is(equalTo(expected.size())));
+    for (long term : expected) {
+      assertThat(decoded.contains(term), is(true));
+    }
+
+    merged.release();
+    assertThat(breaker.getUsed(), is(equalTo(0L)));
+    // the test file system might add extra files to the directory
+    try (DirectoryStream<Path> runs = Files.newDirectoryStream(directory, "siren-terms-*.run")) {
+      assertThat(runs.iterator().hasNext(), is(false));
+    }
+  }
+
+  @Test
+  public void testParallelDecodingOnLongTermsSet() {
+    HierarchyCircuitBreakerService hcbs = new HierarchyCircuitBreakerService(
+            Settings.builder().build(),
+            new NodeSettingsService(Settings.EMPTY));
+
+    CircuitBreaker breaker = hcbs.getBreaker(CircuitBreaker.REQUEST);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    try {
+      // a set decoded into partitioned tables, and a set large enough to be decoded as a sorted array
+      for (int size : new int[] { 200000 + randomInt(1000), (1 << 20) + randomInt(1000) }) {
+        LongTermsSet termsSet = new LongTermsSet(size, breaker);
+        for (int i = 0; i < size / 2; i++) {
+          termsSet.add(i * 3);
+        }
+        while (termsSet.size() < size) {
+          termsSet.add(randomLong());
+        }
+        BytesRef bytes = termsSet.writeToBytes();
+
+        LongTermsSet expected = (LongTermsSet) TermsSet.readFrom(BytesRef.deepCopyOf(bytes), true);
+        LongTermsSet decoded = (LongTermsSet) TermsSet.readFrom(bytes, true, executor, randomIntBetween(2, 5));
+        assertThat(decoded.size(), is(equalTo(size)));
+        assertThat(decoded.getMinValue(), is(equalTo(expected.getMinValue())));
+        assertThat(decoded.getMaxValue(), is(equalTo(expected.getMaxValue())));
+        assertArrayEquals(expected.toSortedArray(), decoded.toSortedArray());
+        for (LongCursor c : termsSet.getLongHashSet()) {
+          assertThat(decoded.contains(c.value), is(true));
+        }
+        assertThat(decoded.contains(1), is(termsSet.contains(1)));
+
+        decoded.release();
+        expected.release();
+        termsSet.release();
+      }
+      assertThat(breaker.getUsed(), is(equalTo(0L)));
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testEncodingOnBytesRefTermsSet() {
+    HierarchyCircuitBreakerService hcbs = new HierarchyCircuitBreakerService(
+            Settings.builder().build(),
+            new NodeSettingsService(Settings.EMPTY));
+
+    CircuitBreaker breaker = hcbs.getBreaker(CircuitBreaker.REQUEST);
+
+    // url-like terms sharing long prefixes, random terms and the empty term
+    TreeSet<BytesRef> expected = new TreeSet<>();
+    for (int i = 0; i < 1000; i++) {
+      expected.add(new BytesRef("http://www.example.com/path/" + randomIntBetween(0, 100) + "/" + i));
+      expected.add(new BytesRef(randomUnicodeOfLengthBetween(0, 16)));
+    }
+
+    BytesRefTermsSet termsSet = new BytesRefTermsSet(breaker);
+    for (BytesRef term : expected) {
+      termsSet.add(term);
+    }
+    BytesRef bytes = termsSet.writeToBytes();
+    assertThat(bytes.length, is(equalTo(bytes.bytes.length)));
+
+    BytesRefTermsSet decoded = (BytesRefTermsSet) TermsSet.readFrom(bytes);
+    assertThat(decoded.size(), is(equalTo(expected.size())));
+    for (BytesRef term : expected) {
+      assertThat(decoded.contains(term), is(true));
+    }
+
+    // a lookup-only set keeps the front-coded terms, and iterates over them in sorted order
+    bytes.offset = 0;
+    decoded = (BytesRefTermsSet) TermsSet.readFrom(bytes, true);
+    assertThat(decoded.size(), is(equalTo(expected.size())));
+    assertThat(decoded.getBytesRefHash(), is(nullValue()));
+    for (BytesRef term : expected) {
+      assertThat(decoded.contains(term), is(true));
+      BytesRef absent = new BytesRef(term.utf8ToString() + "#");
+      assertThat(decoded.contains(absent), is(expected.contains(absent)));
+    }
+    assertThat(decoded.lastTerm(), is(equalTo(expected.last())));
+
+    BytesRefTermsSet.SortedTermsIterator it = decoded.sortedIterator();
+    for (BytesRef term : expected) {
+      assertThat(it.next(), is(equalTo(term)));
+    }
+    assertThat(it.next(), is(nullValue()));
+
+    // the sorted iteration is also available on a set which is not lookup-only
+    it = termsSet.sortedIterator();
+    assertThat(it.next(), is(equalTo(expected.first())));
+
+    // the terms added after a sorted iteration are visible to the lookups and to the next sorted iterations
+    BytesRef added = new BytesRef(expected.last().utf8ToString() + "#");
+    termsSet.add(added);
+    assertThat(termsSet.contains(added), is(true));
+    assertThat(termsSet.size(), is(equalTo(expected.size() + 1)));
+    assertThat(termsSet.lastTerm(), is(equalTo(added)));
+
+    termsSet.release();
+  }
+
+  @Test
+  public void testBinaryFuseFilterTermsSet() throws IOException {
+    HierarchyCircuitBreakerService hcbs = new HierarchyCircuitBreakerService(
+            Settings.builder().build(),
+            new NodeSettingsService(Settings.EMPTY));
+
+    CircuitBreaker breaker = hcbs.getBreaker(CircuitBreaker.REQUEST);
+
+    for (int size : new int[] { 0, 1, 2, 100, 100000 }) {
+      BinaryFuseFilterTermsSet termsSet = new BinaryFuseFilterTermsSet(size, breaker);
+      for (int i = 0; i < size; i++) {
+        termsSet.add(i * 7);
+      }
+
+      BytesRef bytes = termsSet.writeToBytes();
+      BinaryFuseFilterTermsSet decoded = (BinaryFuseFilterTermsSet) TermsSet.readFrom(bytes);
+      assertThat(decoded.size(), is(equalTo(size)));
+      for (int i = 0; i < size; i++) {
+        assertThat(decoded.contains(i * 7), is(true));
+      }
+
+      int falsePositives = 0;
+      for (int i = 0; i < 100000; i++) {
+        if (decoded.contains(-i - 1)) {
+          falsePositives++;
+        }
+      }
+      assertThat(falsePositives, lessThan(1000));
+
+      // the terms set is serialized as a mergeable set of long terms in the shard responses and shard cache
+      BytesStreamOutput out = new BytesStreamOutput();
+      termsSet.writeTo(out);
+      BinaryFuseFilterTermsSet deserialized = new BinaryFuseFilterTermsSet(breaker);
+      deserialized.readFrom(StreamInput.wrap(out.bytes().toBytes()));
+      assertThat(deserialized.size(), is(equalTo(size)));
+      deserialized.release();
+
+      termsSet.release();
+      assertThat(breaker.getUsed(), is(equalTo(0L)));
+    }
+  }
+
+  @Test
+  public void testPagedTermsSets() {
+    HierarchyCircuitBreakerService hcbs = new HierarchyCircuitBreakerService(
+            Settings.builder().build(),
+            new NodeSettingsService(Settings.EMPTY));
+
+    CircuitBreaker breaker = hcbs.getBreaker(CircuitBreaker.REQUEST);
+    BigArrays bigArrays = new BigArrays(getInstanceFromNode(PageCacheRecycler.class), null);
+
+    final int size = 100000;
+    for (TermsByQueryRequest.TermsEncoding encoding : new TermsByQueryRequest.TermsEncoding[] {
+            TermsByQueryRequest.TermsEncoding.LONG, TermsByQueryRequest.TermsEncoding.INTEGER,
+            TermsByQueryRequest.TermsEncoding.BLOOM }) {
+      // the hash sets grow from a small table to several pages, the bloom filters must have the same size to be merged
+      int expectedElements = encoding == TermsByQueryRequest.TermsEncoding.BLOOM ? size : 8;
+      NumericTermsSet termsSet = (NumericTermsSet) TermsSet.newTermsSet(expectedElements, encoding, bigArrays, breaker);
+      NumericTermsSet other = (NumericTermsSet) TermsSet.newTermsSet(size, encoding, bigArrays, breaker);
+      for (int i = 0; i < size; i++) {
+        termsSet.add(i * 3);
+        other.add(i * 3 + 1);
+      }
+      termsSet.merge(other);
+      other.release();
+
+      if (encoding == TermsByQueryRequest.TermsEncoding.LONG) {
+        assertThat(breaker.getUsed(), is(equalTo(((LongTermsSet) termsSet).getLongHashSet().ramBytesUsed())));
+      }
+      if (encoding != TermsByQueryRequest.TermsEncoding.BLOOM) {
+        assertThat(termsSet.size(), is(equalTo(2 * size)));
+        assertThat(termsSet.contains(2), is(false));
+      }
+      for (int i = 0; i < size; i++) {
+        assertThat(termsSet.contains(i * 3), is(true));
+        assertThat(termsSet.contains(i * 3 + 1), is(true));
+      }
+
+      NumericTermsSet decoded = (NumericTermsSet) TermsSet.readFrom(termsSet.writeToBytes());
+      for (int i = 0; i < size; i++) {
+        assertThat(decoded.contains(i * 3), is(true));
+      }
+
+      // the pages are returned to the recycler and the breaker is fully adjusted
+      termsSet.release();
+      assertThat(breaker.getUsed(), is(equalTo(0L)));
+    }
+  }
+
+  @Test
+  public void testPartitionedTermsSet() {
+    HierarchyCircuitBreakerService hcbs = new HierarchyCircuitBreakerService(
+            Settings.builder().build(),
+            new NodeSettingsService(Settings.EMPTY));
+
+    CircuitBreaker breaker = hcbs.getBreaker(CircuitBreaker.REQUEST);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    try {
+      for (TermsByQueryRequest.TermsEncoding encoding : new TermsByQueryRequest.TermsEncoding[] {
+              TermsByQueryRequest.TermsEncoding.LONG, TermsByQueryRequest.TermsEncoding.INTEGER,
+              TermsByQueryRequest.TermsEncoding.BYTES }) {
+        // overlapping shard sets
+        TermsSet[] termsSets = new TermsSet[5];
+        for (int s = 0; s < termsSets.length; s++) {
+          termsSets[s] = TermsSet.newTermsSet(1000, encoding, BigArrays.NON_RECYCLING_INSTANCE, breaker);
+          termsSets[s].setIsPruned(s == 3);
+          for (int i = 0; i < 1000; i++) {
+            int term = s * 500 + i;
+            if (encoding == TermsByQueryRequest.TermsEncoding.BYTES) {
+              ((BytesRefTermsSet) termsSets[s]).add(new BytesRef(Integer.toString(term)));
+            }
+            else {
+              ((NumericTermsSet) termsSets[s]).add(term);
+            }
+          }
+        }
+
+        TermsSet expected = TermsSet.newTermsSet(0, encoding, BigArrays.NON_RECYCLING_INSTANCE, breaker);
+        for (TermsSet terms : termsSets) {
+          expected.merge(terms);
+        }
+
+        TermsSet partitioned = PartitionedTermsSet.merge(termsSets, 3000, encoding, 3, executor,
+                BigArrays.NON_RECYCLING_INSTANCE, breaker);
+        assertThat(partitioned.size(), is(equalTo(expected.size())));
+        assertThat(partitioned.isPruned(), is(true));
+        assertThat(partitioned.getEncoding(), is(equalTo(encoding)));
+
+        BytesRef bytes = partitioned.writeToBytes();
+        if (encoding == TermsByQueryRequest.TermsEncoding.INTEGER) {
+          // the integers are encoded in hash order
+          IntegerTermsSet decoded = (IntegerTermsSet) TermsSet.readFrom(bytes);
+          assertThat(decoded.size(), is(equalTo(expected.size())));
+          assertThat(decoded.isPruned(), is(true));
+          for (int i = 0; i < 3000; i++) {
+            assertThat(decoded.contains(i), is(true));
+          }
+        }
+        else {
+          // the terms are sorted, the encoding is identical
+          assertThat(bytes, is(equalTo(expected.writeToBytes())));
+        }
+
+        partitioned.release();
+        expected.release();
+        for (TermsSet terms : termsSets) {
+          terms.release();
+        }
+        assertThat(breaker.getUsed(), is(equalTo(0L)));
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
 }
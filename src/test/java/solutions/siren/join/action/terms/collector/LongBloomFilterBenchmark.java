@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms.collector;
+
+import java.util.Random;
+
+/**
+ * Compare the lookup throughput and the false positive probability of the {@link LongBloomFilter.Hashing#BLOCKED}
+ * layout against the {@link LongBloomFilter.Hashing#V0} layout, on filters of about 100M bits, i.e., much larger
+ * than the CPU caches.
+ */
+public class LongBloomFilterBenchmark {
+
+  // filter settings
+  public static final int NUM_INSERTIONS = 13700000;
+  public static final double FPP = 0.03;
+  // test settings
+  public static final int NUM_LOOKUPS = 10000000;
+  public static final int NUM_WARMUP = 3;
+  public static final int NUM_RUNS = 5;
+
+  private final Random random;
+  private final long[] lookups;
+
+  LongBloomFilterBenchmark() {
+    this.random = new Random(System.currentTimeMillis());
+    this.lookups = new long[NUM_LOOKUPS];
+  }
+
+  public static void main(String[] args) throws Exception {
+    LongBloomFilterBenchmark bench = new LongBloomFilterBenchmark();
+    bench.bench(LongBloomFilter.Hashing.V0);
+    bench.bench(LongBloomFilter.Hashing.BLOCKED);
+  }
+
+  public void log(String msg) {
+    System.out.println("--> " + msg);
+  }
+
+  public void bench(LongBloomFilter.Hashing hashing) {
+    log("==== " + hashing.name() + " ====");
+    LongBloomFilter filter = new LongBloomFilter(NUM_INSERTIONS, FPP, hashing);
+
+    // half of the lookups are inserted in the filter
+    long seed = random.nextLong();
+    Random r = new Random(seed);
+    for (int i = 0; i < NUM_INSERTIONS; i++) {
+      long value = r.nextLong();
+      filter.put(value);
+      if (i < NUM_LOOKUPS / 2) {
+        lookups[i] = value;
+      }
+    }
+    for (int i = NUM_LOOKUPS / 2; i < NUM_LOOKUPS; i++) {
+      lookups[i] = r.nextLong();
+    }
+    log("Filter size: " + filter.bits.bitSize() + " bits, " + filter.getNumHashFunctions() + " hash functions");
+
+    for (int i = 0; i < NUM_WARMUP; i++) {
+      this.lookup(filter);
+    }
+
+    long hits = 0;
+    long time = System.nanoTime();
+    for (int i = 0; i < NUM_RUNS; i++) {
+      hits = this.lookup(filter);
+    }
+    time = System.nanoTime() - time;
+
+    log("Avg lookup latency: " + ((double) time / NUM_RUNS / NUM_LOOKUPS) + "ns");
+    log("Lookups per second: " + ((long) NUM_RUNS * NUM_LOOKUPS * 1000000000L / time));
+    log("False positive probability: " + ((double) (hits - NUM_LOOKUPS / 2) / (NUM_LOOKUPS / 2)));
+    log("");
+  }
+
+  private long lookup(LongBloomFilter filter) {
+    long hits = 0;
+    for (long value : lookups) {
+      if (filter.mightContain(value)) {
+        hits++;
+      }
+    }
+    return hits;
+  }
+
+}
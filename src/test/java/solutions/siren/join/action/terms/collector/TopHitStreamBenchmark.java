@@ -0,0 +1,198 @@
+/**
+ * Copyright (c) 2016, SIREn Solutions. All Rights Reserved.
+ *
+ * This file is part of the SIREn project.
+ *
+ * SIREn is a free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * SIREn is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package solutions.siren.join.action.terms.collector;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.RAMDirectory;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Compare the latency and the allocation rate of the {@link TopHitStream} against a top-N collection based on
+ * a {@link TopScoreDocCollector} followed by a sort of the {@link ScoreDoc}s by document id, i.e., an object per
+ * hit as done by the previous implementation of the {@link TopHitStream}.
+ */
+public class TopHitStreamBenchmark {
+
+  // index settings
+  public static final int NUM_DOCS = 2000000;
+  public static final int NUM_SEGMENTS = 8;
+  public static final int NUM_WORDS = 100;
+  public static final int WORDS_PER_DOC = 10;
+  // test settings
+  public static final int[] NUM_HITS = new int[] { 1000, 100000, 500000 };
+  public static final int NUM_WARMUP = 5;
+  public static final int NUM_QUERIES = 20;
+
+  private final RAMDirectory directory;
+  private final Random random;
+  private DirectoryReader reader;
+  private IndexSearcher searcher;
+
+  TopHitStreamBenchmark() {
+    this.directory = new RAMDirectory();
+    this.random = new Random(System.currentTimeMillis());
+  }
+
+  public static void main(String[] args) throws Exception {
+    TopHitStreamBenchmark bench = new TopHitStreamBenchmark();
+    bench.setupIndex();
+
+    for (int numHit : NUM_HITS) {
+      bench.benchTopHitStream(numHit);
+      bench.benchScoreDocSort(numHit);
+    }
+
+    bench.shutdown();
+  }
+
+  public void log(String msg) {
+    System.out.println("--> " + msg);
+  }
+
+  public void setupIndex() throws IOException {
+    log("==== INDEX SETUP ====");
+    IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()));
+    int docsPerSegment = NUM_DOCS / NUM_SEGMENTS;
+    for (int i = 0; i < NUM_DOCS; i++) {
+      StringBuilder text = new StringBuilder();
+      for (int j = 0; j < WORDS_PER_DOC; j++) {
+        text.append(" w").append(random.nextInt(NUM_WORDS));
+      }
+      Document doc = new Document();
+      doc.add(new TextField("text", text.toString(), Field.Store.NO));
+      writer.addDocument(doc);
+      if ((i + 1) % docsPerSegment == 0) {
+        writer.commit();
+      }
+    }
+    writer.close();
+    this.reader = DirectoryReader.open(directory);
+    this.searcher = new IndexSearcher(reader);
+    log("Indexed [" + NUM_DOCS + "] documents into [" + reader.leaves().size() + "] segments");
+    log("");
+  }
+
+  public void shutdown() throws IOException {
+    reader.close();
+    directory.close();
+  }
+
+  private Query randomQuery() {
+    BooleanQuery.Builder builder = new BooleanQuery.Builder();
+    for (int i = 0; i < 3; i++) {
+      builder.add(new TermQuery(new Term("text", "w" + random.nextInt(NUM_WORDS))), BooleanClause.Occur.SHOULD);
+    }
+    return builder.build();
+  }
+
+  public void benchTopHitStream(final int numHit) throws IOException {
+    log("==== TOP HIT STREAM [" + numHit + "] ====");
+    this.bench(new Runner() {
+
+      @Override
+      public long run(Query query) throws IOException {
+        TopHitStream stream = new TopHitStream(numHit, query, searcher);
+        stream.initialize();
+        long checksum = 0;
+        while (stream.hasNext()) {
+          stream.next();
+          checksum += stream.getAtomicReaderId() + stream.getAtomicDocId();
+        }
+        return checksum;
+      }
+
+    });
+  }
+
+  public void benchScoreDocSort(final int numHit) throws IOException {
+    log("==== SCORE DOC SORT [" + numHit + "] ====");
+    this.bench(new Runner() {
+
+      @Override
+      public long run(Query query) throws IOException {
+        TopScoreDocCollector collector = TopScoreDocCollector.create(numHit);
+        searcher.search(query, collector);
+        ScoreDoc[] hits = collector.topDocs().scoreDocs;
+        Arrays.sort(hits, new Comparator<ScoreDoc>() {
+
+          @Override
+          public int compare(final ScoreDoc o1, final ScoreDoc o2) {
+            return o1.doc - o2.doc;
+          }
+
+        });
+        long checksum = 0;
+        for (ScoreDoc hit : hits) {
+          checksum += hit.doc;
+        }
+        return checksum;
+      }
+
+    });
+  }
+
+  private void bench(Runner runner) throws IOException {
+    for (int i = 0; i < NUM_WARMUP; i++) {
+      runner.run(this.randomQuery());
+    }
+
+    System.gc();
+    long checksum = 0;
+    long allocatedBytes = allocatedBytes();
+    long time = System.nanoTime();
+    for (int i = 0; i < NUM_QUERIES; i++) {
+      checksum += runner.run(this.randomQuery());
+    }
+    time = System.nanoTime() - time;
+    allocatedBytes = allocatedBytes() - allocatedBytes;
+
+    log("Avg latency: " + (time / NUM_QUERIES / 1000000) + "ms");
+    log("Avg allocated bytes: " + (allocatedBytes / NUM_QUERIES));
+    log("Checksum: " + checksum);
+    log("");
+  }
+
+  private static long allocatedBytes() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  private interface Runner {
+
+    long run(Query query) throws IOException;
+
+  }
+
+}
@@ -20,21 +20,42 @@ package solutions.siren.join.index.query;
 
 import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.action.admin.indices.stats.IndicesStatsResponse;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.cluster.ClusterService;
 import org.elasticsearch.index.cache.IndexCacheModule;
 import org.elasticsearch.index.cache.query.QueryCacheStats;
+import org.elasticsearch.indices.IndicesService;
 import org.elasticsearch.test.ESIntegTestCase;
 import solutions.siren.join.SirenJoinTestCase;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.common.settings.Settings;
 import org.junit.Test;
+import solutions.siren.join.action.admin.cache.FilterJoinCacheService;
+import solutions.siren.join.action.admin.cache.StatsFilterJoinCacheAction;
+import solutions.siren.join.action.admin.cache.StatsFilterJoinCacheNodeResponse;
+import solutions.siren.join.action.admin.cache.StatsFilterJoinCacheRequestBuilder;
+import solutions.siren.join.action.admin.cache.StatsFilterJoinCacheResponse;
+import solutions.siren.join.action.coordinate.terms.EncodedTermsStore;
+import solutions.siren.join.action.coordinate.terms.GetEncodedTermsAction;
+import solutions.siren.join.action.coordinate.terms.GetEncodedTermsRequest;
+import solutions.siren.join.action.coordinate.terms.PutEncodedTermsAction;
+import solutions.siren.join.action.coordinate.terms.PutEncodedTermsRequest;
+import solutions.siren.join.action.coordinate.terms.PutEncodedTermsResponse;
+import solutions.siren.join.action.terms.TermsCollectorService;
 import solutions.siren.join.action.terms.collector.LongBloomFilter;
+import solutions.siren.join.common.Bytes;
 
 import static org.elasticsearch.index.query.QueryBuilders.boolQuery;
+import static org.elasticsearch.index.query.QueryBuilders.wrapperQuery;
 import static solutions.siren.join.index.query.QueryBuilders.fieldDataTermsQuery;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertHitCount;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.containsString;
 
 @ESIntegTestCase.ClusterScope(scope= ESIntegTestCase.Scope.SUITE, numDataNodes=1)
 public class FieldDataTermsQueryTest extends SirenJoinTestCase {
@@ -51,6 +72,14 @@ public class FieldDataTermsQueryTest extends SirenJoinTestCase {
     return 0;
   }
 
+  @Override
+  protected Settings nodeSettings(int nodeOrdinal) {
+    return Settings.builder()
+            .put(super.nodeSettings(nodeOrdinal))
+            .put(TermsCollectorService.SIREN_TERMSBYQUERY_DECODE_PARALLELISM, randomBoolean() ? 1 : randomIntBetween(2, 4))
+            .build();
+  }
+
   @Override
   public Settings indexSettings() {
     Settings.Builder builder = Settings.builder();
@@ -99,6 +128,123 @@ public class FieldDataTermsQueryTest extends SirenJoinTestCase {
     assertHitCount(searchResponse, 2L);
   }
 
+  @Test
+  public void testDocValuesMatching() throws Exception {
+    assertAcked(prepareCreate("index1").addMapping("type",
+            "id", "type=string,index=not_analyzed", "text", "type=string", "num", "type=long"));
+    ensureGreen();
+
+    indexRandom(true,
+      client().prepareIndex("index1", "type", "1").setSource("id", "1", "text", "1", "num", 1),
+      client().prepareIndex("index1", "type", "3").setSource("id", "3", "text", "3", "num", 3),
+      client().prepareIndex("index1", "type", "7").setSource("id", "7", "text", "7", "num", 7));
+
+    long[] ids = new long[] { 1, 2, 4, 8, 10, 7, 6, 11, 5 };
+    long[] hashIds = new long[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      BytesRef bytesRef = new BytesRef(Long.toString(ids[i]));
+      hashIds[i] = LongBloomFilter.hash3_x64_128(bytesRef.bytes, bytesRef.offset, bytesRef.length, 0);
+    }
+
+    TermsQueryShardStats stats = internalCluster().getDataNodeInstance(IndicesService.class)
+            .indexServiceSafe("index1").shardInjectorSafe(0).getInstance(TermsQueryShardStats.class);
+
+    // fields with doc values are matched without loading the field data
+    SearchResponse searchResponse = client().prepareSearch("index1").setQuery(
+      boolQuery().filter(fieldDataTermsQuery("id", hashIds, CACHE_KEY))
+    ).get();
+    assertHitCount(searchResponse, 2L);
+    searchResponse = client().prepareSearch("index1").setQuery(
+      boolQuery().filter(fieldDataTermsQuery("num", ids, CACHE_KEY + 1))
+    ).get();
+    assertHitCount(searchResponse, 2L);
+    assertThat(stats.getDocValuesSegments(), greaterThan(0L));
+    assertThat(stats.getFieldDataSegments(), is(equalTo(0L)));
+
+    // analyzed fields do not have doc values and fall back to the field data
+    searchResponse = client().prepareSearch("index1").setQuery(
+      boolQuery().filter(fieldDataTermsQuery("text", hashIds, CACHE_KEY + 2))
+    ).get();
+    assertHitCount(searchResponse, 2L);
+    assertThat(stats.getFieldDataSegments(), greaterThan(0L));
+  }
+
+  @Test
+  public void testSegmentPruning() throws Exception {
+    assertAcked(prepareCreate("index1").setSettings(Settings.builder()
+            .put("index.number_of_shards", 1).put("index.number_of_replicas", 0))
+            .addMapping("type", "num", "type=long"));
+    ensureGreen();
+
+    // two segments with disjoint ranges of values
+    client().prepareIndex("index1", "type", "1").setSource("num", 1).setRefresh(true).get();
+    client().prepareIndex("index1", "type", "3").setSource("num", 3).setRefresh(true).get();
+    client().prepareIndex("index1", "type", "1001").setSource("num", 1001).setRefresh(true).get();
+    client().prepareIndex("index1", "type", "1007").setSource("num", 1007).setRefresh(true).get();
+
+    TermsQueryShardStats stats = internalCluster().getDataNodeInstance(IndicesService.class)
+            .indexServiceSafe("index1").shardInjectorSafe(0).getInstance(TermsQueryShardStats.class);
+
+    SearchResponse searchResponse = client().prepareSearch("index1").setQuery(
+      boolQuery().filter(fieldDataTermsQuery("num", new long[] { 1000, 1001, 1005, 1007 }, CACHE_KEY))
+    ).get();
+    assertHitCount(searchResponse, 2L);
+    assertThat(stats.getPrunedSegments(), greaterThan(0L));
+
+    // the stats are exposed by the filter join cache stats api
+    StatsFilterJoinCacheResponse rsp = new StatsFilterJoinCacheRequestBuilder(client(), StatsFilterJoinCacheAction.INSTANCE).get();
+    long prunedSegments = 0;
+    for (StatsFilterJoinCacheNodeResponse node : rsp.getNodes()) {
+      prunedSegments += node.getTermsQueryStats().getPrunedSegments();
+    }
+    assertThat(prunedSegments, is(equalTo(stats.getPrunedSegments())));
+  }
+
+  @Test
+  public void testPostingsStrategy() throws Exception {
+    assertAcked(prepareCreate("index1").setSettings(Settings.builder()
+            .put("index.number_of_shards", 1).put("index.number_of_replicas", 0))
+            .addMapping("type", "long", "type=long", "int", "type=integer"));
+    ensureGreen();
+
+    int numDocs = 500;
+    IndexRequestBuilder[] builders = new IndexRequestBuilder[numDocs];
+    for (int i = 0; i < numDocs; i++) {
+      builders[i] = client().prepareIndex("index1", "type", Integer.toString(i)).setSource("long", i, "int", -i);
+    }
+    indexRandom(true, builders);
+    forceMerge(); // ensure that we have only one segment
+
+    TermsQueryShardStats stats = internalCluster().getDataNodeInstance(IndicesService.class)
+            .indexServiceSafe("index1").shardInjectorSafe(0).getInstance(TermsQueryShardStats.class);
+
+    // a few terms against a large segment are seeked in the postings, the profiled query reports the strategy
+    SearchResponse searchResponse = client().prepareSearch("index1").setProfile(true).setQuery(
+      boolQuery().filter(fieldDataTermsQuery("long", new long[] { 3, 42, 404, 1000 }, CACHE_KEY))
+    ).get();
+    assertHitCount(searchResponse, 3L);
+    assertThat(searchResponse.toString(), containsString("[postings=1, scan=0]"));
+
+    searchResponse = client().prepareSearch("index1").setQuery(
+      boolQuery().filter(fieldDataTermsQuery("int", new long[] { -3, -42, 7, Long.MIN_VALUE }, CACHE_KEY + 1))
+    ).get();
+    assertHitCount(searchResponse, 2L);
+    assertThat(stats.getPostingsSegments(), is(equalTo(2L)));
+    assertThat(stats.getDocValuesSegments(), is(equalTo(0L)));
+
+    // many terms against the same segment are matched by scanning the values
+    long[] terms = new long[numDocs];
+    for (int i = 0; i < numDocs; i++) {
+      terms[i] = i * 2;
+    }
+    searchResponse = client().prepareSearch("index1").setProfile(true).setQuery(
+      boolQuery().filter(fieldDataTermsQuery("long", terms, CACHE_KEY + 2))
+    ).get();
+    assertHitCount(searchResponse, numDocs / 2);
+    assertThat(searchResponse.toString(), containsString("[postings=0, scan=1]"));
+    assertThat(stats.getDocValuesSegments(), is(equalTo(1L)));
+  }
+
   @Test
   public void testCaching() throws Exception {
     assertAcked(prepareCreate("index1").addMapping("type", "id", "type=integer"));
@@ -133,6 +279,94 @@ public class FieldDataTermsQueryTest extends SirenJoinTestCase {
     assertThat(queryCacheStats.getHitCount(), is(equalTo(1L)));
   }
 
+  @Test
+  public void testStoredEncodedTerms() throws Exception {
+    assertAcked(prepareCreate("index1").addMapping("type", "id", "type=integer"));
+    ensureGreen();
+
+    indexRandom(true,
+      client().prepareIndex("index1", "type", "1").setSource("id", "1"),
+      client().prepareIndex("index1", "type", "3").setSource("id", "3"),
+      client().prepareIndex("index1", "type", "7").setSource("id", "7"));
+
+    // the query only references the encoded terms by their cache key
+    String query = "{\"" + FieldDataTermsQueryParser.NAME + "\":{\"id\":{\"_cache_key\":" + CACHE_KEY + "}}}";
+
+    try {
+      client().prepareSearch("index1").setQuery(boolQuery().filter(wrapperQuery(query))).get();
+      fail("Expected a failure as no encoded terms are stored");
+    }
+    catch (Exception e) {
+      assertThat(e.toString(), containsString("no encoded terms are stored"));
+    }
+
+    PutEncodedTermsRequest request = new PutEncodedTermsRequest(PutEncodedTermsRequest.DATA_NODES);
+    request.cacheKey(CACHE_KEY).encodedTerms(new BytesRef(Bytes.encode(new long[] { 1, 2, 4, 8, 10, 7, 6, 11, 5 })));
+    PutEncodedTermsResponse response = client().execute(PutEncodedTermsAction.INSTANCE, request).get();
+    assertThat(response.isStored(), is(true));
+
+    SearchResponse searchResponse = client().prepareSearch("index1").setQuery(
+      boolQuery().filter(wrapperQuery(query))
+    ).get();
+    assertHitCount(searchResponse, 2L);
+  }
+  @Test
+  public void testStoredEncodedTermsTargetNodes() throws Exception {
+    assertAcked(prepareCreate("index3").addMapping("type", "id", "type=integer"));
+    ensureGreen();
+
+    String nodeId = internalCluster().getDataNodeInstance(ClusterService.class).localNode().id();
+    BytesRef encodedTerms = new BytesRef(Bytes.encode(new long[] { 1, 2, 4 }));
+
+    // the terms are shipped to the node which holds the shard of the index
+    PutEncodedTermsRequest request = new PutEncodedTermsRequest(PutEncodedTermsRequest.DATA_NODES);
+    request.indices("index3").cacheKey(CACHE_KEY + 2).encodedTerms(encodedTerms);
+    PutEncodedTermsResponse response = client().execute(PutEncodedTermsAction.INSTANCE, request).get();
+    assertThat(response.isStored(), is(true));
+    assertThat(response.getNodes().length, equalTo(1));
+    assertThat(response.getNodes()[0].getNode().id(), equalTo(nodeId));
+
+    // the terms are not shipped again to a node which already holds them
+    request = new PutEncodedTermsRequest(PutEncodedTermsRequest.DATA_NODES);
+    request.indices("index3").excludedNodesIds(nodeId).cacheKey(CACHE_KEY + 2).encodedTerms(encodedTerms);
+    response = client().execute(PutEncodedTermsAction.INSTANCE, request).get();
+    assertThat(response.isStored(), is(true));
+    assertThat(response.getNodes().length, equalTo(0));
+  }
+
+  @Test
+  public void testPinnedEncodedTerms() throws Exception {
+    assertAcked(prepareCreate("index2").addMapping("type", "id", "type=integer"));
+    ensureGreen();
+
+    indexRandom(true,
+      client().prepareIndex("index2", "type", "1").setSource("id", "1"),
+      client().prepareIndex("index2", "type", "3").setSource("id", "3"),
+      client().prepareIndex("index2", "type", "7").setSource("id", "7"));
+
+    // the encoded terms are only pinned on the node of the coordinator, and are missing from the store
+    long cacheKey = CACHE_KEY + 1;
+    ClusterService clusterService = internalCluster().getInstance(ClusterService.class);
+    EncodedTermsStore termsStore = internalCluster().getInstance(FilterJoinCacheService.class,
+            clusterService.localNode().name()).getTermsStoreInstance();
+    termsStore.pin(cacheKey, new BytesRef(Bytes.encode(new long[] { 1, 2, 4, 8, 10, 7, 6, 11, 5 })));
+
+    String query = "{\"" + FieldDataTermsQueryParser.NAME + "\":{\"id\":{\"_cache_key\":" + cacheKey +
+            ",\"_store_node\":\"" + clusterService.localNode().id() + "\"}}}";
+    SearchResponse searchResponse = client().prepareSearch("index2").setQuery(
+      boolQuery().filter(wrapperQuery(query))
+    ).get();
+    assertHitCount(searchResponse, 2L);
+
+    GetEncodedTermsRequest request = new GetEncodedTermsRequest(clusterService.localNode().id()).cacheKey(cacheKey);
+    assertThat(client().execute(GetEncodedTermsAction.INSTANCE, request).get().getEncodedTerms(), notNullValue());
+
+    termsStore.unpin(cacheKey);
+    termsStore.invalidateAll();
+    assertThat(client().execute(GetEncodedTermsAction.INSTANCE, request).get().getEncodedTerms(), nullValue());
+  }
+
+
   private QueryCacheStats getQueryCacheStats(String index) {
     IndicesStatsResponse statsResponse = client().admin().indices().prepareStats(index).setQueryCache(true).setRefresh(true).get();
     return statsResponse.getIndex(index).getTotal().getQueryCache();